@@ -51,6 +51,7 @@ import org.javarosa.form.api.FormEntryController;
 import org.javarosa.form.api.FormEntryPrompt;
 import uk.co.biorisk.collect.R;
 import uk.co.biorisk.collect.application.Collect;
+import uk.co.biorisk.collect.database.ItemsetQueryEngine;
 import uk.co.biorisk.collect.exception.JavaRosaException;
 import uk.co.biorisk.collect.listeners.AdvanceToNextListener;
 import uk.co.biorisk.collect.listeners.FormLoaderListener;
@@ -2237,6 +2238,10 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 
     @Override
     protected void onDestroy() {
+        if (isFinishing()) {
+            // the form is closed, so its itemsets don't need to be loaded any more
+            ItemsetQueryEngine.getInstance().cancelLoads();
+        }
         if (mFormLoaderTask != null) {
             mFormLoaderTask.setFormLoaderListener(null);
             // We have to call cancel to terminate the thread, otherwise it
@@ -18,11 +18,13 @@ import android.app.AlertDialog;
 import android.app.ListActivity;
 import android.content.DialogInterface;
 import android.graphics.Color;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.KeyEvent;
 import android.view.View;
 import android.view.View.OnClickListener;
+import android.view.ViewGroup;
 import android.widget.Button;
 import android.widget.ListView;
 import android.widget.TextView;
@@ -35,6 +37,7 @@ import uk.co.biorisk.collect.adapters.HierarchyListAdapter;
 import uk.co.biorisk.collect.application.Collect;
 import uk.co.biorisk.collect.exception.JavaRosaException;
 import uk.co.biorisk.collect.logic.FormController;
+import uk.co.biorisk.collect.logic.FormHierarchy;
 import uk.co.biorisk.collect.logic.HierarchyElement;
 
 import java.util.ArrayList;
@@ -52,9 +55,14 @@ public class FormHierarchyActivity extends ListActivity {
     private static final String mIndent = "     ";
     List<HierarchyElement> formList;
     TextView mPath;
+    TextView mEmpty;
     FormIndex mStartIndex;
     private Button jumpPreviousButton;
+    private Button jumpBeginningButton;
+    private Button jumpEndButton;
     private FormIndex currentIndex;
+    private HierarchyListAdapter mAdapter;
+    private BuildHierarchyTask mBuildTask;
 
 
     @Override
@@ -64,13 +72,25 @@ public class FormHierarchyActivity extends ListActivity {
 
         FormController formController = Collect.getInstance().getFormController();
 
-        // We use a static FormEntryController to make jumping faster.
-        mStartIndex = formController.getFormIndex();
+        // the form is stepped through while the hierarchy is built, so take the index the user
+        // was at from the task if it is still running after a restart
+        mBuildTask = (BuildHierarchyTask) getLastNonConfigurationInstance();
+        if (mBuildTask != null && mBuildTask.getStatus() == AsyncTask.Status.FINISHED) {
+            mBuildTask = null;
+        }
+        if (mBuildTask != null) {
+            mBuildTask.setActivity(this);
+            mStartIndex = mBuildTask.mStartIndex;
+        } else {
+            // We use a static FormEntryController to make jumping faster.
+            mStartIndex = formController.getFormIndex();
+        }
 
         setTitle(getString(R.string.app_name) + " > "
                 + formController.getFormTitle());
 
         mPath = (TextView) findViewById(R.id.pathtext);
+        mEmpty = (TextView) findViewById(android.R.id.empty);
 
         jumpPreviousButton = (Button) findViewById(R.id.jumpPreviousButton);
         jumpPreviousButton.setOnClickListener(new OnClickListener() {
@@ -81,7 +101,7 @@ public class FormHierarchyActivity extends ListActivity {
             }
         });
 
-        Button jumpBeginningButton = (Button) findViewById(R.id.jumpBeginningButton);
+        jumpBeginningButton = (Button) findViewById(R.id.jumpBeginningButton);
         jumpBeginningButton.setOnClickListener(new OnClickListener() {
             @Override
             public void onClick(View v) {
@@ -93,7 +113,7 @@ public class FormHierarchyActivity extends ListActivity {
             }
         });
 
-        Button jumpEndButton = (Button) findViewById(R.id.jumpEndButton);
+        jumpEndButton = (Button) findViewById(R.id.jumpEndButton);
         jumpEndButton.setOnClickListener(new OnClickListener() {
             @Override
             public void onClick(View v) {
@@ -104,25 +124,26 @@ public class FormHierarchyActivity extends ListActivity {
             }
         });
 
-        refreshView();
-
-        // kinda slow, but works.
-        // this scrolls to the last question the user was looking at
-        if (getListAdapter() != null && getListView() != null) {
-            getListView().post(new Runnable() {
-                @Override
-                public void run() {
-                    int position = 0;
-                    for (int i = 0; i < getListAdapter().getCount(); i++) {
-                        HierarchyElement he = (HierarchyElement) getListAdapter().getItem(i);
-                        if (mStartIndex.equals(he.getFormIndex())) {
-                            position = i;
-                            break;
-                        }
-                    }
-                    getListView().setSelection(position);
+        // The rows of repeat instances are only labelled when they are shown, as there may be
+        // many of them.
+        mAdapter = new HierarchyListAdapter(this) {
+            @Override
+            public View getView(int position, View convertView, ViewGroup parent) {
+                HierarchyElement h = (HierarchyElement) getItem(position);
+                if (h.getType() == CHILD && h.getPrimaryText() == null) {
+                    FormEntryCaption fc = Collect.getInstance().getFormController()
+                            .getCaptionPrompt(h.getFormIndex());
+                    h.setPrimaryText(mIndent + fc.getLongText() + " "
+                            + (fc.getMultiplicity() + 1));
                 }
-            });
+                return super.getView(position, convertView, parent);
+            }
+        };
+        setListAdapter(mAdapter);
+
+        refreshView();
+        if (mBuildTask == null) {
+            scrollToStartIndex();
         }
     }
 
@@ -138,18 +159,47 @@ public class FormHierarchyActivity extends ListActivity {
         super.onStop();
     }
 
+    @Override
+    public Object onRetainNonConfigurationInstance() {
+        // pass the task on restart
+        if (mBuildTask != null) {
+            mBuildTask.setActivity(null);
+        }
+        return mBuildTask;
+    }
+
     private void goUpLevel() {
         Collect.getInstance().getFormController().stepToOuterScreenEvent();
 
         refreshView();
     }
 
+    /**
+     * this scrolls to the last question the user was looking at
+     */
+    private void scrollToStartIndex() {
+        if (getListAdapter() != null && getListView() != null) {
+            getListView().post(new Runnable() {
+                @Override
+                public void run() {
+                    int position = 0;
+                    for (int i = 0; i < getListAdapter().getCount(); i++) {
+                        HierarchyElement he = (HierarchyElement) getListAdapter().getItem(i);
+                        if (mStartIndex.equals(he.getFormIndex())) {
+                            position = i;
+                            break;
+                        }
+                    }
+                    getListView().setSelection(position);
+                }
+            });
+        }
+    }
+
 
-    private String getCurrentPath() {
+    private String getPath(FormIndex repeatIndex) {
         FormController formController = Collect.getInstance().getFormController();
-        FormIndex index = formController.getFormIndex();
-        // move to enclosing group...
-        index = formController.stepIndexOut(index);
+        FormIndex index = repeatIndex;
 
         String path = "";
         while (index != null) {
@@ -167,111 +217,92 @@ public class FormHierarchyActivity extends ListActivity {
     }
 
 
+    /**
+     * Lists the level the form is at, once the hierarchy of the form has been built.
+     */
     public void refreshView() {
+        FormController formController = Collect.getInstance().getFormController();
+        // Record the current index so we can return to the same place if the user hits 'back'.
+        currentIndex = formController.getFormIndex();
+
+        FormHierarchy hierarchy = formController.getCachedHierarchy();
+        if (hierarchy == null) {
+            if (mBuildTask == null) {
+                mBuildTask = new BuildHierarchyTask(mStartIndex);
+                mBuildTask.setActivity(this);
+                mBuildTask.execute((Void[]) null);
+            }
+            setLoading(true);
+            return;
+        }
+        showLevel(hierarchy);
+    }
+
+    private void hierarchyBuilt(FormHierarchy hierarchy, Exception error) {
+        mBuildTask = null;
+        setLoading(false);
+        if (hierarchy == null) {
+            // not every exception has a message, and refreshing would only build it again
+            createErrorDialog(error.getMessage() != null ? error.getMessage() : error.toString());
+            return;
+        }
+        refreshView();
+        scrollToStartIndex();
+    }
+
+    private void setLoading(boolean loading) {
+        if (loading) {
+            mPath.setVisibility(View.GONE);
+        }
+        jumpPreviousButton.setEnabled(!loading);
+        jumpBeginningButton.setEnabled(!loading);
+        jumpEndButton.setEnabled(!loading);
+        mEmpty.setText(loading ? R.string.please_wait : R.string.no_items_display);
+    }
+
+    private void showLevel(FormHierarchy hierarchy) {
         try {
             FormController formController = Collect.getInstance().getFormController();
-            // Record the current index so we can return to the same place if the user hits 'back'.
-            currentIndex = formController.getFormIndex();
 
             // If we're not at the first level, we're inside a repeated group so we want to only display
             // everything enclosed within that group.
-            String contextGroupRef = "";
-            formList = new ArrayList<>();
-
-            // If we're currently at a repeat node, record the name of the node and step to the next
-            // node to display.
-            if (formController.getEvent() == FormEntryController.EVENT_REPEAT) {
-                contextGroupRef =
-                        formController.getFormIndex().getReference().toString(true);
-                formController.stepToNextEvent(FormController.STEP_INTO_GROUP);
-            } else {
-                FormIndex startTest = formController.stepIndexOut(currentIndex);
+            FormIndex contextIndex = currentIndex;
+            if (formController.getEvent(contextIndex) != FormEntryController.EVENT_REPEAT) {
+                contextIndex = formController.stepIndexOut(currentIndex);
                 // If we have a 'group' tag, we want to step back until we hit a repeat or the
                 // beginning.
-                while (startTest != null
-                        && formController.getEvent(startTest) == FormEntryController.EVENT_GROUP) {
-                    startTest = formController.stepIndexOut(startTest);
-                }
-                if (startTest == null) {
-                    // check to see if the question is at the first level of the hierarchy. If it is,
-                    // display the root level from the beginning.
-                    formController.jumpToIndex(FormIndex
-                            .createBeginningOfFormIndex());
-                } else {
-                    // otherwise we're at a repeated group
-                    formController.jumpToIndex(startTest);
-                }
-
-                // now test again for repeat. This should be true at this point or we're at the
-                // beginning
-                if (formController.getEvent() == FormEntryController.EVENT_REPEAT) {
-                    contextGroupRef =
-                            formController.getFormIndex().getReference().toString(true);
-                    formController.stepToNextEvent(FormController.STEP_INTO_GROUP);
+                while (contextIndex != null
+                        && formController.getEvent(contextIndex) == FormEntryController.EVENT_GROUP) {
+                    contextIndex = formController.stepIndexOut(contextIndex);
                 }
             }
 
-            int event = formController.getEvent();
-            if (event == FormEntryController.EVENT_BEGINNING_OF_FORM) {
-                // The beginning of form has no valid prompt to display.
-                formController.stepToNextEvent(FormController.STEP_INTO_GROUP);
-                contextGroupRef = formController.getFormIndex().getReference().getParentRef().toString(true);
+            String contextGroupRef;
+            if (contextIndex == null) {
+                // the question is at the first level of the hierarchy
+                contextGroupRef = FormHierarchy.ROOT;
                 mPath.setVisibility(View.GONE);
                 jumpPreviousButton.setEnabled(false);
             } else {
+                contextGroupRef = contextIndex.getReference().toString(true);
                 mPath.setVisibility(View.VISIBLE);
-                mPath.setText(getCurrentPath());
+                mPath.setText(getPath(contextIndex));
                 jumpPreviousButton.setEnabled(true);
             }
 
-            // Refresh the current event in case we did step forward.
-            event = formController.getEvent();
-
-            // Big change from prior implementation:
-            //
-            // The ref strings now include the instance number designations
-            // i.e., [0], [1], etc. of the repeat groups (and also [1] for
-            // non-repeat elements).
-            //
-            // The contextGroupRef is now also valid for the top-level form.
-            //
-            // The repeatGroupRef is null if we are not skipping a repeat
-            // section.
-            //
-            String repeatGroupRef = null;
-
-            event_search:
-            while (event != FormEntryController.EVENT_END_OF_FORM) {
-
-                // get the ref to this element
-                String currentRef = formController.getFormIndex().getReference().toString(true);
-
-                // retrieve the current group
-                String curGroup = (repeatGroupRef == null) ? contextGroupRef : repeatGroupRef;
-
-                if (!currentRef.startsWith(curGroup)) {
-                    // We have left the current group
-                    if (repeatGroupRef == null) {
-                        // We are done.
-                        break event_search;
-                    } else {
-                        // exit the inner repeat group
-                        repeatGroupRef = null;
-                    }
-                }
-
-                if (repeatGroupRef != null) {
-                    // We're in a repeat group within the one we want to list
-                    // skip this question/group/repeat and move to the next index.
-                    event =
-                            formController.stepToNextEvent(FormController.STEP_INTO_GROUP);
+            // The hierarchy lists everything in the level whether it is relevant or not, as that
+            // depends on the answers given since it was built.
+            formList = new ArrayList<>();
+            HierarchyElement group = null;
+            for (FormHierarchy.Node node : hierarchy.getLevel(contextGroupRef)) {
+                if (!formController.isIndexRelevant(node.index)) {
                     continue;
                 }
 
-                switch (event) {
+                switch (node.event) {
                     case FormEntryController.EVENT_QUESTION:
-
-                        FormEntryPrompt fp = formController.getQuestionPrompt();
+                        group = null;
+                        FormEntryPrompt fp = formController.getQuestionPrompt(node.index);
                         String label = fp.getLongText();
                         if (!fp.isReadOnly() || (label != null && label.length() > 0)) {
                             // show the question if it is an editable field.
@@ -280,51 +311,24 @@ public class FormHierarchyActivity extends ListActivity {
                                     Color.WHITE, QUESTION, fp.getIndex()));
                         }
                         break;
-                    case FormEntryController.EVENT_GROUP:
-                        // ignore group events
-                        break;
-                    case FormEntryController.EVENT_PROMPT_NEW_REPEAT:
-                        // this would display the 'add new repeat' dialog
-                        // ignore it.
-                        break;
                     case FormEntryController.EVENT_REPEAT:
-                        FormEntryCaption fc = formController.getCaptionPrompt();
-                        // push this repeat onto the stack.
-                        repeatGroupRef = currentRef;
-                        // Because of the guard conditions above, we will skip
-                        // everything until we exit this repeat.
-                        //
-                        // Note that currentRef includes the multiplicity of the
-                        // repeat (e.g., [0], [1], ...), so every repeat will be
-                        // detected as different and reach this case statement.
-                        // Only the [0] emits the repeat header.
-                        // Every one displays the descend-into action element.
-
-                        if (fc.getMultiplicity() == 0) {
+                        if (group == null || node.index.getReference().getMultLast() == 0) {
                             // Display the repeat header for the group.
-                            HierarchyElement group =
-                                    new HierarchyElement(fc.getLongText(), null, getResources()
-                                            .getDrawable(R.drawable.expander_ic_minimized), Color.WHITE,
-                                            COLLAPSED, fc.getIndex());
+                            FormEntryCaption fc = formController.getCaptionPrompt(node.index);
+                            group = new HierarchyElement(fc.getLongText(), null, getResources()
+                                    .getDrawable(R.drawable.expander_ic_minimized), Color.WHITE,
+                                    COLLAPSED, fc.getIndex());
                             formList.add(group);
                         }
                         // Add this group name to the drop down list for this repeating group.
-                        HierarchyElement h = formList.get(formList.size() - 1);
-                        h.addChild(new HierarchyElement(mIndent + fc.getLongText() + " "
-                                + (fc.getMultiplicity() + 1), null, null, Color.WHITE, CHILD, fc
-                                .getIndex()));
+                        group.addChild(new HierarchyElement(null, null, null, Color.WHITE, CHILD,
+                                node.index));
                         break;
                 }
-                event =
-                        formController.stepToNextEvent(FormController.STEP_INTO_GROUP);
             }
 
-            HierarchyListAdapter itla = new HierarchyListAdapter(this);
-            itla.setListItems(formList);
-            setListAdapter(itla);
-
-            // set the controller back to the current index in case the user hits 'back'
-            formController.jumpToIndex(currentIndex);
+            mAdapter.setListItems(formList);
+            mAdapter.notifyDataSetChanged();
         } catch (Exception e) {
             Log.e(t, e.getMessage(), e);
             createErrorDialog(e.getMessage());
@@ -418,10 +422,7 @@ public class FormHierarchyActivity extends ListActivity {
         }
 
         // Should only get here if we've expanded or collapsed a group
-        HierarchyListAdapter itla = new HierarchyListAdapter(this);
-        itla.setListItems(formList);
-        setListAdapter(itla);
-        getListView().setSelection(position);
+        mAdapter.notifyDataSetChanged();
     }
 
 
@@ -429,10 +430,50 @@ public class FormHierarchyActivity extends ListActivity {
     public boolean onKeyDown(int keyCode, KeyEvent event) {
         switch (keyCode) {
             case KeyEvent.KEYCODE_BACK:
+                if (mBuildTask != null) {
+                    // the form is being stepped through, so it can't be jumped back yet
+                    return true;
+                }
                 Collect.getInstance().getActivityLogger().logInstanceAction(this, "onKeyDown", "KEYCODE_BACK.JUMP", mStartIndex);
                 Collect.getInstance().getFormController().jumpToIndex(mStartIndex);
         }
         return super.onKeyDown(keyCode, event);
     }
 
+    /**
+     * Lists the questions and repeat instances of the form, which is kept by the form controller
+     * for the next time the hierarchy is shown.
+     */
+    private static class BuildHierarchyTask extends AsyncTask<Void, Void, FormHierarchy> {
+
+        private final FormIndex mStartIndex;
+        private FormHierarchyActivity mActivity;
+        private Exception mError;
+
+        BuildHierarchyTask(FormIndex startIndex) {
+            mStartIndex = startIndex;
+        }
+
+        void setActivity(FormHierarchyActivity activity) {
+            mActivity = activity;
+        }
+
+        @Override
+        protected FormHierarchy doInBackground(Void... params) {
+            try {
+                return Collect.getInstance().getFormController().buildHierarchy();
+            } catch (Exception e) {
+                Log.e(t, e.getMessage(), e);
+                mError = e;
+                return null;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(FormHierarchy hierarchy) {
+            if (mActivity != null) {
+                mActivity.hierarchyBuilt(hierarchy, mError);
+            }
+        }
+    }
 }
@@ -0,0 +1,193 @@
+package uk.co.biorisk.collect.database;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+/**
+ * Inserts a large number of rows into one table through a single compiled INSERT statement,
+ * committing every chunkSize rows.
+ * <p>
+ * Unless it is told to keep the database durable, while it is open the database's rollback
+ * journal is kept in memory and writes are not synced to disk; the previous settings are restored
+ * by {@link #close()}. An interrupted import can then leave the database corrupt, so that must
+ * only be done for databases that are thrown away and rebuilt from their source when an import
+ * does not complete.
+ * <p>
+ * Typical use:
+ * <pre>
+ * BulkInserter inserter = new BulkInserter(db, table, columns, 1000);
+ * try {
+ *     for (...) {
+ *         inserter.bindString(0, value);
+ *         ...
+ *         inserter.insert();
+ *     }
+ *     inserter.finish();
+ * } finally {
+ *     inserter.close();
+ * }
+ * </pre>
+ */
+public final class BulkInserter {
+
+    private static final String t = "BulkInserter";
+
+    private final SQLiteDatabase mDb;
+    private final SQLiteStatement mStatement;
+    private final int mChunkSize;
+    private final String mJournalMode;
+    private final Long mSynchronous;
+    private final long mStartTime;
+
+    private int mRowsInChunk = 0;
+    private int mRowCount = 0;
+    private boolean mInTransaction = false;
+
+    /**
+     * @param db        the database, which must not be in a transaction
+     * @param table     the table to insert into
+     * @param columns   the columns that will be bound, in bind order; they are used as given, so
+     *                  they must already be safe (or quoted) SQL identifiers
+     * @param chunkSize how many rows to insert per transaction
+     */
+    public BulkInserter(SQLiteDatabase db, String table, String[] columns, int chunkSize) {
+        this(db, table, columns, chunkSize, false);
+    }
+
+    /**
+     * @param durable whether to keep the journal and synchronous settings, for databases that
+     *                hold more than the imported data
+     */
+    public BulkInserter(SQLiteDatabase db, String table, String[] columns, int chunkSize,
+                        boolean durable) {
+        mDb = db;
+        mChunkSize = chunkSize;
+
+        StringBuilder sql = new StringBuilder();
+        sql.append("INSERT INTO ").append(table).append(" (");
+        for (int i = 0; i < columns.length; i++) {
+            if (i != 0) {
+                sql.append(", ");
+            }
+            sql.append(columns[i]);
+        }
+        sql.append(") VALUES (");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        sql.append(")");
+
+        if (durable) {
+            mJournalMode = null;
+            mSynchronous = null;
+        } else {
+            // the journal mode and synchronous flag can't be changed inside a transaction
+            mJournalMode = queryPragma("journal_mode");
+            mSynchronous = Long.parseLong(queryPragma("synchronous"));
+            queryPragma("journal_mode = MEMORY");
+            mDb.execSQL("PRAGMA synchronous = OFF");
+        }
+
+        mStatement = mDb.compileStatement(sql.toString());
+        mStartTime = System.currentTimeMillis();
+    }
+
+    /**
+     * @param column the position of the column in the columns passed to the constructor
+     */
+    public void bindString(int column, String value) {
+        if (value == null) {
+            mStatement.bindNull(column + 1);
+        } else {
+            mStatement.bindString(column + 1, value);
+        }
+    }
+
+    public void bindDouble(int column, double value) {
+        mStatement.bindDouble(column + 1, value);
+    }
+
+    public void bindLong(int column, long value) {
+        mStatement.bindLong(column + 1, value);
+    }
+
+    public void bindNull(int column) {
+        mStatement.bindNull(column + 1);
+    }
+
+    /**
+     * Inserts a row with the values bound since the last insert; columns that were not bound are
+     * null.
+     */
+    public void insert() {
+        if (!mInTransaction) {
+            mDb.beginTransaction();
+            mInTransaction = true;
+        }
+        mStatement.executeInsert();
+        mStatement.clearBindings();
+        mRowCount++;
+        if (++mRowsInChunk >= mChunkSize) {
+            commit();
+        }
+    }
+
+    /**
+     * Commits the rows inserted since the last commit.
+     */
+    public void finish() {
+        if (mInTransaction) {
+            commit();
+        }
+        long elapsed = Math.max(1, System.currentTimeMillis() - mStartTime);
+        Log.i(t, "Inserted " + mRowCount + " rows in " + elapsed + "ms ("
+                + (mRowCount * 1000L / elapsed) + " rows/s)");
+    }
+
+    /**
+     * @return how many rows have been inserted so far
+     */
+    public int getRowCount() {
+        return mRowCount;
+    }
+
+    /**
+     * Rolls back any rows inserted since the last commit, releases the statement and restores
+     * the database's journal mode and synchronous flag if they were changed.
+     */
+    public void close() {
+        if (mInTransaction) {
+            mDb.endTransaction();
+            mInTransaction = false;
+        }
+        mStatement.close();
+        if (mJournalMode != null) {
+            queryPragma("journal_mode = " + mJournalMode);
+            mDb.execSQL("PRAGMA synchronous = " + mSynchronous);
+        }
+    }
+
+    private void commit() {
+        mDb.setTransactionSuccessful();
+        mDb.endTransaction();
+        mInTransaction = false;
+        mRowsInChunk = 0;
+    }
+
+    /**
+     * Runs a pragma that returns a row (setting the journal mode does), which execSQL refuses to
+     * do.
+     *
+     * @return the first column of the result
+     */
+    private String queryPragma(String pragma) {
+        Cursor c = mDb.rawQuery("PRAGMA " + pragma, null);
+        try {
+            return c.moveToFirst() ? c.getString(0) : null;
+        } finally {
+            c.close();
+        }
+    }
+}
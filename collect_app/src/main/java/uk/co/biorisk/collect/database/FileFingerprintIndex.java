@@ -0,0 +1,209 @@
+package uk.co.biorisk.collect.database;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import uk.co.biorisk.collect.application.Collect;
+import uk.co.biorisk.collect.utilities.FileUtils;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remembers the md5 hash of files keyed by their path, size and last modified time, so that the
+ * hash is only recomputed when one of those changes.
+ * <p>
+ * Entries are kept in memory and persisted to "/sdcard/odk/metadata/fingerprints.db" so that they
+ * survive process death.
+ */
+public final class FileFingerprintIndex {
+
+    private static final String t = "FileFingerprintIndex";
+
+    private static final String DATABASE_NAME = "fingerprints.db";
+    private static final String DATABASE_TABLE = "fingerprints";
+    private static final int DATABASE_VERSION = 1;
+
+    private static final String KEY_PATH = "path";
+    private static final String KEY_SIZE = "size";
+    private static final String KEY_LAST_MODIFIED = "lastModified";
+    private static final String KEY_HASH = "hash";
+
+    private static final String DATABASE_CREATE =
+            "create table " + DATABASE_TABLE + " (" +
+                    KEY_PATH + " text primary key, " +
+                    KEY_SIZE + " integer not null, " +
+                    KEY_LAST_MODIFIED + " integer not null, " +
+                    KEY_HASH + " text not null);";
+
+    private static FileFingerprintIndex singleton = null;
+
+    private final Map<String, Fingerprint> mFingerprints = new HashMap<>();
+    private DatabaseHelper mDbHelper = null;
+    private SQLiteDatabase mDb = null;
+
+    private FileFingerprintIndex() {
+    }
+
+    public static synchronized FileFingerprintIndex getInstance() {
+        if (singleton == null) {
+            singleton = new FileFingerprintIndex();
+            singleton.load();
+        }
+        return singleton;
+    }
+
+    /**
+     * Returns the md5 hash of the file, recomputing it only if the file's size or last modified
+     * time differ from the recorded fingerprint.
+     *
+     * @return the md5 hash, or null if the file could not be read
+     */
+    public String getMd5Hash(File file) {
+        String path = file.getAbsolutePath();
+        long size = file.length();
+        long lastModified = file.lastModified();
+
+        synchronized (this) {
+            Fingerprint fingerprint = mFingerprints.get(path);
+            if (fingerprint != null && fingerprint.matches(size, lastModified)) {
+                return fingerprint.hash;
+            }
+        }
+
+        String hash = FileUtils.getMd5Hash(file);
+        if (hash != null) {
+            put(new Fingerprint(path, size, lastModified, hash));
+        }
+        return hash;
+    }
+
+    /**
+     * @return the recorded fingerprint of the file, or null if there is none
+     */
+    public synchronized Fingerprint get(File file) {
+        return mFingerprints.get(file.getAbsolutePath());
+    }
+
+    public synchronized void put(Fingerprint fingerprint) {
+        Fingerprint previous = mFingerprints.put(fingerprint.path, fingerprint);
+        if (fingerprint.equals(previous) || mDb == null) {
+            return;
+        }
+        ContentValues cv = new ContentValues();
+        cv.put(KEY_PATH, fingerprint.path);
+        cv.put(KEY_SIZE, fingerprint.size);
+        cv.put(KEY_LAST_MODIFIED, fingerprint.lastModified);
+        cv.put(KEY_HASH, fingerprint.hash);
+        try {
+            mDb.insertWithOnConflict(DATABASE_TABLE, null, cv, SQLiteDatabase.CONFLICT_REPLACE);
+        } catch (SQLException e) {
+            Log.w(t, "Unable to persist fingerprint for " + fingerprint.path, e);
+        }
+    }
+
+    public synchronized void remove(File file) {
+        String path = file.getAbsolutePath();
+        if (mFingerprints.remove(path) != null && mDb != null) {
+            try {
+                mDb.delete(DATABASE_TABLE, KEY_PATH + "=?", new String[]{path});
+            } catch (SQLException e) {
+                Log.w(t, "Unable to remove fingerprint for " + path, e);
+            }
+        }
+    }
+
+    private synchronized void load() {
+        try {
+            mDbHelper = new DatabaseHelper();
+            mDb = mDbHelper.getWritableDatabase();
+        } catch (SQLException e) {
+            // we can still work from memory for the lifetime of the process
+            Log.e(t, "Unable to open " + DATABASE_NAME + ", fingerprints will not be persisted", e);
+            mDb = null;
+            return;
+        }
+
+        Cursor c = null;
+        try {
+            c = mDb.query(DATABASE_TABLE, null, null, null, null, null, null);
+            int pathIdx = c.getColumnIndex(KEY_PATH);
+            int sizeIdx = c.getColumnIndex(KEY_SIZE);
+            int lastModifiedIdx = c.getColumnIndex(KEY_LAST_MODIFIED);
+            int hashIdx = c.getColumnIndex(KEY_HASH);
+            while (c.moveToNext()) {
+                Fingerprint fingerprint = new Fingerprint(c.getString(pathIdx),
+                        c.getLong(sizeIdx), c.getLong(lastModifiedIdx), c.getString(hashIdx));
+                mFingerprints.put(fingerprint.path, fingerprint);
+            }
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+        Log.i(t, "Loaded " + mFingerprints.size() + " file fingerprints");
+    }
+
+    /**
+     * The size, last modified time and md5 hash of a file at a point in time.
+     */
+    public static final class Fingerprint {
+        public final String path;
+        public final long size;
+        public final long lastModified;
+        public final String hash;
+
+        public Fingerprint(String path, long size, long lastModified, String hash) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+
+        public boolean matches(long size, long lastModified) {
+            return this.size == size && this.lastModified == lastModified;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Fingerprint)) {
+                return false;
+            }
+            Fingerprint other = (Fingerprint) o;
+            return path.equals(other.path) && matches(other.size, other.lastModified)
+                    && hash.equals(other.hash);
+        }
+
+        @Override
+        public int hashCode() {
+            return path.hashCode();
+        }
+    }
+
+    /**
+     * This class helps open, create, and upgrade the database file.
+     */
+    private static class DatabaseHelper extends ODKSQLiteOpenHelper {
+        DatabaseHelper() {
+            super(Collect.METADATA_PATH, DATABASE_NAME, null, DATABASE_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL(DATABASE_CREATE);
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            // fingerprints are only a cache, so it is safe to throw them away
+            Log.w(t, "Upgrading database from version " + oldVersion + " to "
+                    + newVersion + ", which will destroy all old data");
+            db.execSQL("DROP TABLE IF EXISTS " + DATABASE_TABLE);
+            onCreate(db);
+        }
+    }
+}
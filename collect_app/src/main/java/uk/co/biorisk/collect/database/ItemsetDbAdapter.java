@@ -10,6 +10,8 @@ import uk.co.biorisk.collect.application.Collect;
 import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Set;
 
 public class ItemsetDbAdapter {
 
@@ -67,7 +69,11 @@ public class ItemsetDbAdapter {
         mDbHelper.close();
     }
 
-    public boolean createTable(String formHash, String pathHash, String[] columns, String path) {
+    /**
+     * Creates the table for an itemsets.csv. It is only recorded as loaded once
+     * {@link #addItemset(String, String)} is called, after its rows have been inserted.
+     */
+    public boolean createTable(String pathHash, String[] columns) {
         StringBuilder sb = new StringBuilder();
 
         // get md5 of the path to itemset.csv, which is unique per form
@@ -86,24 +92,31 @@ public class ItemsetDbAdapter {
         Log.i(TAG, "create string: " + tableCreate);
         mDb.execSQL(tableCreate);
 
+        return true;
+    }
+
+    /**
+     * Records that the table for the itemsets.csv at path, whose md5 hash is formHash, is loaded.
+     */
+    public void addItemset(String formHash, String path) {
         ContentValues cv = new ContentValues();
         cv.put(KEY_ITEMSET_HASH, formHash);
         cv.put(KEY_PATH, path);
         mDb.insert(ITEMSET_TABLE, null, cv);
-
-        return true;
     }
 
-    public boolean addRow(String tableName, String[] columns, String[] newRow) {
-        ContentValues cv = new ContentValues();
-
-        // rows don't necessarily use all the columns
-        // but a column is guaranteed to exist for a row (or else blow up)
-        for (int i = 0; i < newRow.length; i++) {
-            cv.put("\"" + columns[i] + "\"", newRow[i]);
+    /**
+     * @return an inserter for the rows of the itemset table, whose values are bound in the order
+     * of columns
+     */
+    public BulkInserter createInserter(String pathHash, String[] columns, int chunkSize) {
+        String[] quotedColumns = new String[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            // add double quotes in case the column is of label:lang
+            quotedColumns[i] = "\"" + columns[i] + "\"";
         }
-        mDb.insert(DATABASE_TABLE + tableName, null, cv);
-        return true;
+        // itemsets.db holds the itemsets of every form, so it must not be put at risk
+        return new BulkInserter(mDb, DATABASE_TABLE + pathHash, quotedColumns, chunkSize, true);
     }
 
     public boolean tableExists(String tableName) {
@@ -123,20 +136,58 @@ public class ItemsetDbAdapter {
 
     }
 
-    public void beginTransaction() {
-        mDb.execSQL("BEGIN");
-    }
-
-    public void commit() {
-        mDb.execSQL("COMMIT");
-    }
-
     public Cursor query(String hash, String selection, String[] selectionArgs) throws SQLException {
         Cursor mCursor = mDb.query(true, DATABASE_TABLE + hash, null, selection, selectionArgs,
                 null, null, null, null);
         return mCursor;
     }
 
+    /**
+     * Queries the itemset table, returning only the given columns in the given order. Unlike
+     * {@link #query(String, String, String[])}, rows are not made distinct.
+     */
+    public Cursor query(String hash, String[] columns, String selection, String[] selectionArgs,
+                        String orderBy) throws SQLException {
+        return mDb.query(DATABASE_TABLE + hash, columns, selection, selectionArgs, null, null,
+                orderBy);
+    }
+
+    /**
+     * @return the names of the columns of the itemset table, or an empty set if there is no
+     * such table
+     */
+    public Set<String> getColumnNames(String hash) {
+        Set<String> columns = new HashSet<>();
+        Cursor c = mDb.rawQuery("PRAGMA table_info(\"" + DATABASE_TABLE + hash + "\")", null);
+        try {
+            int nameColumn = c.getColumnIndex("name");
+            while (c.moveToNext()) {
+                columns.add(c.getString(nameColumn));
+            }
+        } finally {
+            c.close();
+        }
+        return columns;
+    }
+
+    /**
+     * Creates an index on the columns of the itemset table, unless it already exists. The index
+     * goes away with the table.
+     */
+    public void createIndex(String hash, String[] columns) {
+        StringBuilder sb = new StringBuilder();
+        StringBuilder key = new StringBuilder();
+        for (String column : columns) {
+            sb.append(sb.length() == 0 ? "" : ", ").append("\"").append(column).append("\"");
+            key.append(column).append('\n');
+        }
+        String indexName = DATABASE_TABLE + hash + "_" + getMd5FromString(key.toString());
+        String indexCreate = "create index if not exists \"" + indexName + "\" on "
+                + DATABASE_TABLE + hash + " (" + sb + ");";
+        Log.i(TAG, "create index string: " + indexCreate);
+        mDb.execSQL(indexCreate);
+    }
+
     public void dropTable(String pathHash, String path) {
         // drop the table
         mDb.execSQL("DROP TABLE IF EXISTS " + DATABASE_TABLE + pathHash);
@@ -0,0 +1,125 @@
+package uk.co.biorisk.collect.database;
+
+import android.database.SQLException;
+import android.util.Log;
+
+import com.opencsv.CSVReader;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Loads a form's itemsets.csv into its itemset table through a compiled INSERT, committing every
+ * {@link #CHUNK_SIZE} rows.
+ * <p>
+ * The table is only recorded as loaded once every row is in, so a load that fails or is cancelled
+ * (when the form is closed, through {@link ItemsetQueryEngine#cancelLoads()}) drops the table and
+ * is simply done again the next time the form is opened. Progress is reported to the
+ * {@link ItemsetQueryEngine}, which passes it on to whoever is waiting for the table.
+ */
+public class ItemsetLoader implements Runnable {
+
+    private static final String t = "ItemsetLoader";
+
+    private static final int CHUNK_SIZE = 1000;
+    private static final int PROGRESS_INTERVAL = 1000;
+
+    private final File mCsv;
+    private final String mFormHash;
+    private final String mPathHash;
+    private final List<String> mQueries;
+    private volatile boolean mCancelled = false;
+
+    /**
+     * @param csv            the itemsets.csv
+     * @param formHash       the md5 hash of its contents
+     * @param pathHash       the hash of its path, which names the table
+     * @param queries        the itemset queries of the form, whose filter columns are indexed
+     *                       once the rows are in
+     */
+    public ItemsetLoader(File csv, String formHash, String pathHash, List<String> queries) {
+        mCsv = csv;
+        mFormHash = formHash;
+        mPathHash = pathHash;
+        mQueries = queries;
+    }
+
+    /**
+     * Stops the load at the next row, dropping what has been loaded so far.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    @Override
+    public void run() {
+        boolean loaded = false;
+        CSVReader reader = null;
+        ItemsetDbAdapter ida = new ItemsetDbAdapter();
+        ida.open();
+        try {
+            // a previous load of the file may have been interrupted
+            ida.dropTable(mPathHash, mCsv.getAbsolutePath());
+
+            reader = new CSVReader(new FileReader(mCsv));
+
+            // first line of csv is column headers
+            String[] columnHeaders = reader.readNext();
+            if (columnHeaders == null) {
+                return;
+            }
+            ida.createTable(mPathHash, columnHeaders);
+
+            BulkInserter inserter = ida.createInserter(mPathHash, columnHeaders, CHUNK_SIZE);
+            try {
+                String[] nextLine;
+                while ((nextLine = reader.readNext()) != null) {
+                    if (mCancelled) {
+                        Log.w(t, "Loading " + mCsv + " was cancelled");
+                        return;
+                    }
+                    // rows don't necessarily use all the columns
+                    for (int i = 0; i < nextLine.length && i < columnHeaders.length; i++) {
+                        inserter.bindString(i, nextLine[i]);
+                    }
+                    inserter.insert();
+
+                    if (inserter.getRowCount() % PROGRESS_INTERVAL == 0) {
+                        ItemsetQueryEngine.getInstance().loadProgress(mPathHash, this,
+                                inserter.getRowCount());
+                    }
+                }
+                inserter.finish();
+            } finally {
+                inserter.close();
+            }
+
+            ida.addItemset(mFormHash, mCsv.getAbsolutePath());
+            loaded = true;
+        } catch (IOException | SQLException e) {
+            Log.e(t, "Could not load " + mCsv, e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    Log.e(t, e.getMessage(), e);
+                }
+            }
+            if (!loaded) {
+                ida.dropTable(mPathHash, mCsv.getAbsolutePath());
+            }
+            ida.close();
+        }
+
+        if (loaded) {
+            ItemsetQueryEngine.getInstance().prepare(mPathHash, mQueries);
+        }
+    }
+}
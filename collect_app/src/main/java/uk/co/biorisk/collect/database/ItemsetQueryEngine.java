@@ -0,0 +1,536 @@
+package uk.co.biorisk.collect.database;
+
+import android.database.Cursor;
+import android.database.SQLException;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.model.IFormElement;
+import org.javarosa.core.model.QuestionDef;
+import org.javarosa.core.model.condition.EvaluationContext;
+import org.javarosa.core.model.instance.TreeReference;
+import org.javarosa.xpath.XPathNodeset;
+import org.javarosa.xpath.XPathParseTool;
+import org.javarosa.xpath.expr.XPathExpression;
+import org.javarosa.xpath.parser.XPathSyntaxException;
+
+import uk.co.biorisk.collect.listeners.ItemsetLoadListener;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the queries of itemset questions, i.e. questions with a query attribute like
+ * <pre>
+ * query="instance('cities')/root/item[state=/data/state and county=/data/county]"
+ * </pre>
+ * against the tables made from itemsets.csv.
+ * <p>
+ * Each query is parsed (and its arguments compiled) once, the first time it is seen, and the
+ * columns it filters on are indexed. The database is kept open between queries, and the items of
+ * the most recent queries are remembered, so that going back and forth between the questions of
+ * a cascade doesn't hit the database again. Whoever rebuilds an itemset table must call
+ * {@link #invalidate(String)}.
+ * <p>
+ * Itemset tables are loaded in the background (see {@link #load(String, ItemsetLoader)}). A query
+ * on a table that is still loading waits for the load to finish, so the UI thread should register
+ * an {@link ItemsetLoadListener} instead, which is told when the table is ready.
+ */
+public final class ItemsetQueryEngine {
+
+    private static final String t = "ItemsetQueryEngine";
+
+    private static final int MAX_CACHED_RESULTS = 16;
+    private static final char SEPARATOR = '\u0000';
+
+    private static ItemsetQueryEngine singleton = null;
+
+    private final ExecutorService mLoadExecutor = Executors.newSingleThreadExecutor();
+    private final Map<String, Load> mLoads = new HashMap<>();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private ItemsetDbAdapter mAdapter = null;
+    private final Map<String, Query> mQueries = new HashMap<>();
+    private final Map<String, Set<String>> mTableColumns = new HashMap<>();
+    private final Set<String> mIndexes = new HashSet<>();
+    private final LinkedHashMap<String, List<Item>> mResults =
+            new LinkedHashMap<String, List<Item>>(MAX_CACHED_RESULTS, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, List<Item>> eldest) {
+                    return size() > MAX_CACHED_RESULTS;
+                }
+            };
+
+    private ItemsetQueryEngine() {
+    }
+
+    public static synchronized ItemsetQueryEngine getInstance() {
+        if (singleton == null) {
+            singleton = new ItemsetQueryEngine();
+        }
+        return singleton;
+    }
+
+    /**
+     * @param nodeset the query attribute of the question
+     * @return the parsed query
+     */
+    public synchronized Query getQuery(String nodeset) {
+        Query query = mQueries.get(nodeset);
+        if (query == null) {
+            query = new Query(nodeset);
+            mQueries.put(nodeset, query);
+        }
+        return query;
+    }
+
+    /**
+     * Forgets the parsed queries, which belong to the previous form.
+     */
+    public synchronized void clearQueries() {
+        mQueries.clear();
+    }
+
+    /**
+     * Parses the itemset queries of the form and creates the indexes they need, so that the first
+     * time a question is shown is as quick as the next.
+     *
+     * @param pathHash the hash of the path of the form's itemsets.csv
+     * @param nodesets the form's queries, from {@link #getQueries(FormDef)}
+     */
+    public synchronized void prepare(String pathHash, List<String> nodesets) {
+        for (String nodeset : nodesets) {
+            ensureIndex(pathHash, getQuery(nodeset));
+        }
+    }
+
+    /**
+     * Runs the loader of the itemset table in the background. Loads run one at a time, in the
+     * order they are started.
+     */
+    public synchronized void load(final String pathHash, final ItemsetLoader loader) {
+        final Load load = new Load(loader);
+        mLoads.put(pathHash, load);
+        load.future = mLoadExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    loader.run();
+                } finally {
+                    loadFinished(pathHash, load);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return whether the itemset table is still being loaded
+     */
+    public synchronized boolean isLoading(String pathHash) {
+        Load load = mLoads.get(pathHash);
+        return load != null && !load.loader.isCancelled() && !load.future.isDone();
+    }
+
+    /**
+     * Stops the loads that are running or waiting to run, for when the form is closed. Whatever
+     * they had loaded is dropped, and loaded again the next time the form is opened.
+     */
+    public synchronized void cancelLoads() {
+        for (Load load : mLoads.values()) {
+            load.loader.cancel();
+            load.future.cancel(false);
+            load.listeners.clear();
+        }
+        mLoads.clear();
+    }
+
+    /**
+     * Registers the listener to be told, on the UI thread, how the load of the itemset table is
+     * getting on.
+     *
+     * @return false if the table isn't being loaded, in which case the listener is not registered
+     * and the table can be queried straight away
+     */
+    public synchronized boolean addLoadListener(String pathHash, ItemsetLoadListener listener) {
+        if (!isLoading(pathHash)) {
+            return false;
+        }
+        mLoads.get(pathHash).listeners.add(listener);
+        return true;
+    }
+
+    public synchronized void removeLoadListener(String pathHash, ItemsetLoadListener listener) {
+        Load load = mLoads.get(pathHash);
+        if (load != null) {
+            load.listeners.remove(listener);
+        }
+    }
+
+    /**
+     * @return how many rows of the itemset table have been loaded so far
+     */
+    public synchronized int getLoadedRows(String pathHash) {
+        Load load = mLoads.get(pathHash);
+        return load == null ? 0 : load.rows;
+    }
+
+    /**
+     * Called by the loader as rows go in.
+     */
+    synchronized void loadProgress(String pathHash, ItemsetLoader loader, final int rows) {
+        Load load = mLoads.get(pathHash);
+        if (load == null || load.loader != loader) {
+            // cancelled, or replaced by a later load
+            return;
+        }
+        load.rows = rows;
+        for (final ItemsetLoadListener listener : load.listeners) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    listener.itemsetLoadProgress(rows);
+                }
+            });
+        }
+    }
+
+    private synchronized void loadFinished(String pathHash, Load load) {
+        if (mLoads.get(pathHash) == load) {
+            mLoads.remove(pathHash);
+        }
+        for (final ItemsetLoadListener listener : load.listeners) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    listener.itemsetLoaded();
+                }
+            });
+        }
+        load.listeners.clear();
+    }
+
+    /**
+     * @return the query attributes of the form's itemset questions
+     */
+    public static List<String> getQueries(FormDef formDef) {
+        List<String> nodesets = new ArrayList<>();
+        collectQueries(formDef, nodesets);
+        return nodesets;
+    }
+
+    /**
+     * @param pathHash the hash of the path of the form's itemsets.csv
+     * @param args     the arguments of the query, from {@link Query#evaluateArguments}
+     * @param language the form's current language, or null
+     * @return the items, in the order of itemsets.csv
+     */
+    public List<Item> getItems(String pathHash, Query query, String[] args, String language) {
+        // not while holding the lock, which the load needs at the end
+        awaitLoad(pathHash);
+        synchronized (this) {
+            return getLoadedItems(pathHash, query, args, language);
+        }
+    }
+
+    private List<Item> getLoadedItems(String pathHash, Query query, String[] args, String language) {
+        StringBuilder key = new StringBuilder();
+        key.append(pathHash).append(SEPARATOR).append(query.getSelection()).append(SEPARATOR).append(language);
+        for (String arg : args) {
+            key.append(SEPARATOR).append(arg);
+        }
+        String cacheKey = key.toString();
+
+        List<Item> items = mResults.get(cacheKey);
+        if (items != null) {
+            return items;
+        }
+
+        Set<String> tableColumns = getColumns(pathHash);
+        if (tableColumns.isEmpty()) {
+            // the table could not be loaded
+            return Collections.emptyList();
+        }
+        ensureIndex(pathHash, query);
+
+        // try to get the value associated with the label:lang string; if that doesn't exist,
+        // then just use label
+        String labelColumn = "label::" + (language == null ? "" : language);
+        if (!tableColumns.contains(labelColumn)) {
+            labelColumn = "label";
+        }
+
+        // the actual value is stored in name
+        String[] columns = {"\"" + labelColumn + "\"", "name"};
+        items = new ArrayList<>();
+        Cursor c = getAdapter().query(pathHash, columns, query.getSelection(), args, ItemsetDbAdapter.KEY_ID);
+        try {
+            while (c.moveToNext()) {
+                items.add(new Item(c.getString(0), c.getString(1)));
+            }
+        } finally {
+            c.close();
+        }
+        items = Collections.unmodifiableList(items);
+        mResults.put(cacheKey, items);
+        return items;
+    }
+
+    /**
+     * Forgets everything about the itemset table, which has been (or is about to be) rebuilt or
+     * dropped.
+     */
+    public synchronized void invalidate(String pathHash) {
+        mTableColumns.remove(pathHash);
+        String prefix = pathHash + SEPARATOR;
+        mIndexes.removeAll(filterByPrefix(mIndexes, prefix));
+        mResults.keySet().removeAll(filterByPrefix(mResults.keySet(), prefix));
+    }
+
+    private void awaitLoad(String pathHash) {
+        Future<?> future;
+        synchronized (this) {
+            Load load = mLoads.get(pathHash);
+            if (load == null) {
+                return;
+            }
+            future = load.future;
+        }
+        if (!future.isDone()) {
+            Log.i(t, "Waiting for itemset " + pathHash + " to load");
+        }
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (CancellationException e) {
+            Log.w(t, "Loading itemset " + pathHash + " was cancelled");
+        } catch (ExecutionException e) {
+            Log.e(t, "Loading itemset " + pathHash + " failed", e.getCause());
+        }
+    }
+
+    private void ensureIndex(String pathHash, Query query) {
+        if (query.getFilterColumns().isEmpty()) {
+            return;
+        }
+        List<String> columns = new ArrayList<>();
+        columns.add("list_name");
+        for (String column : query.getFilterColumns()) {
+            if (!columns.contains(column)) {
+                columns.add(column);
+            }
+        }
+        String key = pathHash + SEPARATOR + columns;
+        if (mIndexes.contains(key)) {
+            return;
+        }
+        Set<String> tableColumns = getColumns(pathHash);
+        if (!tableColumns.containsAll(columns)) {
+            // the query will fail anyway, or there's no table yet
+            return;
+        }
+        try {
+            getAdapter().createIndex(pathHash, columns.toArray(new String[columns.size()]));
+            mIndexes.add(key);
+        } catch (SQLException e) {
+            Log.e(t, "Could not index " + columns + " of itemset " + pathHash, e);
+        }
+    }
+
+    private Set<String> getColumns(String pathHash) {
+        Set<String> columns = mTableColumns.get(pathHash);
+        if (columns == null) {
+            columns = getAdapter().getColumnNames(pathHash);
+            if (!columns.isEmpty()) {
+                mTableColumns.put(pathHash, columns);
+            }
+        }
+        return columns;
+    }
+
+    private ItemsetDbAdapter getAdapter() {
+        if (mAdapter == null) {
+            mAdapter = new ItemsetDbAdapter().open();
+        }
+        return mAdapter;
+    }
+
+    private static List<String> filterByPrefix(Set<String> keys, String prefix) {
+        List<String> matching = new ArrayList<>();
+        for (String key : keys) {
+            if (key.startsWith(prefix)) {
+                matching.add(key);
+            }
+        }
+        return matching;
+    }
+
+    private static void collectQueries(IFormElement element, List<String> nodesets) {
+        if (element instanceof QuestionDef) {
+            String nodeset = element.getAdditionalAttribute(null, "query");
+            if (nodeset != null) {
+                nodesets.add(nodeset);
+            }
+        }
+        List<IFormElement> children = element.getChildren();
+        if (children != null) {
+            for (IFormElement child : children) {
+                collectQueries(child, nodesets);
+            }
+        }
+    }
+
+    private static final class Load {
+        final ItemsetLoader loader;
+        final List<ItemsetLoadListener> listeners = new ArrayList<>();
+        Future<?> future;
+        int rows = 0;
+
+        Load(ItemsetLoader loader) {
+            this.loader = loader;
+        }
+    }
+
+    /**
+     * A parsed itemset query.
+     */
+    public static final class Query {
+        private final String mListName;
+        private final String mSelection;
+        private final List<String> mFilterColumns = new ArrayList<>();
+        private final List<String> mArguments = new ArrayList<>();
+        private final List<XPathExpression> mExpressions = new ArrayList<>();
+        private String mInvalidArgument = null;
+
+        Query(String nodeset) {
+            // parse out the list name, between the ''
+            mListName = nodeset.substring(nodeset.indexOf("'") + 1, nodeset.lastIndexOf("'"));
+
+            // isolate the string between between the [ ] characters
+            String queryString = nodeset.substring(nodeset.indexOf("[") + 1, nodeset.lastIndexOf("]"));
+
+            StringBuilder selection = new StringBuilder();
+            // add the list name as the first argument, which will always be there
+            selection.append("list_name=?");
+
+            // check to see if there are any arguments
+            if (queryString.indexOf("=") != -1) {
+                selection.append(" and ");
+            }
+
+            // can't just split on 'and' or 'or' because they have different behavior, so loop
+            // through and break them off until we don't have any more; must include the spaces in
+            // indexOf so we don't match words like "land"
+            int andIndex = -1;
+            int orIndex = -1;
+            while ((andIndex = queryString.indexOf(" and ")) != -1
+                    || (orIndex = queryString.indexOf(" or ")) != -1) {
+                if (andIndex != -1) {
+                    addCondition(selection, queryString.substring(0, andIndex), " and ");
+                    // move string forward to after " and "
+                    queryString = queryString.substring(andIndex + 5, queryString.length());
+                    andIndex = -1;
+                } else if (orIndex != -1) {
+                    addCondition(selection, queryString.substring(0, orIndex), " or ");
+                    // move string forward to after " or "
+                    queryString = queryString.substring(orIndex + 4, queryString.length());
+                    orIndex = -1;
+                }
+            }
+
+            // parse the last segment (or only segment if there are no 'and' or 'or' clauses); a
+            // segment without "=" is probably okay, because then you just list all items in the
+            // list
+            addCondition(selection, queryString, "");
+            mSelection = selection.toString();
+
+            for (String argument : mArguments) {
+                try {
+                    mExpressions.add(XPathParseTool.parseXPath(argument));
+                } catch (XPathSyntaxException e) {
+                    Log.e(t, "Could not parse " + argument, e);
+                    mInvalidArgument = argument;
+                    break;
+                }
+            }
+        }
+
+        private void addCondition(StringBuilder selection, String condition, String operator) {
+            String pair[] = condition.split("=");
+            if (pair.length == 2) {
+                selection.append(pair[0].trim()).append("=?").append(operator);
+                mFilterColumns.add(pair[0].trim());
+                mArguments.add(pair[1].trim());
+            }
+        }
+
+        public String getListName() {
+            return mListName;
+        }
+
+        public String getSelection() {
+            return mSelection;
+        }
+
+        public List<String> getFilterColumns() {
+            return mFilterColumns;
+        }
+
+        /**
+         * @return the argument that could not be parsed as XPath, or null if they all could
+         */
+        public String getInvalidArgument() {
+            return mInvalidArgument;
+        }
+
+        /**
+         * Evaluates the arguments of the query for the question.
+         *
+         * @return the selection arguments, starting with the list name, or null if an argument
+         * has no value (the query can't be run with null values)
+         */
+        public String[] evaluateArguments(FormDef form, TreeReference reference) {
+            String[] selectionArgs = new String[mExpressions.size() + 1];
+            selectionArgs[0] = mListName;
+
+            EvaluationContext ec = new EvaluationContext(form.getEvaluationContext(), reference);
+            for (int i = 0; i < mExpressions.size(); i++) {
+                Object value = mExpressions.get(i).eval(form.getMainInstance(), ec);
+                if (value instanceof XPathNodeset) {
+                    value = ((XPathNodeset) value).getValAt(0);
+                }
+                if (value == null) {
+                    return null;
+                }
+                selectionArgs[i + 1] = value.toString();
+            }
+            return selectionArgs;
+        }
+    }
+
+    /**
+     * A choice of an itemset question.
+     */
+    public static final class Item {
+        public final String label;
+        public final String value;
+
+        Item(String label, String value) {
+            this.label = label;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package uk.co.biorisk.collect.database;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.util.Log;
+
+import uk.co.biorisk.collect.application.Collect;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remembers where submissions to a url actually go, as found by the HEAD request sent before the
+ * first submission: the url the server redirected to (which may have switched to https) and
+ * whether the server is OpenRosa compliant.
+ * <p>
+ * Entries are kept in memory and persisted to "/sdcard/odk/metadata/endpoints.db", so that later
+ * uploads, including the ones started when the network comes back, can post straight away. An
+ * entry is only trusted for {@link #MAX_AGE} after the HEAD request; it is dropped earlier if the
+ * server refuses a submission sent to it. A server that didn't answer the HEAD request as an
+ * OpenRosa server is only taken for a legacy one for {@link #LEGACY_MAX_AGE}, as it may just have
+ * been misconfigured or in the middle of an upgrade.
+ */
+public final class SubmissionEndpointCache {
+
+    private static final String t = "SubmissionEndpointCache";
+
+    // one day
+    public static final long MAX_AGE = 24L * 60L * 60L * 1000L;
+    // long enough for a batch of submissions
+    public static final long LEGACY_MAX_AGE = 10L * 60L * 1000L;
+
+    private static final String DATABASE_NAME = "endpoints.db";
+    private static final String DATABASE_TABLE = "endpoints";
+    private static final int DATABASE_VERSION = 1;
+
+    private static final String KEY_URL = "url";
+    private static final String KEY_RESOLVED_URL = "resolvedUrl";
+    private static final String KEY_OPEN_ROSA = "openRosa";
+    private static final String KEY_CHECKED = "checked";
+
+    private static final String DATABASE_CREATE =
+            "create table " + DATABASE_TABLE + " (" +
+                    KEY_URL + " text primary key, " +
+                    KEY_RESOLVED_URL + " text not null, " +
+                    KEY_OPEN_ROSA + " integer not null, " +
+                    KEY_CHECKED + " integer not null);";
+
+    private static SubmissionEndpointCache singleton = null;
+
+    private final Map<String, Endpoint> mEndpoints = new HashMap<>();
+    private DatabaseHelper mDbHelper = null;
+    private SQLiteDatabase mDb = null;
+
+    private SubmissionEndpointCache() {
+    }
+
+    public static synchronized SubmissionEndpointCache getInstance() {
+        if (singleton == null) {
+            singleton = new SubmissionEndpointCache();
+            singleton.load();
+        }
+        return singleton;
+    }
+
+    /**
+     * @return where submissions to the url go, or null if that isn't known or was found out too
+     * long ago
+     */
+    public synchronized Endpoint get(Uri url) {
+        Endpoint endpoint = mEndpoints.get(url.toString());
+        if (endpoint == null) {
+            return null;
+        }
+        long age = System.currentTimeMillis() - endpoint.checked;
+        if (age < 0 || age > (endpoint.openRosa ? MAX_AGE : LEGACY_MAX_AGE)) {
+            invalidate(url);
+            return null;
+        }
+        return endpoint;
+    }
+
+    public synchronized void put(Uri url, Uri resolvedUrl, boolean openRosa) {
+        Endpoint endpoint = new Endpoint(resolvedUrl, openRosa, System.currentTimeMillis());
+        mEndpoints.put(url.toString(), endpoint);
+        if (mDb == null) {
+            return;
+        }
+        ContentValues cv = new ContentValues();
+        cv.put(KEY_URL, url.toString());
+        cv.put(KEY_RESOLVED_URL, resolvedUrl.toString());
+        cv.put(KEY_OPEN_ROSA, openRosa ? 1 : 0);
+        cv.put(KEY_CHECKED, endpoint.checked);
+        try {
+            mDb.insertWithOnConflict(DATABASE_TABLE, null, cv, SQLiteDatabase.CONFLICT_REPLACE);
+        } catch (SQLException e) {
+            Log.w(t, "Unable to persist endpoint for " + url, e);
+        }
+    }
+
+    /**
+     * Forgets where submissions to the url go, so that the next submission issues a HEAD request
+     * again.
+     */
+    public synchronized void invalidate(Uri url) {
+        String key = url.toString();
+        if (mEndpoints.remove(key) != null && mDb != null) {
+            try {
+                mDb.delete(DATABASE_TABLE, KEY_URL + "=?", new String[]{key});
+            } catch (SQLException e) {
+                Log.w(t, "Unable to remove endpoint for " + url, e);
+            }
+        }
+    }
+
+    private synchronized void load() {
+        try {
+            mDbHelper = new DatabaseHelper();
+            mDb = mDbHelper.getWritableDatabase();
+        } catch (SQLException e) {
+            // we can still work from memory for the lifetime of the process
+            Log.e(t, "Unable to open " + DATABASE_NAME + ", endpoints will not be persisted", e);
+            mDb = null;
+            return;
+        }
+
+        Cursor c = null;
+        try {
+            c = mDb.query(DATABASE_TABLE, null, null, null, null, null, null);
+            int urlIdx = c.getColumnIndex(KEY_URL);
+            int resolvedUrlIdx = c.getColumnIndex(KEY_RESOLVED_URL);
+            int openRosaIdx = c.getColumnIndex(KEY_OPEN_ROSA);
+            int checkedIdx = c.getColumnIndex(KEY_CHECKED);
+            while (c.moveToNext()) {
+                mEndpoints.put(c.getString(urlIdx), new Endpoint(Uri.parse(c.getString(resolvedUrlIdx)),
+                        c.getInt(openRosaIdx) != 0, c.getLong(checkedIdx)));
+            }
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+        Log.i(t, "Loaded " + mEndpoints.size() + " submission endpoints");
+    }
+
+    /**
+     * Where submissions to a url go, and when that was found out.
+     */
+    public static final class Endpoint {
+        public final Uri resolvedUrl;
+        public final boolean openRosa;
+        public final long checked;
+
+        public Endpoint(Uri resolvedUrl, boolean openRosa, long checked) {
+            this.resolvedUrl = resolvedUrl;
+            this.openRosa = openRosa;
+            this.checked = checked;
+        }
+    }
+
+    /**
+     * This class helps open, create, and upgrade the database file.
+     */
+    private static class DatabaseHelper extends ODKSQLiteOpenHelper {
+        DatabaseHelper() {
+            super(Collect.METADATA_PATH, DATABASE_NAME, null, DATABASE_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL(DATABASE_CREATE);
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            // endpoints are only a cache, so it is safe to throw them away
+            Log.w(t, "Upgrading database from version " + oldVersion + " to "
+                    + newVersion + ", which will destroy all old data");
+            db.execSQL("DROP TABLE IF EXISTS " + DATABASE_TABLE);
+            onCreate(db);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package uk.co.biorisk.collect.external;
+
+import com.opencsv.CSVReader;
+
+import uk.co.biorisk.collect.utilities.HashUtils;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the data rows of an external data CSV (after its header row) in chunks, and computes a
+ * hash of each chunk.
+ * <p>
+ * Where a chunk ends is decided by the contents of its last row rather than by its position, so
+ * inserting, changing or deleting a row only changes the hash of the chunk the row is in; all the
+ * other chunks of the file keep their hashes. Chunks are about 64 rows on average and never more
+ * than {@link #MAX_CHUNK_ROWS}.
+ * <p>
+ * Empty rows are skipped and short rows are filled up with empty strings, the same as the
+ * import does, so the rows returned are exactly the rows that go into the database.
+ */
+public class ExternalDataChunkReader {
+
+    public static final int MAX_CHUNK_ROWS = 1024;
+
+    // a row ends a chunk when the low six bits of its hash are zero
+    private static final int BOUNDARY_MASK = 0x3f;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final CSVReader reader;
+    private final String[] headerRow;
+    private final MessageDigest rowDigest;
+    private final MessageDigest chunkDigest;
+    private int rowCount = 0;
+
+    public ExternalDataChunkReader(CSVReader reader, String[] headerRow) {
+        this.reader = reader;
+        this.headerRow = headerRow;
+        try {
+            rowDigest = MessageDigest.getInstance("MD5");
+            chunkDigest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            // every Android device provides MD5
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the next chunk of rows, or null if there are no more rows
+     */
+    public Chunk readChunk() throws IOException {
+        List<String[]> rows = new ArrayList<>();
+        int firstRow = rowCount;
+        chunkDigest.reset();
+
+        String[] row;
+        while ((row = reader.readNext()) != null) {
+            // SCTO-894 - first we should make sure that this is not an empty line
+            if (!ExternalDataUtil.containsAnyData(row)) {
+                // yes, that is an empty row, ignore it
+                continue;
+            }
+
+            // SCTO-894 - then check if the row contains less values than the header
+            // we should not ignore the existing values in the row,
+            // we will just fill up the rest with empty strings
+            if (row.length < headerRow.length) {
+                row = ExternalDataUtil.fillUpNullValues(row, headerRow);
+            }
+
+            byte[] rowHash = hashRow(row);
+            chunkDigest.update(rowHash);
+            rows.add(row);
+            rowCount++;
+
+            if ((rowHash[rowHash.length - 1] & BOUNDARY_MASK) == 0 || rows.size() >= MAX_CHUNK_ROWS) {
+                break;
+            }
+        }
+
+        if (rows.isEmpty()) {
+            return null;
+        }
+        return new Chunk(HashUtils.toHex(chunkDigest.digest()), firstRow, rows);
+    }
+
+    /**
+     * @return how many data rows have been read so far
+     */
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    private byte[] hashRow(String[] row) {
+        rowDigest.reset();
+        for (int i = 0; i < row.length && i < headerRow.length; i++) {
+            if (row[i] != null) {
+                rowDigest.update(row[i].getBytes(UTF_8));
+            }
+            // separate the values so that "a","bc" and "ab","c" differ
+            rowDigest.update((byte) 0);
+        }
+        return rowDigest.digest();
+    }
+
+    /**
+     * A run of consecutive data rows.
+     */
+    public static final class Chunk {
+        /**
+         * The hex md5 hash of the rows' contents.
+         */
+        public final String hash;
+        /**
+         * The position of the chunk's first row among the data rows of the file, starting at 0.
+         */
+        public final int firstRow;
+        public final List<String[]> rows;
+
+        Chunk(String hash, int firstRow, List<String[]> rows) {
+            this.hash = hash;
+            this.firstRow = firstRow;
+            this.rows = rows;
+        }
+    }
+}
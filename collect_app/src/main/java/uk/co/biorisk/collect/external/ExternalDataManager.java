@@ -37,5 +37,23 @@ public interface ExternalDataManager {
      */
     ExternalSQLiteOpenHelper getDatabase(String dataSetName, boolean required);
 
+    /**
+     * Returns the cache of pulldata() results for the data set, creating it if needed.
+     *
+     * @param dataSetName the name of the imported .csv
+     */
+    PullDataCache getPullDataCache(String dataSetName);
+
+    /**
+     * Throws away the cached pulldata() results for the data set, e.g. because its database has
+     * been rebuilt.
+     *
+     * @param dataSetName the name of the imported .csv
+     */
+    void invalidateCache(String dataSetName);
+
+    /**
+     * Closes the databases and throws away all cached results.
+     */
     void close();
 }
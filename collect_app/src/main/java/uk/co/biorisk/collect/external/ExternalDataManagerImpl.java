@@ -18,10 +18,13 @@
 
 package uk.co.biorisk.collect.external;
 
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
 import android.util.Log;
 import uk.co.biorisk.collect.R;
 import uk.co.biorisk.collect.application.Collect;
 import uk.co.biorisk.collect.exception.ExternalDataException;
+import uk.co.biorisk.collect.preferences.PreferencesActivity;
 
 import java.io.File;
 import java.util.HashMap;
@@ -34,11 +37,19 @@ import java.util.Map;
  */
 public class ExternalDataManagerImpl implements ExternalDataManager {
 
+    private static final int PULLDATA_CACHE_SIZE = 1000;
+    private static final int PULLDATA_PRELOAD_MAX_ROWS = 10000;
+
     private final File mediaFolder;
+    private final boolean preloadSmallDataSets;
     private Map<String, ExternalSQLiteOpenHelper> dbMap = new HashMap<>();
+    private final Map<String, PullDataCache> pullDataCaches = new HashMap<>();
 
     public ExternalDataManagerImpl(File mediaFolder) {
         this.mediaFolder = mediaFolder;
+
+        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(Collect.getInstance());
+        this.preloadSmallDataSets = settings.getBoolean(PreferencesActivity.KEY_PRELOAD_EXTERNAL_DATA, false);
     }
 
     @Override
@@ -72,8 +83,30 @@ public class ExternalDataManagerImpl implements ExternalDataManager {
         return sqLiteOpenHelper;
     }
 
+    @Override
+    public synchronized PullDataCache getPullDataCache(String dataSetName) {
+        PullDataCache cache = pullDataCaches.get(dataSetName);
+        if (cache == null) {
+            cache = new PullDataCache(dataSetName, PULLDATA_CACHE_SIZE,
+                    preloadSmallDataSets ? PULLDATA_PRELOAD_MAX_ROWS : 0);
+            pullDataCaches.put(dataSetName, cache);
+        }
+        return cache;
+    }
+
+    @Override
+    public synchronized void invalidateCache(String dataSetName) {
+        pullDataCaches.remove(dataSetName);
+    }
+
     @Override
     public void close() {
+        synchronized (this) {
+            for (PullDataCache cache : pullDataCaches.values()) {
+                Log.i(ExternalDataUtil.LOGGER_NAME, cache.toString());
+            }
+            pullDataCaches.clear();
+        }
         if (dbMap != null) {
             for (ExternalSQLiteOpenHelper externalSQLiteOpenHelper : dbMap.values()) {
                 Log.w(ExternalDataUtil.LOGGER_NAME, "Closing database handler:" + externalSQLiteOpenHelper.toString());
@@ -50,7 +50,25 @@ public class ExternalDataReaderImpl implements ExternalDataReader {
             if (dataSetFile.exists()) {
                 File dbFile = new File(dataSetFile.getParentFile().getAbsolutePath(), dataSetName + ".db");
                 if (dbFile.exists()) {
-                    // this means the someone updated the csv file, so we need to reload it
+                    // this means the someone updated the csv file; if its contents haven't
+                    // changed, or only some rows have, there's no need to reload all of it
+                    ExternalSQLiteOpenHelper.UpdateOutcome outcome =
+                            new ExternalSQLiteOpenHelper(dbFile).updateFromCSV(dataSetFile, formLoaderTask);
+                    if (outcome == ExternalSQLiteOpenHelper.UpdateOutcome.UPDATED) {
+                        formLoaderTask.getExternalDataManager().invalidateCache(dataSetName);
+                        archiveImportedFile(dataSetFile);
+                        continue;
+                    }
+                    if (outcome == ExternalSQLiteOpenHelper.UpdateOutcome.KEPT) {
+                        // the file isn't archived, so it is tried again the next time
+                        continue;
+                    }
+                    if (formLoaderTask.isCancelled()) {
+                        // the update was rolled back, so the database is still as it was
+                        Log.w(ExternalDataUtil.LOGGER_NAME, "The update of " + dbFile + " was cancelled.");
+                        return;
+                    }
+
                     boolean deleted = dbFile.delete();
                     if (!deleted) {
                         Log.e(ExternalDataUtil.LOGGER_NAME, dataSetFile.getName() + " has changed but we could not delete the previous DB at " + dbFile.getAbsolutePath());
@@ -59,6 +77,7 @@ public class ExternalDataReaderImpl implements ExternalDataReader {
                 }
                 ExternalSQLiteOpenHelper externalSQLiteOpenHelper = new ExternalSQLiteOpenHelper(dbFile);
                 externalSQLiteOpenHelper.importFromCSV(dataSetFile, this, formLoaderTask);
+                formLoaderTask.getExternalDataManager().invalidateCache(dataSetName);
 
                 if (formLoaderTask.isCancelled()) {
                     Log.w(ExternalDataUtil.LOGGER_NAME, "The import was cancelled, so we need to rollback.");
@@ -83,17 +102,21 @@ public class ExternalDataReaderImpl implements ExternalDataReader {
                     return;
 
                 } else {
-                    // rename the dataSetFile into "dataSetFile.csv.imported" in order not to be loaded again
-                    File importedFile = new File(dataSetFile.getParentFile(), dataSetFile.getName() + ".imported");
-                    boolean renamed = dataSetFile.renameTo(importedFile);
-                    if (!renamed) {
-                        Log.e(ExternalDataUtil.LOGGER_NAME, dataSetFile.getName() + " could not be renamed to be archived. It will be re-imported again! :(");
-                    } else {
-                        Log.e(ExternalDataUtil.LOGGER_NAME, dataSetFile.getName() + " was renamed to " + importedFile.getName());
-                    }
+                    archiveImportedFile(dataSetFile);
                 }
             }
         }
     }
 
+    private void archiveImportedFile(File dataSetFile) {
+        // rename the dataSetFile into "dataSetFile.csv.imported" in order not to be loaded again
+        File importedFile = new File(dataSetFile.getParentFile(), dataSetFile.getName() + ".imported");
+        boolean renamed = dataSetFile.renameTo(importedFile);
+        if (!renamed) {
+            Log.e(ExternalDataUtil.LOGGER_NAME, dataSetFile.getName() + " could not be renamed to be archived. It will be re-imported again! :(");
+        } else {
+            Log.e(ExternalDataUtil.LOGGER_NAME, dataSetFile.getName() + " was renamed to " + importedFile.getName());
+        }
+    }
+
 }
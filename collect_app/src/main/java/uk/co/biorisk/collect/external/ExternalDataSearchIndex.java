@@ -0,0 +1,160 @@
+package uk.co.biorisk.collect.external;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A full-text index over the text columns of an imported data set, used by search() to avoid
+ * scanning the whole table with LIKE.
+ * <p>
+ * The index is an FTS4 table whose docids are the rowids of the data table. It doesn't hold the
+ * values themselves but, for every word of a value, the three character grams starting at each
+ * position of the word ("spital" becomes "spi pit ita tal al l"). Every substring of a word is
+ * then either a prefix of one of its grams or a run of consecutive grams, so any row whose value
+ * contains, starts with, ends with or matches the searched text is found through the index. The
+ * index can also find rows that don't match (the grams may be in a different order), so it only
+ * narrows down the rows that the LIKE expression is then applied to.
+ * <p>
+ * Words are split the same way as the FTS "simple" tokenizer does: on every ASCII character that
+ * isn't a letter or digit. ASCII letters are lowercased, which matches LIKE being case insensitive
+ * for ASCII letters only.
+ */
+public final class ExternalDataSearchIndex {
+
+    public static final String TABLE_NAME = "externalDataSearch";
+
+    private static final int GRAM_LENGTH = 3;
+
+    private ExternalDataSearchIndex() {
+    }
+
+    public static void createTable(SQLiteDatabase db, List<String> columns) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("CREATE VIRTUAL TABLE ").append(TABLE_NAME).append(" USING fts4(");
+        for (String column : columns) {
+            sb.append(column).append(", ");
+        }
+        sb.append("tokenize=simple)");
+        db.execSQL(sb.toString());
+    }
+
+    /**
+     * @return the columns that are indexed, or an empty set if the data set has no index (it was
+     * imported before there were indexes)
+     */
+    public static Set<String> getIndexedColumns(SQLiteDatabase db) {
+        Set<String> columns = new HashSet<>();
+        Cursor c = db.rawQuery("PRAGMA table_info(" + TABLE_NAME + ")", null);
+        try {
+            int nameColumn = c.getColumnIndex("name");
+            while (c.moveToNext()) {
+                columns.add(c.getString(nameColumn));
+            }
+        } finally {
+            c.close();
+        }
+        return columns;
+    }
+
+    /**
+     * @return what to store in the index for the value
+     */
+    public static String createDocument(String value) {
+        if (value == null) {
+            return null;
+        }
+        StringBuilder document = new StringBuilder();
+        String folded = foldCase(value);
+        int i = 0;
+        while (i < folded.length()) {
+            int start = i;
+            while (i < folded.length() && isWordChar(folded.charAt(i))) {
+                i++;
+            }
+            if (i > start) {
+                appendGrams(document, folded.substring(start, i));
+            }
+            i++;
+        }
+        return document.toString();
+    }
+
+    /**
+     * @return the FTS query for the rows that may contain queriedValue, or null if the value has
+     * no word long enough to narrow the search down
+     */
+    public static String createMatchQuery(String queriedValue) {
+        if (queriedValue == null) {
+            return null;
+        }
+        Set<String> terms = new LinkedHashSet<>();
+        String folded = foldCase(queriedValue);
+        int i = 0;
+        while (i < folded.length()) {
+            int start = i;
+            while (i < folded.length() && isWordChar(folded.charAt(i))) {
+                i++;
+            }
+            String word = folded.substring(start, i);
+            int length = word.codePointCount(0, word.length());
+            if (length >= GRAM_LENGTH) {
+                for (int gram = 0; gram + GRAM_LENGTH <= length; gram++) {
+                    terms.add('"' + substringByCodePoints(word, gram, gram + GRAM_LENGTH) + '"');
+                }
+            } else if (length > 1) {
+                // only the start of a gram; a single character matches too many to be worth it
+                terms.add('"' + word + "*\"");
+            }
+            i++;
+        }
+        if (terms.isEmpty()) {
+            return null;
+        }
+        StringBuilder query = new StringBuilder();
+        for (String term : terms) {
+            if (query.length() > 0) {
+                query.append(' ');
+            }
+            query.append(term);
+        }
+        return query.toString();
+    }
+
+    private static void appendGrams(StringBuilder document, String word) {
+        int length = word.codePointCount(0, word.length());
+        for (int gram = 0; gram < length; gram++) {
+            if (document.length() > 0) {
+                document.append(' ');
+            }
+            document.append(substringByCodePoints(word, gram, Math.min(gram + GRAM_LENGTH, length)));
+        }
+    }
+
+    private static String substringByCodePoints(String s, int begin, int end) {
+        int beginIndex = s.offsetByCodePoints(0, begin);
+        return s.substring(beginIndex, s.offsetByCodePoints(beginIndex, end - begin));
+    }
+
+    private static boolean isWordChar(char c) {
+        return c >= 128 || (c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static String foldCase(String s) {
+        char[] chars = null;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                if (chars == null) {
+                    chars = s.toCharArray();
+                }
+                chars[i] = (char) (c + ('a' - 'A'));
+            }
+        }
+        return chars == null ? s : new String(chars);
+    }
+}
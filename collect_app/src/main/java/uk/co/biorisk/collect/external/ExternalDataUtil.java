@@ -121,7 +121,12 @@ public final class ExternalDataUtil {
         }
     }
 
-    public static ArrayList<SelectChoice> populateExternalChoices(FormEntryPrompt formEntryPrompt, XPathFuncExpr xPathFuncExpr) {
+    /**
+     * @return the choices of the prompt, with the search() choices in place of the choice that
+     * calls it; when that is the only choice, the list search() returned is passed on as it is, so
+     * that it can be read lazily
+     */
+    public static List<SelectChoice> populateExternalChoices(FormEntryPrompt formEntryPrompt, XPathFuncExpr xPathFuncExpr) {
         try {
             List<SelectChoice> selectChoices = formEntryPrompt.getSelectChoices();
             ArrayList<SelectChoice> returnedChoices = new ArrayList<>();
@@ -148,12 +153,13 @@ public final class ExternalDataUtil {
                     evaluationContext.addFunctionHandler(new ExternalDataHandlerSearch(externalDataManager, displayColumns, value, imageColumn));
 
                     Object eval = xPathFuncExpr.eval(formInstance, evaluationContext);
-                    if (eval.getClass().isAssignableFrom(ArrayList.class)) {
+                    if (eval instanceof List) {
                         @SuppressWarnings("unchecked")
-                        List<SelectChoice> dynamicChoices = (ArrayList<SelectChoice>) eval;
-                        for (SelectChoice dynamicChoice : dynamicChoices) {
-                            returnedChoices.add(dynamicChoice);
+                        List<SelectChoice> dynamicChoices = (List<SelectChoice>) eval;
+                        if (selectChoices.size() == 1) {
+                            return dynamicChoices;
                         }
+                        returnedChoices.addAll(dynamicChoices);
                     } else {
                         throw new ExternalDataException(Collect.getInstance().getString(R.string.ext_search_return_error, eval.getClass().getName()));
                     }
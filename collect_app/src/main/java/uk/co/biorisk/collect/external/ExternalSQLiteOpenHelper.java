@@ -19,16 +19,23 @@
 package uk.co.biorisk.collect.external;
 
 import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+import android.text.TextUtils;
 import android.util.Log;
 
 import com.opencsv.CSVReader;
 
 import uk.co.biorisk.collect.R;
 import uk.co.biorisk.collect.application.Collect;
+import uk.co.biorisk.collect.database.BulkInserter;
 import uk.co.biorisk.collect.database.ODKSQLiteOpenHelper;
 import uk.co.biorisk.collect.exception.ExternalDataException;
 import uk.co.biorisk.collect.tasks.FormLoaderTask;
+import uk.co.biorisk.collect.utilities.FileUtils;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -36,8 +43,11 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Author: Meletis Margaritis
@@ -51,9 +61,28 @@ public class ExternalSQLiteOpenHelper extends ODKSQLiteOpenHelper {
     private static final char QUOTE_CHAR = "\"".charAt(0);
     private static final char ESCAPE_CHAR = "\0".charAt(0);
 
+    private static final int IMPORT_CHUNK_SIZE = 5000;
+    private static final int SEARCH_INDEX_PAGE_SIZE = 1000;
+
+    // Bookkeeping for incremental imports. Column names made from the CSV header always start
+    // with "c_", so the chunk column can't clash with them.
+    private static final String CHUNK_COLUMN_NAME = "x_chunk";
+    private static final String METADATA_TABLE_NAME = "externalDataMetadata";
+    private static final String CHUNKS_TABLE_NAME = "externalDataChunks";
+    private static final String CREATE_METADATA_TABLE = "CREATE TABLE " + METADATA_TABLE_NAME
+            + " (name text primary key, value text);";
+    private static final String CREATE_CHUNKS_TABLE = "CREATE TABLE " + CHUNKS_TABLE_NAME
+            + " (hash text primary key, firstRow integer);";
+    private static final String META_FORMAT = "format";
+    private static final String META_HEADER = "header";
+    private static final String META_INCREMENTAL = "incremental";
+    private static final String META_FILE_HASH = "fileHash";
+    private static final String FORMAT_VERSION = "2";
+
     private File dataSetFile;
     private ExternalDataReader externalDataReader;
     private FormLoaderTask formLoaderTask;
+    private boolean mCreated = false;
 
     public ExternalSQLiteOpenHelper(File dbFile) {
         super(dbFile.getParentFile().getAbsolutePath(), dbFile.getName(), null, VERSION);
@@ -67,6 +96,15 @@ public class ExternalSQLiteOpenHelper extends ODKSQLiteOpenHelper {
         SQLiteDatabase writableDatabase = null;
         try {
             writableDatabase = getWritableDatabase();
+            if (mCreated) {
+                // onCreate() runs inside a single transaction, so the data is imported here,
+                // where it can be committed in chunks.
+                try {
+                    onCreateNamed(writableDatabase, ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME);
+                } catch (Exception e) {
+                    throw new ExternalDataException(Collect.getInstance().getString(R.string.ext_import_generic_error, dataSetFile.getName(), e.getMessage()), e);
+                }
+            }
         } finally {
             if (writableDatabase != null) {
                 writableDatabase.close();
@@ -83,11 +121,8 @@ public class ExternalSQLiteOpenHelper extends ODKSQLiteOpenHelper {
             return;
         }
 
-        try {
-            onCreateNamed(db, ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME);
-        } catch (Exception e) {
-            throw new ExternalDataException(Collect.getInstance().getString(R.string.ext_import_generic_error, dataSetFile.getName(), e.getMessage()), e);
-        }
+        // the table is created and populated by importFromCSV, once the database is open
+        mCreated = true;
     }
 
     private void onCreateNamed(SQLiteDatabase db, String tableName) throws Exception {
@@ -141,12 +176,27 @@ public class ExternalSQLiteOpenHelper extends ODKSQLiteOpenHelper {
                 sb.append(", ");
                 sb.append(ExternalDataUtil.SORT_COLUMN_NAME).append(" real ");
             }
+            sb.append(", ").append(CHUNK_COLUMN_NAME).append(" text ");
 
             sb.append(" );");
             String sql = sb.toString();
 
             Log.w(ExternalDataUtil.LOGGER_NAME, "Creating database for " + dataSetFile + " with query: " + sql);
             db.execSQL(sql);
+            db.execSQL(CREATE_METADATA_TABLE);
+            db.execSQL(CREATE_CHUNKS_TABLE);
+
+            List<String> searchColumns = new ArrayList<>();
+            for (String header : headerRow) {
+                String columnName = header.trim();
+                if (columnName.length() != 0) {
+                    String safeColumnName = ExternalDataUtil.toSafeColumnName(columnName, columnNamesCache);
+                    if (!safeColumnName.equals(ExternalDataUtil.SORT_COLUMN_NAME)) {
+                        searchColumns.add(safeColumnName);
+                    }
+                }
+            }
+            ExternalDataSearchIndex.createTable(db, searchColumns);
 
             // create the indexes.
             // save the sql for later because inserts will be much faster if we don't have indexes already.
@@ -158,70 +208,422 @@ public class ExternalSQLiteOpenHelper extends ODKSQLiteOpenHelper {
                     Log.w(ExternalDataUtil.LOGGER_NAME, "Will create an index on " + header + " later.");
                 }
             }
+            createIndexesCommands.add("CREATE INDEX " + CHUNK_COLUMN_NAME + "_idx ON " + tableName + " (" + CHUNK_COLUMN_NAME + ");");
 
             // populate the database
-            String[] row = reader.readNext();
-            int rowCount = 0;
-            while (row != null && !formLoaderTask.isCancelled()) {
-                // SCTO-894 - first we should make sure that this is not an empty line
-                if (!ExternalDataUtil.containsAnyData(row)) {
-                    // yes, that is an empty row, ignore it
-                    row = reader.readNext();
-                    continue;
+            // resolve the column each header maps to once, rather than once per value
+            List<String> insertColumns = new ArrayList<>();
+            int[] headerColumns = new int[headerRow.length];
+            for (int i = 0; i < headerRow.length; i++) {
+                String columnName = headerRow[i].trim();
+                if (columnName.length() == 0) {
+                    headerColumns[i] = -1;
+                } else {
+                    headerColumns[i] = insertColumns.size();
+                    insertColumns.add(ExternalDataUtil.toSafeColumnName(columnName, columnNamesCache));
                 }
-
-                // SCTO-894 - then check if the row contains less values than the header
-                // we should not ignore the existing values in the row,
-                // we will just fill up the rest with empty strings
-                if (row.length < headerRow.length) {
-                    row = ExternalDataUtil.fillUpNullValues(row, headerRow);
+            }
+            int sortColumn = insertColumns.indexOf(ExternalDataUtil.SORT_COLUMN_NAME);
+            if (!sortColumnAlreadyPresent) {
+                sortColumn = insertColumns.size();
+                insertColumns.add(ExternalDataUtil.SORT_COLUMN_NAME);
+            }
+            int chunkColumn = insertColumns.size();
+            insertColumns.add(CHUNK_COLUMN_NAME);
+
+            // the hash of the file as it was when we started reading it
+            String fileHash = FileUtils.getMd5Hash(dataSetFile);
+            // chunk hash -> position of the chunk's first row
+            Map<String, Integer> chunks = new LinkedHashMap<>();
+            boolean repeatedChunks = false;
+
+            BulkInserter inserter = new BulkInserter(db, tableName,
+                    insertColumns.toArray(new String[insertColumns.size()]), IMPORT_CHUNK_SIZE);
+            try {
+                ExternalDataChunkReader chunkReader = new ExternalDataChunkReader(reader, headerRow);
+                ExternalDataChunkReader.Chunk chunk;
+                int rowCount = 0;
+                while (!formLoaderTask.isCancelled() && (chunk = chunkReader.readChunk()) != null) {
+                    for (String[] row : chunk.rows) {
+                        if (formLoaderTask.isCancelled()) {
+                            break;
+                        }
+                        if (!sortColumnAlreadyPresent) {
+                            inserter.bindLong(sortColumn, rowCount + 1);
+                        }
+                        inserter.bindString(chunkColumn, chunk.hash);
+
+                        for (int i = 0; i < row.length && i < headerRow.length; i++) {
+                            int column = headerColumns[i];
+                            String columnValue = row[i];
+                            if (column == -1) {
+                                continue;
+                            }
+                            if (column == sortColumn) {
+                                inserter.bindDouble(column, parseSortValue(columnValue));
+                            } else {
+                                inserter.bindString(column, columnValue);
+                            }
+                        }
+                        inserter.insert();
+                        rowCount++;
+                        if (rowCount % 100 == 0) {
+                            onProgress(Collect.getInstance().getString(R.string.ext_import_progress_message, dataSetFile.getName(), " (" + rowCount + " records so far)"));
+                        }
+                    }
+                    if (chunks.put(chunk.hash, chunk.firstRow) != null) {
+                        repeatedChunks = true;
+                    }
                 }
 
-                ContentValues values = new ContentValues();
-                if (!sortColumnAlreadyPresent) {
-                    values.put(ExternalDataUtil.SORT_COLUMN_NAME, rowCount + 1);
+                if (!formLoaderTask.isCancelled()) {
+                    inserter.finish();
+
+                    onProgress(Collect.getInstance().getString(R.string.ext_import_finalizing_message));
+
+                    buildSearchIndex(db, tableName, searchColumns);
                 }
 
-                for (int i = 0; i < row.length && i < headerRow.length; i++) {
-                    String columnName = headerRow[i].trim();
-                    String columnValue = row[i];
-                    if (columnName.length() == 0) {
-                        continue;
+                if (!formLoaderTask.isCancelled()) {
+
+                    // now create the indexes
+                    for (String createIndexCommand : createIndexesCommands) {
+                        Log.w(ExternalDataUtil.LOGGER_NAME, createIndexCommand);
+                        db.execSQL(createIndexCommand);
                     }
-                    String safeColumnName = ExternalDataUtil.toSafeColumnName(columnName, columnNamesCache);
-                    if (safeColumnName.equals(ExternalDataUtil.SORT_COLUMN_NAME)) {
-                        try {
-                            values.put(safeColumnName, Double.parseDouble(columnValue));
-                        } catch (NumberFormatException e) {
-                            throw new ExternalDataException(Collect.getInstance().getString(R.string.ext_sortBy_numeric_error, columnValue));
-                        }
-                    } else {
-                        values.put(safeColumnName, columnValue);
+
+                    // and record what was imported, so that the next import can skip it or
+                    // only apply what changed
+                    String keyColumn = findKeyColumn(headerRow, columnNamesCache);
+                    db.beginTransaction();
+                    try {
+                        writeChunks(db, chunks);
+                        writeMetadata(db, META_FORMAT, FORMAT_VERSION);
+                        writeMetadata(db, META_HEADER, TextUtils.join("\n", headerRow));
+                        // rows can only be matched up by key if every key identifies one row,
+                        // and chunks by hash if no chunk appears twice
+                        writeMetadata(db, META_INCREMENTAL, String.valueOf(keyColumn != null
+                                && !repeatedChunks && hasUniqueValues(db, tableName, keyColumn)));
+                        writeMetadata(db, META_FILE_HASH, fileHash);
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
                     }
                 }
-                db.insertOrThrow(tableName, null, values);
-                row = reader.readNext();
-                rowCount++;
-                if (rowCount % 100 == 0) {
-                    onProgress(Collect.getInstance().getString(R.string.ext_import_progress_message, dataSetFile.getName(), " (" + rowCount + " records so far)"));
-                }
+            } finally {
+                inserter.close();
             }
 
             if (formLoaderTask.isCancelled()) {
                 Log.w(ExternalDataUtil.LOGGER_NAME, "User canceled reading data from " + dataSetFile);
                 onProgress(Collect.getInstance().getString(R.string.ext_import_cancelled_message));
             } else {
+                Log.w(ExternalDataUtil.LOGGER_NAME, "Read all data from " + dataSetFile);
+                onProgress(Collect.getInstance().getString(R.string.ext_import_completed_message));
+            }
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    Log.e(ExternalDataUtil.LOGGER_NAME, e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Tries to bring the existing database up to date with dataSetFile without rebuilding it.
+     * <p>
+     * If the file's md5 hash is the one recorded by the last import, nothing needs to be done.
+     * Otherwise, if the file has the same header as before and a "_key" column whose values
+     * identify the rows, only the chunks of the file (see {@link ExternalDataChunkReader}) that
+     * changed are applied: their rows are inserted or updated by key, and the rows of chunks that
+     * are gone are deleted. All of it happens in one transaction, so an update that fails or is
+     * cancelled leaves the database as it was.
+     *
+     * @return whether the database now matches dataSetFile, has to be rebuilt from it, or was
+     * kept as it was because a row of the file couldn't be applied
+     */
+    public UpdateOutcome updateFromCSV(File dataSetFile, FormLoaderTask formLoaderTask) {
+        this.dataSetFile = dataSetFile;
+        this.formLoaderTask = formLoaderTask;
+
+        SQLiteDatabase writableDatabase = null;
+        try {
+            writableDatabase = getWritableDatabase();
+            return onUpdateNamed(writableDatabase, ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME)
+                    ? UpdateOutcome.UPDATED : UpdateOutcome.REBUILD;
+        } catch (SQLException | IOException | ExternalDataException e) {
+            Log.w(ExternalDataUtil.LOGGER_NAME, "Could not update the data from " + dataSetFile + " in place, it will be re-imported", e);
+            return UpdateOutcome.REBUILD;
+        } catch (RuntimeException e) {
+            // a malformed row; the transaction has been rolled back, so the table and the hash
+            // recorded for it are still those of the last import
+            Log.e(ExternalDataUtil.LOGGER_NAME, "Could not apply the data from " + dataSetFile + ", the data imported before will be used", e);
+            return UpdateOutcome.KEPT;
+        } finally {
+            if (writableDatabase != null) {
+                writableDatabase.close();
+            }
+        }
+    }
 
-                onProgress(Collect.getInstance().getString(R.string.ext_import_finalizing_message));
+    /**
+     * What came of {@link #updateFromCSV}.
+     */
+    public enum UpdateOutcome {
+        // the database matches the file
+        UPDATED,
+        // the database has to be rebuilt from the file
+        REBUILD,
+        // the database is as it was before the update
+        KEPT
+    }
 
-                // now create the indexes
-                for (String createIndexCommand : createIndexesCommands) {
-                    Log.w(ExternalDataUtil.LOGGER_NAME, createIndexCommand);
-                    db.execSQL(createIndexCommand);
+    private boolean onUpdateNamed(SQLiteDatabase db, String tableName) throws IOException {
+        Map<String, String> metadata = readMetadata(db);
+        if (!FORMAT_VERSION.equals(metadata.get(META_FORMAT))) {
+            return false;
+        }
+        String fileHash = FileUtils.getMd5Hash(dataSetFile);
+        if (fileHash != null && fileHash.equals(metadata.get(META_FILE_HASH))) {
+            Log.i(ExternalDataUtil.LOGGER_NAME, dataSetFile + " has not changed since it was imported");
+            return true;
+        }
+        if (fileHash == null || !Boolean.parseBoolean(metadata.get(META_INCREMENTAL))) {
+            return false;
+        }
+
+        CSVReader reader = null;
+        try {
+            reader = new CSVReader(new InputStreamReader(new FileInputStream(dataSetFile), "UTF-8"), DELIMITING_CHAR, QUOTE_CHAR, ESCAPE_CHAR);
+            String[] headerRow = reader.readNext();
+            if (!ExternalDataUtil.containsAnyData(headerRow)
+                    || !TextUtils.join("\n", headerRow).equals(metadata.get(META_HEADER))) {
+                return false;
+            }
+
+            Map<String, String> columnNamesCache = new HashMap<>();
+            String keyColumn = findKeyColumn(headerRow, columnNamesCache);
+            int keyIndex = -1;
+            List<String> columns = new ArrayList<>();
+            List<String> searchColumns = new ArrayList<>();
+            int[] headerColumns = new int[headerRow.length];
+            int[] headerSearchColumns = new int[headerRow.length];
+            for (int i = 0; i < headerRow.length; i++) {
+                String columnName = headerRow[i].trim();
+                if (columnName.length() == 0) {
+                    headerColumns[i] = -1;
+                    headerSearchColumns[i] = -1;
+                    continue;
+                }
+                String safeColumnName = ExternalDataUtil.toSafeColumnName(columnName, columnNamesCache);
+                if (safeColumnName.equals(keyColumn) && keyIndex == -1) {
+                    keyIndex = i;
+                }
+                headerColumns[i] = columns.size();
+                columns.add(safeColumnName);
+                if (safeColumnName.equals(ExternalDataUtil.SORT_COLUMN_NAME)) {
+                    headerSearchColumns[i] = -1;
+                } else {
+                    headerSearchColumns[i] = searchColumns.size();
+                    searchColumns.add(safeColumnName);
                 }
+            }
+            int sortColumn = columns.indexOf(ExternalDataUtil.SORT_COLUMN_NAME);
+            boolean sortColumnAlreadyPresent = sortColumn != -1;
+            if (!sortColumnAlreadyPresent) {
+                sortColumn = columns.size();
+                columns.add(ExternalDataUtil.SORT_COLUMN_NAME);
+            }
+            int chunkColumn = columns.size();
+            columns.add(CHUNK_COLUMN_NAME);
+            if (keyIndex == -1) {
+                return false;
+            }
 
-                Log.w(ExternalDataUtil.LOGGER_NAME, "Read all data from " + dataSetFile);
+            Map<String, Integer> oldChunks = readChunks(db);
+
+            onProgress(Collect.getInstance().getString(R.string.ext_import_progress_message, dataSetFile.getName(), ""));
+
+            StringBuilder insertSql = new StringBuilder("INSERT INTO " + tableName + " (");
+            StringBuilder updateSql = new StringBuilder("UPDATE " + tableName + " SET ");
+            for (int i = 0; i < columns.size(); i++) {
+                insertSql.append(i == 0 ? "" : ", ").append(columns.get(i));
+                updateSql.append(i == 0 ? "" : ", ").append(columns.get(i)).append(" = ?");
+            }
+            insertSql.append(") VALUES (");
+            for (int i = 0; i < columns.size(); i++) {
+                insertSql.append(i == 0 ? "?" : ", ?");
+            }
+            insertSql.append(")");
+            updateSql.append(" WHERE ").append(keyColumn).append(" = ?");
+
+            StringBuilder indexInsertSql = new StringBuilder("INSERT INTO " + ExternalDataSearchIndex.TABLE_NAME + " (docid");
+            for (String searchColumn : searchColumns) {
+                indexInsertSql.append(", ").append(searchColumn);
+            }
+            indexInsertSql.append(") VALUES (?");
+            for (int i = 0; i < searchColumns.size(); i++) {
+                indexInsertSql.append(", ?");
+            }
+            indexInsertSql.append(")");
+
+            // chunk hashes of the new file -> position of their first row
+            Map<String, Integer> newChunks = new LinkedHashMap<>();
+            // the chunks that the rows we updated were in before
+            Set<String> touchedChunks = new HashSet<>();
+            Set<String> changedKeys = new HashSet<>();
+            int changedRows = 0;
+
+            db.beginTransaction();
+            SQLiteStatement lookup = null;
+            SQLiteStatement insert = null;
+            SQLiteStatement update = null;
+            SQLiteStatement shift = null;
+            SQLiteStatement delete = null;
+            SQLiteStatement lookupRowid = null;
+            SQLiteStatement indexInsert = null;
+            SQLiteStatement indexDelete = null;
+            SQLiteStatement indexDeleteChunk = null;
+            try {
+                lookup = db.compileStatement("SELECT " + CHUNK_COLUMN_NAME + " FROM " + tableName + " WHERE " + keyColumn + " = ?");
+                lookupRowid = db.compileStatement("SELECT rowid FROM " + tableName + " WHERE " + keyColumn + " = ?");
+                indexInsert = db.compileStatement(indexInsertSql.toString());
+                indexDelete = db.compileStatement("DELETE FROM " + ExternalDataSearchIndex.TABLE_NAME + " WHERE docid = ?");
+                indexDeleteChunk = db.compileStatement("DELETE FROM " + ExternalDataSearchIndex.TABLE_NAME + " WHERE docid IN (SELECT rowid FROM " + tableName + " WHERE " + CHUNK_COLUMN_NAME + " = ?)");
+                insert = db.compileStatement(insertSql.toString());
+                update = db.compileStatement(updateSql.toString());
+                shift = db.compileStatement("UPDATE " + tableName + " SET " + ExternalDataUtil.SORT_COLUMN_NAME + " = " + ExternalDataUtil.SORT_COLUMN_NAME + " + ? WHERE " + CHUNK_COLUMN_NAME + " = ?");
+                delete = db.compileStatement("DELETE FROM " + tableName + " WHERE " + CHUNK_COLUMN_NAME + " = ?");
+
+                ExternalDataChunkReader chunkReader = new ExternalDataChunkReader(reader, headerRow);
+                ExternalDataChunkReader.Chunk chunk;
+                while ((chunk = chunkReader.readChunk()) != null) {
+                    if (formLoaderTask.isCancelled()) {
+                        return false;
+                    }
+                    if (newChunks.put(chunk.hash, chunk.firstRow) != null) {
+                        // the same rows twice, so the hash no longer says where a row is
+                        return false;
+                    }
+
+                    Integer oldFirstRow = oldChunks.get(chunk.hash);
+                    if (oldFirstRow != null) {
+                        // unchanged, but rows may have been added or removed before it
+                        if (!sortColumnAlreadyPresent && oldFirstRow != chunk.firstRow) {
+                            shift.bindLong(1, chunk.firstRow - oldFirstRow);
+                            shift.bindString(2, chunk.hash);
+                            shift.executeUpdateDelete();
+                        }
+                        continue;
+                    }
+
+                    for (int r = 0; r < chunk.rows.size(); r++) {
+                        String[] row = chunk.rows.get(r);
+                        String key = row[keyIndex];
+                        if (!changedKeys.add(key)) {
+                            return false;
+                        }
+
+                        String previousChunk;
+                        lookup.bindString(1, key);
+                        try {
+                            previousChunk = lookup.simpleQueryForString();
+                        } catch (SQLiteDoneException e) {
+                            previousChunk = null;
+                        }
+
+                        SQLiteStatement statement = previousChunk == null ? insert : update;
+                        statement.clearBindings();
+                        if (!sortColumnAlreadyPresent) {
+                            statement.bindLong(sortColumn + 1, chunk.firstRow + r + 1);
+                        }
+                        statement.bindString(chunkColumn + 1, chunk.hash);
+                        for (int i = 0; i < row.length && i < headerRow.length; i++) {
+                            int column = headerColumns[i];
+                            if (column == -1) {
+                                continue;
+                            }
+                            if (column == sortColumn) {
+                                statement.bindDouble(column + 1, parseSortValue(row[i]));
+                            } else if (row[i] == null) {
+                                statement.bindNull(column + 1);
+                            } else {
+                                statement.bindString(column + 1, row[i]);
+                            }
+                        }
+
+                        long rowid;
+                        if (previousChunk == null) {
+                            rowid = insert.executeInsert();
+                        } else {
+                            update.bindString(columns.size() + 1, key);
+                            update.executeUpdateDelete();
+                            touchedChunks.add(previousChunk);
+
+                            lookupRowid.bindString(1, key);
+                            rowid = lookupRowid.simpleQueryForLong();
+                            indexDelete.bindLong(1, rowid);
+                            indexDelete.executeUpdateDelete();
+                        }
+
+                        indexInsert.clearBindings();
+                        indexInsert.bindLong(1, rowid);
+                        for (int i = 0; i < row.length && i < headerRow.length; i++) {
+                            int column = headerSearchColumns[i];
+                            if (column == -1) {
+                                continue;
+                            }
+                            String document = ExternalDataSearchIndex.createDocument(row[i]);
+                            if (document == null) {
+                                indexInsert.bindNull(column + 2);
+                            } else {
+                                indexInsert.bindString(column + 2, document);
+                            }
+                        }
+                        indexInsert.executeInsert();
+                        changedRows++;
+                    }
+                }
+
+                for (String touchedChunk : touchedChunks) {
+                    if (newChunks.containsKey(touchedChunk)) {
+                        // we moved a row out of a chunk that is still in the file, so its key
+                        // is now used twice
+                        return false;
+                    }
+                }
+
+                int deletedRows = 0;
+                for (String oldChunk : oldChunks.keySet()) {
+                    if (!newChunks.containsKey(oldChunk)) {
+                        // whatever is left of it was deleted from the file
+                        indexDeleteChunk.bindString(1, oldChunk);
+                        indexDeleteChunk.executeUpdateDelete();
+                        delete.bindString(1, oldChunk);
+                        deletedRows += delete.executeUpdateDelete();
+                    }
+                }
+
+                writeChunks(db, newChunks);
+                writeMetadata(db, META_FILE_HASH, fileHash);
+                db.setTransactionSuccessful();
+
+                Log.i(ExternalDataUtil.LOGGER_NAME, "Updated the data from " + dataSetFile + " in place: "
+                        + changedRows + " rows inserted or updated, " + deletedRows + " deleted, "
+                        + (chunkReader.getRowCount() - changedRows) + " unchanged");
                 onProgress(Collect.getInstance().getString(R.string.ext_import_completed_message));
+                return true;
+            } finally {
+                db.endTransaction();
+                for (SQLiteStatement statement : new SQLiteStatement[]{lookup, insert, update, shift, delete,
+                        lookupRowid, indexInsert, indexDelete, indexDeleteChunk}) {
+                    if (statement != null) {
+                        statement.close();
+                    }
+                }
             }
         } finally {
             if (reader != null) {
@@ -234,6 +636,129 @@ public class ExternalSQLiteOpenHelper extends ODKSQLiteOpenHelper {
         }
     }
 
+    /**
+     * Fills the search index (see {@link ExternalDataSearchIndex}) from the imported rows.
+     */
+    private void buildSearchIndex(SQLiteDatabase db, String tableName, List<String> searchColumns) {
+        String[] indexColumns = new String[searchColumns.size() + 1];
+        String[] queryColumns = new String[searchColumns.size() + 1];
+        indexColumns[0] = "docid";
+        queryColumns[0] = "rowid";
+        for (int i = 0; i < searchColumns.size(); i++) {
+            indexColumns[i + 1] = searchColumns.get(i);
+            queryColumns[i + 1] = searchColumns.get(i);
+        }
+
+        BulkInserter inserter = new BulkInserter(db, ExternalDataSearchIndex.TABLE_NAME, indexColumns, IMPORT_CHUNK_SIZE);
+        try {
+            // read the rows a page at a time, so that the cursor isn't re-run as the index grows
+            long lastRowid = 0;
+            boolean more = true;
+            while (more && !formLoaderTask.isCancelled()) {
+                Cursor c = db.query(tableName, queryColumns, "rowid > ?", new String[]{String.valueOf(lastRowid)},
+                        null, null, "rowid", String.valueOf(SEARCH_INDEX_PAGE_SIZE));
+                try {
+                    more = c.getCount() == SEARCH_INDEX_PAGE_SIZE;
+                    while (c.moveToNext()) {
+                        lastRowid = c.getLong(0);
+                        inserter.bindLong(0, lastRowid);
+                        for (int i = 1; i < queryColumns.length; i++) {
+                            inserter.bindString(i, ExternalDataSearchIndex.createDocument(c.getString(i)));
+                        }
+                        inserter.insert();
+                    }
+                } finally {
+                    c.close();
+                }
+            }
+            if (!formLoaderTask.isCancelled()) {
+                inserter.finish();
+            }
+        } finally {
+            inserter.close();
+        }
+    }
+
+    private static double parseSortValue(String value) {
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new ExternalDataException(Collect.getInstance().getString(R.string.ext_sortBy_numeric_error, value));
+        }
+    }
+
+    /**
+     * @return the column of the first header that ends with "_key", or null if there is none
+     */
+    private static String findKeyColumn(String[] headerRow, Map<String, String> columnNamesCache) {
+        for (String header : headerRow) {
+            if (header.endsWith("_key") && header.trim().length() != 0) {
+                return ExternalDataUtil.toSafeColumnName(header, columnNamesCache);
+            }
+        }
+        return null;
+    }
+
+    private static boolean hasUniqueValues(SQLiteDatabase db, String tableName, String column) {
+        Cursor c = db.rawQuery("SELECT COUNT(*) - COUNT(DISTINCT " + column + ") FROM " + tableName, null);
+        try {
+            return c.moveToFirst() && c.getLong(0) == 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    private static Map<String, String> readMetadata(SQLiteDatabase db) {
+        Map<String, String> metadata = new HashMap<>();
+        Cursor c = db.query(METADATA_TABLE_NAME, new String[]{"name", "value"}, null, null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                metadata.put(c.getString(0), c.getString(1));
+            }
+        } finally {
+            c.close();
+        }
+        return metadata;
+    }
+
+    private static void writeMetadata(SQLiteDatabase db, String name, String value) {
+        ContentValues values = new ContentValues();
+        values.put("name", name);
+        values.put("value", value);
+        db.insertWithOnConflict(METADATA_TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * @return the hashes of the chunks of the imported file, mapped to the position of their
+     * first row
+     */
+    private static Map<String, Integer> readChunks(SQLiteDatabase db) {
+        Map<String, Integer> chunks = new HashMap<>();
+        Cursor c = db.query(CHUNKS_TABLE_NAME, new String[]{"hash", "firstRow"}, null, null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                chunks.put(c.getString(0), c.getInt(1));
+            }
+        } finally {
+            c.close();
+        }
+        return chunks;
+    }
+
+    private static void writeChunks(SQLiteDatabase db, Map<String, Integer> chunks) {
+        db.delete(CHUNKS_TABLE_NAME, null, null);
+        SQLiteStatement insert = db.compileStatement("INSERT INTO " + CHUNKS_TABLE_NAME + " (hash, firstRow) VALUES (?, ?)");
+        try {
+            for (Map.Entry<String, Integer> chunk : chunks.entrySet()) {
+                insert.bindString(1, chunk.getKey());
+                insert.bindLong(2, chunk.getValue());
+                insert.executeInsert();
+            }
+        } finally {
+            insert.close();
+        }
+    }
+
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
     }
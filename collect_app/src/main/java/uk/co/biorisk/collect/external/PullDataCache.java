@@ -0,0 +1,193 @@
+package uk.co.biorisk.collect.external;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the results of pulldata() lookups on one data set, so that re-evaluating a
+ * calculation doesn't have to query the database again.
+ * <p>
+ * Results are kept in a bounded LRU map keyed by (queried column, reference column, reference
+ * value); lookups that found nothing are remembered too. Small data sets can instead be
+ * preloaded one (queried column, reference column) pair at a time into a {@link LookupTable}, after
+ * which every lookup on that pair is answered from memory.
+ * <p>
+ * The cache must be thrown away whenever the data set's database is closed or rebuilt.
+ */
+public class PullDataCache {
+
+    private static final char SEPARATOR = '\u0000';
+
+    private final String dataSetName;
+    private final int maxEntries;
+    private final int preloadMaxRows;
+
+    private final LinkedHashMap<String, String> results;
+    private final Map<String, LookupTable> preloaded = new HashMap<>();
+    private int rowCount = -1;
+
+    private int hits = 0;
+    private int misses = 0;
+
+    /**
+     * @param maxEntries     how many lookup results to keep
+     * @param preloadMaxRows data sets with at most this many rows are preloaded; 0 to never
+     *                       preload
+     */
+    public PullDataCache(String dataSetName, final int maxEntries, int preloadMaxRows) {
+        this.dataSetName = dataSetName;
+        this.maxEntries = maxEntries;
+        this.preloadMaxRows = preloadMaxRows;
+        this.results = new LinkedHashMap<String, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return the cached result of the lookup, or null if it isn't cached
+     */
+    public synchronized String get(String queriedColumn, String referenceColumn, String referenceValue) {
+        String value;
+        LookupTable table = preloaded.get(pairKey(queriedColumn, referenceColumn));
+        if (table != null) {
+            value = table.get(referenceValue);
+            // the whole column pair is loaded, so a value that isn't there doesn't exist
+            if (value == null) {
+                value = "";
+            }
+        } else {
+            value = results.get(lookupKey(queriedColumn, referenceColumn, referenceValue));
+        }
+
+        if (value != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return value;
+    }
+
+    public synchronized void put(String queriedColumn, String referenceColumn, String referenceValue, String value) {
+        results.put(lookupKey(queriedColumn, referenceColumn, referenceValue), value);
+    }
+
+    /**
+     * @return whether the column pair should be preloaded with {@link #putPreloaded}, which is the
+     * case when preloading is enabled, the data set is small enough and the pair isn't loaded yet
+     */
+    public synchronized boolean shouldPreload(String queriedColumn, String referenceColumn) {
+        return preloadMaxRows > 0 && rowCount >= 0 && rowCount <= preloadMaxRows
+                && !preloaded.containsKey(pairKey(queriedColumn, referenceColumn));
+    }
+
+    /**
+     * @return whether the number of rows in the data set still needs to be given to
+     * {@link #setRowCount(int)} before {@link #shouldPreload} can answer
+     */
+    public synchronized boolean needsRowCount() {
+        return preloadMaxRows > 0 && rowCount < 0;
+    }
+
+    public synchronized void setRowCount(int rowCount) {
+        this.rowCount = rowCount;
+    }
+
+    public synchronized void putPreloaded(String queriedColumn, String referenceColumn, LookupTable table) {
+        preloaded.put(pairKey(queriedColumn, referenceColumn), table);
+    }
+
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "pulldata cache for " + dataSetName + ": " + hits + " hits, " + misses + " misses, "
+                + results.size() + "/" + maxEntries + " results, " + preloaded.size()
+                + " preloaded column pairs";
+    }
+
+    private static String pairKey(String queriedColumn, String referenceColumn) {
+        return queriedColumn + SEPARATOR + referenceColumn;
+    }
+
+    private static String lookupKey(String queriedColumn, String referenceColumn, String referenceValue) {
+        return queriedColumn + SEPARATOR + referenceColumn + SEPARATOR + referenceValue;
+    }
+
+    /**
+     * A read-mostly map from reference value to queried value, stored in two parallel arrays with
+     * open addressing, so that a preloaded column pair costs two array slots per row instead of
+     * a map entry object per row.
+     * <p>
+     * The data columns are created with "collate nocase", so keys are matched ignoring the case of
+     * ASCII letters, the same as SQLite does.
+     */
+    public static final class LookupTable {
+        private final String[] keys;
+        private final String[] values;
+        private final int mask;
+
+        /**
+         * @param expectedSize the number of rows that will be added
+         */
+        public LookupTable(int expectedSize) {
+            // keep the table at most half full
+            int capacity = Integer.highestOneBit(Math.max(expectedSize, 1) * 2 - 1) << 1;
+            keys = new String[capacity];
+            values = new String[capacity];
+            mask = capacity - 1;
+        }
+
+        /**
+         * Adds the mapping unless the key is already mapped, so that, like the query it replaces,
+         * the first row with the key wins.
+         */
+        public void putIfAbsent(String key, String value) {
+            key = foldCase(key);
+            int i = indexOf(key);
+            if (keys[i] == null) {
+                keys[i] = key;
+                values[i] = value;
+            }
+        }
+
+        public String get(String key) {
+            int i = indexOf(foldCase(key));
+            return keys[i] == null ? null : values[i];
+        }
+
+        private static String foldCase(String key) {
+            for (int i = 0; i < key.length(); i++) {
+                char c = key.charAt(i);
+                if (c >= 'A' && c <= 'Z') {
+                    char[] chars = key.toCharArray();
+                    for (int j = i; j < chars.length; j++) {
+                        if (chars[j] >= 'A' && chars[j] <= 'Z') {
+                            chars[j] += 'a' - 'A';
+                        }
+                    }
+                    return new String(chars);
+                }
+            }
+            return key;
+        }
+
+        private int indexOf(String key) {
+            int h = key.hashCode();
+            int i = (h ^ (h >>> 16)) & mask;
+            while (keys[i] != null && !keys[i].equals(key)) {
+                i = (i + 1) & mask;
+            }
+            return i;
+        }
+    }
+}
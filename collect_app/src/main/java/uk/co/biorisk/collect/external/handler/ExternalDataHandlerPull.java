@@ -19,6 +19,7 @@
 package uk.co.biorisk.collect.external.handler;
 
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.util.Log;
 
@@ -31,6 +32,7 @@ import java.util.List;
 import uk.co.biorisk.collect.external.ExternalDataManager;
 import uk.co.biorisk.collect.external.ExternalDataUtil;
 import uk.co.biorisk.collect.external.ExternalSQLiteOpenHelper;
+import uk.co.biorisk.collect.external.PullDataCache;
 
 /**
  * Author: Meletis Margaritis
@@ -80,23 +82,66 @@ public class ExternalDataHandlerPull extends ExternalDataHandlerBase {
         // SCTO-545
         dataSetName = normalize(dataSetName);
 
+        PullDataCache cache = getExternalDataManager().getPullDataCache(dataSetName);
+        String cached = cache.get(queriedColumn, referenceColumn, referenceValue);
+        if (cached != null) {
+            return cached;
+        }
+
         ExternalSQLiteOpenHelper sqLiteOpenHelper = getExternalDataManager().getDatabase(dataSetName, false);
-        String[] selectionArgs = {referenceValue};
-        String selection = ExternalDataUtil.toSafeColumnName(referenceColumn) + "=?";
-        String[] columns = {ExternalDataUtil.toSafeColumnName(queriedColumn)};
+        String safeQueriedColumn = ExternalDataUtil.toSafeColumnName(queriedColumn);
+        String safeReferenceColumn = ExternalDataUtil.toSafeColumnName(referenceColumn);
         SQLiteDatabase db = sqLiteOpenHelper.getReadableDatabase();
+
+        try {
+            if (cache.needsRowCount()) {
+                cache.setRowCount((int) DatabaseUtils.queryNumEntries(db, ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME));
+            }
+            if (cache.shouldPreload(queriedColumn, referenceColumn)) {
+                cache.putPreloaded(queriedColumn, referenceColumn, preload(db, safeQueriedColumn, safeReferenceColumn));
+                return cache.get(queriedColumn, referenceColumn, referenceValue);
+            }
+        } catch (Exception e) {
+            // fall back to querying the value on its own
+            Log.e(ExternalDataUtil.LOGGER_NAME, "Could not preload " + dataSetName + ": " + e.getMessage());
+        }
+
+        String[] selectionArgs = {referenceValue};
+        String selection = safeReferenceColumn + "=?";
+        String[] columns = {safeQueriedColumn};
         try (Cursor c = db.query(ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME, columns, selection, selectionArgs, null, null, null)) {
 
+            String value;
             if (c.getCount() > 0) {
                 c.moveToFirst();
-                return ExternalDataUtil.nullSafe(c.getString(0));
+                value = ExternalDataUtil.nullSafe(c.getString(0));
             } else {
                 Log.e(ExternalDataUtil.LOGGER_NAME, "Could not find a value in " + queriedColumn + " where the column " + referenceColumn + " has the value " + referenceValue);
-                return "";
+                value = "";
             }
+            cache.put(queriedColumn, referenceColumn, referenceValue, value);
+            return value;
         } catch (Exception e) {
             Log.e(ExternalDataUtil.LOGGER_NAME, e.getMessage());
             return "";
         }
     }
+
+    /**
+     * Reads the whole (reference column, queried column) pair into memory. Rows are read in
+     * insertion order so that, as with the single value query, the first matching row wins.
+     */
+    private PullDataCache.LookupTable preload(SQLiteDatabase db, String safeQueriedColumn, String safeReferenceColumn) {
+        String[] columns = {safeReferenceColumn, safeQueriedColumn};
+        try (Cursor c = db.query(ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME, columns, null, null, null, null, "rowid")) {
+            PullDataCache.LookupTable table = new PullDataCache.LookupTable(c.getCount());
+            while (c.moveToNext()) {
+                String key = c.getString(0);
+                if (key != null) {
+                    table.putIfAbsent(key, ExternalDataUtil.nullSafe(c.getString(1)));
+                }
+            }
+            return table;
+        }
+    }
 }
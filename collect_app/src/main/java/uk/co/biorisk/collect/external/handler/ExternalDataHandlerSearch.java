@@ -20,13 +20,13 @@ package uk.co.biorisk.collect.external.handler;
 
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
-import org.javarosa.core.model.SelectChoice;
 import org.javarosa.core.model.condition.EvaluationContext;
 import org.javarosa.xpath.expr.XPathFuncExpr;
 import uk.co.biorisk.collect.R;
 import uk.co.biorisk.collect.application.Collect;
 import uk.co.biorisk.collect.exception.ExternalDataException;
 import uk.co.biorisk.collect.external.ExternalDataManager;
+import uk.co.biorisk.collect.external.ExternalDataSearchIndex;
 import uk.co.biorisk.collect.external.ExternalDataUtil;
 import uk.co.biorisk.collect.external.ExternalSQLiteOpenHelper;
 import uk.co.biorisk.collect.external.ExternalSelectChoice;
@@ -126,101 +126,91 @@ public class ExternalDataHandlerSearch extends ExternalDataHandlerBase {
         // SCTO-545
         dataSetName = normalize(dataSetName);
 
-        Cursor c = null;
-        try {
-            ExternalSQLiteOpenHelper sqLiteOpenHelper = getExternalDataManager().getDatabase(dataSetName, true);
+        ExternalSQLiteOpenHelper sqLiteOpenHelper = getExternalDataManager().getDatabase(dataSetName, true);
 
-            SQLiteDatabase db = sqLiteOpenHelper.getReadableDatabase();
-            LinkedHashMap<String, String> selectColumnMap = ExternalDataUtil.createMapWithDisplayingColumns(getValueColumn(), getDisplayColumns());
+        SQLiteDatabase db = sqLiteOpenHelper.getReadableDatabase();
+        LinkedHashMap<String, String> selectColumnMap = ExternalDataUtil.createMapWithDisplayingColumns(getValueColumn(), getDisplayColumns());
 
-            List<String> columnsToFetch = new ArrayList<>(selectColumnMap.keySet());
-            String safeImageColumn = null;
-            if (getImageColumn() != null && getImageColumn().trim().length() > 0) {
-                safeImageColumn = ExternalDataUtil.toSafeColumnName(getImageColumn());
-                columnsToFetch.add(safeImageColumn);
-            }
+        List<String> columnsToFetch = new ArrayList<>(selectColumnMap.keySet());
+        String safeImageColumn = null;
+        if (getImageColumn() != null && getImageColumn().trim().length() > 0) {
+            safeImageColumn = ExternalDataUtil.toSafeColumnName(getImageColumn());
+            columnsToFetch.add(safeImageColumn);
+        }
 
-            String[] sqlColumns = columnsToFetch.toArray(new String[columnsToFetch.size()]);
-
-            String selection;
-            String[] selectionArgs;
-
-            if (searchRows && useFilter) {
-                selection = "( " + createLikeExpression(queriedColumns) + " ) AND " + ExternalDataUtil.toSafeColumnName(filterColumn) + "=? ";
-                String[] likeArgs = externalDataSearchType.constructLikeArguments(queriedValue, queriedColumns.size());
-                selectionArgs = new String[likeArgs.length + 1];
-                System.arraycopy(likeArgs, 0, selectionArgs, 0, likeArgs.length);
-                selectionArgs[selectionArgs.length - 1] = filterValue;
-            } else if (searchRows) {
-                selection = createLikeExpression(queriedColumns);
-                selectionArgs = externalDataSearchType.constructLikeArguments(queriedValue, queriedColumns.size());
-            } else if (useFilter) {
-                selection = ExternalDataUtil.toSafeColumnName(filterColumn) + "=? ";
-                selectionArgs = new String[]{filterValue};
-            } else {
-                selection = null;
-                selectionArgs = null;
+        String[] sqlColumns = columnsToFetch.toArray(new String[columnsToFetch.size()]);
+
+        String selection;
+        String[] selectionArgs;
+
+        String searchExpression = null;
+        String[] searchArgs = null;
+        if (searchRows) {
+            searchExpression = createLikeExpression(queriedColumns);
+            searchArgs = externalDataSearchType.constructLikeArguments(queriedValue, queriedColumns.size());
+
+            // let the search index narrow down the rows that LIKE has to look at
+            String matchQuery = ExternalDataSearchIndex.createMatchQuery(queriedValue);
+            if (matchQuery != null && ExternalDataSearchIndex.getIndexedColumns(db).containsAll(queriedColumns)) {
+                searchExpression = "( " + createMatchExpression(queriedColumns) + " ) AND ( " + searchExpression + " )";
+                String[] likeArgs = searchArgs;
+                searchArgs = new String[queriedColumns.size() + likeArgs.length];
+                Arrays.fill(searchArgs, 0, queriedColumns.size(), matchQuery);
+                System.arraycopy(likeArgs, 0, searchArgs, queriedColumns.size(), likeArgs.length);
             }
+        }
 
-            try {
-                c = db.query(ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME, sqlColumns, selection, selectionArgs, null, null, ExternalDataUtil.SORT_COLUMN_NAME);
-            } catch (Exception e) {
-                if (c != null) {
-                    c.close();
-                }
-                c = db.query(ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME, sqlColumns, selection, selectionArgs, null, null, null);
-            }
+        if (searchRows && useFilter) {
+            selection = "( " + searchExpression + " ) AND " + ExternalDataUtil.toSafeColumnName(filterColumn) + "=? ";
+            selectionArgs = new String[searchArgs.length + 1];
+            System.arraycopy(searchArgs, 0, selectionArgs, 0, searchArgs.length);
+            selectionArgs[selectionArgs.length - 1] = filterValue;
+        } else if (searchRows) {
+            selection = searchExpression;
+            selectionArgs = searchArgs;
+        } else if (useFilter) {
+            selection = ExternalDataUtil.toSafeColumnName(filterColumn) + "=? ";
+            selectionArgs = new String[]{filterValue};
+        } else {
+            selection = null;
+            selectionArgs = null;
+        }
 
-            return createDynamicSelectChoices(c, selectColumnMap, safeImageColumn);
-        } finally {
-            if (c != null) {
-                c.close();
-            }
+        PagedSelectChoiceList choices = new PagedSelectChoiceList(this, dataSetName, sqlColumns,
+                selection, selectionArgs, selectColumnMap, safeImageColumn);
+        if (!choices.isEmpty()) {
+            // read the first page now, so that a bad query fails here rather than in a widget
+            choices.get(0);
         }
+        return choices;
     }
 
-    protected ArrayList<SelectChoice> createDynamicSelectChoices(Cursor c, LinkedHashMap<String, String> selectColumnMap, String safeImageColumn) {
-        List<String> columnsToExcludeFromLabels = new ArrayList<>();
-        if (safeImageColumn != null) {
-            columnsToExcludeFromLabels.add(safeImageColumn);
+    /**
+     * Creates the choice for the cursor's current row.
+     *
+     * @param index the position of the choice in the list
+     */
+    protected ExternalSelectChoice createDynamicSelectChoice(Cursor c, int index, LinkedHashMap<String, String> selectColumnMap,
+                                                             String safeImageColumn, List<String> columnsToExcludeFromLabels) {
+        // the value is always the first column
+        String value = c.getString(0);
+        String label = buildLabel(c, selectColumnMap, columnsToExcludeFromLabels);
+
+        ExternalSelectChoice selectChoice;
+        if (label.trim().length() == 0) {
+            selectChoice = new ExternalSelectChoice(value, value, false);
+        } else {
+            selectChoice = new ExternalSelectChoice(label, value, false);
         }
+        selectChoice.setIndex(index);
 
-        ArrayList<SelectChoice> selectChoices = new ArrayList<>();
-        if (c.getCount() > 0) {
-            c.moveToPosition(-1);
-            int index = 0;
-            Set<String> uniqueValues = new HashSet<>();
-            while (c.moveToNext()) {
-
-                // the value is always the first column
-                String value = c.getString(0);
-                if (!uniqueValues.contains(value)) {
-                    String label = buildLabel(c, selectColumnMap, columnsToExcludeFromLabels);
-
-                    ExternalSelectChoice selectChoice;
-                    if (label.trim().length() == 0) {
-                        selectChoice = new ExternalSelectChoice(value, value, false);
-                    } else {
-                        selectChoice = new ExternalSelectChoice(label, value, false);
-                    }
-                    selectChoice.setIndex(index);
-
-                    if (safeImageColumn != null && safeImageColumn.trim().length() > 0) {
-                        String image = c.getString(c.getColumnIndex(safeImageColumn));
-                        if (image != null && image.trim().length() > 0) {
-                            selectChoice.setImage(ExternalDataUtil.JR_IMAGES_PREFIX + image);
-                        }
-                    }
-
-                    selectChoices.add(selectChoice);
-
-                    index++;
-
-                    uniqueValues.add(value);
-                }
+        if (safeImageColumn != null && safeImageColumn.trim().length() > 0) {
+            String image = c.getString(c.getColumnIndex(safeImageColumn));
+            if (image != null && image.trim().length() > 0) {
+                selectChoice.setImage(ExternalDataUtil.JR_IMAGES_PREFIX + image);
             }
         }
-        return selectChoices;
+        return selectChoice;
     }
 
     protected String createLikeExpression(List<String> queriedColumns) {
@@ -234,6 +224,22 @@ public class ExternalDataHandlerSearch extends ExternalDataHandlerBase {
         return sb.toString();
     }
 
+    /**
+     * @return an expression that is true for the rows whose queried columns the search index
+     * matches; it takes the match query once per column
+     */
+    protected String createMatchExpression(List<String> queriedColumns) {
+        StringBuilder sb = new StringBuilder();
+        for (String queriedColumn : queriedColumns) {
+            if (sb.length() > 0) {
+                sb.append(" OR ");
+            }
+            sb.append("rowid IN (SELECT docid FROM ").append(ExternalDataSearchIndex.TABLE_NAME)
+                    .append(" WHERE ").append(queriedColumn).append(" MATCH ?) ");
+        }
+        return sb.toString();
+    }
+
     /**
      * So here are examples of labels with one, two, and three columns:
      * <p/>
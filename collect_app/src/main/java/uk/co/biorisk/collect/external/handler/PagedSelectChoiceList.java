@@ -0,0 +1,181 @@
+package uk.co.biorisk.collect.external.handler;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.util.Log;
+
+import org.javarosa.core.model.SelectChoice;
+
+import uk.co.biorisk.collect.external.ExternalDataManager;
+import uk.co.biorisk.collect.external.ExternalDataUtil;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * The choices returned by search(), read from the data set a page at a time as they are asked
+ * for.
+ * <p>
+ * Rows with the same value are collapsed into one choice by the query (GROUP BY the value
+ * column), keeping the first row in sort order, so a choice's position in the list can be turned
+ * into a LIMIT/OFFSET without reading the rows before it. Only the most recently used pages are
+ * kept in memory; the others are read again when they are needed.
+ * <p>
+ * Widgets that only show some of the choices at a time (through an adapter) should use
+ * {@link #indexOfValue(String)} rather than looking through the list for the selected value.
+ */
+public class PagedSelectChoiceList extends AbstractList<SelectChoice> implements RandomAccess {
+
+    public static final int PAGE_SIZE = 100;
+    private static final int MAX_PAGES = 5;
+
+    // the position of the group's first row, used to order the choices; never shown in a label
+    private static final String FIRST_ROW_COLUMN = "x_first";
+
+    private final ExternalDataHandlerSearch handler;
+    private final ExternalDataManager externalDataManager;
+    private final String dataSetName;
+    private final String[] columns;
+    private final String selection;
+    private final String[] selectionArgs;
+    private final LinkedHashMap<String, String> selectColumnMap;
+    private final String safeImageColumn;
+    private final String groupBy;
+
+    private String orderColumn = ExternalDataUtil.SORT_COLUMN_NAME;
+    private int size = -1;
+
+    private final LinkedHashMap<Integer, List<SelectChoice>> pages =
+            new LinkedHashMap<Integer, List<SelectChoice>>(MAX_PAGES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, List<SelectChoice>> eldest) {
+                    return size() > MAX_PAGES;
+                }
+            };
+
+    PagedSelectChoiceList(ExternalDataHandlerSearch handler, String dataSetName, String[] columns,
+                          String selection, String[] selectionArgs,
+                          LinkedHashMap<String, String> selectColumnMap, String safeImageColumn) {
+        this.handler = handler;
+        this.externalDataManager = handler.getExternalDataManager();
+        this.dataSetName = dataSetName;
+        this.columns = columns;
+        this.selection = selection;
+        this.selectionArgs = selectionArgs;
+        this.selectColumnMap = selectColumnMap;
+        this.safeImageColumn = safeImageColumn;
+        // the data columns are "collate nocase", but values that only differ in case are
+        // different choices
+        this.groupBy = columns[0] + " COLLATE BINARY";
+    }
+
+    @Override
+    public synchronized int size() {
+        if (size == -1) {
+            StringBuilder sql = new StringBuilder();
+            sql.append("SELECT COUNT(*) FROM (SELECT 1 FROM ").append(ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME);
+            if (selection != null) {
+                sql.append(" WHERE ").append(selection);
+            }
+            sql.append(" GROUP BY ").append(groupBy).append(")");
+
+            Cursor c = getDatabase().rawQuery(sql.toString(), selectionArgs);
+            try {
+                size = c.moveToFirst() ? c.getInt(0) : 0;
+            } finally {
+                c.close();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public synchronized SelectChoice get(int location) {
+        if (location < 0 || location >= size()) {
+            throw new IndexOutOfBoundsException("Invalid index " + location + ", size is " + size());
+        }
+        int pageNumber = location / PAGE_SIZE;
+        List<SelectChoice> page = pages.get(pageNumber);
+        if (page == null) {
+            page = readPage(pageNumber);
+            pages.put(pageNumber, page);
+        }
+        return page.get(location % PAGE_SIZE);
+    }
+
+    /**
+     * @return the position of the choice with the value, or -1 if there is none; only the values
+     * are read, so no choices are created for the rows before it
+     */
+    public synchronized int indexOfValue(String value) {
+        if (value == null) {
+            return -1;
+        }
+        Cursor c = query(new String[]{columns[0]}, null);
+        try {
+            while (c.moveToNext()) {
+                if (value.equals(c.getString(0))) {
+                    return c.getPosition();
+                }
+            }
+            return -1;
+        } finally {
+            c.close();
+        }
+    }
+
+    private List<SelectChoice> readPage(int pageNumber) {
+        List<String> columnsToExcludeFromLabels = new ArrayList<>();
+        if (safeImageColumn != null) {
+            columnsToExcludeFromLabels.add(safeImageColumn);
+        }
+        columnsToExcludeFromLabels.add(FIRST_ROW_COLUMN);
+
+        Cursor c = query(columns, (pageNumber * PAGE_SIZE) + "," + PAGE_SIZE);
+        try {
+            List<SelectChoice> page = new ArrayList<>(c.getCount());
+            while (c.moveToNext()) {
+                page.add(handler.createDynamicSelectChoice(c, pageNumber * PAGE_SIZE + page.size(),
+                        selectColumnMap, safeImageColumn, columnsToExcludeFromLabels));
+            }
+            return page;
+        } finally {
+            c.close();
+        }
+    }
+
+    private Cursor query(String[] columns, String limit) {
+        SQLiteDatabase db = getDatabase();
+        try {
+            return db.query(ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME, withFirstRowColumn(columns),
+                    selection, selectionArgs, groupBy, null, FIRST_ROW_COLUMN, limit);
+        } catch (SQLiteException e) {
+            if (orderColumn.equals("rowid")) {
+                throw e;
+            }
+            // the choices used to fall back to the table's order when they could not be sorted
+            Log.w(ExternalDataUtil.LOGGER_NAME, "Could not sort the choices of " + dataSetName + ": " + e.getMessage());
+            orderColumn = "rowid";
+            return db.query(ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME, withFirstRowColumn(columns),
+                    selection, selectionArgs, groupBy, null, FIRST_ROW_COLUMN, limit);
+        }
+    }
+
+    private String[] withFirstRowColumn(String[] columns) {
+        String[] queryColumns = new String[columns.length + 1];
+        System.arraycopy(columns, 0, queryColumns, 0, columns.length);
+        // with a single min(), SQLite takes the other columns from the row with the minimum
+        queryColumns[columns.length] = "MIN(" + orderColumn + ") AS " + FIRST_ROW_COLUMN;
+        return queryColumns;
+    }
+
+    private SQLiteDatabase getDatabase() {
+        // the manager may have closed the database since the last page was read
+        return externalDataManager.getDatabase(dataSetName, true).getReadableDatabase();
+    }
+}
@@ -0,0 +1,15 @@
+package uk.co.biorisk.collect.listeners;
+
+import java.io.File;
+
+/**
+ * Notified as each file of a submission is encrypted.
+ */
+public interface EncryptionProgressListener {
+    /**
+     * @param file       the plaintext file that was just encrypted
+     * @param filesDone  how many files have been encrypted so far, including this one
+     * @param filesTotal how many files the submission has in total
+     */
+    void onFileEncrypted(File file, int filesDone, int filesTotal);
+}
@@ -0,0 +1,11 @@
+package uk.co.biorisk.collect.listeners;
+
+/**
+ * Told, on the UI thread, how the loading of an itemset table is getting on.
+ */
+public interface ItemsetLoadListener {
+
+    void itemsetLoadProgress(int rows);
+
+    void itemsetLoaded();
+}
@@ -21,11 +21,13 @@ import org.javarosa.core.model.data.IAnswerData;
 import org.javarosa.core.model.data.StringData;
 import org.javarosa.core.model.instance.FormInstance;
 import org.javarosa.core.model.instance.TreeElement;
+import org.javarosa.core.model.instance.TreeReference;
 import org.javarosa.core.services.IPropertyManager;
 import org.javarosa.core.services.PrototypeManager;
 import org.javarosa.core.services.transport.payload.ByteArrayPayload;
 import org.javarosa.form.api.FormEntryCaption;
 import org.javarosa.form.api.FormEntryController;
+import org.javarosa.form.api.FormEntryModel;
 import org.javarosa.form.api.FormEntryPrompt;
 import org.javarosa.model.xform.XFormSerializingVisitor;
 import org.javarosa.model.xform.XFormsModule;
@@ -39,9 +41,11 @@ import uk.co.biorisk.collect.views.ODKView;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * This class is a wrapper for Javarosa's FormEntryController. In theory, if you wanted to replace
@@ -99,6 +103,11 @@ public class FormController {
     private File mInstancePath;
     private FormEntryController mFormEntryController;
     private FormIndex mIndexWaitingForData = null;
+    // every index of the form by its xpath, built the first time one is looked up and kept up to
+    // date as repeats are added and deleted
+    private Map<String, FormIndex> mXPathIndex = null;
+    // the structure shown by the hierarchy, kept for as long as the form is open
+    private FormHierarchy mHierarchy = null;
 
     public FormController(File mediaFolder, FormEntryController fec, File instancePath) {
         mMediaFolder = mediaFolder;
@@ -163,8 +172,12 @@ public class FormController {
      * @return xpath value for this index
      */
     public String getXPath(FormIndex index) {
+        return getXPath(index, getEvent());
+    }
+
+    private static String getXPath(FormIndex index, int event) {
         String value;
-        switch (getEvent()) {
+        switch (event) {
             case FormEntryController.EVENT_BEGINNING_OF_FORM:
                 value = "beginningOfForm";
                 break;
@@ -202,6 +215,16 @@ public class FormController {
             Log.e(t, "Unexpected string from XPath");
             throw new IllegalArgumentException("unexpected string from XPath");
         } else {
+            if (mXPathIndex == null) {
+                buildXPathIndex();
+            }
+            FormIndex indexed = mXPathIndex.get(xPath);
+            if (indexed != null && xPath.equals(getXPath(indexed, getEvent(indexed)))) {
+                // stepping through the form skips what isn't relevant
+                return mFormEntryController.getModel().isIndexRelevant(indexed) ? indexed : null;
+            }
+
+            // e.g. repeats created for a jr:count; fall back to looking for it
             FormIndex returned = null;
             FormIndex saved = getFormIndex();
             // the only way I know how to do this is to step through the entire form
@@ -221,10 +244,77 @@ public class FormController {
             } finally {
                 jumpToIndex(saved);
             }
+            if (returned != null) {
+                mXPathIndex.put(xPath, returned);
+            }
             return returned;
         }
     }
 
+    private void buildXPathIndex() {
+        FormEntryModel model = mFormEntryController.getModel();
+        mXPathIndex = new HashMap<>();
+        FormIndex index = model.incrementIndex(FormIndex.createBeginningOfFormIndex(), true);
+        while (index.isInForm()) {
+            mXPathIndex.put(getXPath(index, model.getEvent(index)), index);
+            index = model.incrementIndex(index, true);
+        }
+        Log.i(t, "Indexed " + mXPathIndex.size() + " xpaths");
+    }
+
+    /**
+     * Updates the xpath index after an instance of a repeat has been added or deleted, which
+     * changes the indexes of that instance and the ones after it but nothing else.
+     *
+     * @param repeatRef the reference of the instance that was added or deleted
+     * @param from      the index to start looking for the instances from
+     */
+    private void reindexRepeat(TreeReference repeatRef, FormIndex from) {
+        if (mXPathIndex == null) {
+            return;
+        }
+        if (repeatRef == null) {
+            // don't know what moved, so start over the next time
+            mXPathIndex = null;
+            return;
+        }
+        Iterator<FormIndex> indexes = mXPathIndex.values().iterator();
+        while (indexes.hasNext()) {
+            if (isInInstanceFrom(indexes.next().getReference(), repeatRef)) {
+                indexes.remove();
+            }
+        }
+
+        FormEntryModel model = mFormEntryController.getModel();
+        FormIndex index = from;
+        if (!index.isInForm() || !isInInstanceFrom(index.getReference(), repeatRef)) {
+            index = model.incrementIndex(index, true);
+        }
+        while (index.isInForm() && isInInstanceFrom(index.getReference(), repeatRef)) {
+            mXPathIndex.put(getXPath(index, model.getEvent(index)), index);
+            index = model.incrementIndex(index, true);
+        }
+    }
+
+    /**
+     * @return whether the reference is within the repeat instance of repeatRef, or a later
+     * instance of the same repeat
+     */
+    private static boolean isInInstanceFrom(TreeReference ref, TreeReference repeatRef) {
+        int level = repeatRef.size() - 1;
+        if (ref == null || ref.size() <= level) {
+            return false;
+        }
+        for (int i = 0; i < level; i++) {
+            if (!ref.getName(i).equals(repeatRef.getName(i))
+                    || ref.getMultiplicity(i) != repeatRef.getMultiplicity(i)) {
+                return false;
+            }
+        }
+        return ref.getName(level).equals(repeatRef.getName(level))
+                && ref.getMultiplicity(level) >= repeatRef.getMultiplicity(level);
+    }
+
     /**
      * returns the event for the current FormIndex.
      *
@@ -778,12 +868,47 @@ public class FormController {
         return mFormEntryController.jumpToIndex(index);
     }
 
+    /**
+     * @return the next index in the form, stepping into groups and repeats, without moving to it
+     */
+    public FormIndex incrementIndex(FormIndex index) {
+        return mFormEntryController.getModel().incrementIndex(index, true);
+    }
+
+    public boolean isIndexRelevant(FormIndex index) {
+        return mFormEntryController.getModel().isIndexRelevant(index);
+    }
+
+    /**
+     * @return the hierarchy built by {@link #buildHierarchy()}, or null if it has to be built
+     * (again)
+     */
+    public FormHierarchy getCachedHierarchy() {
+        if (mHierarchy != null && mHierarchy.isStale(this)) {
+            mHierarchy = null;
+        }
+        return mHierarchy;
+    }
+
+    /**
+     * Lists the questions and repeat instances of the form for the hierarchy. This steps through
+     * the whole form, so should not be called on the UI thread.
+     */
+    public FormHierarchy buildHierarchy() {
+        mHierarchy = FormHierarchy.build(this);
+        return mHierarchy;
+    }
+
     /**
      * Creates a new repeated instance of the group referenced by the current FormIndex.
      *
      */
     public void newRepeat() {
+        FormIndex promptIndex = getFormIndex();
         mFormEntryController.newRepeat();
+        mHierarchy = null;
+        // the new instance takes the place of the prompt
+        reindexRepeat(promptIndex.getReference(), promptIndex);
     }
 
     /**
@@ -792,8 +917,21 @@ public class FormController {
      * (2) > group2 (3) and you call deleteRepeat, it will delete the 3rd instance of group2.
      */
     public void deleteRepeat() {
+        TreeReference repeatRef = null;
+        FormEntryCaption[] hierarchy = getCaptionHierarchy();
+        for (int i = hierarchy.length - 1; i >= 0 && repeatRef == null; i--) {
+            if (hierarchy[i].getFormElement() instanceof GroupDef
+                    && ((GroupDef) hierarchy[i].getFormElement()).getRepeat()) {
+                repeatRef = hierarchy[i].getIndex().getReference();
+            }
+        }
+
         FormIndex fi = mFormEntryController.deleteRepeat();
         mFormEntryController.jumpToIndex(fi);
+        mHierarchy = null;
+
+        // the instances after the deleted one move down
+        reindexRepeat(repeatRef, fi);
     }
 
     /**
@@ -1177,7 +1315,7 @@ public class FormController {
         public final String instanceId;
         public final String instanceName;
 
-        InstanceMetadata(String instanceId, String instanceName) {
+        public InstanceMetadata(String instanceId, String instanceName) {
             this.instanceId = instanceId;
             this.instanceName = instanceName;
         }
@@ -0,0 +1,197 @@
+package uk.co.biorisk.collect.logic;
+
+import android.util.Log;
+
+import org.javarosa.core.model.FormIndex;
+import org.javarosa.core.model.GroupDef;
+import org.javarosa.core.model.IFormElement;
+import org.javarosa.core.model.data.IAnswerData;
+import org.javarosa.core.model.instance.TreeElement;
+import org.javarosa.core.model.instance.TreeReference;
+import org.javarosa.form.api.FormEntryController;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The questions and repeat instances of a form, by the repeat instance they are in, so that the
+ * hierarchy can be shown without stepping through the whole form every time.
+ * <p>
+ * Only the structure is kept. Relevance, labels and answers change as the form is filled in, so
+ * they are read when a level of the hierarchy is shown, and only for that level. The structure only
+ * changes when repeats are added or deleted, which {@link FormController} takes care of, or when
+ * the answer a jr:count refers to or the relevance of its repeat changes, which {@link #isStale}
+ * checks.
+ */
+public class FormHierarchy {
+
+    private static final String t = "FormHierarchy";
+
+    /**
+     * The level of the questions and repeats that aren't in a repeat.
+     */
+    public static final String ROOT = "";
+
+    // repeat instance reference -> what is directly in it, in form order
+    private final Map<String, List<Node>> mLevels = new HashMap<>();
+    // jr:count reference -> the answer it had, and whether its repeat was relevant, when the repeat
+    // instances were listed
+    private final Map<String, RepeatCount> mRepeatCounts = new HashMap<>();
+
+    private FormHierarchy() {
+    }
+
+    /**
+     * @param level {@link #ROOT} or the reference of a repeat instance, as given by
+     *              {@code TreeReference.toString(true)}
+     * @return the questions and repeat instances directly in that level, whether relevant or not
+     */
+    public List<Node> getLevel(String level) {
+        List<Node> nodes = mLevels.get(level);
+        return nodes == null ? Collections.<Node>emptyList() : nodes;
+    }
+
+    /**
+     * @return whether the answer a jr:count refers to, or the relevance of its repeat, has changed
+     * since the hierarchy was built, in which case there may be more or fewer repeat instances than
+     * it lists
+     */
+    boolean isStale(FormController formController) {
+        for (RepeatCount count : mRepeatCounts.values()) {
+            if (!equal(count.value, getValue(formController, count.reference))) {
+                return true;
+            }
+            // the instances of a repeat that isn't relevant aren't created until it is
+            if (count.prompt != null
+                    && formController.isIndexRelevant(count.prompt) != count.promptRelevant) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Steps through the whole form, so should not be called on the UI thread. The form is left at
+     * the index it was at.
+     */
+    static FormHierarchy build(FormController formController) {
+        long start = System.currentTimeMillis();
+        FormHierarchy hierarchy = new FormHierarchy();
+        FormIndex saved = formController.getFormIndex();
+        try {
+            // the repeat instances the index is in, innermost last
+            List<String> repeats = new ArrayList<>();
+            FormIndex index = formController.incrementIndex(FormIndex.createBeginningOfFormIndex());
+            while (index.isInForm()) {
+                int event = formController.getEvent(index);
+                boolean relevant = true;
+                if (event == FormEntryController.EVENT_PROMPT_NEW_REPEAT) {
+                    relevant = formController.isIndexRelevant(index);
+                    if (relevant) {
+                        // jumping there creates the instances a jr:count asks for, as stepping does
+                        formController.jumpToIndex(index);
+                        event = formController.getEvent(index);
+                    }
+                }
+                if (event == FormEntryController.EVENT_PROMPT_NEW_REPEAT
+                        || event == FormEntryController.EVENT_REPEAT) {
+                    RepeatCount count = hierarchy.addRepeatCount(formController, index);
+                    if (count != null && event == FormEntryController.EVENT_PROMPT_NEW_REPEAT) {
+                        count.prompt = index;
+                        count.promptRelevant = relevant;
+                    }
+                }
+
+                String ref = index.getReference().toString(true);
+                while (!repeats.isEmpty() && !ref.startsWith(repeats.get(repeats.size() - 1) + "/")) {
+                    repeats.remove(repeats.size() - 1);
+                }
+                String level = repeats.isEmpty() ? ROOT : repeats.get(repeats.size() - 1);
+
+                if (event == FormEntryController.EVENT_QUESTION) {
+                    hierarchy.add(level, new Node(index, event));
+                } else if (event == FormEntryController.EVENT_REPEAT) {
+                    hierarchy.add(level, new Node(index, event));
+                    repeats.add(ref);
+                }
+                index = formController.incrementIndex(index);
+            }
+        } finally {
+            formController.jumpToIndex(saved);
+        }
+        Log.i(t, "Built the hierarchy of " + hierarchy.mLevels.size() + " levels in "
+                + (System.currentTimeMillis() - start) + "ms");
+        return hierarchy;
+    }
+
+    private void add(String level, Node node) {
+        List<Node> nodes = mLevels.get(level);
+        if (nodes == null) {
+            nodes = new ArrayList<>();
+            mLevels.put(level, nodes);
+        }
+        nodes.add(node);
+    }
+
+    /**
+     * @return the jr:count of the repeat at the index, or null if it doesn't have one
+     */
+    private RepeatCount addRepeatCount(FormController formController, FormIndex index) {
+        IFormElement element = formController.getFormDef().getChild(index);
+        if (!(element instanceof GroupDef) || ((GroupDef) element).getCountReference() == null) {
+            return null;
+        }
+        TreeReference countRef =
+                ((GroupDef) element).getConextualizedCountReference(index.getReference());
+        String key = countRef.toString(true);
+        RepeatCount count = mRepeatCounts.get(key);
+        if (count == null) {
+            count = new RepeatCount(countRef, getValue(formController, countRef));
+            mRepeatCounts.put(key, count);
+        }
+        return count;
+    }
+
+    private static Object getValue(FormController formController, TreeReference ref) {
+        TreeElement element = formController.getFormDef().getMainInstance().resolveReference(ref);
+        if (element == null) {
+            return null;
+        }
+        IAnswerData value = element.getValue();
+        return value == null ? null : value.getValue();
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * A question or a repeat instance.
+     */
+    public static final class Node {
+        public final FormIndex index;
+        // FormEntryController.EVENT_QUESTION or EVENT_REPEAT
+        public final int event;
+
+        Node(FormIndex index, int event) {
+            this.index = index;
+            this.event = event;
+        }
+    }
+
+    private static final class RepeatCount {
+        final TreeReference reference;
+        final Object value;
+        // the prompt to add another instance, which is where the instances are created
+        FormIndex prompt;
+        boolean promptRelevant;
+
+        RepeatCount(TreeReference reference, Object value) {
+            this.reference = reference;
+            this.value = value;
+        }
+    }
+}
@@ -74,6 +74,10 @@ public class PreferencesActivity extends PreferenceActivity implements OnPrefere
     public static final String CONSTRAINT_BEHAVIOR_DEFAULT = "on_swipe";
     public static final String KEY_COMPLETED_DEFAULT = "default_completed";
     public static final String KEY_HIGH_RESOLUTION = "high_resolution";
+    public static final String KEY_WATCH_FORMS_FOLDER = "watch_forms_folder";
+    public static final String KEY_PRELOAD_EXTERNAL_DATA = "preload_external_data";
+    public static final String KEY_CONCURRENT_UPLOADS = "concurrent_uploads";
+    public static final String KEY_IMAGE_MAX_PIXELS = "image_max_pixels";
     public static final String KEY_AUTOSEND_WIFI = "autosend_wifi";
     public static final String KEY_AUTOSEND_NETWORK = "autosend_network";
     public static final String KEY_NAVIGATION = "navigation";
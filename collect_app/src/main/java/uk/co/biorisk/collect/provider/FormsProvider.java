@@ -15,8 +15,11 @@
 package uk.co.biorisk.collect.provider;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.SQLException;
@@ -28,6 +31,7 @@ import android.util.Log;
 
 import java.io.File;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Locale;
@@ -35,9 +39,10 @@ import java.util.Locale;
 import uk.co.biorisk.collect.R;
 import uk.co.biorisk.collect.application.Collect;
 import uk.co.biorisk.collect.database.ItemsetDbAdapter;
+import uk.co.biorisk.collect.database.ItemsetQueryEngine;
 import uk.co.biorisk.collect.database.ODKSQLiteOpenHelper;
 import uk.co.biorisk.collect.provider.FormsProviderAPI.FormsColumns;
-import uk.co.biorisk.collect.utilities.FileUtils;
+import uk.co.biorisk.collect.utilities.FormDefCache;
 import uk.co.biorisk.collect.utilities.MediaUtils;
 
 /**
@@ -207,12 +212,11 @@ public class FormsProvider extends ContentProvider {
         if (values.containsKey(FormsColumns.MD5_HASH)) {
             values.remove(FormsColumns.MD5_HASH);
         }
-        String md5 = FileUtils.getMd5Hash(form);
+        String md5 = FormDefCache.getFormHash(form);
         values.put(FormsColumns.MD5_HASH, md5);
 
         if (values.containsKey(FormsColumns.JRCACHE_FILE_PATH) == false) {
-            String cachePath = Collect.CACHE_PATH + File.separator + md5
-                    + ".formdef";
+            String cachePath = FormDefCache.getCacheFile(md5).getAbsolutePath();
             values.put(FormsColumns.JRCACHE_FILE_PATH, cachePath);
         }
         if (values.containsKey(FormsColumns.FORM_MEDIA_PATH) == false) {
@@ -350,11 +354,14 @@ public class FormsProvider extends ContentProvider {
 
                             try {
                                 // get rid of the old tables
+                                String itemsetsPath = c.getString(c
+                                        .getColumnIndex(FormsColumns.FORM_MEDIA_PATH))
+                                        + "/itemsets.csv";
+                                ItemsetQueryEngine.getInstance().invalidate(
+                                        ItemsetDbAdapter.getMd5FromString(itemsetsPath));
                                 ItemsetDbAdapter ida = new ItemsetDbAdapter();
                                 ida.open();
-                                ida.delete(c.getString(c
-                                        .getColumnIndex(FormsColumns.FORM_MEDIA_PATH))
-                                        + "/itemsets.csv");
+                                ida.delete(itemsetsPath);
                                 ida.close();
                             } catch (Exception e) {
                                 // if something else is accessing the provider this may not exist
@@ -404,7 +411,7 @@ public class FormsProvider extends ContentProvider {
                     String formFile = values
                             .getAsString(FormsColumns.FORM_FILE_PATH);
                     values.put(FormsColumns.MD5_HASH,
-                            FileUtils.getMd5Hash(new File(formFile)));
+                            FormDefCache.getFormHash(new File(formFile)));
                 }
 
                 Cursor c = null;
@@ -503,12 +510,11 @@ public class FormsProvider extends ContentProvider {
                             deleteFileOrDir(update
                                     .getString(update
                                             .getColumnIndex(FormsColumns.JRCACHE_FILE_PATH)));
-                            String newMd5 = FileUtils
-                                    .getMd5Hash(new File(formFile));
+                            String newMd5 = FormDefCache
+                                    .getFormHash(new File(formFile));
                             values.put(FormsColumns.MD5_HASH, newMd5);
                             values.put(FormsColumns.JRCACHE_FILE_PATH,
-                                    Collect.CACHE_PATH + File.separator + newMd5
-                                            + ".formdef");
+                                    FormDefCache.getCacheFile(newMd5).getAbsolutePath());
                         }
 
                         // Make sure that the necessary fields are all set
@@ -546,6 +552,24 @@ public class FormsProvider extends ContentProvider {
         return count;
     }
 
+    /**
+     * Applies the operations inside a single transaction, so a batch of inserts or updates from a
+     * disk sync is committed once, and either all of them are applied or none are.
+     */
+    @Override
+    public synchronized ContentProviderResult[] applyBatch(
+            ArrayList<ContentProviderOperation> operations) throws OperationApplicationException {
+        SQLiteDatabase db = getDbHelper().getWritableDatabase();
+        db.beginTransaction();
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            return results;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
     /**
      * This class helps open, create, and upgrade the database file.
      */
@@ -45,7 +45,7 @@ public class InstanceProvider extends ContentProvider {
     private static final String t = "InstancesProvider";
 
     private static final String DATABASE_NAME = "instances.db";
-    private static final int DATABASE_VERSION = 3;
+    private static final int DATABASE_VERSION = 4;
     private static final String INSTANCES_TABLE_NAME = "instances";
     private static final int INSTANCES = 1;
     private static final int INSTANCE_ID = 2;
@@ -68,6 +68,7 @@ public class InstanceProvider extends ContentProvider {
         sInstancesProjectionMap.put(InstanceColumns.STATUS, InstanceColumns.STATUS);
         sInstancesProjectionMap.put(InstanceColumns.LAST_STATUS_CHANGE_DATE, InstanceColumns.LAST_STATUS_CHANGE_DATE);
         sInstancesProjectionMap.put(InstanceColumns.DISPLAY_SUBTEXT, InstanceColumns.DISPLAY_SUBTEXT);
+        sInstancesProjectionMap.put(InstanceColumns.ACKNOWLEDGED_ATTACHMENTS, InstanceColumns.ACKNOWLEDGED_ATTACHMENTS);
     }
 
     private DatabaseHelper mDbHelper;
@@ -377,7 +378,8 @@ public class InstanceProvider extends ContentProvider {
                     + InstanceColumns.JR_VERSION + " text, "
                     + InstanceColumns.STATUS + " text not null, "
                     + InstanceColumns.LAST_STATUS_CHANGE_DATE + " date not null, "
-                    + InstanceColumns.DISPLAY_SUBTEXT + " text not null );");
+                    + InstanceColumns.DISPLAY_SUBTEXT + " text not null, "
+                    + InstanceColumns.ACKNOWLEDGED_ATTACHMENTS + " text );");
         }
 
 
@@ -396,6 +398,11 @@ public class InstanceProvider extends ContentProvider {
             if (oldVersion == 2) {
                 db.execSQL("ALTER TABLE " + INSTANCES_TABLE_NAME + " ADD COLUMN " +
                         InstanceColumns.JR_VERSION + " text;");
+                oldVersion = 3;
+            }
+            if (oldVersion == 3) {
+                db.execSQL("ALTER TABLE " + INSTANCES_TABLE_NAME + " ADD COLUMN " +
+                        InstanceColumns.ACKNOWLEDGED_ATTACHMENTS + " text;");
             }
             Log.w(t, "Successfully upgraded database from version " + initialVersion + " to " + newVersion
                     + ", without destroying all the old data");
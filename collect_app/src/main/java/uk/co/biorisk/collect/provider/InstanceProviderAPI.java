@@ -53,6 +53,8 @@ public final class InstanceProviderAPI {
         public static final String CAN_EDIT_WHEN_COMPLETE = "canEditWhenComplete";
         public static final String LAST_STATUS_CHANGE_DATE = "date";
         public static final String DISPLAY_SUBTEXT = "displaySubtext";
+        // the attachments the server has acknowledged receiving, for resuming an upload
+        public static final String ACKNOWLEDGED_ATTACHMENTS = "acknowledgedAttachments";
 
         // This class cannot be instantiated
         private InstanceColumns() {
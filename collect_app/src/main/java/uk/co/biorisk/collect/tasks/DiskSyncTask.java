@@ -14,20 +14,35 @@
 
 package uk.co.biorisk.collect.tasks;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.RemoteException;
+import android.preference.PreferenceManager;
 import android.util.Log;
 import uk.co.biorisk.collect.R;
 import uk.co.biorisk.collect.application.Collect;
+import uk.co.biorisk.collect.database.FileFingerprintIndex;
 import uk.co.biorisk.collect.listeners.DiskSyncListener;
+import uk.co.biorisk.collect.preferences.PreferencesActivity;
+import uk.co.biorisk.collect.provider.FormsProviderAPI;
 import uk.co.biorisk.collect.provider.FormsProviderAPI.FormsColumns;
 import uk.co.biorisk.collect.utilities.FileUtils;
+import uk.co.biorisk.collect.utilities.FormsDirectoryObserver;
 
 import java.io.File;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Background task for adding to the forms content provider, any forms that have been added to the
@@ -38,6 +53,8 @@ import java.util.*;
 public class DiskSyncTask extends AsyncTask<Void, String, String> {
     private final static String t = "DiskSyncTask";
 
+    private static final int MAX_PARSE_THREADS = 4;
+
     private static int counter = 0;
 
     int instance;
@@ -58,139 +75,281 @@ public class DiskSyncTask extends AsyncTask<Void, String, String> {
 
             File formDir = new File(Collect.FORMS_PATH);
             if (formDir.exists() && formDir.isDirectory()) {
-                // Get all the files in the /odk/foms directory
-                List<File> xFormsToAdd = new LinkedList<>();
-
-                // Step 1: assemble the candidate form files
-                //         discard files beginning with "."
-                //         discard files not ending with ".xml" or ".xhtml"
-                {
-                    File[] formDefs = formDir.listFiles();
-                    for (File addMe : formDefs) {
-                        // Ignore invisible files that start with periods.
-                        if (!addMe.getName().startsWith(".")
-                                && (addMe.getName().endsWith(".xml") || addMe.getName().endsWith(".xhtml"))) {
-                            xFormsToAdd.add(addMe);
-                        } else {
-                            Log.i(t, "[" + instance + "] Ignoring: " + addMe.getAbsolutePath());
-                        }
-                    }
+                // In watch mode, only look at the files that changed since the last scan.
+                // A null set means we need to look at everything.
+                Set<String> changedPaths = null;
+                FormsDirectoryObserver observer = FormsDirectoryObserver.getInstance();
+                if (isWatchModeEnabled()) {
+                    observer.start();
+                    changedPaths = observer.takeChangedPaths();
+                } else {
+                    observer.stop();
                 }
 
-                // Step 2: quickly run through and figure out what files we need to
-                // parse and update; this is quick, as we only calculate the md5
-                // and see if it has changed.
-                List<UriFile> uriToUpdate = new ArrayList<>();
-                // open the cursor within a try-catch block so it can always be closed.
-                try (Cursor mCursor = Collect.getInstance().getContentResolver()
-                        .query(FormsColumns.CONTENT_URI, null, null, null, null)) {
-                    if (mCursor == null) {
-                        Log.e(t, "[" + instance + "] Forms Content Provider returned NULL");
-                        errors.append("Internal Error: Unable to access Forms content provider").append("\r\n");
-                        return errors.toString();
-                    }
+                try {
+                    syncForms(formDir, changedPaths, errors);
+                } catch (RuntimeException e) {
+                    // the changes we took have not been processed
+                    observer.requestFullScan();
+                    throw e;
+                }
+            }
+            if (errors.length() != 0) {
+                statusMessage = errors.toString();
+            } else {
+                statusMessage = Collect.getInstance().getString(R.string.finished_disk_scan);
+            }
+            return statusMessage;
+        } finally {
+            Log.i(t, "[" + instance + "] doInBackground ends!");
+        }
+    }
+
+    private static boolean isWatchModeEnabled() {
+        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(Collect.getInstance());
+        return settings.getBoolean(PreferencesActivity.KEY_WATCH_FORMS_FOLDER, false);
+    }
 
-                    mCursor.moveToPosition(-1);
-
-                    while (mCursor.moveToNext()) {
-                        // For each element in the provider, see if the file already exists
-                        String sqlFilename =
-                                mCursor.getString(mCursor.getColumnIndex(FormsColumns.FORM_FILE_PATH));
-                        String md5 = mCursor.getString(mCursor.getColumnIndex(FormsColumns.MD5_HASH));
-                        File sqlFile = new File(sqlFilename);
-                        if (sqlFile.exists()) {
-                            // remove it from the list of forms (we only want forms
-                            // we haven't added at the end)
-                            xFormsToAdd.remove(sqlFile);
-                            if (!FileUtils.getMd5Hash(sqlFile).contentEquals(md5)) {
-                                // Probably someone overwrite the file on the sdcard
-                                // So re-parse it and update it's information
-                                String id = mCursor.getString(mCursor.getColumnIndex(FormsColumns._ID));
-                                Uri updateUri = Uri.withAppendedPath(FormsColumns.CONTENT_URI, id);
-                                uriToUpdate.add(new UriFile(updateUri, sqlFile));
-                            }
-                        } else {
-                            Log.w(t, "[" + instance + "] file referenced by content provider does not exist " + sqlFile);
-                        }
+    /**
+     * @param changedPaths the absolute paths of the files to look at, or null to scan everything
+     */
+    private void syncForms(File formDir, Set<String> changedPaths, StringBuffer errors) {
+        // Get the candidate files in the /odk/forms directory, keyed by absolute path
+        Map<String, File> xFormsToAdd = new LinkedHashMap<>();
+
+        // Step 1: assemble the candidate form files
+        //         discard files beginning with "."
+        //         discard files not ending with ".xml" or ".xhtml"
+        {
+            File[] formDefs;
+            if (changedPaths == null) {
+                formDefs = formDir.listFiles();
+            } else {
+                Log.i(t, "[" + instance + "] " + changedPaths.size() + " files changed since last scan");
+                List<File> changedFiles = new ArrayList<>();
+                for (String changedPath : changedPaths) {
+                    File changedFile = new File(changedPath);
+                    if (changedFile.isFile()) {
+                        changedFiles.add(changedFile);
                     }
                 }
+                formDefs = changedFiles.toArray(new File[changedFiles.size()]);
+            }
+            for (File addMe : formDefs) {
+                // Ignore invisible files that start with periods.
+                if (!addMe.getName().startsWith(".")
+                        && (addMe.getName().endsWith(".xml") || addMe.getName().endsWith(".xhtml"))) {
+                    xFormsToAdd.put(addMe.getAbsolutePath(), addMe);
+                } else {
+                    Log.i(t, "[" + instance + "] Ignoring: " + addMe.getAbsolutePath());
+                }
+            }
+        }
 
-                // Step3: go through uriToUpdate to parse and update each in turn.
-                // This is slow because buildContentValues(...) is slow.
-                Collections.shuffle(uriToUpdate); // Big win if multiple DiskSyncTasks running
-                for (UriFile entry : uriToUpdate) {
-                    Uri updateUri = entry.uri;
-                    File formDefFile = entry.file;
-                    // Probably someone overwrite the file on the sdcard
-                    // So re-parse it and update it's information
-                    ContentValues values;
-
-                    try {
-                        values = buildContentValues(formDefFile);
-                    } catch (IllegalArgumentException e) {
-                        errors.append(e.getMessage()).append("\r\n");
-                        File badFile = new File(formDefFile.getParentFile(), formDefFile.getName() + ".bad");
-                        badFile.delete();
-                        formDefFile.renameTo(badFile);
-                        continue;
-                    }
+        // Step 2: quickly run through and figure out what files we need to
+        // parse and update; this is quick, as the md5 is only recalculated
+        // for files whose size or modification time have changed.
+        List<UriFile> uriToUpdate = new ArrayList<>();
+        FileFingerprintIndex fingerprints = FileFingerprintIndex.getInstance();
+        // open the cursor within a try-catch block so it can always be closed.
+        try (Cursor mCursor = Collect.getInstance().getContentResolver()
+                .query(FormsColumns.CONTENT_URI, null, null, null, null)) {
+            if (mCursor == null) {
+                Log.e(t, "[" + instance + "] Forms Content Provider returned NULL");
+                errors.append("Internal Error: Unable to access Forms content provider").append("\r\n");
+                return;
+            }
+
+            int pathIdx = mCursor.getColumnIndex(FormsColumns.FORM_FILE_PATH);
+            int md5Idx = mCursor.getColumnIndex(FormsColumns.MD5_HASH);
+            int idIdx = mCursor.getColumnIndex(FormsColumns._ID);
 
-                    // update in content provider
-                    int count =
-                            Collect.getInstance().getContentResolver()
-                                    .update(updateUri, values, null, null);
-                    Log.i(t, "[" + instance + "] " + count + " records successfully updated");
+            mCursor.moveToPosition(-1);
+
+            while (mCursor.moveToNext()) {
+                // For each element in the provider, see if the file already exists
+                String sqlFilename = mCursor.getString(pathIdx);
+                if (changedPaths != null && !changedPaths.contains(sqlFilename)) {
+                    // untouched since the last scan
+                    continue;
                 }
-                uriToUpdate.clear();
-
-                // Step 4: go through the newly-discovered files in xFormsToAdd and add them.
-                // This is slow because buildContentValues(...) is slow.
-                //
-                Collections.shuffle(xFormsToAdd); // Big win if multiple DiskSyncTasks running
-                while (!xFormsToAdd.isEmpty()) {
-                    File formDefFile = xFormsToAdd.remove(0);
-
-                    // Since parsing is so slow, if there are multiple tasks,
-                    // they may have already updated the database.
-                    // Skip this file if that is the case.
-                    if (isAlreadyDefined(formDefFile)) {
-                        Log.i(t, "[" + instance + "] skipping -- definition already recorded: " + formDefFile.getAbsolutePath());
-                        continue;
+                String md5 = mCursor.getString(md5Idx);
+                File sqlFile = new File(sqlFilename);
+                if (sqlFile.exists()) {
+                    // remove it from the list of forms (we only want forms
+                    // we haven't added at the end)
+                    xFormsToAdd.remove(sqlFile.getAbsolutePath());
+                    String currentMd5 = fingerprints.getMd5Hash(sqlFile);
+                    if (currentMd5 == null) {
+                        Log.w(t, "[" + instance + "] unable to read " + sqlFile);
+                    } else if (!currentMd5.equals(md5)) {
+                        // Probably someone overwrite the file on the sdcard
+                        // So re-parse it and update it's information
+                        String id = mCursor.getString(idIdx);
+                        Uri updateUri = Uri.withAppendedPath(FormsColumns.CONTENT_URI, id);
+                        uriToUpdate.add(new UriFile(updateUri, sqlFile));
                     }
+                } else {
+                    Log.w(t, "[" + instance + "] file referenced by content provider does not exist " + sqlFile);
+                    fingerprints.remove(sqlFile);
+                }
+            }
+        }
+
+        // Step3: go through uriToUpdate to parse and update them.
+        // Parsing only reads the head of each form, and runs on several threads at once.
+        Collections.shuffle(uriToUpdate); // Big win if multiple DiskSyncTasks running
+        List<File> filesToUpdate = new ArrayList<>();
+        for (UriFile entry : uriToUpdate) {
+            filesToUpdate.add(entry.file);
+        }
+        Map<File, ContentValues> updatedValues = parseForms(filesToUpdate, errors);
+        ArrayList<ContentProviderOperation> updates = new ArrayList<>();
+        List<File> updatedFiles = new ArrayList<>();
+        for (UriFile entry : uriToUpdate) {
+            ContentValues values = updatedValues.get(entry.file);
+            if (values != null) {
+                // Probably someone overwrite the file on the sdcard
+                // So update it's information
+                updates.add(ContentProviderOperation.newUpdate(entry.uri).withValues(values).build());
+                updatedFiles.add(entry.file);
+            }
+        }
+        uriToUpdate.clear();
+
+        // update in content provider
+        boolean[] applied = applyOperations(updates);
+        int count = 0;
+        for (int i = 0; i < applied.length; i++) {
+            if (applied[i]) {
+                File formDefFile = updatedFiles.get(i);
+                FormDefPrewarmer.getInstance().prewarm(formDefFile);
+                count++;
+            }
+        }
+        Log.i(t, "[" + instance + "] " + count + " records successfully updated");
+
+        // Step 4: go through the newly-discovered files in xFormsToAdd and add them.
+        //
+        List<File> newForms = new ArrayList<>();
+        for (File formDefFile : xFormsToAdd.values()) {
+            // If there are multiple tasks, they may have already updated the database.
+            // Skip this file if that is the case.
+            if (isAlreadyDefined(formDefFile)) {
+                Log.i(t, "[" + instance + "] skipping -- definition already recorded: " + formDefFile.getAbsolutePath());
+                continue;
+            }
+            newForms.add(formDefFile);
+        }
+        xFormsToAdd.clear();
+        Collections.shuffle(newForms); // Big win if multiple DiskSyncTasks running
+
+        // Parse them for the first time...
+        Map<File, ContentValues> newValues = parseForms(newForms, errors);
+        ArrayList<ContentProviderOperation> inserts = new ArrayList<>();
+        List<File> insertedFiles = new ArrayList<>();
+        for (Map.Entry<File, ContentValues> entry : newValues.entrySet()) {
+            inserts.add(ContentProviderOperation.newInsert(FormsColumns.CONTENT_URI)
+                    .withValues(entry.getValue()).build());
+            insertedFiles.add(entry.getKey());
+        }
+
+        // insert into content provider
+        // insert failures are OK and expected if multiple
+        // DiskSync scanners are active.
+        applied = applyOperations(inserts);
+        for (int i = 0; i < applied.length; i++) {
+            if (applied[i]) {
+                File formDefFile = insertedFiles.get(i);
+                FormDefPrewarmer.getInstance().prewarm(formDefFile);
+            }
+        }
+    }
 
-                    // Parse it for the first time...
-                    ContentValues values;
-
-                    try {
-                        values = buildContentValues(formDefFile);
-                    } catch (IllegalArgumentException e) {
-                        errors.append(e.getMessage()).append("\r\n");
-                        File badFile = new File(formDefFile.getParentFile(), formDefFile.getName() + ".bad");
-                        badFile.delete();
-                        formDefFile.renameTo(badFile);
-                        continue;
+    /**
+     * Runs {@link #buildContentValues(File)} on the files using up to {@link #MAX_PARSE_THREADS}
+     * threads. Files that fail to parse are renamed to ".bad" and reported in errors.
+     *
+     * @return the content values of the files that parsed, in the same order as formDefFiles
+     */
+    private Map<File, ContentValues> parseForms(List<File> formDefFiles, StringBuffer errors) {
+        Map<File, ContentValues> parsed = new LinkedHashMap<>();
+        if (formDefFiles.isEmpty()) {
+            return parsed;
+        }
+
+        int threads = Math.min(formDefFiles.size(),
+                Math.min(MAX_PARSE_THREADS, Runtime.getRuntime().availableProcessors()));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<ContentValues>> results = new ArrayList<>();
+            for (final File formDefFile : formDefFiles) {
+                results.add(executor.submit(new Callable<ContentValues>() {
+                    @Override
+                    public ContentValues call() {
+                        return buildContentValues(formDefFile);
                     }
+                }));
+            }
 
-                    // insert into content provider
-                    try {
-                        // insert failures are OK and expected if multiple
-                        // DiskSync scanners are active.
-                        Collect.getInstance().getContentResolver()
-                                .insert(FormsColumns.CONTENT_URI, values);
-                    } catch (SQLException e) {
-                        Log.i(t, "[" + instance + "] " + e.toString());
+            for (int i = 0; i < formDefFiles.size(); i++) {
+                File formDefFile = formDefFiles.get(i);
+                try {
+                    parsed.put(formDefFile, results.get(i).get());
+                } catch (ExecutionException e) {
+                    if (!(e.getCause() instanceof IllegalArgumentException)) {
+                        throw new RuntimeException(e.getCause());
                     }
+                    errors.append(e.getCause().getMessage()).append("\r\n");
+                    File badFile = new File(formDefFile.getParentFile(), formDefFile.getName() + ".bad");
+                    badFile.delete();
+                    formDefFile.renameTo(badFile);
                 }
             }
-            if (errors.length() != 0) {
-                statusMessage = errors.toString();
-            } else {
-                statusMessage = Collect.getInstance().getString(R.string.finished_disk_scan);
-            }
-            return statusMessage;
+        } catch (InterruptedException e) {
+            // the task was cancelled; keep whatever has been parsed so far
+            Log.w(t, "[" + instance + "] interrupted while parsing forms");
+            Thread.currentThread().interrupt();
         } finally {
-            Log.i(t, "[" + instance + "] doInBackground ends!");
+            executor.shutdownNow();
+        }
+        return parsed;
+    }
+
+    /**
+     * Applies the operations to the forms content provider as a single batch. If the batch fails
+     * (e.g. another scanner has inserted one of the forms in the meantime), nothing from it is
+     * applied, so falls back to applying the operations one at a time.
+     *
+     * @return whether each operation was applied
+     */
+    private boolean[] applyOperations(ArrayList<ContentProviderOperation> operations) {
+        boolean[] applied = new boolean[operations.size()];
+        if (operations.isEmpty()) {
+            return applied;
+        }
+
+        ContentResolver resolver = Collect.getInstance().getContentResolver();
+        try {
+            resolver.applyBatch(FormsProviderAPI.AUTHORITY, operations);
+            Arrays.fill(applied, true);
+            return applied;
+        } catch (RemoteException | OperationApplicationException | SQLException e) {
+            Log.i(t, "[" + instance + "] batch of " + operations.size()
+                    + " failed, applying one at a time: " + e.toString());
+        }
+
+        for (int i = 0; i < operations.size(); i++) {
+            ArrayList<ContentProviderOperation> single = new ArrayList<>();
+            single.add(operations.get(i));
+            try {
+                resolver.applyBatch(FormsProviderAPI.AUTHORITY, single);
+                applied[i] = true;
+            } catch (RemoteException | OperationApplicationException | SQLException e) {
+                Log.i(t, "[" + instance + "] " + e.toString());
+            }
         }
+        return applied;
     }
 
     private boolean isAlreadyDefined(File formDefFile) {
@@ -212,7 +371,7 @@ public class DiskSyncTask extends AsyncTask<Void, String, String> {
 
     /**
      * Attempts to parse the formDefFile as an XForm.
-     * This is slow because FileUtils.parseXML is slow
+     * Only the head of the form is read, so this is safe to call from several threads at once.
      *
      * @param formDefFile
      * @return key-value list to update or insert into the content provider
@@ -23,9 +23,9 @@ import android.util.Log;
 import com.belladati.httpclientandroidlib.client.HttpClient;
 import com.belladati.httpclientandroidlib.protocol.HttpContext;
 
-import org.javarosa.xform.parse.XFormParser;
-import org.kxml2.kdom.Element;
+import org.xmlpull.v1.XmlPullParser;
 
+import java.io.Serializable;
 import java.util.HashMap;
 
 import uk.co.biorisk.collect.R;
@@ -35,6 +35,8 @@ import uk.co.biorisk.collect.logic.FormDetails;
 import uk.co.biorisk.collect.preferences.PreferencesActivity;
 import uk.co.biorisk.collect.utilities.DocumentFetchResult;
 import uk.co.biorisk.collect.utilities.WebUtils;
+import uk.co.biorisk.collect.utilities.XmlDocumentCache;
+import uk.co.biorisk.collect.utilities.XmlDocumentReader;
 
 /**
  * Background task for downloading forms from urls or a formlist from a url. We overload this task a
@@ -53,12 +55,6 @@ public class DownloadFormListTask extends AsyncTask<Void, String, HashMap<String
             "http://openrosa.org/xforms/xformsList";
     private FormListDownloaderListener mStateListener;
 
-    private boolean isXformsListNamespacedElement(Element e) {
-        return e.getNamespace().equalsIgnoreCase(NAMESPACE_OPENROSA_ORG_XFORMS_XFORMS_LIST);
-    }
-
-
-    @SuppressLint("StringFormatInvalid")
     @Override
     protected HashMap<String, FormDetails> doInBackground(Void... values) {
         SharedPreferences settings =
@@ -73,19 +69,30 @@ public class DownloadFormListTask extends AsyncTask<Void, String, HashMap<String
 
         Collect.getInstance().getActivityLogger().logAction(this, formListUrl, downloadListUrl);
 
-        // We populate this with available forms from the specified server.
-        // <formname, details>
-        HashMap<String, FormDetails> formList = new HashMap<>();
-
         // get shared HttpContext so that authentication and cookies are retained.
         HttpContext localContext = Collect.getInstance().getHttpContext();
         HttpClient httpclient = WebUtils.createHttpClient(WebUtils.CONNECTION_TIMEOUT);
 
+        XmlDocumentCache cache = XmlDocumentCache.getInstance();
+        FormListReader reader = new FormListReader();
         DocumentFetchResult result =
-                WebUtils.getXmlDocument(downloadListUrl, localContext, httpclient);
+                WebUtils.readXmlDocument(downloadListUrl, localContext, httpclient, cache, reader);
+
+        if (result.notModified) {
+            Serializable cached = cache.getParsed(downloadListUrl);
+            if (cached instanceof HashMap) {
+                Log.i(t, "Using the stored form list from " + downloadListUrl);
+                @SuppressWarnings("unchecked")
+                HashMap<String, FormDetails> cachedFormList = (HashMap<String, FormDetails>) cached;
+                return cachedFormList;
+            }
+            reader = new FormListReader();
+            result = cache.read(downloadListUrl, reader);
+        }
 
         // If we can't get the document, return the error, cancel the task
         if (result.errorMessage != null) {
+            HashMap<String, FormDetails> formList = new HashMap<>();
             if (result.responseCode == 401) {
                 formList.put(DL_AUTH_REQUIRED, new FormDetails(result.errorMessage));
             } else {
@@ -94,40 +101,61 @@ public class DownloadFormListTask extends AsyncTask<Void, String, HashMap<String
             return formList;
         }
 
-        if (result.isOpenRosaResponse) {
+        cache.putParsed(downloadListUrl, reader.mFormList);
+        return reader.mFormList;
+    }
+
+
+    @Override
+    protected void onPostExecute(HashMap<String, FormDetails> value) {
+        synchronized (this) {
+            if (mStateListener != null) {
+                mStateListener.formListDownloadingComplete(value);
+            }
+        }
+    }
+
+
+    public void setDownloaderListener(FormListDownloaderListener sl) {
+        synchronized (this) {
+            mStateListener = sl;
+        }
+    }
+
+    /**
+     * Reads the available forms out of a form list as it arrives.
+     */
+    static class FormListReader extends XmlDocumentReader {
+        // We populate this with available forms from the specified server.
+        // <formname, details>
+        final HashMap<String, FormDetails> mFormList = new HashMap<>();
+
+        @Override
+        public String read(XmlPullParser parser, boolean isOpenRosaResponse) throws Exception {
+            parser.nextTag();
+            if (isOpenRosaResponse) {
+                return readOpenRosaFormList(parser);
+            } else {
+                return readLegacyFormList(parser);
+            }
+        }
+
+        private String readOpenRosaFormList(XmlPullParser parser) throws Exception {
             // Attempt OpenRosa 1.0 parsing
-            Element xformsElement = result.doc.getRootElement();
-            if (!xformsElement.getName().equals("xforms")) {
-                String error = "root element is not <xforms> : " + xformsElement.getName();
-                Log.e(t, "Parsing OpenRosa reply -- " + error);
-                formList.put(
-                        DL_ERROR_MSG,
-                        new FormDetails(Collect.getInstance().getString(
-                                R.string.parse_openrosa_formlist_failed, error)));
-                return formList;
+            if (!parser.getName().equals("xforms")) {
+                return openRosaError("root element is not <xforms> : " + parser.getName());
             }
-            String namespace = xformsElement.getNamespace();
-            if (!isXformsListNamespacedElement(xformsElement)) {
-                String error = "root element namespace is incorrect:" + namespace;
-                Log.e(t, "Parsing OpenRosa reply -- " + error);
-                formList.put(
-                        DL_ERROR_MSG,
-                        new FormDetails(Collect.getInstance().getString(
-                                R.string.parse_openrosa_formlist_failed, error)));
-                return formList;
+            String namespace = parser.getNamespace();
+            if (!isXformsListNamespace(namespace)) {
+                return openRosaError("root element namespace is incorrect:" + namespace);
             }
-            int nElements = xformsElement.getChildCount();
-            for (int i = 0; i < nElements; ++i) {
-                if (xformsElement.getType(i) != Element.ELEMENT) {
-                    // e.g., whitespace (text)
-                    continue;
-                }
-                Element xformElement = (Element) xformsElement.getElement(i);
-                if (!isXformsListNamespacedElement(xformElement)) {
+            int xformsDepth = parser.getDepth();
+            for (int i = 0; nextChildElement(parser, xformsDepth); ++i) {
+                if (!isXformsListNamespace(parser.getNamespace())) {
                     // someone else's extension?
                     continue;
                 }
-                String name = xformElement.getName();
+                String name = parser.getName();
                 if (!name.equalsIgnoreCase("xform")) {
                     // someone else's extension?
                     continue;
@@ -142,134 +170,83 @@ public class DownloadFormListTask extends AsyncTask<Void, String, HashMap<String
                 String downloadUrl = null;
                 String manifestUrl = null;
                 // don't process descriptionUrl
-                int fieldCount = xformElement.getChildCount();
-                for (int j = 0; j < fieldCount; ++j) {
-                    if (xformElement.getType(j) != Element.ELEMENT) {
-                        // whitespace
-                        continue;
-                    }
-                    Element child = xformElement.getElement(j);
-                    if (!isXformsListNamespacedElement(child)) {
+                int xformDepth = parser.getDepth();
+                while (nextChildElement(parser, xformDepth)) {
+                    if (!isXformsListNamespace(parser.getNamespace())) {
                         // someone else's extension?
                         continue;
                     }
-                    String tag = child.getName();
+                    String tag = parser.getName();
                     if (tag.equals("formID")) {
-                        formId = XFormParser.getXMLText(child, true);
-                        if (formId != null && formId.length() == 0) {
-                            formId = null;
-                        }
+                        formId = readText(parser);
                     } else if (tag.equals("name")) {
-                        formName = XFormParser.getXMLText(child, true);
-                        if (formName != null && formName.length() == 0) {
-                            formName = null;
-                        }
+                        formName = readText(parser);
                     } else if (tag.equals("version")) {
-                        version = XFormParser.getXMLText(child, true);
-                        if (version != null && version.length() == 0) {
-                            version = null;
-                        }
+                        version = readText(parser);
                     } else if (tag.equals("majorMinorVersion")) {
-                        majorMinorVersion = XFormParser.getXMLText(child, true);
-                        if (majorMinorVersion != null && majorMinorVersion.length() == 0) {
-                            majorMinorVersion = null;
-                        }
+                        majorMinorVersion = readText(parser);
                     } else if (tag.equals("descriptionText")) {
-                        description = XFormParser.getXMLText(child, true);
-                        if (description != null && description.length() == 0) {
-                            description = null;
-                        }
+                        description = readText(parser);
                     } else if (tag.equals("downloadUrl")) {
-                        downloadUrl = XFormParser.getXMLText(child, true);
-                        if (downloadUrl != null && downloadUrl.length() == 0) {
-                            downloadUrl = null;
-                        }
+                        downloadUrl = readText(parser);
                     } else if (tag.equals("manifestUrl")) {
-                        manifestUrl = XFormParser.getXMLText(child, true);
-                        if (manifestUrl != null && manifestUrl.length() == 0) {
-                            manifestUrl = null;
-                        }
+                        manifestUrl = readText(parser);
                     }
                 }
                 if (formId == null || downloadUrl == null || formName == null) {
-                    String error =
-                            "Forms list entry " + Integer.toString(i)
-                                    + " is missing one or more tags: formId, name, or downloadUrl";
-                    Log.e(t, "Parsing OpenRosa reply -- " + error);
-                    formList.clear();
-                    formList.put(
-                            DL_ERROR_MSG,
-                            new FormDetails(Collect.getInstance().getString(
-                                    R.string.parse_openrosa_formlist_failed, error)));
-                    return formList;
+                    mFormList.clear();
+                    return openRosaError("Forms list entry " + Integer.toString(i)
+                            + " is missing one or more tags: formId, name, or downloadUrl");
                 }
-                formList.put(formId, new FormDetails(formName, downloadUrl, manifestUrl, formId, (version != null) ? version : majorMinorVersion));
+                mFormList.put(formId, new FormDetails(formName, downloadUrl, manifestUrl, formId, (version != null) ? version : majorMinorVersion));
             }
-        } else {
+            return null;
+        }
+
+        @SuppressLint("StringFormatInvalid")
+        private String readLegacyFormList(XmlPullParser parser) throws Exception {
             // Aggregate 0.9.x mode...
             // populate HashMap with form names and urls
-            Element formsElement = result.doc.getRootElement();
-            int formsCount = formsElement.getChildCount();
+            int formsDepth = parser.getDepth();
             String formId = null;
-            for (int i = 0; i < formsCount; ++i) {
-                if (formsElement.getType(i) != Element.ELEMENT) {
-                    // whitespace
-                    continue;
-                }
-                Element child = formsElement.getElement(i);
-                String tag = child.getName();
+            for (int i = 0; nextChildElement(parser, formsDepth); ++i) {
+                String tag = parser.getName();
                 if (tag.equals("formID")) {
-                    formId = XFormParser.getXMLText(child, true);
-                    if (formId != null && formId.length() == 0) {
-                        formId = null;
-                    }
-                }
-                if (tag.equalsIgnoreCase("form")) {
-                    String formName = XFormParser.getXMLText(child, true);
-                    if (formName != null && formName.length() == 0) {
-                        formName = null;
-                    }
-                    String downloadUrl = child.getAttributeValue(null, "url");
-                    downloadUrl = downloadUrl.trim();
-                    if (downloadUrl != null && downloadUrl.length() == 0) {
-                        downloadUrl = null;
+                    formId = readText(parser);
+                } else if (tag.equalsIgnoreCase("form")) {
+                    // attributes are only available on the start tag
+                    String downloadUrl = parser.getAttributeValue(null, "url");
+                    String formName = readText(parser);
+                    if (downloadUrl != null) {
+                        downloadUrl = downloadUrl.trim();
+                        if (downloadUrl.length() == 0) {
+                            downloadUrl = null;
+                        }
                     }
                     if (downloadUrl == null || formName == null) {
                         String error =
                                 "Forms list entry " + Integer.toString(i)
                                         + " is missing form name or url attribute";
                         Log.e(t, "Parsing OpenRosa reply -- " + error);
-                        formList.clear();
-                        formList.put(
-                                DL_ERROR_MSG,
-                                new FormDetails(Collect.getInstance().getString(
-                                        R.string.parse_legacy_formlist_failed, error)));
-                        return formList;
+                        mFormList.clear();
+                        return getString(R.string.parse_legacy_formlist_failed, error);
                     }
-                    formList.put(formName, new FormDetails(formName, downloadUrl, null, formId, null));
+                    mFormList.put(formName, new FormDetails(formName, downloadUrl, null, formId, null));
 
                     formId = null;
                 }
             }
+            return null;
         }
-        return formList;
-    }
-
 
-    @Override
-    protected void onPostExecute(HashMap<String, FormDetails> value) {
-        synchronized (this) {
-            if (mStateListener != null) {
-                mStateListener.formListDownloadingComplete(value);
-            }
+        @SuppressLint("StringFormatInvalid")
+        private String openRosaError(String error) {
+            Log.e(t, "Parsing OpenRosa reply -- " + error);
+            return getString(R.string.parse_openrosa_formlist_failed, error);
         }
-    }
-
 
-    public void setDownloaderListener(FormListDownloaderListener sl) {
-        synchronized (this) {
-            mStateListener = sl;
+        private static boolean isXformsListNamespace(String namespace) {
+            return namespace.equalsIgnoreCase(NAMESPACE_OPENROSA_ORG_XFORMS_XFORMS_LIST);
         }
     }
-
 }
@@ -21,40 +21,48 @@ import android.net.Uri;
 import android.os.AsyncTask;
 import android.util.Log;
 
-import com.belladati.httpclientandroidlib.Header;
-import com.belladati.httpclientandroidlib.HttpEntity;
 import com.belladati.httpclientandroidlib.HttpResponse;
 import com.belladati.httpclientandroidlib.HttpStatus;
 import com.belladati.httpclientandroidlib.client.HttpClient;
 import com.belladati.httpclientandroidlib.client.methods.HttpGet;
 import com.belladati.httpclientandroidlib.protocol.HttpContext;
 
-import org.javarosa.xform.parse.XFormParser;
-import org.kxml2.kdom.Element;
+import org.xmlpull.v1.XmlPullParser;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.Serializable;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.zip.GZIPInputStream;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import uk.co.biorisk.collect.R;
 import uk.co.biorisk.collect.application.Collect;
+import uk.co.biorisk.collect.database.FileFingerprintIndex;
 import uk.co.biorisk.collect.exception.TaskCancelledException;
 import uk.co.biorisk.collect.listeners.FormDownloaderListener;
 import uk.co.biorisk.collect.logic.FormDetails;
 import uk.co.biorisk.collect.provider.FormsProviderAPI.FormsColumns;
 import uk.co.biorisk.collect.utilities.DocumentFetchResult;
 import uk.co.biorisk.collect.utilities.FileUtils;
+import uk.co.biorisk.collect.utilities.HashUtils;
 import uk.co.biorisk.collect.utilities.WebUtils;
+import uk.co.biorisk.collect.utilities.XmlDocumentCache;
+import uk.co.biorisk.collect.utilities.XmlDocumentReader;
 
 /**
  * Background task for downloading a given list of forms. We assume right now that the forms are
@@ -71,14 +79,18 @@ public class DownloadFormsTask extends
 
     private static final String MD5_COLON_PREFIX = "md5:";
     private static final String TEMP_DOWNLOAD_EXTENSION = ".tempDownload";
+    // one week
+    private static final long PARTIAL_DOWNLOAD_MAX_AGE = 7L * 24L * 60L * 60L * 1000L;
     private static final String NAMESPACE_OPENROSA_ORG_XFORMS_XFORMS_MANIFEST =
             "http://openrosa.org/xforms/xformsManifest";
+    // leave a connection to the server for everything else
+    private static final int MAX_CONCURRENT_MEDIA_DOWNLOADS = WebUtils.MAX_CONNECTIONS_PER_ROUTE - 1;
+    // how often a wait for media downloads checks whether the task was cancelled
+    private static final long CANCEL_CHECK_INTERVAL = 500;
     private FormDownloaderListener mStateListener;
 
-    private boolean isXformsManifestNamespacedElement(Element e) {
-        return e.getNamespace().equalsIgnoreCase(NAMESPACE_OPENROSA_ORG_XFORMS_XFORMS_MANIFEST);
-    }
-
+    // requests being executed, so that they can be aborted if the task is cancelled
+    private final Set<HttpGet> mInFlightRequests = new HashSet<>();
 
     @Override
     protected HashMap<FormDetails, String> doInBackground(ArrayList<FormDetails>... values) {
@@ -90,6 +102,8 @@ public class DownloadFormsTask extends
 
         HashMap<FormDetails, String> result = new HashMap<>();
 
+        purgeStalePartialDownloads();
+
         for (FormDetails fd : toDownload) {
             publishProgress(fd.formName, Integer.valueOf(count).toString(), Integer.valueOf(total)
                     .toString());
@@ -155,6 +169,9 @@ public class DownloadFormsTask extends
 
                         FileUtils.moveMediaFiles(tempMediaPath, formMediaPath);
                     }
+
+                    // build the form's cache now rather than the first time it is opened
+                    FormDefPrewarmer.getInstance().prewarm(fileResult.getFile());
                 } catch (IOException e) {
                     Log.e(t, e.getMessage());
 
@@ -305,7 +322,7 @@ public class DownloadFormsTask extends
             i++;
         }
 
-        downloadFile(f, url);
+        downloadFile(f, url, null);
 
         boolean isNew = true;
 
@@ -348,13 +365,24 @@ public class DownloadFormsTask extends
      * <p>
      * SurveyCTO: The file is saved into a temp folder and is moved to the final place if everything is okay,
      * so that garbage is not left over on cancel.
+     * <p>
+     * A transfer that fails part way is continued where it stopped if the server allows it, see
+     * {@link ResumableDownload}. When the expected hash is known, the partial file is kept under a
+     * name made from the url and the hash, so a later download of the same file continues it too,
+     * and the complete file is checked against the hash.
      *
-     * @param file        the final file
-     * @param downloadUrl the url to get the contents from.
+     * @param file         the final file
+     * @param downloadUrl  the url to get the contents from.
+     * @param expectedHash the "md5:" hash the file should have, or null if it isn't known
      * @throws Exception
      */
-    private void downloadFile(File file, String downloadUrl) throws Exception {
-        File tempFile = File.createTempFile(file.getName(), TEMP_DOWNLOAD_EXTENSION, new File(Collect.CACHE_PATH));
+    private void downloadFile(File file, final String downloadUrl, String expectedHash) throws Exception {
+        File tempFile = new File(Collect.CACHE_PATH, HashUtils.getMd5Hash(downloadUrl + " "
+                + (expectedHash == null ? "" : expectedHash)) + TEMP_DOWNLOAD_EXTENSION);
+        if (expectedHash == null && tempFile.exists()) {
+            // left over from an earlier download that may have been of a different version
+            FileUtils.deleteAndReport(tempFile);
+        }
 
         URI uri;
         try {
@@ -369,106 +397,66 @@ public class DownloadFormsTask extends
             throw e;
         }
 
-        // WiFi network connections can be renegotiated during a large form download sequence.
-        // This will cause intermittent download failures.  Silently retry once after each
-        // failure.  Only if there are two consecutive failures, do we abort.
-        boolean success = false;
-        int attemptCount = 0;
-        final int MAX_ATTEMPT_COUNT = 2;
-        while (!success && ++attemptCount <= MAX_ATTEMPT_COUNT) {
-
-            if (isCancelled()) {
-                throw new TaskCancelledException(tempFile, "Cancelled before requesting " + tempFile.getAbsolutePath());
-            } else {
-                Log.i(t, "Started downloading to " + tempFile.getAbsolutePath() + " from " + downloadUrl);
+        String expectedMd5 = expectedHash != null && expectedHash.startsWith(MD5_COLON_PREFIX)
+                ? expectedHash.substring(MD5_COLON_PREFIX.length()) : null;
+        new ResumableDownload(tempFile, uri, expectedMd5, new ResumableDownload.Callbacks() {
+            @Override
+            public HttpGet newRequest(URI uri) {
+                return WebUtils.createOpenRosaHttpGet(uri);
             }
 
-            // get shared HttpContext so that authentication and cookies are retained.
-            HttpContext localContext = Collect.getInstance().getHttpContext();
-
-            HttpClient httpclient = WebUtils.createHttpClient(WebUtils.CONNECTION_TIMEOUT);
-
-            // set up request...
-            HttpGet req = WebUtils.createOpenRosaHttpGet(uri);
-            req.addHeader(WebUtils.ACCEPT_ENCODING_HEADER, WebUtils.GZIP_CONTENT_ENCODING);
-
-            HttpResponse response;
-            try {
-                response = httpclient.execute(req, localContext);
-                int statusCode = response.getStatusLine().getStatusCode();
-
-                if (statusCode != HttpStatus.SC_OK) {
-                    WebUtils.discardEntityBytes(response);
-                    if (statusCode == HttpStatus.SC_UNAUTHORIZED) {
-                        // clear the cookies -- should not be necessary?
-                        Collect.getInstance().getCookieStore().clear();
-                    }
-                    @SuppressLint("StringFormatMatches") String errMsg =
-                            Collect.getInstance().getString(R.string.file_fetch_failed, downloadUrl,
-                                    response.getStatusLine().getReasonPhrase(), statusCode);
-                    Log.e(t, errMsg);
-                    throw new Exception(errMsg);
+            @Override
+            public HttpResponse execute(HttpGet req) throws IOException {
+                synchronized (mInFlightRequests) {
+                    mInFlightRequests.add(req);
                 }
+                // get shared HttpContext so that authentication and cookies are retained.
+                HttpContext localContext = Collect.getInstance().getHttpContext();
+                HttpClient httpclient = WebUtils.createHttpClient(WebUtils.CONNECTION_TIMEOUT);
+                return httpclient.execute(req, localContext);
+            }
 
-                // write connection to file
-                HttpEntity entity=response.getEntity();
-                Header contentEncoding = entity.getContentEncoding();
-                InputStream is = null;
-                is = entity.getContent();
-                if (contentEncoding != null && contentEncoding.getValue().equalsIgnoreCase(WebUtils.GZIP_CONTENT_ENCODING)) {
-                    is = new GZIPInputStream(is);
+            @Override
+            public void requestFinished(HttpGet req) {
+                synchronized (mInFlightRequests) {
+                    mInFlightRequests.remove(req);
                 }
-                try (OutputStream os = new FileOutputStream(tempFile)) {
-                    byte buf[] = new byte[4096];
-                    int len;
-                    while ((len = is.read(buf)) > 0 && !isCancelled()) {
-                        os.write(buf, 0, len);
-                    }
-                    os.flush();
-                    success = true;
-                } finally {
-                    if (is != null) {
-                        try {
-                            // ensure stream is consumed...
-                            final long count = 1024L;
-                            while (is.skip(count) == count)
-                                ;
-                        } catch (Exception e) {
-                            // no-op
-                        }
-                        try {
-                            is.close();
-                        } catch (Exception e) {
-                        }
-                    }
-                }
-            } catch (Exception e) {
-                Log.e(t, e.toString());
-                // silently retry unless this is the last attempt,
-                // in which case we rethrow the exception.
+            }
 
-                FileUtils.deleteAndReport(tempFile);
+            @Override
+            public boolean isCancelled() {
+                // media downloads are interrupted when one of the others fails
+                return DownloadFormsTask.this.isCancelled() || Thread.currentThread().isInterrupted();
+            }
 
-                if (attemptCount == MAX_ATTEMPT_COUNT) {
-                    throw e;
+            @Override
+            public Exception fetchFailed(HttpResponse response) {
+                int statusCode = response.getStatusLine().getStatusCode();
+                if (statusCode == HttpStatus.SC_UNAUTHORIZED) {
+                    // clear the cookies -- should not be necessary?
+                    Collect.getInstance().getCookieStore().clear();
                 }
+                @SuppressLint("StringFormatMatches") String errMsg =
+                        Collect.getInstance().getString(R.string.file_fetch_failed, downloadUrl,
+                                response.getStatusLine().getReasonPhrase(), statusCode);
+                Log.e(t, errMsg);
+                return new Exception(errMsg);
             }
 
-            if (isCancelled()) {
-                FileUtils.deleteAndReport(tempFile);
-                throw new TaskCancelledException(tempFile, "Cancelled downloading of " + tempFile.getAbsolutePath());
+            @Override
+            public Exception hashMismatch() {
+                return new Exception(
+                        Collect.getInstance().getString(R.string.file_hash_mismatch, downloadUrl));
             }
-        }
+        }).run();
 
         Log.d(t, "Completed downloading of " + tempFile.getAbsolutePath() + ". It will be moved to the proper path...");
 
-        FileUtils.deleteAndReport(file);
+        // the temp file is on the same volume, so this is a rename that replaces the file at once
+        String errorMessage = FileUtils.moveFile(tempFile, file);
 
-        String errorMessage = FileUtils.copyFile(tempFile, file);
-
-        if (file.exists()) {
-            Log.w(t, "Copied " + tempFile.getAbsolutePath() + " over " + file.getAbsolutePath());
-            FileUtils.deleteAndReport(tempFile);
+        if (errorMessage == null) {
+            Log.w(t, "Moved " + tempFile.getAbsolutePath() + " over " + file.getAbsolutePath());
         } else {
             String msg = Collect.getInstance().getString(R.string.fs_file_copy_error, tempFile.getAbsolutePath(), file.getAbsolutePath(), errorMessage);
             Log.w(t, msg);
@@ -476,6 +464,23 @@ public class DownloadFormsTask extends
         }
     }
 
+    /**
+     * Deletes the partial downloads that haven't been continued for a while.
+     */
+    private static void purgeStalePartialDownloads() {
+        File[] files = new File(Collect.CACHE_PATH).listFiles();
+        if (files == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (File f : files) {
+            if (f.getName().endsWith(TEMP_DOWNLOAD_EXTENSION)
+                    && now - f.lastModified() > PARTIAL_DOWNLOAD_MAX_AGE) {
+                FileUtils.deleteAndReport(f);
+            }
+        }
+    }
+
     @SuppressLint({"StringFormatInvalid", "StringFormatMatches"})
     private String downloadManifestAndMediaFiles(String tempMediaPath, String finalMediaPath, FormDetails fd, int count,
                                                  int total) throws Exception {
@@ -485,142 +490,92 @@ public class DownloadFormsTask extends
         publishProgress(Collect.getInstance().getString(R.string.fetching_manifest, fd.formName),
                 Integer.valueOf(count).toString(), Integer.valueOf(total).toString());
 
-        List<MediaFile> files = new ArrayList<>();
         // get shared HttpContext so that authentication and cookies are retained.
         HttpContext localContext = Collect.getInstance().getHttpContext();
 
         HttpClient httpclient = WebUtils.createHttpClient(WebUtils.CONNECTION_TIMEOUT);
 
-        DocumentFetchResult result =
-                WebUtils.getXmlDocument(fd.manifestUrl, localContext, httpclient);
-
-        if (result.errorMessage != null) {
-            return result.errorMessage;
-        }
+        // the media files are downloaded as the manifest lists them
+        final MediaDownloads downloads = new MediaDownloads(new File(tempMediaPath),
+                new File(finalMediaPath), fd, count, total);
+        ManifestReader.Listener listener = new ManifestReader.Listener() {
+            @Override
+            public void mediaFileRead(MediaFile mediaFile) {
+                downloads.submit(mediaFile);
+            }
+        };
+        try {
+            XmlDocumentCache cache = XmlDocumentCache.getInstance();
+            ManifestReader reader = new ManifestReader(fd.manifestUrl, listener);
+            DocumentFetchResult result =
+                    WebUtils.readXmlDocument(fd.manifestUrl, localContext, httpclient, cache, reader);
+
+            if (result.notModified) {
+                Serializable cached = cache.getParsed(fd.manifestUrl);
+                if (cached instanceof ArrayList) {
+                    Log.i(t, "Using the stored manifest from " + fd.manifestUrl);
+                    @SuppressWarnings("unchecked")
+                    ArrayList<MediaFile> cachedFiles = (ArrayList<MediaFile>) cached;
+                    for (MediaFile mediaFile : cachedFiles) {
+                        downloads.submit(mediaFile);
+                    }
+                    reader = null;
+                } else {
+                    reader = new ManifestReader(fd.manifestUrl, listener);
+                    result = cache.read(fd.manifestUrl, reader);
+                }
+            }
 
-        String errMessage = Collect.getInstance().getString(R.string.access_error, fd.manifestUrl);
+            if (result.errorMessage != null) {
+                // an entry further down was invalid or a repeat; stop the files already started,
+                // interrupting them first so that they don't try again
+                downloads.shutdown();
+                abortInFlightRequests();
+                return result.errorMessage;
+            }
+            if (reader != null) {
+                cache.putParsed(fd.manifestUrl, reader.mFiles);
+            }
 
-        if (!result.isOpenRosaResponse) {
-            errMessage += Collect.getInstance().getString(R.string.manifest_server_error);
-            Log.e(t, errMessage);
-            return errMessage;
+            // OK we now have the full set of files to download...
+            Log.i(t, "Downloading " + downloads.getSubmitted() + " media files.");
+            downloads.await();
+        } finally {
+            downloads.shutdown();
         }
+        return null;
+    }
 
-        // Attempt OpenRosa 1.0 parsing
-        Element manifestElement = result.doc.getRootElement();
-        if (!manifestElement.getName().equals("manifest")) {
-            errMessage +=
-                    Collect.getInstance().getString(R.string.root_element_error,
-                            manifestElement.getName());
-            Log.e(t, errMessage);
-            return errMessage;
-        }
-        String namespace = manifestElement.getNamespace();
-        if (!isXformsManifestNamespacedElement(manifestElement)) {
-            errMessage += Collect.getInstance().getString(R.string.root_namespace_error, namespace);
-            Log.e(t, errMessage);
-            return errMessage;
-        }
-        int nElements = manifestElement.getChildCount();
-        for (int i = 0; i < nElements; ++i) {
-            if (manifestElement.getType(i) != Element.ELEMENT) {
-                // e.g., whitespace (text)
-                continue;
-            }
-            Element mediaFileElement = manifestElement.getElement(i);
-            if (!isXformsManifestNamespacedElement(mediaFileElement)) {
-                // someone else's extension?
-                continue;
-            }
-            String name = mediaFileElement.getName();
-            if (name.equalsIgnoreCase("mediaFile")) {
-                String filename = null;
-                String hash = null;
-                String downloadUrl = null;
-                // don't process descriptionUrl
-                int childCount = mediaFileElement.getChildCount();
-                for (int j = 0; j < childCount; ++j) {
-                    if (mediaFileElement.getType(j) != Element.ELEMENT) {
-                        // e.g., whitespace (text)
-                        continue;
-                    }
-                    Element child = mediaFileElement.getElement(j);
-                    if (!isXformsManifestNamespacedElement(child)) {
-                        // someone else's extension?
-                        continue;
-                    }
-                    String tag = child.getName();
-                    if (tag.equals("filename")) {
-                        filename = XFormParser.getXMLText(child, true);
-                        if (filename != null && filename.length() == 0) {
-                            filename = null;
-                        }
-                    } else if (tag.equals("hash")) {
-                        hash = XFormParser.getXMLText(child, true);
-                        if (hash != null && hash.length() == 0) {
-                            hash = null;
-                        }
-                    } else if (tag.equals("downloadUrl")) {
-                        downloadUrl = XFormParser.getXMLText(child, true);
-                        if (downloadUrl != null && downloadUrl.length() == 0) {
-                            downloadUrl = null;
-                        }
-                    }
-                }
-                if (filename == null || downloadUrl == null || hash == null) {
-                    errMessage +=
-                            Collect.getInstance().getString(R.string.manifest_tag_error,
-                                    Integer.toString(i));
-                    Log.e(t, errMessage);
-                    return errMessage;
-                }
-                files.add(new MediaFile(filename, hash, downloadUrl));
+    private void downloadMediaFile(MediaFile toDownload, File tempMediaDir, File finalMediaDir) throws Exception {
+        File finalMediaFile = new File(finalMediaDir, toDownload.filename);
+        File tempMediaFile = new File(tempMediaDir, toDownload.filename);
+
+        if (!finalMediaFile.exists()) {
+            downloadFile(tempMediaFile, toDownload.downloadUrl, toDownload.hash);
+        } else {
+            // only rehashed if the file changed since it was last hashed
+            String currentFileHash = FileFingerprintIndex.getInstance().getMd5Hash(finalMediaFile);
+            String downloadFileHash = toDownload.hash.substring(MD5_COLON_PREFIX.length());
+
+            if (currentFileHash == null || !currentFileHash.contentEquals(downloadFileHash)) {
+                // if the hashes match, it's the same file
+                // otherwise delete our current one and replace it with the new one
+                FileUtils.deleteAndReport(finalMediaFile);
+                downloadFile(tempMediaFile, toDownload.downloadUrl, toDownload.hash);
+            } else {
+                // exists, and the hash is the same
+                // no need to download it again
+                Log.i(t, "Skipping media file fetch -- file hashes identical: " + finalMediaFile.getAbsolutePath());
             }
         }
+    }
 
-        // OK we now have the full set of files to download...
-        Log.i(t, "Downloading " + files.size() + " media files.");
-        int mediaCount = 0;
-        if (files.size() > 0) {
-            File tempMediaDir = new File(tempMediaPath);
-            File finalMediaDir = new File(finalMediaPath);
-
-            FileUtils.checkMediaPath(tempMediaDir);
-            FileUtils.checkMediaPath(finalMediaDir);
-
-            for (MediaFile toDownload : files) {
-                ++mediaCount;
-                publishProgress(
-                        Collect.getInstance().getString(R.string.form_download_progress, fd.formName,
-                                mediaCount, files.size()), Integer.valueOf(count).toString(), Integer
-                                .valueOf(total).toString());
-//                try {
-                File finalMediaFile = new File(finalMediaDir, toDownload.filename);
-                File tempMediaFile = new File(tempMediaDir, toDownload.filename);
-
-                if (!finalMediaFile.exists()) {
-                    downloadFile(tempMediaFile, toDownload.downloadUrl);
-                } else {
-                    String currentFileHash = FileUtils.getMd5Hash(finalMediaFile);
-                    String downloadFileHash = toDownload.hash.substring(MD5_COLON_PREFIX.length());
-
-                    if (!currentFileHash.contentEquals(downloadFileHash)) {
-                        // if the hashes match, it's the same file
-                        // otherwise delete our current one and replace it with the new one
-                        FileUtils.deleteAndReport(finalMediaFile);
-                        downloadFile(tempMediaFile, toDownload.downloadUrl);
-                    } else {
-                        // exists, and the hash is the same
-                        // no need to download it again
-                        Log.i(t, "Skipping media file fetch -- file hashes identical: " + finalMediaFile.getAbsolutePath());
-                    }
-                }
-//                } catch (Exception e) {
-//                    return e.getLocalizedMessage();
-//                }
+    private void abortInFlightRequests() {
+        synchronized (mInFlightRequests) {
+            for (HttpGet req : mInFlightRequests) {
+                req.abort();
             }
         }
-        return null;
     }
 
     @Override
@@ -695,7 +650,193 @@ public class DownloadFormsTask extends
         }
     }
 
-    private static class MediaFile {
+    /**
+     * Downloads the media files of a form as they are found in its manifest,
+     * {@link #MAX_CONCURRENT_MEDIA_DOWNLOADS} at a time. If one of them can't be downloaded or
+     * the task is cancelled, the downloads still in progress are aborted.
+     */
+    private class MediaDownloads {
+        private final File mTempMediaDir;
+        private final File mFinalMediaDir;
+        private final FormDetails mFormDetails;
+        private final int mCount;
+        private final int mTotal;
+
+        private final List<Future<Void>> mDownloads = new ArrayList<>();
+        private final AtomicInteger mSubmitted = new AtomicInteger(0);
+        private final AtomicInteger mDownloaded = new AtomicInteger(0);
+        // created with the first file, so forms without media don't start any thread
+        private ExecutorService mExecutor = null;
+
+        MediaDownloads(File tempMediaDir, File finalMediaDir, FormDetails fd, int count, int total) {
+            mTempMediaDir = tempMediaDir;
+            mFinalMediaDir = finalMediaDir;
+            mFormDetails = fd;
+            mCount = count;
+            mTotal = total;
+        }
+
+        int getSubmitted() {
+            return mSubmitted.get();
+        }
+
+        void submit(final MediaFile toDownload) {
+            if (mExecutor == null) {
+                FileUtils.checkMediaPath(mTempMediaDir);
+                FileUtils.checkMediaPath(mFinalMediaDir);
+                mExecutor = Executors.newFixedThreadPool(MAX_CONCURRENT_MEDIA_DOWNLOADS);
+            }
+            mSubmitted.incrementAndGet();
+            mDownloads.add(mExecutor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    downloadMediaFile(toDownload, mTempMediaDir, mFinalMediaDir);
+                    publishProgress(
+                            Collect.getInstance().getString(R.string.form_download_progress,
+                                    mFormDetails.formName, mDownloaded.incrementAndGet(),
+                                    mSubmitted.get()),
+                            Integer.valueOf(mCount).toString(), Integer.valueOf(mTotal).toString());
+                    return null;
+                }
+            }));
+        }
+
+        /**
+         * Waits for all the submitted files to be downloaded.
+         */
+        void await() throws Exception {
+            try {
+                for (Future<Void> download : mDownloads) {
+                    while (true) {
+                        try {
+                            download.get(CANCEL_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+                            break;
+                        } catch (TimeoutException e) {
+                            if (isCancelled()) {
+                                abortInFlightRequests();
+                            }
+                        }
+                    }
+                }
+            } catch (ExecutionException e) {
+                abortInFlightRequests();
+                Throwable cause = e.getCause();
+                if (cause instanceof Exception) {
+                    throw (Exception) cause;
+                }
+                throw new RuntimeException(cause);
+            } catch (InterruptedException e) {
+                abortInFlightRequests();
+                throw new TaskCancelledException(null, "Interrupted while downloading the media files of " + mFormDetails.formName);
+            }
+        }
+
+        void shutdown() {
+            if (mExecutor != null) {
+                mExecutor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Reads the media files out of a manifest as it arrives, handing each one over as soon as its
+     * entry has been read and checked. An entry that is incomplete or lists a file an earlier one
+     * already lists makes the whole manifest invalid.
+     */
+    static class ManifestReader extends XmlDocumentReader {
+        interface Listener {
+            void mediaFileRead(MediaFile mediaFile);
+        }
+
+        private final String mManifestUrl;
+        private final Listener mListener;
+        final ArrayList<MediaFile> mFiles = new ArrayList<>();
+        private final Set<String> mFilenames = new HashSet<>();
+
+        ManifestReader(String manifestUrl, Listener listener) {
+            mManifestUrl = manifestUrl;
+            mListener = listener;
+        }
+
+        @SuppressLint({"StringFormatInvalid", "StringFormatMatches"})
+        @Override
+        public String read(XmlPullParser parser, boolean isOpenRosaResponse) throws Exception {
+            String errMessage = getString(R.string.access_error, mManifestUrl);
+
+            if (!isOpenRosaResponse) {
+                errMessage += getString(R.string.manifest_server_error);
+                Log.e(t, errMessage);
+                return errMessage;
+            }
+
+            // Attempt OpenRosa 1.0 parsing
+            parser.nextTag();
+            if (!parser.getName().equals("manifest")) {
+                errMessage += getString(R.string.root_element_error, parser.getName());
+                Log.e(t, errMessage);
+                return errMessage;
+            }
+            String namespace = parser.getNamespace();
+            if (!isXformsManifestNamespace(namespace)) {
+                errMessage += getString(R.string.root_namespace_error, namespace);
+                Log.e(t, errMessage);
+                return errMessage;
+            }
+            int manifestDepth = parser.getDepth();
+            for (int i = 0; nextChildElement(parser, manifestDepth); ++i) {
+                if (!isXformsManifestNamespace(parser.getNamespace())) {
+                    // someone else's extension?
+                    continue;
+                }
+                String name = parser.getName();
+                if (name.equalsIgnoreCase("mediaFile")) {
+                    String filename = null;
+                    String hash = null;
+                    String downloadUrl = null;
+                    // don't process descriptionUrl
+                    int mediaFileDepth = parser.getDepth();
+                    while (nextChildElement(parser, mediaFileDepth)) {
+                        if (!isXformsManifestNamespace(parser.getNamespace())) {
+                            // someone else's extension?
+                            continue;
+                        }
+                        String tag = parser.getName();
+                        if (tag.equals("filename")) {
+                            filename = readText(parser);
+                        } else if (tag.equals("hash")) {
+                            hash = readText(parser);
+                        } else if (tag.equals("downloadUrl")) {
+                            downloadUrl = readText(parser);
+                        }
+                    }
+                    if (filename == null || downloadUrl == null || hash == null) {
+                        errMessage += getString(R.string.manifest_tag_error, Integer.toString(i));
+                        Log.e(t, errMessage);
+                        return errMessage;
+                    }
+                    if (!mFilenames.add(filename)) {
+                        // both would be downloaded to the same place
+                        errMessage += getString(R.string.manifest_duplicate_error,
+                                Integer.toString(i), filename);
+                        Log.e(t, errMessage);
+                        return errMessage;
+                    }
+                    MediaFile mediaFile = new MediaFile(filename, hash, downloadUrl);
+                    mFiles.add(mediaFile);
+                    mListener.mediaFileRead(mediaFile);
+                }
+            }
+            return null;
+        }
+
+        private static boolean isXformsManifestNamespace(String namespace) {
+            return namespace.equalsIgnoreCase(NAMESPACE_OPENROSA_ORG_XFORMS_XFORMS_MANIFEST);
+        }
+    }
+
+    static class MediaFile implements Serializable {
+        private static final long serialVersionUID = 1L;
+
         final String filename;
         final String hash;
         final String downloadUrl;
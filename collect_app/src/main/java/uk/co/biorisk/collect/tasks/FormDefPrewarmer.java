@@ -0,0 +1,195 @@
+package uk.co.biorisk.collect.tasks;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.util.Log;
+
+import org.javarosa.core.model.FormDef;
+
+import uk.co.biorisk.collect.application.Collect;
+import uk.co.biorisk.collect.provider.FormsProviderAPI.FormsColumns;
+import uk.co.biorisk.collect.provider.InstanceProviderAPI.InstanceColumns;
+import uk.co.biorisk.collect.utilities.FormDefCache;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Parses newly installed or updated forms in the background and writes their {@link FormDef}
+ * cache, so that the first time the user opens a form it loads from the cache instead of paying
+ * the full cost of the XForm parser.
+ * <p>
+ * Forms are parsed one at a time on a single low priority thread, and give way to forms the user
+ * is opening. Pending forms are ordered by when an instance of them was last saved (most recent
+ * first), then by when they were queued; queueing a form that is already pending just updates its
+ * position.
+ */
+public final class FormDefPrewarmer {
+
+    private static final String t = "FormDefPrewarmer";
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static FormDefPrewarmer singleton = null;
+
+    private final Map<String, PrewarmJob> mPending = new HashMap<>();
+    private final AtomicLong mSequence = new AtomicLong();
+    private final ThreadPoolExecutor mExecutor;
+
+    private FormDefPrewarmer() {
+        mExecutor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                // FormDefCache.prewarm runs at background priority
+                return new Thread(r, t);
+            }
+        });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    public static synchronized FormDefPrewarmer getInstance() {
+        if (singleton == null) {
+            singleton = new FormDefPrewarmer();
+        }
+        return singleton;
+    }
+
+    /**
+     * Queues the form definition to have its {@link FormDef} cache built. This looks up when the
+     * form was last used, so should not be called on the UI thread.
+     *
+     * @param formXml the form definition file
+     */
+    public void prewarm(File formXml) {
+        PrewarmJob job = new PrewarmJob(formXml, getLastUsed(formXml), mSequence.incrementAndGet());
+        synchronized (mPending) {
+            PrewarmJob previous = mPending.put(job.path, job);
+            if (previous != null) {
+                previous.cancelled = true;
+                mExecutor.remove(previous);
+            }
+        }
+        mExecutor.execute(job);
+    }
+
+    /**
+     * Drops the form from the queue. A form that is already being parsed is left to finish.
+     */
+    public void cancel(File formXml) {
+        synchronized (mPending) {
+            PrewarmJob job = mPending.remove(formXml.getAbsolutePath());
+            if (job != null) {
+                job.cancelled = true;
+                mExecutor.remove(job);
+            }
+        }
+    }
+
+    /**
+     * @return when an instance of the form was last saved, or 0 if it hasn't been filled in
+     */
+    private static long getLastUsed(File formXml) {
+        ContentResolver cr = Collect.getInstance().getContentResolver();
+        String jrFormId = null;
+        Cursor c = null;
+        try {
+            c = cr.query(FormsColumns.CONTENT_URI, new String[]{FormsColumns.JR_FORM_ID},
+                    FormsColumns.FORM_FILE_PATH + "=?", new String[]{formXml.getAbsolutePath()},
+                    null);
+            if (c != null && c.moveToFirst()) {
+                jrFormId = c.getString(0);
+            }
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+        if (jrFormId == null) {
+            return 0;
+        }
+
+        c = null;
+        try {
+            c = cr.query(InstanceColumns.CONTENT_URI,
+                    new String[]{InstanceColumns.LAST_STATUS_CHANGE_DATE},
+                    InstanceColumns.JR_FORM_ID + "=?", new String[]{jrFormId},
+                    InstanceColumns.LAST_STATUS_CHANGE_DATE + " DESC");
+            if (c != null && c.moveToFirst()) {
+                return c.getLong(0);
+            }
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+        return 0;
+    }
+
+    private void finished(PrewarmJob job) {
+        synchronized (mPending) {
+            if (mPending.get(job.path) == job) {
+                mPending.remove(job.path);
+            }
+        }
+    }
+
+    private class PrewarmJob implements Runnable, Comparable<PrewarmJob> {
+        final String path;
+        final long lastUsed;
+        final long sequence;
+        volatile boolean cancelled = false;
+
+        PrewarmJob(File formXml, long lastUsed, long sequence) {
+            this.path = formXml.getAbsolutePath();
+            this.lastUsed = lastUsed;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (cancelled) {
+                    return;
+                }
+                File formXml = new File(path);
+                if (!formXml.exists()) {
+                    Log.i(t, "Skipping " + path + " -- it no longer exists");
+                    return;
+                }
+                String formHash = FormDefCache.getFormHash(formXml);
+                if (formHash == null || FormDefCache.getCacheFile(formHash).exists()) {
+                    return;
+                }
+                if (cancelled) {
+                    return;
+                }
+                Log.i(t, "Pre-warming " + path);
+                FormDefCache.prewarm(formXml);
+            } catch (Exception e) {
+                // the form will be parsed again (and the error reported) when it is opened
+                Log.w(t, "Unable to pre-warm " + path, e);
+            } finally {
+                finished(this);
+            }
+        }
+
+        @Override
+        public int compareTo(PrewarmJob another) {
+            // most recently used first, then most recently queued first
+            if (lastUsed != another.lastUsed) {
+                return lastUsed > another.lastUsed ? -1 : 1;
+            }
+            if (sequence != another.sequence) {
+                return sequence > another.sequence ? -1 : 1;
+            }
+            return 0;
+        }
+    }
+}
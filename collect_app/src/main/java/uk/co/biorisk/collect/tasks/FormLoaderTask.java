@@ -19,7 +19,6 @@ import android.database.Cursor;
 import android.os.AsyncTask;
 import android.util.Log;
 
-import com.opencsv.CSVReader;
 
 import org.javarosa.core.model.FormDef;
 import org.javarosa.core.model.FormIndex;
@@ -29,17 +28,16 @@ import org.javarosa.core.model.instance.TreeReference;
 import org.javarosa.core.model.instance.utils.DefaultAnswerResolver;
 import org.javarosa.core.reference.ReferenceManager;
 import org.javarosa.core.reference.RootTranslator;
-import org.javarosa.core.util.externalizable.DeserializationException;
-import org.javarosa.core.util.externalizable.ExtUtil;
 import org.javarosa.form.api.FormEntryController;
 import org.javarosa.form.api.FormEntryModel;
 import org.javarosa.xform.parse.XFormParseException;
 import org.javarosa.xform.parse.XFormParser;
-import org.javarosa.xform.util.XFormUtils;
 import org.javarosa.xpath.XPathTypeMismatchException;
 import uk.co.biorisk.collect.R;
 import uk.co.biorisk.collect.application.Collect;
 import uk.co.biorisk.collect.database.ItemsetDbAdapter;
+import uk.co.biorisk.collect.database.ItemsetLoader;
+import uk.co.biorisk.collect.database.ItemsetQueryEngine;
 import uk.co.biorisk.collect.external.ExternalAnswerResolver;
 import uk.co.biorisk.collect.external.ExternalDataHandler;
 import uk.co.biorisk.collect.external.ExternalDataManager;
@@ -52,18 +50,14 @@ import uk.co.biorisk.collect.logic.FileReferenceFactory;
 import uk.co.biorisk.collect.logic.FormController;
 import uk.co.biorisk.collect.preferences.AdminPreferencesActivity;
 import uk.co.biorisk.collect.utilities.FileUtils;
+import uk.co.biorisk.collect.utilities.FormDefCache;
 import uk.co.biorisk.collect.utilities.ZipUtils;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileFilter;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.FileReader;
-import java.io.IOException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -102,14 +96,11 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
     protected FECWrapper doInBackground(String... path) {
         FormEntryController fec = null;
         FormDef fd = null;
-        FileInputStream fis = null;
         mErrorMsg = null;
 
         String formPath = path[0];
 
         File formXml = new File(formPath);
-        String formHash = FileUtils.getMd5Hash(formXml);
-        File formBin = new File(Collect.CACHE_PATH + File.separator + formHash + ".formdef");
 
         publishProgress(Collect.getInstance().getString(R.string.survey_loading_reading_form_message));
 
@@ -124,31 +115,18 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
 //      }
 //    });
 
-        if (formBin.exists()) {
-            // if we have binary, deserialize binary
-            Log.i(
-                    t,
-                    "Attempting to load " + formXml.getName() + " from cached file: "
-                            + formBin.getAbsolutePath());
-            fd = deserializeFormDef(formBin);
-            if (fd == null) {
-                // some error occured with deserialization. Remove the file, and make a
-                // new .formdef
-                // from xml
-                Log.w(t, "Deserialization FAILED!  Deleting cache file: " + formBin.getAbsolutePath());
-                formBin.delete();
-            }
-        }
+        // the form is about to be cached here, so there's no point pre-warming it
+        FormDefPrewarmer.getInstance().cancel(formXml);
+
+        // if we have a valid binary, deserialize it
+        fd = FormDefCache.readCache(formXml);
         if (fd == null) {
-            // no binary, read from xml
+            // no usable binary, read from xml
             try {
                 Log.i(t, "Attempting to load from: " + formXml.getAbsolutePath());
-                fis = new FileInputStream(formXml);
-                fd = XFormUtils.getFormFromInputStream(fis);
+                fd = FormDefCache.parseAndCache(formXml);
                 if (fd == null) {
                     mErrorMsg = "Error reading XForm file";
-                } else {
-                    serializeFormDef(fd, formPath);
                 }
             } catch (FileNotFoundException e) {
                 e.printStackTrace();
@@ -159,13 +137,6 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
             } catch (Exception e) {
                 mErrorMsg = e.getMessage();
                 e.printStackTrace();
-            } finally {
-                if(fis!=null)
-                    try {
-                        fis.close();
-                    }catch (IOException x) {
-                        //ignore
-                    }
             }
         }
 
@@ -264,7 +235,13 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
         // updated
         File csv = new File(formMediaDir.getAbsolutePath() + "/" + ITEMSETS_CSV);
         String csvmd5 = null;
-        if (csv.exists()) {
+        ItemsetQueryEngine itemsetQueryEngine = ItemsetQueryEngine.getInstance();
+        itemsetQueryEngine.clearQueries();
+        String pathHash = ItemsetDbAdapter.getMd5FromString(csv.getAbsolutePath());
+        if (csv.exists() && itemsetQueryEngine.isLoading(pathHash)) {
+            // still being loaded for the last time the form was opened
+            Log.i(t, csv + " is already being loaded");
+        } else if (csv.exists()) {
             csvmd5 = FileUtils.getMd5Hash(csv);
             boolean readFile = false;
             ItemsetDbAdapter ida = new ItemsetDbAdapter();
@@ -292,8 +269,14 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
                 c.close();
             }
             ida.close();
+            List<String> queries = ItemsetQueryEngine.getQueries(fd);
             if (readFile) {
-                readCSV(csv, csvmd5, ItemsetDbAdapter.getMd5FromString(csv.getAbsolutePath()));
+                // load the rows in the background; the form can be used in the meantime, and
+                // only an itemset question has to wait for them
+                itemsetQueryEngine.invalidate(pathHash);
+                itemsetQueryEngine.load(pathHash, new ItemsetLoader(csv, csvmd5, pathHash, queries));
+            } else {
+                itemsetQueryEngine.prepare(pathHash, queries);
             }
         }
 
@@ -314,9 +297,7 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
                 new RootTranslator("jr://video/", "jr://file/forms/" + formFileName + "-media/"));
 
         // clean up vars
-        fis = null;
         fd = null;
-        formBin = null;
         formXml = null;
         formPath = null;
 
@@ -441,71 +422,6 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
         }
     }
 
-    /**
-     * Read serialized {@link FormDef} from file and recreate as object.
-     *
-     * @param formDef serialized FormDef file
-     * @return {@link FormDef} object
-     */
-    public FormDef deserializeFormDef(File formDef) {
-
-        // TODO: any way to remove reliance on jrsp?
-        FileInputStream fis = null;
-        FormDef fd = null;
-        try {
-            // create new form def
-            fd = new FormDef();
-            fis = new FileInputStream(formDef);
-            DataInputStream dis = new DataInputStream(fis);
-
-            // read serialized formdef into new formdef
-            fd.readExternal(dis, ExtUtil.defaultPrototypes());
-            dis.close();
-
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-            fd = null;
-        } catch (IOException e) {
-            e.printStackTrace();
-            fd = null;
-        } catch (DeserializationException e) {
-            e.printStackTrace();
-            fd = null;
-        } catch (Exception e) {
-            e.printStackTrace();
-            fd = null;
-        }
-
-        return fd;
-    }
-
-    /**
-     * Write the FormDef to the file system as a binary blog.
-     *
-     * @param filepath path to the form file
-     */
-    public void serializeFormDef(FormDef fd, String filepath) {
-        // calculate unique md5 identifier
-        String hash = FileUtils.getMd5Hash(new File(filepath));
-        File formDef = new File(Collect.CACHE_PATH + File.separator + hash + ".formdef");
-
-        // formdef does not exist, create one.
-        if (!formDef.exists()) {
-            FileOutputStream fos;
-            try {
-                fos = new FileOutputStream(formDef);
-                DataOutputStream dos = new DataOutputStream(fos);
-                fd.writeExternal(dos);
-                dos.flush();
-                dos.close();
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
-    }
-
     @Override
     protected void onCancelled() {
         super.onCancelled();
@@ -580,49 +496,6 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
         this.intent = intent;
     }
 
-    private void readCSV(File csv, String formHash, String pathHash) {
-
-        CSVReader reader;
-        ItemsetDbAdapter ida = new ItemsetDbAdapter();
-        ida.open();
-        boolean withinTransaction = false;
-
-        try {
-            reader = new CSVReader(new FileReader(csv));
-
-            String[] nextLine;
-            String[] columnHeaders = null;
-            int lineNumber = 0;
-            while ((nextLine = reader.readNext()) != null) {
-                lineNumber++;
-                if (lineNumber == 1) {
-                    // first line of csv is column headers
-                    columnHeaders = nextLine;
-                    ida.createTable(formHash, pathHash, columnHeaders,
-                            csv.getAbsolutePath());
-                    continue;
-                }
-                // add the rest of the lines to the specified database
-                // nextLine[] is an array of values from the line
-                // System.out.println(nextLine[4] + "etc...");
-                if (lineNumber == 2) {
-                    // start a transaction for the inserts
-                    withinTransaction = true;
-                    ida.beginTransaction();
-                }
-                ida.addRow(pathHash, columnHeaders, nextLine);
-
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            if (withinTransaction) {
-                ida.commit();
-            }
-            ida.close();
-        }
-    }
-
     protected class FECWrapper {
         FormController controller;
         boolean usedSavepoint;
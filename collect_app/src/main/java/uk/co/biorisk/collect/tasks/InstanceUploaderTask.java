@@ -39,11 +39,13 @@ import com.belladati.httpclientandroidlib.protocol.HttpContext;
 
 import uk.co.biorisk.collect.R;
 import uk.co.biorisk.collect.application.Collect;
+import uk.co.biorisk.collect.database.SubmissionEndpointCache;
 import uk.co.biorisk.collect.listeners.InstanceUploaderListener;
 import uk.co.biorisk.collect.logic.PropertyManager;
 import uk.co.biorisk.collect.preferences.PreferencesActivity;
 import uk.co.biorisk.collect.provider.InstanceProviderAPI;
 import uk.co.biorisk.collect.provider.InstanceProviderAPI.InstanceColumns;
+import uk.co.biorisk.collect.utilities.FileUtils;
 import uk.co.biorisk.collect.utilities.WebUtils;
 
 import java.io.File;
@@ -59,8 +61,8 @@ import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 
 /**
@@ -74,8 +76,15 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
     // it can take up to 27 seconds to spin up Aggregate
     private static final int CONNECTION_TIMEOUT = 60000;
     private static final String fail = "Error: ";
+    private static final char ACKNOWLEDGED_SEPARATOR = '\n';
+    private static final String DEFAULT_CONCURRENT_UPLOADS = "1";
+    // the connection manager keeps one more connection per server for everything else
+    private static final int MAX_UPLOADS_PER_HOST = WebUtils.MAX_CONNECTIONS_PER_ROUTE - 1;
 
     private InstanceUploaderListener mStateListener;
+    private int mConcurrentUploads = 1;
+    // set while submissions are uploaded at the same time
+    private volatile UploadScheduler mScheduler = null;
 
     public static void copyToBytes(InputStream input, OutputStream output,
                                    int bufferSize) throws IOException {
@@ -89,41 +98,48 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
     }
 
     /**
-     * Uploads to urlString the submission identified by id with filepath of instance
+     * Uploads the submission to its destination URL.
+     * <p>
+     * Large submissions are sent in several parts. Attachments are recorded in the instance
+     * database as the server acknowledges the parts carrying them, so that if the upload fails,
+     * the next attempt only sends the ones the server doesn't have yet.
      *
-     * @param urlString        destination URL
-     * @param id
-     * @param instanceFilePath
-     * @param toUpdate         - Instance URL for recording status update.
-     * @param localContext     - context (e.g., credentials, cookies) for client connection
-     * @param uriRemap         - mapping of Uris to avoid redirects on subsequent invocations
+     * @param submission   the submission, with the Instance URL for recording status update
+     * @param localContext - context (e.g., credentials, cookies) for client connection
      * @return false if credentials are required and we should terminate immediately.
      */
-    private boolean uploadOneSubmission(String urlString, String id, String instanceFilePath,
-                                        Uri toUpdate, HttpContext localContext, Map<Uri, Uri> uriRemap, Outcome outcome) {
+    private boolean uploadOneSubmission(Submission submission, HttpContext localContext, Outcome outcome) {
+        String urlString = submission.mUrlString;
+        String id = submission.mId;
+        String instanceFilePath = submission.mInstanceFilePath;
+        Uri toUpdate = submission.mToUpdate;
 
         Collect.getInstance().getActivityLogger().logAction(this, urlString, instanceFilePath);
 
         File instanceFile = new File(instanceFilePath);
         ContentValues cv = new ContentValues();
         Uri u = Uri.parse(urlString);
+        // the url submissions are remembered by, before any redirect
+        Uri submissionUri = u;
         HttpClient httpclient = WebUtils.createHttpClient(CONNECTION_TIMEOUT);
 
+        SubmissionEndpointCache endpoints = SubmissionEndpointCache.getInstance();
+        SubmissionEndpointCache.Endpoint endpoint = endpoints.get(submissionUri);
         boolean openRosaServer = false;
-        if (uriRemap.containsKey(u)) {
+        if (endpoint != null) {
             // we already issued a head request and got a response,
-            // so we know the proper URL to send the submission to
-            // and the proper scheme. We also know that it was an
-            // OpenRosa compliant server.
-            openRosaServer = true;
-            u = uriRemap.get(u);
+            // so we know the proper URL to send the submission to,
+            // the proper scheme and whether it is an OpenRosa
+            // compliant server.
+            openRosaServer = endpoint.openRosa;
+            u = endpoint.resolvedUrl;
 
             // if https then enable preemptive basic auth...
-            if (u.getScheme().equals("https")) {
+            if (u.getScheme() != null && u.getScheme().equals("https")) {
                 WebUtils.enablePreemptiveBasicAuth(localContext, u.getHost());
             }
 
-            Log.i(t, "Using Uri remap for submission " + id + ". Now: " + u.toString());
+            Log.i(t, "Using cached endpoint for submission " + id + ". Now: " + u.toString());
         } else {
 
             // if https then enable preemptive basic auth...
@@ -160,7 +176,7 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
                                 openRosaServer = true;
                                 // trust the server to tell us a new location
                                 // ... and possibly to use https instead.
-                                uriRemap.put(u, uNew);
+                                endpoints.put(submissionUri, uNew, true);
                                 u = uNew;
                             } else {
                                 // Don't follow a redirection attempt to a different host.
@@ -191,7 +207,11 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
                     WebUtils.discardEntityBytes(response);
 
                     Log.w(t, "Status code on Head request: " + statusCode);
-                    if (statusCode >= HttpStatus.SC_OK && statusCode < HttpStatus.SC_MULTIPLE_CHOICES) {
+                    if (statusCode == HttpStatus.SC_NOT_FOUND
+                            || statusCode == HttpStatus.SC_METHOD_NOT_ALLOWED) {
+                        // a legacy server that doesn't answer HEAD requests
+                        endpoints.put(submissionUri, u, false);
+                    } else if (statusCode >= HttpStatus.SC_OK && statusCode < HttpStatus.SC_MULTIPLE_CHOICES) {
                         outcome.mResults.put(
                                 id,
                                 fail
@@ -206,7 +226,7 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
             } catch (ClientProtocolException e) {
                 e.printStackTrace();
                 Log.e(t, e.toString());
-                WebUtils.clearHttpConnectionManager();
+                resetConnections();
                 outcome.mResults.put(id, fail + "Client Protocol Exception");
                 cv.put(InstanceColumns.STATUS, InstanceProviderAPI.STATUS_SUBMISSION_FAILED);
                 Collect.getInstance().getContentResolver().update(toUpdate, cv, null, null);
@@ -214,7 +234,7 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
             } catch (ConnectTimeoutException e) {
                 e.printStackTrace();
                 Log.e(t, e.toString());
-                WebUtils.clearHttpConnectionManager();
+                resetConnections();
                 outcome.mResults.put(id, fail + "Connection Timeout");
                 cv.put(InstanceColumns.STATUS, InstanceProviderAPI.STATUS_SUBMISSION_FAILED);
                 Collect.getInstance().getContentResolver().update(toUpdate, cv, null, null);
@@ -222,7 +242,7 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
             } catch (UnknownHostException e) {
                 e.printStackTrace();
                 Log.e(t, e.toString());
-                WebUtils.clearHttpConnectionManager();
+                resetConnections();
                 outcome.mResults.put(id, fail + e.toString() + " :: Network Connection Failed");
                 cv.put(InstanceColumns.STATUS, InstanceProviderAPI.STATUS_SUBMISSION_FAILED);
                 Collect.getInstance().getContentResolver().update(toUpdate, cv, null, null);
@@ -230,7 +250,7 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
             } catch (SocketTimeoutException e) {
                 e.printStackTrace();
                 Log.e(t, e.toString());
-                WebUtils.clearHttpConnectionManager();
+                resetConnections();
                 outcome.mResults.put(id, fail + "Connection Timeout");
                 cv.put(InstanceColumns.STATUS, InstanceProviderAPI.STATUS_SUBMISSION_FAILED);
                 Collect.getInstance().getContentResolver().update(toUpdate, cv, null, null);
@@ -238,7 +258,7 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
             } catch (HttpHostConnectException e) {
                 e.printStackTrace();
                 Log.e(t, e.toString());
-                WebUtils.clearHttpConnectionManager();
+                resetConnections();
                 outcome.mResults.put(id, fail + "Network Connection Refused");
                 cv.put(InstanceColumns.STATUS, InstanceProviderAPI.STATUS_SUBMISSION_FAILED);
                 Collect.getInstance().getContentResolver().update(toUpdate, cv, null, null);
@@ -246,7 +266,7 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
             } catch (Exception e) {
                 e.printStackTrace();
                 Log.e(t, e.toString());
-                WebUtils.clearHttpConnectionManager();
+                resetConnections();
                 String msg = e.getMessage();
                 if (msg == null) {
                     msg = e.toString();
@@ -284,6 +304,7 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
         } else {
             submissionFile = instanceFile;
         }
+        submission.mSubmissionFile = submissionFile;
 
         if (!instanceFile.exists() && !submissionFile.exists()) {
             outcome.mResults.put(id, fail + "instance XML file does not exist!");
@@ -310,6 +331,11 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
                 // ignore invisible files
                 continue;
             }
+            if (openRosaServer && !submission.mAcknowledged.isEmpty()
+                    && submission.mAcknowledged.contains(getAttachmentKey(submission, f))) {
+                // the server got this one during an earlier attempt
+                continue;
+            }
             if (fileName.equals(instanceFile.getName())) {
                 continue; // the xml file has already been added
             } else if (fileName.equals(submissionFile.getName())) {
@@ -343,6 +369,7 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
             MimeTypeMap m = MimeTypeMap.getSingleton();
 
             long byteCount = 0L;
+            long partBytes = UploadChunkSizer.getInstance().getPartBytes();
 
             // mime post
             MultipartEntityBuilder entity = MultipartEntityBuilder.create();
@@ -420,8 +447,8 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
 
                 // we've added at least one attachment to the request...
                 if (j + 1 < files.size()) {
-                    if ((j - lastJ + 1 > 100) || (byteCount + files.get(j + 1).length() > 10000000L)) {
-                        // the next file would exceed the 10MB threshold...
+                    if ((j - lastJ + 1 > 100) || (byteCount + files.get(j + 1).length() > partBytes)) {
+                        // the next file would make the part too large...
                         Log.i(t, "Extremely long post is being split into multiple posts");
                         try {
                             StringBody sb = new StringBody("yes", Charset.forName("UTF-8"));
@@ -441,6 +468,7 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
             HttpResponse response = null;
             try {
                 Log.i(t, "Issuing POST request for " + id + " to: " + u.toString());
+                long start = System.currentTimeMillis();
                 response = httpclient.execute(httppost, localContext);
                 int responseCode = response.getStatusLine().getStatusCode();
                 WebUtils.discardEntityBytes(response);
@@ -448,14 +476,23 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
                 Log.i(t, "Response code:" + responseCode);
                 // verify that the response was a 201 or 202.
                 // If it wasn't, the submission has failed.
-                if (responseCode != HttpStatus.SC_CREATED && responseCode != HttpStatus.SC_ACCEPTED) {
+                PostResult result = postAnswered(responseCode, new Runnable() {
+                    @Override
+                    public void run() {
+                        endpoints.invalidate(submissionUri);
+                    }
+                }, UploadChunkSizer.getInstance());
+                if (result == PostResult.CREDENTIALS_REQUIRED) {
+                    // clear the cookies -- should not be necessary?
+                    Collect.getInstance().getCookieStore().clear();
+
+                    // we need authentication, so stop and return what we've
+                    // done so far.
+                    outcome.mAuthRequestingServer = u;
+                    return false;
+                } else if (result == PostResult.FAILED) {
                     if (responseCode == HttpStatus.SC_OK) {
                         outcome.mResults.put(id, fail + "Network login failure? Again?");
-                    } else if (responseCode == HttpStatus.SC_UNAUTHORIZED) {
-                        // clear the cookies -- should not be necessary?
-                        Collect.getInstance().getCookieStore().clear();
-                        outcome.mResults.put(id, fail + response.getStatusLine().getReasonPhrase()
-                                + " (" + responseCode + ") at " + urlString);
                     } else {
                         outcome.mResults.put(id, fail + response.getStatusLine().getReasonPhrase()
                                 + " (" + responseCode + ") at " + urlString);
@@ -466,10 +503,17 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
                             .update(toUpdate, cv, null, null);
                     return true;
                 }
+
+                UploadChunkSizer.getInstance().partSent(byteCount, System.currentTimeMillis() - start);
+                if (j < files.size()) {
+                    acknowledgeAttachments(submission, files.subList(lastJ, j));
+                }
             } catch (Exception e) {
                 e.printStackTrace();
                 Log.e(t, e.toString());
-                WebUtils.clearHttpConnectionManager();
+                resetConnections();
+                endpoints.invalidate(submissionUri);
+                UploadChunkSizer.getInstance().partFailed();
                 String msg = e.getMessage();
                 if (msg == null) {
                     msg = e.toString();
@@ -484,10 +528,67 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
         // if it got here, it must have worked
         outcome.mResults.put(id, Collect.getInstance().getString(R.string.success));
         cv.put(InstanceColumns.STATUS, InstanceProviderAPI.STATUS_SUBMITTED);
+        cv.putNull(InstanceColumns.ACKNOWLEDGED_ATTACHMENTS);
         Collect.getInstance().getContentResolver().update(toUpdate, cv, null, null);
         return true;
     }
 
+    /**
+     * Deals with the server's answer to a post, apart from recording it against the instance.
+     *
+     * @param invalidateEndpoint forgets where the post was sent, so the next submission issues a
+     *                           HEAD request again
+     */
+    static PostResult postAnswered(int responseCode, Runnable invalidateEndpoint,
+                                   UploadChunkSizer chunkSizer) {
+        if (responseCode == HttpStatus.SC_CREATED || responseCode == HttpStatus.SC_ACCEPTED) {
+            return PostResult.ACCEPTED;
+        }
+        // the server may have moved or changed; check again next time
+        invalidateEndpoint.run();
+        if (responseCode == HttpStatus.SC_UNAUTHORIZED) {
+            // the part wasn't too large, so the parts stay the size they are
+            return PostResult.CREDENTIALS_REQUIRED;
+        }
+        chunkSizer.partFailed();
+        return PostResult.FAILED;
+    }
+
+    /**
+     * Records that the server has the attachments, without changing the status of the instance.
+     */
+    private void acknowledgeAttachments(Submission submission, List<File> attachments) {
+        for (File attachment : attachments) {
+            submission.mAcknowledged.add(getAttachmentKey(submission, attachment));
+        }
+        StringBuilder acknowledged = new StringBuilder();
+        for (String key : submission.mAcknowledged) {
+            if (acknowledged.length() > 0) {
+                acknowledged.append(ACKNOWLEDGED_SEPARATOR);
+            }
+            acknowledged.append(key);
+        }
+
+        ContentValues cv = new ContentValues();
+        cv.put(InstanceColumns.ACKNOWLEDGED_ATTACHMENTS, acknowledged.toString());
+        // the provider would otherwise take this as a status change
+        cv.put(InstanceColumns.LAST_STATUS_CHANGE_DATE, submission.mLastStatusChangeDate);
+        Collect.getInstance().getContentResolver().update(submission.mToUpdate, cv, null, null);
+    }
+
+    /**
+     * @return what an attachment is recorded as once the server has it; it only counts for the
+     * same instanceID sent to the same URL, and a file that has been replaced by one of a
+     * different size is sent again. Saving the instance clears what has been recorded.
+     */
+    private static String getAttachmentKey(Submission submission, File attachment) {
+        if (submission.mInstanceId == null) {
+            submission.mInstanceId = FileUtils.getInstanceId(submission.mSubmissionFile);
+        }
+        return submission.mUrlString + " " + submission.mInstanceId + " "
+                + attachment.getName() + "/" + attachment.length();
+    }
+
     // TODO: This method is like 350 lines long, down from 400.
     // still. ridiculous. make it smaller.
     protected Outcome doInBackground(Long... values) {
@@ -507,21 +608,17 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
         String deviceId = new PropertyManager(Collect.getInstance().getApplicationContext())
                 .getSingularProperty(PropertyManager.OR_DEVICE_ID_PROPERTY);
 
-        // get shared HttpContext so that authentication and cookies are retained.
-        HttpContext localContext = Collect.getInstance().getHttpContext();
-
-        Map<Uri, Uri> uriRemap = new HashMap<>();
+        SharedPreferences settings =
+                PreferenceManager.getDefaultSharedPreferences(Collect.getInstance());
+        mConcurrentUploads = getConcurrentUploads(settings);
 
+        List<Submission> submissions = new ArrayList<>();
         try (Cursor c = Collect.getInstance().getContentResolver()
                 .query(InstanceColumns.CONTENT_URI, null, selection, selectionArgs, null)) {
 
             if (c.getCount() > 0) {
                 c.moveToPosition(-1);
                 while (c.moveToNext()) {
-                    if (isCancelled()) {
-                        return outcome;
-                    }
-                    publishProgress(c.getPosition() + 1, c.getCount());
                     String instance = c.getString(c.getColumnIndex(InstanceColumns.INSTANCE_FILE_PATH));
                     String id = c.getString(c.getColumnIndex(InstanceColumns._ID));
                     Uri toUpdate = Uri.withAppendedPath(InstanceColumns.CONTENT_URI, id);
@@ -529,8 +626,6 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
                     int subIdx = c.getColumnIndex(InstanceColumns.SUBMISSION_URI);
                     String urlString = c.isNull(subIdx) ? null : c.getString(subIdx);
                     if (urlString == null) {
-                        SharedPreferences settings =
-                                PreferenceManager.getDefaultSharedPreferences(Collect.getInstance());
                         urlString = settings.getString(PreferencesActivity.KEY_SERVER_URL,
                                 Collect.getInstance().getString(R.string.default_server_url));
                         if (urlString.charAt(urlString.length() - 1) == '/') {
@@ -554,16 +649,109 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
                         // unreachable...
                     }
 
-                    if (!uploadOneSubmission(urlString, id, instance, toUpdate, localContext, uriRemap, outcome)) {
-                        return outcome; // get credentials...
+                    Submission submission = new Submission(id, instance, toUpdate, urlString);
+                    submission.mLastStatusChangeDate =
+                            c.getLong(c.getColumnIndex(InstanceColumns.LAST_STATUS_CHANGE_DATE));
+                    int ackIdx = c.getColumnIndex(InstanceColumns.ACKNOWLEDGED_ATTACHMENTS);
+                    if (!c.isNull(ackIdx)) {
+                        for (String key : c.getString(ackIdx).split(String.valueOf(ACKNOWLEDGED_SEPARATOR))) {
+                            submission.mAcknowledged.add(key);
+                        }
                     }
+                    submissions.add(submission);
                 }
             }
         }
 
+        if (mConcurrentUploads > 1 && submissions.size() > 1) {
+            uploadConcurrently(submissions, outcome);
+            return outcome;
+        }
+
+        // get shared HttpContext so that authentication and cookies are retained.
+        HttpContext localContext = Collect.getInstance().getHttpContext();
+
+        for (int i = 0; i < submissions.size(); i++) {
+            if (isCancelled()) {
+                return outcome;
+            }
+            publishProgress(i + 1, submissions.size());
+            Submission submission = submissions.get(i);
+            if (!uploadOneSubmission(submission, localContext, outcome)) {
+                return outcome; // get credentials...
+            }
+        }
+
         return outcome;
     }
 
+    /**
+     * Uploads the submissions mConcurrentUploads at a time, and at most
+     * {@link #MAX_UPLOADS_PER_HOST} at a time to the same server. If a server asks for
+     * credentials, no more submissions are started.
+     */
+    private void uploadConcurrently(final List<Submission> submissions, final Outcome outcome) {
+        List<String> hosts = new ArrayList<>();
+        for (Submission submission : submissions) {
+            hosts.add(Uri.parse(submission.mUrlString).getHost());
+        }
+
+        mScheduler = new UploadScheduler(mConcurrentUploads, MAX_UPLOADS_PER_HOST);
+        mScheduler.run(hosts, new UploadScheduler.Uploads() {
+            @Override
+            public boolean upload(int index) {
+                // each upload needs its own context, but they all share the cookies
+                // and credentials
+                HttpContext localContext = Collect.getInstance().getHttpContext();
+                Outcome submissionOutcome = new Outcome();
+                boolean keepGoing = uploadOneSubmission(submissions.get(index), localContext,
+                        submissionOutcome);
+                synchronized (outcome) {
+                    outcome.mResults.putAll(submissionOutcome.mResults);
+                    if (!keepGoing && outcome.mAuthRequestingServer == null) {
+                        outcome.mAuthRequestingServer = submissionOutcome.mAuthRequestingServer;
+                    }
+                }
+                return keepGoing;
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return InstanceUploaderTask.this.isCancelled();
+            }
+
+            @Override
+            public void progress(int current, int count) {
+                publishProgress(current, count);
+            }
+        });
+    }
+
+    private int getConcurrentUploads(SharedPreferences settings) {
+        try {
+            return Math.max(1, Integer.parseInt(settings.getString(
+                    PreferencesActivity.KEY_CONCURRENT_UPLOADS, DEFAULT_CONCURRENT_UPLOADS)));
+        } catch (NumberFormatException e) {
+            return 1;
+        }
+    }
+
+    /**
+     * Drops the connections after a failed request. When other submissions are being uploaded at
+     * the same time, only the connections that aren't in use are closed.
+     */
+    private void resetConnections() {
+        // createHttpClient() takes the same lock, so an upload starting meanwhile either counts as
+        // running here or gets a new connection manager
+        synchronized (WebUtils.class) {
+            if (mScheduler != null && mScheduler.getRunning() > 1) {
+                WebUtils.closeIdleHttpConnections();
+            } else {
+                WebUtils.clearHttpConnectionManager();
+            }
+        }
+    }
+
 
     @Override
     protected void onPostExecute(Outcome outcome) {
@@ -642,9 +830,38 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
         }
     }
 
+    /**
+     * What came of posting a part of a submission.
+     */
+    enum PostResult {
+        ACCEPTED,
+        FAILED,
+        // nothing more is sent until the user gives credentials
+        CREDENTIALS_REQUIRED
+    }
+
     public static class Outcome {
         public Uri mAuthRequestingServer = null;
         public HashMap<String, String> mResults = new HashMap<>();
     }
 
+    private static class Submission {
+        private final String mId;
+        private final String mInstanceFilePath;
+        private final Uri mToUpdate;
+        private final String mUrlString;
+        // keys of the attachments the server already has, see getAttachmentKey()
+        private final Set<String> mAcknowledged = new LinkedHashSet<>();
+        private File mSubmissionFile;
+        // read from mSubmissionFile the first time an attachment key is needed
+        private String mInstanceId;
+        private long mLastStatusChangeDate;
+
+        Submission(String id, String instanceFilePath, Uri toUpdate, String urlString) {
+            mId = id;
+            mInstanceFilePath = instanceFilePath;
+            mToUpdate = toUpdate;
+            mUrlString = urlString;
+        }
+    }
 }
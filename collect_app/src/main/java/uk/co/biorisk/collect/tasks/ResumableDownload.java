@@ -0,0 +1,237 @@
+package uk.co.biorisk.collect.tasks;
+
+import android.util.Log;
+
+import com.belladati.httpclientandroidlib.Header;
+import com.belladati.httpclientandroidlib.HttpEntity;
+import com.belladati.httpclientandroidlib.HttpResponse;
+import com.belladati.httpclientandroidlib.HttpStatus;
+import com.belladati.httpclientandroidlib.client.methods.HttpGet;
+
+import uk.co.biorisk.collect.exception.TaskCancelledException;
+import uk.co.biorisk.collect.utilities.FileUtils;
+import uk.co.biorisk.collect.utilities.HashUtils;
+import uk.co.biorisk.collect.utilities.WebUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Downloads a file into a temp file, retrying when the connection fails.
+ * <p>
+ * If the server accepts byte ranges and sends the file unencoded, a transfer that fails part way
+ * is continued from where it stopped with a Range request rather than started again, and the
+ * partial file is left in place for a later download to continue. The complete file is checked
+ * against the expected md5 hash, if there is one.
+ */
+class ResumableDownload {
+
+    private static final String t = "ResumableDownload";
+
+    static final String RANGE_HEADER = "Range";
+    static final String CONTENT_RANGE_HEADER = "Content-Range";
+    static final String ACCEPT_RANGES_HEADER = "Accept-Ranges";
+    // two failures in a row without getting any more of the file
+    static final int MAX_CONSECUTIVE_FAILURES = 2;
+    static final int MAX_ATTEMPT_COUNT = 10;
+
+    interface Callbacks {
+        /**
+         * @return a request for the uri, with the headers the server expects
+         */
+        HttpGet newRequest(URI uri);
+
+        /**
+         * Sends the request. It can be aborted from another thread until
+         * {@link #requestFinished} is called with it.
+         */
+        HttpResponse execute(HttpGet req) throws IOException;
+
+        void requestFinished(HttpGet req);
+
+        boolean isCancelled();
+
+        /**
+         * @return what to throw when the server didn't send the file
+         */
+        Exception fetchFailed(HttpResponse response);
+
+        /**
+         * @return what to throw when the file doesn't have the expected hash
+         */
+        Exception hashMismatch();
+    }
+
+    private final File mTempFile;
+    private final URI mUri;
+    private final String mExpectedMd5;
+    private final Callbacks mCallbacks;
+
+    /**
+     * @param expectedMd5 the md5 hash the file should have, or null if it isn't known
+     */
+    ResumableDownload(File tempFile, URI uri, String expectedMd5, Callbacks callbacks) {
+        mTempFile = tempFile;
+        mUri = uri;
+        mExpectedMd5 = expectedMd5;
+        mCallbacks = callbacks;
+    }
+
+    /**
+     * Downloads the file into the temp file, continuing what is already in it.
+     */
+    void run() throws Exception {
+        // WiFi network connections can be renegotiated during a large form download sequence.
+        // This will cause intermittent download failures.  Silently retry after each
+        // failure.  Only if there are two consecutive failures without any progress, do we abort.
+        // A failure that got more of the file doesn't count.
+        boolean success = false;
+        boolean resumed = false;
+        int attemptCount = 0;
+        int failureCount = 0;
+        while (!success) {
+            ++attemptCount;
+
+            if (mCallbacks.isCancelled()) {
+                // whatever is in the temp file can still be continued
+                throw new TaskCancelledException(null, "Cancelled before requesting " + mTempFile.getAbsolutePath());
+            }
+
+            long offset = mTempFile.exists() ? mTempFile.length() : 0L;
+            if (offset > 0) {
+                Log.i(t, "Resuming download to " + mTempFile.getAbsolutePath() + " at byte " + offset + " from " + mUri);
+            } else {
+                Log.i(t, "Started downloading to " + mTempFile.getAbsolutePath() + " from " + mUri);
+            }
+
+            // set up request...
+            HttpGet req = mCallbacks.newRequest(mUri);
+            if (offset > 0) {
+                // ranges are of the bytes as sent, so the rest has to be asked for unencoded
+                req.addHeader(RANGE_HEADER, "bytes=" + offset + "-");
+            } else {
+                req.addHeader(WebUtils.ACCEPT_ENCODING_HEADER, WebUtils.GZIP_CONTENT_ENCODING);
+            }
+
+            boolean keepPartial = false;
+            try {
+                HttpResponse response = mCallbacks.execute(req);
+                int statusCode = response.getStatusLine().getStatusCode();
+
+                boolean append = false;
+                if (offset > 0 && statusCode == HttpStatus.SC_PARTIAL_CONTENT) {
+                    if (!startsAt(response, offset)) {
+                        WebUtils.discardEntityBytes(response);
+                        throw new IOException("Unexpected " + CONTENT_RANGE_HEADER + " when resuming " + mUri);
+                    }
+                    append = true;
+                } else if (statusCode != HttpStatus.SC_OK) {
+                    WebUtils.discardEntityBytes(response);
+                    throw mCallbacks.fetchFailed(response);
+                }
+
+                // write connection to file
+                HttpEntity entity = response.getEntity();
+                Header contentEncoding = entity.getContentEncoding();
+                boolean encoded = contentEncoding != null
+                        && !contentEncoding.getValue().equalsIgnoreCase("identity");
+                keepPartial = append || (!encoded && acceptsRanges(response));
+                resumed |= append;
+                InputStream is = entity.getContent();
+                if (contentEncoding != null && contentEncoding.getValue().equalsIgnoreCase(WebUtils.GZIP_CONTENT_ENCODING)) {
+                    is = new GZIPInputStream(is);
+                }
+                try (FileOutputStream os = new FileOutputStream(mTempFile, append)) {
+                    byte buf[] = new byte[4096];
+                    int len;
+                    while ((len = is.read(buf)) > 0 && !mCallbacks.isCancelled()) {
+                        os.write(buf, 0, len);
+                    }
+                    os.flush();
+                    // the file is renamed into place rather than copied, so it has to be on disk
+                    os.getFD().sync();
+                    success = true;
+                } finally {
+                    if (mCallbacks.isCancelled()) {
+                        // don't wait for the rest of the file
+                        req.abort();
+                    } else {
+                        try {
+                            // ensure stream is consumed...
+                            final long count = 1024L;
+                            while (is.skip(count) == count)
+                                ;
+                        } catch (Exception e) {
+                            // no-op
+                        }
+                    }
+                    try {
+                        is.close();
+                    } catch (Exception e) {
+                    }
+                }
+            } catch (Exception e) {
+                Log.e(t, e.toString());
+                // silently retry unless this is the last attempt,
+                // in which case we rethrow the exception.
+
+                boolean progressed = keepPartial && mTempFile.length() > offset;
+                if (!keepPartial) {
+                    FileUtils.deleteAndReport(mTempFile);
+                }
+
+                failureCount = progressed ? 0 : failureCount + 1;
+                if (failureCount >= MAX_CONSECUTIVE_FAILURES || attemptCount >= MAX_ATTEMPT_COUNT) {
+                    throw e;
+                }
+            } finally {
+                mCallbacks.requestFinished(req);
+            }
+
+            if (mCallbacks.isCancelled()) {
+                // a partial file that can be continued is left for the next download, or for
+                // purging once it has been left for long enough
+                if (!keepPartial) {
+                    FileUtils.deleteAndReport(mTempFile);
+                }
+                throw new TaskCancelledException(null, "Cancelled downloading of " + mTempFile.getAbsolutePath());
+            }
+
+            if (success && mExpectedMd5 != null) {
+                String hash = HashUtils.getMd5Hash(mTempFile);
+                if (hash == null || !hash.equals(mExpectedMd5)) {
+                    FileUtils.deleteAndReport(mTempFile);
+                    Exception mismatch = mCallbacks.hashMismatch();
+                    Log.e(t, mismatch.getMessage());
+                    if (!resumed || attemptCount >= MAX_ATTEMPT_COUNT) {
+                        throw mismatch;
+                    }
+                    // what was resumed may have been of a different file; start over
+                    success = false;
+                    resumed = false;
+                }
+            }
+        }
+    }
+
+    private static boolean acceptsRanges(HttpResponse response) {
+        Header acceptRanges = response.getFirstHeader(ACCEPT_RANGES_HEADER);
+        return acceptRanges != null && acceptRanges.getValue().trim().equalsIgnoreCase("bytes");
+    }
+
+    /**
+     * @return whether the partial content starts at the offset, e.g. "bytes 1000-1999/2000"
+     */
+    private static boolean startsAt(HttpResponse response, long offset) {
+        Header contentRange = response.getFirstHeader(CONTENT_RANGE_HEADER);
+        if (contentRange == null) {
+            return false;
+        }
+        String value = contentRange.getValue().trim();
+        return value.startsWith("bytes " + offset + "-");
+    }
+}
@@ -18,21 +18,26 @@ import android.content.ContentValues;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.preference.PreferenceManager;
 import android.util.Log;
 import org.javarosa.core.model.FormDef;
+import org.javarosa.core.model.SubmissionProfile;
 import org.javarosa.core.services.transport.payload.ByteArrayPayload;
 import org.javarosa.form.api.FormEntryController;
 import uk.co.biorisk.collect.R;
 import uk.co.biorisk.collect.application.Collect;
 import uk.co.biorisk.collect.exception.EncryptionException;
+import uk.co.biorisk.collect.listeners.EncryptionProgressListener;
 import uk.co.biorisk.collect.listeners.FormSavedListener;
 import uk.co.biorisk.collect.logic.FormController;
+import uk.co.biorisk.collect.preferences.PreferencesActivity;
 import uk.co.biorisk.collect.provider.FormsProviderAPI.FormsColumns;
 import uk.co.biorisk.collect.provider.InstanceProviderAPI;
 import uk.co.biorisk.collect.provider.InstanceProviderAPI.InstanceColumns;
 import uk.co.biorisk.collect.utilities.EncryptionUtils;
 import uk.co.biorisk.collect.utilities.EncryptionUtils.EncryptedFormInformation;
 import uk.co.biorisk.collect.utilities.FileUtils;
+import uk.co.biorisk.collect.utilities.ImageOptimizer;
 
 import java.io.File;
 import java.io.IOException;
@@ -52,6 +57,8 @@ public class SaveToDiskTask extends AsyncTask<Void, String, SaveResult> {
     public static final int VALIDATED = 503;
     public static final int SAVED_AND_EXIT = 504;
     private final static String t = "SaveToDiskTask";
+    private static final String IMAGE_MAX_PIXELS_ATTRIBUTE = "imageMaxPixels";
+    private static final String IMAGE_QUALITY_ATTRIBUTE = "imageQuality";
     private FormSavedListener mSavedListener;
     private Boolean mSave;
     private Boolean mMarkCompleted;
@@ -212,6 +219,9 @@ public class SaveToDiskTask extends AsyncTask<Void, String, SaveResult> {
         }
         // update this whether or not the status is complete...
         values.put(InstanceColumns.CAN_EDIT_WHEN_COMPLETE, Boolean.toString(canEditAfterCompleted));
+        // the files have been written again, so what a server acknowledged of an earlier upload
+        // may no longer be what it would get
+        values.putNull(InstanceColumns.ACKNOWLEDGED_ATTACHMENTS);
 
         // If FormEntryActivity was started with an Instance, just update that instance
         if (Collect.getInstance().getContentResolver().getType(mUri).equals(InstanceColumns.CONTENT_ITEM_TYPE)) {
@@ -321,6 +331,14 @@ public class SaveToDiskTask extends AsyncTask<Void, String, SaveResult> {
 
             exportXmlFile(payload, submissionXml.getAbsolutePath());
 
+            // shrink the photos before they are encrypted or sent
+            int imageMaxPixels = getImageMaxPixels(formController);
+            if (imageMaxPixels > 0) {
+                publishProgress(Collect.getInstance().getString(R.string.survey_saving_optimizing_message));
+                ImageOptimizer.optimizeImages(instanceXml.getParentFile(), imageMaxPixels,
+                        getImageQuality(formController));
+            }
+
             // see if the form is encrypted and we can encrypt it...
             EncryptedFormInformation formInfo = EncryptionUtils.getEncryptedFormInformation(mUri,
                     formController.getSubmissionMetadata());
@@ -331,7 +349,15 @@ public class SaveToDiskTask extends AsyncTask<Void, String, SaveResult> {
 
                 publishProgress(Collect.getInstance().getString(R.string.survey_saving_encrypting_message));
 
-                EncryptionUtils.generateEncryptedSubmission(instanceXml, submissionXml, formInfo);
+                EncryptionUtils.generateEncryptedSubmission(instanceXml, submissionXml, formInfo,
+                        EncryptionUtils.DEFAULT_BUFFER_SIZE, new EncryptionProgressListener() {
+                            @Override
+                            public void onFileEncrypted(File file, int filesDone, int filesTotal) {
+                                publishProgress(Collect.getInstance().getString(
+                                        R.string.survey_saving_encrypting_file_message,
+                                        filesDone, filesTotal));
+                            }
+                        });
                 isEncrypted = true;
             }
 
@@ -393,6 +419,44 @@ public class SaveToDiskTask extends AsyncTask<Void, String, SaveResult> {
         }
     }
 
+    /**
+     * @return the longest side photos are downscaled to, or 0 to send them as they are; set by the
+     * form's submission element (imageMaxPixels) or else by the preference
+     */
+    private int getImageMaxPixels(FormController formController) {
+        String formSetting = getSubmissionAttribute(formController, IMAGE_MAX_PIXELS_ATTRIBUTE);
+        String setting = formSetting != null ? formSetting
+                : PreferenceManager.getDefaultSharedPreferences(Collect.getInstance()).getString(
+                PreferencesActivity.KEY_IMAGE_MAX_PIXELS, "0");
+        try {
+            return Integer.parseInt(setting.trim());
+        } catch (NumberFormatException e) {
+            Log.w(t, "Invalid image size " + setting);
+            return 0;
+        }
+    }
+
+    /**
+     * @return the JPEG quality downscaled photos are written with, set by the form's submission
+     * element (imageQuality)
+     */
+    private int getImageQuality(FormController formController) {
+        String formSetting = getSubmissionAttribute(formController, IMAGE_QUALITY_ATTRIBUTE);
+        if (formSetting != null) {
+            try {
+                return Math.max(0, Math.min(100, Integer.parseInt(formSetting.trim())));
+            } catch (NumberFormatException e) {
+                Log.w(t, "Invalid image quality " + formSetting);
+            }
+        }
+        return ImageOptimizer.DEFAULT_QUALITY;
+    }
+
+    private String getSubmissionAttribute(FormController formController, String name) {
+        SubmissionProfile p = formController.getFormDef().getSubmissionProfile();
+        return p == null ? null : p.getAttribute(name);
+    }
+
     @Override
     protected void onProgressUpdate(String... values) {
         super.onProgressUpdate(values);
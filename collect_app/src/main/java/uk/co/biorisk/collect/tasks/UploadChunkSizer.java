@@ -0,0 +1,60 @@
+package uk.co.biorisk.collect.tasks;
+
+/**
+ * Decides how many bytes of attachments to send in each part of a submission.
+ * <p>
+ * Parts are sized so that sending one takes about {@link #TARGET_PART_MILLIS} at the throughput
+ * seen so far, so a part that fails on a slow or flaky connection doesn't waste much. Every
+ * failed part halves the size; it never grows beyond {@link #MAX_PART_BYTES}, which is the most
+ * servers accept in one post.
+ */
+class UploadChunkSizer {
+
+    static final long MAX_PART_BYTES = 10000000L;
+    static final long MIN_PART_BYTES = 256L * 1024L;
+
+    private static final long TARGET_PART_MILLIS = 60000L;
+    // weight of the latest part in the throughput estimate
+    private static final double SMOOTHING = 0.3;
+
+    private static UploadChunkSizer singleton = null;
+
+    private long mPartBytes = MAX_PART_BYTES;
+    // bytes per millisecond, or -1 until a part has been sent
+    private double mThroughput = -1;
+
+    private UploadChunkSizer() {
+    }
+
+    static synchronized UploadChunkSizer getInstance() {
+        if (singleton == null) {
+            singleton = new UploadChunkSizer();
+        }
+        return singleton;
+    }
+
+    /**
+     * @return the most attachment bytes the next part should carry
+     */
+    synchronized long getPartBytes() {
+        return mPartBytes;
+    }
+
+    synchronized void partSent(long bytes, long millis) {
+        if (millis <= 0 || bytes < MIN_PART_BYTES) {
+            // the time to send a small part is mostly latency
+            return;
+        }
+        double throughput = (double) bytes / millis;
+        mThroughput = mThroughput < 0 ? throughput : SMOOTHING * throughput + (1 - SMOOTHING) * mThroughput;
+        mPartBytes = clamp((long) (mThroughput * TARGET_PART_MILLIS));
+    }
+
+    synchronized void partFailed() {
+        mPartBytes = clamp(mPartBytes / 2);
+    }
+
+    private static long clamp(long partBytes) {
+        return Math.max(MIN_PART_BYTES, Math.min(MAX_PART_BYTES, partBytes));
+    }
+}
@@ -0,0 +1,156 @@
+package uk.co.biorisk.collect.tasks;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a number of uploads at the same time, and at most a given number at a time to the same
+ * server.
+ * <p>
+ * Progress is reported in the order of the uploads, so the count only moves on once every upload
+ * before it is done. If an upload can't go on (because a server asks for credentials), no more
+ * uploads are started and the ones already running are allowed to finish.
+ */
+class UploadScheduler {
+
+    private static final String t = "UploadScheduler";
+
+    interface Uploads {
+        /**
+         * Called on one of the scheduler's threads.
+         *
+         * @return false if no more uploads should be started
+         */
+        boolean upload(int index);
+
+        boolean isCancelled();
+
+        /**
+         * @param current the first upload that isn't finished yet, counting from 1
+         */
+        void progress(int current, int count);
+    }
+
+    private final int mMaxUploads;
+    private final int mMaxUploadsPerHost;
+    private final AtomicInteger mRunning = new AtomicInteger(0);
+
+    UploadScheduler(int maxUploads, int maxUploadsPerHost) {
+        mMaxUploads = maxUploads;
+        mMaxUploadsPerHost = maxUploadsPerHost;
+    }
+
+    /**
+     * @return how many uploads are being sent right now
+     */
+    int getRunning() {
+        return mRunning.get();
+    }
+
+    /**
+     * Runs the uploads and returns once they have all finished or been skipped.
+     *
+     * @param hosts the server each upload goes to, by index
+     */
+    void run(List<String> hosts, final Uploads uploads) {
+        final int count = hosts.size();
+        final AtomicBoolean stopped = new AtomicBoolean(false);
+        final OrderedProgress progress = new OrderedProgress(count, uploads);
+
+        Map<String, Semaphore> permitsByHost = new HashMap<>();
+        final Semaphore[] hostPermits = new Semaphore[count];
+        for (int i = 0; i < count; i++) {
+            String host = hosts.get(i) == null ? "" : hosts.get(i);
+            if (!permitsByHost.containsKey(host)) {
+                permitsByHost.put(host, new Semaphore(mMaxUploadsPerHost));
+            }
+            hostPermits[i] = permitsByHost.get(host);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(mMaxUploads, count)));
+        List<Future<?>> futures = new ArrayList<>();
+        uploads.progress(1, count);
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        hostPermits[index].acquire();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    try {
+                        if (stopped.get() || uploads.isCancelled()) {
+                            return;
+                        }
+                        mRunning.incrementAndGet();
+                        boolean keepGoing;
+                        try {
+                            keepGoing = uploads.upload(index);
+                        } finally {
+                            mRunning.decrementAndGet();
+                        }
+                        if (!keepGoing) {
+                            stopped.set(true);
+                        }
+                    } finally {
+                        hostPermits[index].release();
+                        progress.finished(index);
+                    }
+                }
+            }));
+        }
+        executor.shutdown();
+
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            // the task was cancelled; uploads that have started can't be stopped half way
+            executor.shutdownNow();
+        } catch (ExecutionException e) {
+            Log.e(t, "Upload failed", e);
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Reports "upload n of count" where n is the first upload that isn't finished yet.
+     */
+    private static class OrderedProgress {
+        private final boolean[] mFinished;
+        private final Uploads mUploads;
+        private int mFirstUnfinished = 0;
+
+        OrderedProgress(int count, Uploads uploads) {
+            mFinished = new boolean[count];
+            mUploads = uploads;
+        }
+
+        synchronized void finished(int index) {
+            mFinished[index] = true;
+            if (index != mFirstUnfinished) {
+                return;
+            }
+            while (mFirstUnfinished < mFinished.length && mFinished[mFirstUnfinished]) {
+                mFirstUnfinished++;
+            }
+            if (mFirstUnfinished < mFinished.length) {
+                mUploads.progress(mFirstUnfinished + 1, mFinished.length);
+            }
+        }
+    }
+}
@@ -14,27 +14,36 @@
 
 package uk.co.biorisk.collect.utilities;
 
-import org.kxml2.kdom.Document;
-
 public class DocumentFetchResult {
     public final String errorMessage;
     public final int responseCode;
-    public final Document doc;
     public final boolean isOpenRosaResponse;
+    // the server says the stored copy of the document is still current
+    public final boolean notModified;
 
 
     public DocumentFetchResult(String msg, int response) {
         responseCode = response;
         errorMessage = msg;
-        doc = null;
         isOpenRosaResponse = false;
+        notModified = false;
+    }
+
+
+    public DocumentFetchResult(boolean isOpenRosaResponse) {
+        this(isOpenRosaResponse, false);
     }
 
 
-    public DocumentFetchResult(Document doc, boolean isOpenRosaResponse) {
-        responseCode = 0;
+    private DocumentFetchResult(boolean isOpenRosaResponse, boolean notModified) {
+        responseCode = notModified ? 304 : 0;
         errorMessage = null;
-        this.doc = doc;
         this.isOpenRosaResponse = isOpenRosaResponse;
+        this.notModified = notModified;
+    }
+
+
+    public static DocumentFetchResult unchanged(boolean isOpenRosaResponse) {
+        return new DocumentFetchResult(isOpenRosaResponse, true);
     }
-}
\ No newline at end of file
+}
@@ -25,14 +25,11 @@ import org.kxml2.kdom.Element;
 import org.kxml2.kdom.Node;
 import org.odk.collect.android.utilities.IOUtils;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStreamWriter;
-import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
@@ -45,11 +42,16 @@ import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
-import javax.crypto.CipherOutputStream;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.IvParameterSpec;
@@ -57,6 +59,7 @@ import javax.crypto.spec.SecretKeySpec;
 
 import uk.co.biorisk.collect.application.Collect;
 import uk.co.biorisk.collect.exception.EncryptionException;
+import uk.co.biorisk.collect.listeners.EncryptionProgressListener;
 import uk.co.biorisk.collect.logic.FormController.InstanceMetadata;
 import uk.co.biorisk.collect.provider.FormsProviderAPI.FormsColumns;
 import uk.co.biorisk.collect.provider.InstanceProviderAPI.InstanceColumns;
@@ -74,6 +77,8 @@ public class EncryptionUtils {
     public static final String UTF_8 = "UTF-8";
     public static final int SYMMETRIC_KEY_LENGTH = 256;
     public static final int IV_BYTE_LENGTH = 16;
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_ENCRYPTION_THREADS = 4;
     private static final String t = "EncryptionUtils";
 
     // tags in the submission manifest
@@ -244,7 +249,15 @@ public class EncryptionUtils {
                 pk, wrapper);
     }
 
-    private static void encryptFile(File file, EncryptedFormInformation formInfo)
+    /**
+     * Encrypts the file to "&lt;name&gt;.enc" next to it using the given IV (from
+     * {@link EncryptedFormInformation#nextIv()}). The file is streamed through the cipher using a
+     * buffer of bufferSize bytes, so memory use does not depend on the size of the file.
+     * <p>
+     * The caller is responsible for adding the file to the signature source.
+     */
+    private static void encryptFile(File file, EncryptedFormInformation formInfo, byte[] iv,
+                                    int bufferSize)
             throws IOException, EncryptionException {
         File encryptedFile = new File(file.getParentFile(), file.getName()
                 + ".enc");
@@ -253,29 +266,26 @@ public class EncryptionUtils {
             throw new IOException("Cannot overwrite " + encryptedFile.getAbsolutePath() + ". Perhaps the file is locked?");
         }
 
-        // add elementSignatureSource for this file...
-        formInfo.appendFileSignatureSource(file);
-
-        RandomAccessFile randomAccessFile = null;
-        CipherOutputStream cipherOutputStream = null;
+        FileInputStream fin = null;
+        FileOutputStream fout = null;
         try {
-            Cipher c = formInfo.getCipher();
+            Cipher c = formInfo.getCipher(iv);
 
-            randomAccessFile = new RandomAccessFile(encryptedFile, "rws");
-            ByteArrayOutputStream encryptedData = new ByteArrayOutputStream();
-            cipherOutputStream = new CipherOutputStream(encryptedData, c);
-            InputStream fin = new FileInputStream(file);
-            byte[] buffer = new byte[2048];
+            fin = new FileInputStream(file);
+            fout = new FileOutputStream(encryptedFile);
+            byte[] buffer = new byte[bufferSize];
+            byte[] encrypted = new byte[c.getOutputSize(bufferSize)];
             int len = fin.read(buffer);
             while (len != -1) {
-                cipherOutputStream.write(buffer, 0, len);
+                int encryptedLen = c.update(buffer, 0, len, encrypted, 0);
+                fout.write(encrypted, 0, encryptedLen);
                 len = fin.read(buffer);
             }
-            fin.close();
-            cipherOutputStream.flush();
-            cipherOutputStream.close();
+            int encryptedLen = c.doFinal(encrypted, 0);
+            fout.write(encrypted, 0, encryptedLen);
 
-            randomAccessFile.write(encryptedData.toByteArray());
+            // one sync at the end instead of one per write
+            fout.getFD().sync();
 
             Log.i(t,
                     "Encrpyted:" + file.getName() + " -> "
@@ -287,10 +297,11 @@ public class EncryptionUtils {
             e.printStackTrace();
             throw new EncryptionException(msg, e);
         } finally {
-            IOUtils.INSTANCE.closeQuietly(cipherOutputStream);
-
-            if (randomAccessFile != null) {
-                randomAccessFile.close();
+            if (fin != null) {
+                IOUtils.INSTANCE.closeQuietly(fin);
+            }
+            if (fout != null) {
+                fout.close();
             }
         }
     }
@@ -319,7 +330,10 @@ public class EncryptionUtils {
     }
 
     private static List<File> encryptSubmissionFiles(File instanceXml,
-                                                     File submissionXml, EncryptedFormInformation formInfo) throws IOException, EncryptionException {
+                                                     File submissionXml, EncryptedFormInformation formInfo,
+                                                     int bufferSize, EncryptionProgressListener listener,
+                                                     int maxThreads)
+            throws IOException, EncryptionException {
         // NOTE: assume the directory containing the instanceXml contains ONLY
         // files related to this one instance.
         File instanceDir = instanceXml.getParentFile();
@@ -343,17 +357,92 @@ public class EncryptionUtils {
                 filesToProcess.add(f);
             }
         }
-        // encrypt here...
-        for (File f : filesToProcess) {
-            encryptFile(f, formInfo);
+        // in name order, so that the manifest and the IVs don't depend on the order the
+        // directory happens to list them in
+        Collections.sort(filesToProcess);
+        // encrypt the submission.xml as the last file...
+        List<File> filesToEncrypt = new ArrayList<>(filesToProcess);
+        filesToEncrypt.add(submissionXml);
+
+        // Hand out the IVs in file order up front, so each file gets the same IV whether the
+        // files are encrypted one after another or all at once.
+        List<byte[]> ivs = new ArrayList<>();
+        for (int i = 0; i < filesToEncrypt.size(); i++) {
+            ivs.add(formInfo.nextIv());
         }
 
-        // encrypt the submission.xml as the last file...
-        encryptFile(submissionXml, formInfo);
+        int threads = Math.min(filesToEncrypt.size(), maxThreads);
+        if (threads <= 1) {
+            for (int i = 0; i < filesToEncrypt.size(); i++) {
+                File f = filesToEncrypt.get(i);
+                // add elementSignatureSource for this file...
+                formInfo.appendFileSignatureSource(f);
+                encryptFile(f, formInfo, ivs.get(i), bufferSize);
+                if (listener != null) {
+                    listener.onFileEncrypted(f, i + 1, filesToEncrypt.size());
+                }
+            }
+        } else {
+            encryptFilesConcurrently(filesToEncrypt, ivs, formInfo, bufferSize, listener, threads);
+        }
 
         return filesToProcess;
     }
 
+    /**
+     * Hashes and encrypts the files on a pool of the given number of threads. The file signature
+     * sources are still appended in file order, so the submission manifest is the same as if the
+     * files had been encrypted one after another.
+     */
+    private static void encryptFilesConcurrently(List<File> files, List<byte[]> ivs,
+                                                 final EncryptedFormInformation formInfo,
+                                                 final int bufferSize,
+                                                 EncryptionProgressListener listener, int threads)
+            throws IOException, EncryptionException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<String>> md5Hashes = new ArrayList<>();
+            for (int i = 0; i < files.size(); i++) {
+                final File f = files.get(i);
+                final byte[] iv = ivs.get(i);
+                md5Hashes.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        String md5Hash = FileUtils.getMd5Hash(f);
+                        encryptFile(f, formInfo, iv, bufferSize);
+                        return md5Hash;
+                    }
+                }));
+            }
+
+            for (int i = 0; i < files.size(); i++) {
+                File f = files.get(i);
+                String md5Hash;
+                try {
+                    md5Hash = md5Hashes.get(i).get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof EncryptionException) {
+                        throw (EncryptionException) cause;
+                    } else if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    }
+                    throw new EncryptionException("Error encrypting: " + f.getName(), cause);
+                }
+                // add elementSignatureSource for this file...
+                formInfo.appendFileSignatureSource(f.getName(), md5Hash);
+                if (listener != null) {
+                    listener.onFileEncrypted(f, i + 1, files.size());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EncryptionException("Interrupted while encrypting", e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     /**
      * Constructs the encrypted attachments, encrypted form xml, and the
      * plaintext submission manifest (with signature) for the form submission.
@@ -367,6 +456,32 @@ public class EncryptionUtils {
      */
     public static void generateEncryptedSubmission(File instanceXml,
                                                    File submissionXml, EncryptedFormInformation formInfo) throws IOException, EncryptionException {
+        generateEncryptedSubmission(instanceXml, submissionXml, formInfo,
+                DEFAULT_BUFFER_SIZE, null);
+    }
+
+    /**
+     * As {@link #generateEncryptedSubmission(File, File, EncryptedFormInformation)}, streaming
+     * each file through a buffer of bufferSize bytes and notifying the listener (which may be
+     * null) as each file is encrypted.
+     */
+    public static void generateEncryptedSubmission(File instanceXml,
+                                                   File submissionXml, EncryptedFormInformation formInfo,
+                                                   int bufferSize, EncryptionProgressListener listener)
+            throws IOException, EncryptionException {
+        generateEncryptedSubmission(instanceXml, submissionXml, formInfo, bufferSize, listener,
+                Math.min(MAX_ENCRYPTION_THREADS, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * As {@link #generateEncryptedSubmission(File, File, EncryptedFormInformation, int,
+     * EncryptionProgressListener)}, encrypting on at most maxThreads threads.
+     */
+    static void generateEncryptedSubmission(File instanceXml,
+                                            File submissionXml, EncryptedFormInformation formInfo,
+                                            int bufferSize, EncryptionProgressListener listener,
+                                            int maxThreads)
+            throws IOException, EncryptionException {
         // submissionXml is the submission data to be published to Aggregate
         if (!submissionXml.exists() || !submissionXml.isFile()) {
             throw new IOException("No submission.xml found");
@@ -376,7 +491,7 @@ public class EncryptionUtils {
 
         // Step 1: encrypt the submission and all the media files...
         List<File> mediaFiles = encryptSubmissionFiles(instanceXml,
-                submissionXml, formInfo);
+                submissionXml, formInfo, bufferSize, listener, maxThreads);
 
         // Step 2: build the encrypted-submission manifest (overwrites
         // submission.xml)...
@@ -472,21 +587,25 @@ public class EncryptionUtils {
         public final StringBuilder elementSignatureSource = new StringBuilder();
         public final Base64Wrapper wrapper;
         private int ivCounter = 0;
-        private boolean isNotBouncyCastle = false;
+        private volatile boolean isNotBouncyCastle = false;
 
         EncryptedFormInformation(String formId, String formVersion,
                                  InstanceMetadata instanceMetadata, PublicKey rsaPublicKey, Base64Wrapper wrapper) {
+            this(formId, formVersion, instanceMetadata, rsaPublicKey, wrapper, newSymmetricKey());
+        }
+
+        /**
+         * @param key the bits of the symmetric key
+         */
+        EncryptedFormInformation(String formId, String formVersion,
+                                 InstanceMetadata instanceMetadata, PublicKey rsaPublicKey, Base64Wrapper wrapper,
+                                 byte[] key) {
             this.formId = formId;
             this.formVersion = formVersion;
             this.instanceMetadata = instanceMetadata;
             this.rsaPublicKey = rsaPublicKey;
             this.wrapper = wrapper;
 
-            // generate the symmetric key from random bits...
-
-            SecureRandom r = new SecureRandom();
-            byte[] key = new byte[SYMMETRIC_KEY_LENGTH / 8];
-            r.nextBytes(key);
             SecretKeySpec sk = new SecretKeySpec(key, SYMMETRIC_ALGORITHM);
             symmetricKey = sk;
 
@@ -555,13 +674,27 @@ public class EncryptionUtils {
             appendElementSignatureSource(instanceMetadata.instanceId);
         }
 
+        /**
+         * @return the bits of a new symmetric key, generated at random
+         */
+        private static byte[] newSymmetricKey() {
+            SecureRandom r = new SecureRandom();
+            byte[] key = new byte[SYMMETRIC_KEY_LENGTH / 8];
+            r.nextBytes(key);
+            return key;
+        }
+
         public void appendElementSignatureSource(String value) {
             elementSignatureSource.append(value).append("\n");
         }
 
         public void appendFileSignatureSource(File file) {
             String md5Hash = FileUtils.getMd5Hash(file);
-            appendElementSignatureSource(file.getName() + "::" + md5Hash);
+            appendFileSignatureSource(file.getName(), md5Hash);
+        }
+
+        public void appendFileSignatureSource(String fileName, String md5Hash) {
+            appendElementSignatureSource(fileName + "::" + md5Hash);
         }
 
         public String getBase64EncryptedElementSignature() {
@@ -627,11 +760,22 @@ public class EncryptionUtils {
             }
         }
 
-        public Cipher getCipher() throws InvalidKeyException,
-                InvalidAlgorithmParameterException, NoSuchAlgorithmException, NoSuchPaddingException {
+        /**
+         * Advances the IV and returns a copy of it. Each file must be encrypted with its own IV,
+         * and the files must be given their IVs in the order they are listed in the manifest.
+         */
+        public synchronized byte[] nextIv() {
             ++ivSeedArray[ivCounter % ivSeedArray.length];
             ++ivCounter;
-            IvParameterSpec baseIv = new IvParameterSpec(ivSeedArray);
+            return ivSeedArray.clone();
+        }
+
+        /**
+         * @param iv an IV from {@link #nextIv()}
+         */
+        public Cipher getCipher(byte[] iv) throws InvalidKeyException,
+                InvalidAlgorithmParameterException, NoSuchAlgorithmException, NoSuchPaddingException {
+            IvParameterSpec baseIv = new IvParameterSpec(iv);
             Cipher c = null;
             try {
                 c = Cipher.getInstance(EncryptionUtils.SYMMETRIC_ALGORITHM, "BC");
@@ -20,10 +20,10 @@ import android.graphics.BitmapFactory;
 import android.util.Log;
 
 import org.javarosa.xform.parse.XFormParser;
-import org.kxml2.kdom.Document;
-import org.kxml2.kdom.Element;
-import org.kxml2.kdom.Node;
+import org.kxml2.io.KXmlParser;
 import org.odk.collect.android.utilities.IOUtils;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -33,10 +33,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
-import java.math.BigInteger;
 import java.nio.channels.FileChannel;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
 
 import uk.co.biorisk.collect.R;
@@ -55,6 +52,7 @@ public class FileUtils {
     public static final String TITLE = "title";
     public static final String SUBMISSIONURI = "submission";
     public static final String BASE64_RSA_PUBLIC_KEY = "base64RsaPublicKey";
+    private static final String STAGING_EXTENSION = ".installing";
     private final static String t = "FileUtils";
 
     public static boolean createFolder(String path) {
@@ -127,60 +125,12 @@ public class FileUtils {
     }
 
 
-    @SuppressLint("LongLogTag")
+    /**
+     * @return the md5 hash of the file's contents, or null if it could not be read
+     * @see HashUtils#getMd5Hash(File)
+     */
     public static String getMd5Hash(File file) {
-        try {
-            // CTS (6/15/2010) : stream file through digest instead of handing it the byte[]
-            MessageDigest md = MessageDigest.getInstance("MD5");
-            int chunkSize = 256;
-
-            byte[] chunk = new byte[chunkSize];
-
-            // Get the size of the file
-            long lLength = file.length();
-
-            if (lLength > Integer.MAX_VALUE) {
-                Log.e(t, "File " + file.getName() + "is too large");
-                return null;
-            }
-
-            int length = (int) lLength;
-
-            InputStream is = null;
-            is = new FileInputStream(file);
-
-            int l = 0;
-            for (l = 0; l + chunkSize < length; l += chunkSize) {
-                is.read(chunk, 0, chunkSize);
-                md.update(chunk, 0, chunkSize);
-            }
-
-            int remaining = length - l;
-            if (remaining > 0) {
-                is.read(chunk, 0, remaining);
-                md.update(chunk, 0, remaining);
-            }
-            byte[] messageDigest = md.digest();
-
-            BigInteger number = new BigInteger(1, messageDigest);
-            String md5 = number.toString(16);
-            while (md5.length() < 32)
-                md5 = "0" + md5;
-            is.close();
-            return md5;
-
-        } catch (NoSuchAlgorithmException e) {
-            Log.e("MD5", e.getMessage());
-            return null;
-
-        } catch (FileNotFoundException e) {
-            Log.e("No Cache File", e.getMessage());
-            return null;
-        } catch (IOException e) {
-            Log.e("Problem reading from file", e.getMessage());
-            return null;
-        }
-
+        return HashUtils.getMd5Hash(file);
     }
 
 
@@ -232,6 +182,51 @@ public class FileUtils {
         }
     }
 
+    /**
+     * Moves a file into place, replacing whatever is there. Within a filesystem this is a rename,
+     * so nothing is written again and the destination is never seen half written. Across
+     * filesystems the file is copied next to the destination first and then renamed over it.
+     *
+     * @return an error message, or null if the file was moved
+     */
+    public static String moveFile(File sourceFile, File destFile) {
+        if (!sourceFile.exists()) {
+            String msg = "Source file does not exist: " + sourceFile.getAbsolutePath();
+            Log.e(t, msg);
+            return msg;
+        }
+        if (sourceFile.renameTo(destFile)) {
+            return null;
+        }
+
+        Log.i(t, "Unable to rename " + sourceFile.getAbsolutePath() + " to "
+                + destFile.getAbsolutePath() + ", copying it instead");
+        return copyIntoPlace(sourceFile, destFile);
+    }
+
+    /**
+     * Copies the file next to the destination, renames the copy over the destination, and then
+     * deletes the file. If the copy can't be put in place, the file is left where it was.
+     *
+     * @return an error message, or null if the file was moved
+     */
+    static String copyIntoPlace(File sourceFile, File destFile) {
+        File stagingFile = new File(destFile.getParentFile(), "." + destFile.getName() + STAGING_EXTENSION);
+        String errorMessage = copyFile(sourceFile, stagingFile);
+        if (errorMessage == null && !stagingFile.renameTo(destFile)
+                // some filesystems don't rename over an existing file
+                && !(destFile.delete() && stagingFile.renameTo(destFile))) {
+            errorMessage = "Unable to rename " + stagingFile.getAbsolutePath() + " to "
+                    + destFile.getAbsolutePath();
+        }
+        if (errorMessage != null) {
+            deleteAndReport(stagingFile);
+            return errorMessage;
+        }
+        deleteAndReport(sourceFile);
+        return null;
+    }
+
     private static String actualCopy(File sourceFile, File destFile) {
         FileInputStream fileInputStream = null;
         FileOutputStream fileOutputStream = null;
@@ -279,52 +274,118 @@ public class FileUtils {
             isr = new InputStreamReader(is);
         }
 
-        if (isr != null) {
-
-            Document doc;
+        try {
+            KXmlParser parser = new KXmlParser();
+            parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+            parser.setInput(isr);
+            readFormHeader(parser, xmlFile, fields);
+        } catch (XmlPullParserException | IOException e) {
+            e.printStackTrace();
+            throw new IllegalStateException("Unable to parse XML document", e);
+        } finally {
             try {
-                doc = XFormParser.getXMLDocument(isr);
+                isr.close();
             } catch (IOException e) {
+                Log.w(t, xmlFile.getAbsolutePath() + " Error closing form reader");
                 e.printStackTrace();
-                throw new IllegalStateException("Unable to parse XML document", e);
-            } finally {
-                try {
-                    isr.close();
-                } catch (IOException e) {
-                    Log.w(t, xmlFile.getAbsolutePath() + " Error closing form reader");
-                    e.printStackTrace();
-                }
             }
+        }
+        return fields;
+    }
 
-            String xforms = "http://www.w3.org/2002/xforms";
-            String html = doc.getRootElement().getNamespace();
-
-            Element head = doc.getRootElement().getElement(html, "head");
-            Element title = head.getElement(html, "title");
-            if (title != null) {
-                fields.put(TITLE, XFormParser.getXMLText(title, true));
+    /**
+     * Streams through an instance, or the manifest of an encrypted one, for its instanceID.
+     *
+     * @return the instanceID, or null if it has none or can't be read
+     */
+    public static String getInstanceId(File instanceXml) {
+        try (InputStreamReader isr = new InputStreamReader(new FileInputStream(instanceXml),
+                "UTF-8")) {
+            KXmlParser parser = new KXmlParser();
+            parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+            parser.setInput(isr);
+            int event;
+            while ((event = parser.next()) != XmlPullParser.END_DOCUMENT) {
+                if (event == XmlPullParser.START_TAG && "instanceID".equals(parser.getName())) {
+                    String instanceId = readLeadingText(parser);
+                    return instanceId.length() == 0 ? null : instanceId;
+                }
             }
+        } catch (XmlPullParserException | IOException e) {
+            Log.w(t, "Unable to read the instanceID of " + instanceXml.getAbsolutePath(), e);
+        }
+        return null;
+    }
 
-            Element model = getChildElement(head, "model");
-            Element cur = getChildElement(model, "instance");
-
-            int idx = cur.getChildCount();
-            int i;
-            for (i = 0; i < idx; ++i) {
-                if (cur.isText(i))
-                    continue;
-                if (cur.getType(i) == Node.ELEMENT) {
+    /**
+     * Streams through the head of the form collecting the title, form id, version and submission
+     * attributes. Elements we don't need are skipped without being built, and reading stops at the
+     * end of the model (or of the head, if the title comes after the model), so the body of the
+     * form is never read.
+     */
+    private static void readFormHeader(XmlPullParser parser, File xmlFile,
+                                       HashMap<String, String> fields)
+            throws XmlPullParserException, IOException {
+        String xforms = "http://www.w3.org/2002/xforms";
+        String html = null;
+
+        boolean seenHead = false;
+        boolean seenTitle = false;
+        boolean seenModel = false;
+        boolean seenInstance = false;
+        boolean seenDataElement = false;
+        boolean seenSubmission = false;
+
+        // Everything we are not interested in is skipped as a whole, so the depth of a start tag
+        // tells us its parent: 2 is under the root, 3 under the head, 4 under the model and 5
+        // under the main instance.
+        int event;
+        while ((event = parser.next()) != XmlPullParser.END_DOCUMENT) {
+            int depth = parser.getDepth();
+            if (event == XmlPullParser.END_TAG) {
+                if (depth == 2 || (depth == 3 && seenModel && seenTitle)) {
+                    // end of the head, or end of the model with everything found
                     break;
                 }
+                continue;
+            }
+            if (event != XmlPullParser.START_TAG) {
+                continue;
             }
 
-            if (i < idx) {
-                cur = cur.getElement(i); // this is the first data element
-                String id = cur.getAttributeValue(null, "id");
-                String xmlns = cur.getNamespace();
-
-                String version = cur.getAttributeValue(null, "version");
-                String uiVersion = cur.getAttributeValue(null, "uiVersion");
+            String name = parser.getName();
+            String namespace = parser.getNamespace();
+            if (depth == 1) {
+                html = namespace;
+            } else if (depth == 2 && !seenHead
+                    && name.equals("head") && namespace.equals(html)) {
+                seenHead = true;
+            } else if (depth == 3 && !seenTitle
+                    && name.equals("title") && namespace.equals(html)) {
+                seenTitle = true;
+                fields.put(TITLE, readLeadingText(parser));
+            } else if (depth == 3 && !seenModel && name.equalsIgnoreCase("model")) {
+                seenModel = true;
+            } else if (depth == 4 && !seenInstance && name.equalsIgnoreCase("instance")) {
+                seenInstance = true;
+            } else if (depth == 4 && !seenSubmission
+                    && name.equals("submission") && namespace.equals(xforms)) {
+                seenSubmission = true;
+                String submissionUri = parser.getAttributeValue(null, "action");
+                fields.put(SUBMISSIONURI, (submissionUri == null) ? null : submissionUri);
+                String base64RsaPublicKey = parser.getAttributeValue(null, "base64RsaPublicKey");
+                fields.put(BASE64_RSA_PUBLIC_KEY,
+                        (base64RsaPublicKey == null || base64RsaPublicKey.trim().length() == 0)
+                                ? null : base64RsaPublicKey.trim());
+                skipElement(parser);
+            } else if (depth == 5 && !seenDataElement) {
+                // this is the first data element
+                seenDataElement = true;
+                String id = parser.getAttributeValue(null, "id");
+                String xmlns = namespace;
+
+                String version = parser.getAttributeValue(null, "version");
+                String uiVersion = parser.getAttributeValue(null, "uiVersion");
                 if (uiVersion != null) {
                     // pre-OpenRosa 1.0 variant of spec
                     Log.e(t, "Obsolete use of uiVersion -- IGNORED -- only using version: " + version);
@@ -332,39 +393,70 @@ public class FileUtils {
 
                 fields.put(FORMID, (id == null) ? xmlns : id);
                 fields.put(VERSION, (version == null) ? null : version);
+                skipElement(parser);
             } else {
-                throw new IllegalStateException(xmlFile.getAbsolutePath() + " could not be parsed");
-            }
-            try {
-                Element submission = model.getElement(xforms, "submission");
-                String submissionUri = submission.getAttributeValue(null, "action");
-                fields.put(SUBMISSIONURI, (submissionUri == null) ? null : submissionUri);
-                String base64RsaPublicKey = submission.getAttributeValue(null, "base64RsaPublicKey");
-                fields.put(BASE64_RSA_PUBLIC_KEY,
-                        (base64RsaPublicKey == null || base64RsaPublicKey.trim().length() == 0)
-                                ? null : base64RsaPublicKey.trim());
-            } catch (Exception e) {
-                Log.i(t, xmlFile.getAbsolutePath() + " does not have a submission element");
-                // and that's totally fine.
+                skipElement(parser);
             }
+        }
 
+        if (!seenHead || !seenModel || !seenInstance) {
+            throw new IllegalStateException(xmlFile.getAbsolutePath()
+                    + " does not have a head, model and instance");
+        }
+        if (!seenDataElement) {
+            throw new IllegalStateException(xmlFile.getAbsolutePath() + " could not be parsed");
+        }
+        if (!seenSubmission) {
+            Log.i(t, xmlFile.getAbsolutePath() + " does not have a submission element");
+            // and that's totally fine.
         }
-        return fields;
     }
 
-    // needed because element.getelement fails when there are attributes
-    private static Element getChildElement(Element parent, String childName) {
-        Element e = null;
-        int c = parent.getChildCount();
-        int i = 0;
-        for (i = 0; i < c; i++) {
-            if (parent.getType(i) == Node.ELEMENT) {
-                if (parent.getElement(i).getName().equalsIgnoreCase(childName)) {
-                    return parent.getElement(i);
-                }
+    /**
+     * Reads the trimmed text at the start of the current element (up to its first child element,
+     * the same as {@link XFormParser#getXMLText}) and leaves the parser at the element's end tag.
+     *
+     */
+    private static String readLeadingText(XmlPullParser parser)
+            throws XmlPullParserException, IOException {
+        StringBuilder text = new StringBuilder();
+        int event;
+        while ((event = parser.next()) == XmlPullParser.TEXT) {
+            text.append(parser.getText());
+        }
+        if (event == XmlPullParser.START_TAG) {
+            skipToEndTag(parser);
+        }
+        return text.toString().trim();
+    }
+
+    /**
+     * Moves the parser from a start tag to its matching end tag.
+     */
+    private static void skipElement(XmlPullParser parser)
+            throws XmlPullParserException, IOException {
+        parser.next();
+        skipToEndTag(parser);
+    }
+
+    /**
+     * Moves the parser forward to the end tag of the element it is currently inside of, skipping
+     * any child elements (including one whose start tag the parser is on).
+     */
+    private static void skipToEndTag(XmlPullParser parser)
+            throws XmlPullParserException, IOException {
+        int nesting = 0;
+        int event = parser.getEventType();
+        while (nesting > 0 || event != XmlPullParser.END_TAG) {
+            if (event == XmlPullParser.START_TAG) {
+                nesting++;
+            } else if (event == XmlPullParser.END_TAG) {
+                nesting--;
+            } else if (event == XmlPullParser.END_DOCUMENT) {
+                throw new XmlPullParserException("Unexpected end of document", parser, null);
             }
+            event = parser.next();
         }
-        return e;
     }
 
     public static void deleteAndReport(File file) {
@@ -422,8 +514,14 @@ public class FileUtils {
         if (mediaFiles == null || mediaFiles.length == 0) {
             deleteAndReport(tempMediaFolder);
         } else {
+            if (!formMediaPath.exists() && !formMediaPath.mkdirs()) {
+                throw new IOException("Unable to create " + formMediaPath.getAbsolutePath());
+            }
             for (File mediaFile : mediaFiles) {
-                IOUtils.INSTANCE.moveFileToDirectory(mediaFile, formMediaPath);
+                String errorMessage = moveFile(mediaFile, new File(formMediaPath, mediaFile.getName()));
+                if (errorMessage != null) {
+                    throw new IOException(errorMessage);
+                }
             }
             deleteAndReport(tempMediaFolder);
         }
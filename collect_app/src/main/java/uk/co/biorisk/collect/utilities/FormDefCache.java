@@ -0,0 +1,418 @@
+package uk.co.biorisk.collect.utilities;
+
+import android.os.Process;
+import android.util.Log;
+
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.util.externalizable.DeserializationException;
+import org.javarosa.core.util.externalizable.ExtUtil;
+import org.javarosa.xform.util.XFormUtils;
+import org.odk.collect.android.utilities.IOUtils;
+
+import uk.co.biorisk.collect.BuildConfig;
+import uk.co.biorisk.collect.application.Collect;
+import uk.co.biorisk.collect.database.FileFingerprintIndex;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Reads and writes the serialized {@link FormDef} cache kept in "/sdcard/odk/.cache".
+ * <p>
+ * Each cache file is named after the md5 hash of the form definition it was built from and starts
+ * with a header recording the cache format, the JavaRosa and application versions that wrote it,
+ * the size, last modified time and hash of the source form, and a CRC32 of the serialized body.
+ * A cache file whose header does not match the running application or the source form, or whose
+ * body fails the checksum, is discarded and rebuilt from the XML.
+ * <p>
+ * The md5 hash of the source form is looked up through the {@link FileFingerprintIndex}, so it is
+ * only recomputed when the form's size or last modified time change.
+ */
+public final class FormDefCache {
+
+    public static final String CACHE_EXTENSION = ".formdef";
+
+    private static final String t = "FormDefCache";
+
+    // "JRFD"
+    private static final int MAGIC = 0x4A524644;
+    // bump this whenever the header layout changes
+    private static final int FORMAT_VERSION = 1;
+    // must match the javarosa-libraries jar in libs/
+    private static final String JAVAROSA_VERSION = "2016-01-10";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // JavaRosa's parser relies on static state, so only one form is parsed at a time
+    private static final ReentrantLock PARSE_LOCK = new ReentrantLock();
+    // loads the user is waiting on that are queued for PARSE_LOCK
+    private static final AtomicInteger sForegroundWaiting = new AtomicInteger();
+    // the thread of a pre-warm parse holding PARSE_LOCK, or 0
+    private static volatile int sBackgroundParser = 0;
+
+    private FormDefCache() {
+    }
+
+    /**
+     * @return the md5 hash of the form definition, without rehashing unchanged files
+     */
+    public static String getFormHash(File formXml) {
+        return FileFingerprintIndex.getInstance().getMd5Hash(formXml);
+    }
+
+    public static File getCacheFile(String formHash) {
+        return new File(Collect.CACHE_PATH + File.separator + formHash + CACHE_EXTENSION);
+    }
+
+    /**
+     * Loads the cached {@link FormDef} for the given form definition file.
+     *
+     * @return the cached FormDef, or null if there is no valid cache for the form
+     */
+    public static FormDef readCache(File formXml) {
+        String formHash = getFormHash(formXml);
+        if (formHash == null) {
+            return null;
+        }
+        File formBin = getCacheFile(formHash);
+        if (!formBin.exists()) {
+            return null;
+        }
+
+        long start = System.currentTimeMillis();
+        FileInputStream fis = null;
+        FileChannel channel = null;
+        try {
+            fis = new FileInputStream(formBin);
+            channel = fis.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            Header header = Header.read(buffer);
+            String mismatch = header.mismatch(formXml, formHash);
+            if (mismatch != null) {
+                Log.i(t, "Discarding " + formBin.getName() + ": " + mismatch);
+                FileUtils.deleteAndReport(formBin);
+                return null;
+            }
+
+            ByteBuffer body = buffer.slice();
+            if (body.remaining() != header.bodyLength || checksum(body.duplicate()) != header.bodyChecksum) {
+                Log.w(t, "Discarding " + formBin.getName() + ": body checksum does not match");
+                FileUtils.deleteAndReport(formBin);
+                return null;
+            }
+
+            FormDef fd = new FormDef();
+            fd.readExternal(new DataInputStream(new ByteBufferInputStream(body)),
+                    ExtUtil.defaultPrototypes());
+
+            Log.i(t, "Loaded " + formXml.getName() + " from " + formBin.getName() + " in "
+                    + (System.currentTimeMillis() - start) + "ms");
+            return fd;
+        } catch (BufferUnderflowException e) {
+            Log.w(t, "Discarding " + formBin.getName() + ": truncated header");
+        } catch (IOException e) {
+            Log.e(t, "Unable to read " + formBin.getName(), e);
+        } catch (DeserializationException e) {
+            Log.e(t, "Unable to deserialize " + formBin.getName(), e);
+        } catch (RuntimeException e) {
+            Log.e(t, "Unable to deserialize " + formBin.getName(), e);
+        } finally {
+            if (channel != null) {
+                IOUtils.INSTANCE.closeQuietly(channel);
+            }
+            if (fis != null) {
+                IOUtils.INSTANCE.closeQuietly(fis);
+            }
+        }
+        FileUtils.deleteAndReport(formBin);
+        return null;
+    }
+
+    /**
+     * Parses the form definition from XML and writes it to the cache, for a load the user is
+     * waiting on. Forms are parsed one at a time because JavaRosa's parser relies on static state;
+     * if the form was cached by another thread while this one was waiting, the cached copy is
+     * returned instead.
+     * <p>
+     * A pre-warm parse that is already running can't be stopped, so it is raised to the
+     * priority of the caller until it finishes; pre-warms that haven't started wait until no
+     * such load is queued.
+     *
+     * @return the parsed FormDef, or null if the parser did not produce one
+     * @throws FileNotFoundException if the form definition does not exist
+     */
+    public static FormDef parseAndCache(File formXml) throws FileNotFoundException {
+        sForegroundWaiting.incrementAndGet();
+        try {
+            int backgroundParser = sBackgroundParser;
+            if (backgroundParser != 0) {
+                setThreadPriority(backgroundParser,
+                        Process.getThreadPriority(Process.myTid()));
+            }
+            PARSE_LOCK.lock();
+        } finally {
+            sForegroundWaiting.decrementAndGet();
+        }
+        try {
+            return parseAndCacheLocked(formXml);
+        } finally {
+            PARSE_LOCK.unlock();
+        }
+    }
+
+    /**
+     * Parses the form definition from XML and writes it to the cache, at background priority and
+     * behind any load the user is waiting on.
+     *
+     * @return the parsed FormDef, or null if the parser did not produce one
+     * @throws FileNotFoundException if the form definition does not exist
+     */
+    public static FormDef prewarm(File formXml) throws FileNotFoundException {
+        int tid = Process.myTid();
+        setThreadPriority(tid, Process.THREAD_PRIORITY_BACKGROUND);
+        while (true) {
+            PARSE_LOCK.lock();
+            if (sForegroundWaiting.get() == 0) {
+                break;
+            }
+            PARSE_LOCK.unlock();
+            Thread.yield();
+        }
+        sBackgroundParser = tid;
+        try {
+            return parseAndCacheLocked(formXml);
+        } finally {
+            sBackgroundParser = 0;
+            PARSE_LOCK.unlock();
+            // in case a load raised it
+            setThreadPriority(tid, Process.THREAD_PRIORITY_BACKGROUND);
+        }
+    }
+
+    private static FormDef parseAndCacheLocked(File formXml) throws FileNotFoundException {
+        FormDef fd = readCache(formXml);
+        if (fd != null) {
+            return fd;
+        }
+
+        long start = System.currentTimeMillis();
+        FileInputStream fis = new FileInputStream(formXml);
+        try {
+            fd = XFormUtils.getFormFromInputStream(fis);
+        } finally {
+            IOUtils.INSTANCE.closeQuietly(fis);
+        }
+        if (fd != null) {
+            Log.i(t, "Parsed " + formXml.getName() + " in "
+                    + (System.currentTimeMillis() - start) + "ms");
+            writeCache(fd, formXml);
+        }
+        return fd;
+    }
+
+    private static void setThreadPriority(int tid, int priority) {
+        try {
+            Process.setThreadPriority(tid, priority);
+        } catch (RuntimeException e) {
+            // the thread has already finished, or the priority isn't allowed
+            Log.w(t, "Unable to set the priority of thread " + tid, e);
+        }
+    }
+
+    /**
+     * Writes the {@link FormDef} to the cache, unless a cache file for this form already exists.
+     * The file is written under a temporary name and renamed into place, so a partially written
+     * cache is never picked up.
+     */
+    public static void writeCache(FormDef fd, File formXml) {
+        long size = formXml.length();
+        long lastModified = formXml.lastModified();
+        String formHash = getFormHash(formXml);
+        if (formHash == null) {
+            return;
+        }
+        File formBin = getCacheFile(formHash);
+        if (formBin.exists()) {
+            return;
+        }
+
+        File tempFile = new File(formBin.getParentFile(), formBin.getName() + ".tmp");
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(tempFile);
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(fos, BUFFER_SIZE));
+
+            // the body length and checksum are only known once the body has been written,
+            // so they are patched into the header afterwards
+            Header header = new Header(BuildConfig.VERSION_CODE, size, lastModified, formHash);
+            header.write(dos);
+
+            CRC32 crc = new CRC32();
+            DataOutputStream body = new DataOutputStream(new CheckedOutputStream(dos, crc));
+            fd.writeExternal(body);
+            body.flush();
+
+            ByteBuffer trailer = ByteBuffer.allocate(16);
+            trailer.putLong(body.size());
+            trailer.putLong(crc.getValue());
+            trailer.flip();
+            fos.getChannel().write(trailer, Header.BODY_INFO_OFFSET);
+            fos.close();
+            fos = null;
+
+            if (!tempFile.renameTo(formBin)) {
+                throw new IOException("Unable to rename " + tempFile + " to " + formBin);
+            }
+        } catch (IOException e) {
+            Log.e(t, "Unable to write " + formBin.getName(), e);
+            FileUtils.deleteAndReport(tempFile);
+        } finally {
+            if (fos != null) {
+                IOUtils.INSTANCE.closeQuietly(fos);
+            }
+        }
+    }
+
+    private static long checksum(ByteBuffer buffer) {
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[BUFFER_SIZE];
+        while (buffer.hasRemaining()) {
+            int length = Math.min(chunk.length, buffer.remaining());
+            buffer.get(chunk, 0, length);
+            crc.update(chunk, 0, length);
+        }
+        return crc.getValue();
+    }
+
+    private static class Header {
+        // offset of the body length and checksum, right after the magic and format version
+        static final long BODY_INFO_OFFSET = 8;
+
+        final int formatVersion;
+        final long bodyLength;
+        final long bodyChecksum;
+        final String javaRosaVersion;
+        final int appVersionCode;
+        final long sourceSize;
+        final long sourceLastModified;
+        final String sourceHash;
+
+        Header(int appVersionCode, long sourceSize, long sourceLastModified, String sourceHash) {
+            this(FORMAT_VERSION, 0, 0, JAVAROSA_VERSION, appVersionCode, sourceSize,
+                    sourceLastModified, sourceHash);
+        }
+
+        private Header(int formatVersion, long bodyLength, long bodyChecksum,
+                       String javaRosaVersion, int appVersionCode, long sourceSize,
+                       long sourceLastModified, String sourceHash) {
+            this.formatVersion = formatVersion;
+            this.bodyLength = bodyLength;
+            this.bodyChecksum = bodyChecksum;
+            this.javaRosaVersion = javaRosaVersion;
+            this.appVersionCode = appVersionCode;
+            this.sourceSize = sourceSize;
+            this.sourceLastModified = sourceLastModified;
+            this.sourceHash = sourceHash;
+        }
+
+        /**
+         * Reads the header and leaves the buffer positioned at the start of the body.
+         */
+        static Header read(ByteBuffer buffer) throws IOException {
+            if (buffer.getInt() != MAGIC) {
+                // written before the header was introduced
+                return new Header(0, 0, 0, null, 0, 0, 0, null);
+            }
+            int formatVersion = buffer.getInt();
+            if (formatVersion != FORMAT_VERSION) {
+                return new Header(formatVersion, 0, 0, null, 0, 0, 0, null);
+            }
+            long bodyLength = buffer.getLong();
+            long bodyChecksum = buffer.getLong();
+            DataInputStream dis = new DataInputStream(new ByteBufferInputStream(buffer));
+            return new Header(formatVersion, bodyLength, bodyChecksum, dis.readUTF(),
+                    dis.readInt(), dis.readLong(), dis.readLong(), dis.readUTF());
+        }
+
+        void write(DataOutputStream dos) throws IOException {
+            dos.writeInt(MAGIC);
+            dos.writeInt(formatVersion);
+            dos.writeLong(bodyLength);
+            dos.writeLong(bodyChecksum);
+            dos.writeUTF(javaRosaVersion);
+            dos.writeInt(appVersionCode);
+            dos.writeLong(sourceSize);
+            dos.writeLong(sourceLastModified);
+            dos.writeUTF(sourceHash);
+        }
+
+        /**
+         * @return why this header does not describe a usable cache of the form, or null if it does
+         */
+        String mismatch(File formXml, String formHash) {
+            if (formatVersion != FORMAT_VERSION) {
+                return "cache format " + formatVersion + " is not " + FORMAT_VERSION;
+            }
+            if (!JAVAROSA_VERSION.equals(javaRosaVersion)) {
+                return "written by JavaRosa " + javaRosaVersion;
+            }
+            if (appVersionCode != BuildConfig.VERSION_CODE) {
+                return "written by application version " + appVersionCode;
+            }
+            if (sourceSize != formXml.length() || !formHash.equals(sourceHash)) {
+                return "form definition has changed";
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Reads sequentially from a {@link ByteBuffer}, advancing its position.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer mBuffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return mBuffer.hasRemaining() ? (mBuffer.get() & 0xff) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!mBuffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(len, mBuffer.remaining());
+            mBuffer.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return mBuffer.remaining();
+        }
+    }
+}
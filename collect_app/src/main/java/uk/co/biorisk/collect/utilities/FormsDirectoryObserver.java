@@ -0,0 +1,96 @@
+package uk.co.biorisk.collect.utilities;
+
+import android.os.FileObserver;
+import android.util.Log;
+
+import uk.co.biorisk.collect.application.Collect;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Watches "/sdcard/odk/forms" and remembers which files have been written, moved or deleted since
+ * the last disk sync, so that the sync only needs to look at those files instead of rescanning the
+ * whole folder.
+ * <p>
+ * FileObserver only reports changes while it is watching, so the first sync after the observer
+ * starts (and any sync after the folder itself is moved or deleted, or a sync fails) is a full
+ * scan.
+ */
+public final class FormsDirectoryObserver extends FileObserver {
+
+    private static final String t = "FormsDirectoryObserver";
+
+    private static final int EVENTS = CLOSE_WRITE | MOVED_TO | MOVED_FROM | DELETE
+            | DELETE_SELF | MOVE_SELF;
+
+    private static FormsDirectoryObserver singleton = null;
+
+    private final Set<String> mChangedPaths = new HashSet<>();
+    private boolean mWatching = false;
+    private boolean mFullScanNeeded = true;
+
+    private FormsDirectoryObserver() {
+        super(Collect.FORMS_PATH, EVENTS);
+    }
+
+    public static synchronized FormsDirectoryObserver getInstance() {
+        if (singleton == null) {
+            singleton = new FormsDirectoryObserver();
+        }
+        return singleton;
+    }
+
+    public synchronized void start() {
+        if (!mWatching) {
+            Log.i(t, "Watching " + Collect.FORMS_PATH);
+            startWatching();
+            mWatching = true;
+            mFullScanNeeded = true;
+        }
+    }
+
+    public synchronized void stop() {
+        if (mWatching) {
+            Log.i(t, "No longer watching " + Collect.FORMS_PATH);
+            stopWatching();
+            mWatching = false;
+            mChangedPaths.clear();
+        }
+    }
+
+    /**
+     * Returns the absolute paths of the files that changed since the last call and forgets them.
+     *
+     * @return the changed paths, or null if the whole folder needs to be rescanned
+     */
+    public synchronized Set<String> takeChangedPaths() {
+        if (!mWatching || mFullScanNeeded) {
+            mFullScanNeeded = false;
+            mChangedPaths.clear();
+            return null;
+        }
+        Set<String> changed = new HashSet<>(mChangedPaths);
+        mChangedPaths.clear();
+        return changed;
+    }
+
+    /**
+     * Forces the next call to {@link #takeChangedPaths()} to ask for a full rescan, e.g. because
+     * the changes it returned could not be processed.
+     */
+    public synchronized void requestFullScan() {
+        mFullScanNeeded = true;
+    }
+
+    @Override
+    public synchronized void onEvent(int event, String path) {
+        if ((event & (DELETE_SELF | MOVE_SELF)) != 0) {
+            Log.w(t, Collect.FORMS_PATH + " was moved or deleted");
+            mFullScanNeeded = true;
+        } else if (path != null) {
+            mChangedPaths.add(new File(Collect.FORMS_PATH, path).getAbsolutePath());
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package uk.co.biorisk.collect.utilities;
+
+import android.util.Log;
+
+import org.odk.collect.android.utilities.IOUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Static methods for hashing files.
+ * <p>
+ * Files are streamed through a {@link FileChannel} into a large per-thread buffer, and the
+ * {@link MessageDigest} is reused between calls on the same thread, so hashing a file allocates
+ * little more than the resulting hex string.
+ */
+public final class HashUtils {
+
+    private static final String t = "HashUtils";
+
+    static final int BUFFER_SIZE = 256 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final ThreadLocal<MessageDigest> md5Digest = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                // every Android device provides MD5
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    private static final ThreadLocal<ByteBuffer> readBuffer = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(BUFFER_SIZE);
+        }
+    };
+
+    private HashUtils() {
+    }
+
+    /**
+     * @return the lowercase hex md5 hash of the file's contents, or null if it could not be read
+     */
+    public static String getMd5Hash(File file) {
+        FileInputStream fis = null;
+        FileChannel channel = null;
+        MessageDigest md = md5Digest.get();
+        md.reset();
+        try {
+            fis = new FileInputStream(file);
+            channel = fis.getChannel();
+            update(md, channel);
+            return toHex(md.digest());
+        } catch (FileNotFoundException e) {
+            Log.e(t, "Cannot find " + file.getAbsolutePath());
+            return null;
+        } catch (IOException e) {
+            Log.e(t, "Problem reading " + file.getAbsolutePath(), e);
+            return null;
+        } finally {
+            if (channel != null) {
+                IOUtils.INSTANCE.closeQuietly(channel);
+            }
+            if (fis != null) {
+                IOUtils.INSTANCE.closeQuietly(fis);
+            }
+        }
+    }
+
+    /**
+     * @return the lowercase hex md5 hash of the string's UTF-8 encoding
+     */
+    public static String getMd5Hash(String s) {
+        MessageDigest md = md5Digest.get();
+        md.reset();
+        return toHex(md.digest(s.getBytes(UTF_8)));
+    }
+
+    /**
+     * Feeds everything left in the channel into the digest. Short reads are fine; only end of
+     * stream stops the loop, so files of any length are supported.
+     */
+    private static void update(MessageDigest md, FileChannel channel) throws IOException {
+        ByteBuffer buffer = readBuffer.get();
+        byte[] bytes = buffer.array();
+        buffer.clear();
+        int read;
+        while ((read = channel.read(buffer)) != -1) {
+            if (read > 0) {
+                md.update(bytes, 0, buffer.position());
+                buffer.clear();
+            }
+        }
+    }
+
+    /**
+     * @return the bytes as a lowercase hex string, two characters per byte
+     */
+    public static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0, j = 0; i < bytes.length; i++) {
+            int b = bytes[i] & 0xff;
+            chars[j++] = HEX_DIGITS[b >>> 4];
+            chars[j++] = HEX_DIGITS[b & 0x0f];
+        }
+        return new String(chars);
+    }
+}
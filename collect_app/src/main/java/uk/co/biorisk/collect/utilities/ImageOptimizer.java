@@ -0,0 +1,244 @@
+package uk.co.biorisk.collect.utilities;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.ExifInterface;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Downscales and recompresses the JPEG attachments of a finalized submission so that they are
+ * cheaper to send.
+ * <p>
+ * Images whose longest side is larger than the target are decoded at the nearest power of two
+ * above it, scaled to the target and written back in place with the given JPEG quality, keeping
+ * their orientation, date and location EXIF tags. The images that have been dealt with are
+ * listed, by name and resulting size, in a hidden marker file in the instance directory, so
+ * finalizing the same instance again doesn't recompress them.
+ */
+public final class ImageOptimizer {
+
+    private static final String t = "ImageOptimizer";
+
+    public static final int DEFAULT_QUALITY = 85;
+
+    // decoded images are large, so only a couple are worked on at a time
+    private static final int MAX_OPTIMIZATION_THREADS = 2;
+
+    private static final String MARKER_FILE = ".optimized";
+    private static final String TEMP_PREFIX = ".optimizing-";
+
+    private static final String[] EXIF_TAGS_TO_KEEP = {
+            ExifInterface.TAG_ORIENTATION,
+            ExifInterface.TAG_DATETIME,
+            ExifInterface.TAG_MAKE,
+            ExifInterface.TAG_MODEL,
+            ExifInterface.TAG_GPS_LATITUDE,
+            ExifInterface.TAG_GPS_LATITUDE_REF,
+            ExifInterface.TAG_GPS_LONGITUDE,
+            ExifInterface.TAG_GPS_LONGITUDE_REF,
+            ExifInterface.TAG_GPS_ALTITUDE,
+            ExifInterface.TAG_GPS_ALTITUDE_REF,
+            ExifInterface.TAG_GPS_TIMESTAMP,
+            ExifInterface.TAG_GPS_DATESTAMP
+    };
+
+    private ImageOptimizer() {
+    }
+
+    /**
+     * Downscales the JPEGs in the instance directory that haven't been already.
+     *
+     * @param instanceDir the directory holding the instance and its attachments
+     * @param maxPixels   the longest side the images may have
+     * @param quality     the JPEG quality to write them with, from 0 to 100
+     * @return how many images were rewritten
+     */
+    public static int optimizeImages(File instanceDir, final int maxPixels, final int quality) {
+        File[] allFiles = instanceDir.listFiles();
+        if (allFiles == null || maxPixels <= 0) {
+            return 0;
+        }
+
+        File marker = new File(instanceDir, MARKER_FILE);
+        Set<String> optimized = readMarker(marker);
+
+        List<File> images = new ArrayList<>();
+        for (File f : allFiles) {
+            String name = f.getName();
+            if (name.startsWith(".") || !f.isFile()) {
+                continue;
+            }
+            String lowerName = name.toLowerCase();
+            if ((lowerName.endsWith(".jpg") || lowerName.endsWith(".jpeg"))
+                    && !optimized.contains(getMarkerEntry(f))) {
+                images.add(f);
+            }
+        }
+        if (images.isEmpty()) {
+            return 0;
+        }
+
+        int threads = Math.max(1,
+                Math.min(MAX_OPTIMIZATION_THREADS, Runtime.getRuntime().availableProcessors()));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        int rewritten = 0;
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (final File image : images) {
+                results.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        return optimizeImage(image, maxPixels, quality);
+                    }
+                }));
+            }
+
+            for (int i = 0; i < images.size(); i++) {
+                File image = images.get(i);
+                try {
+                    if (results.get(i).get()) {
+                        rewritten++;
+                    }
+                    optimized.add(getMarkerEntry(image));
+                } catch (ExecutionException e) {
+                    // the original is still there, it is just sent as it is
+                    Log.e(t, "Unable to optimize " + image.getAbsolutePath(), e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        writeMarker(marker, optimized);
+        Log.i(t, "Optimized " + rewritten + " of " + images.size() + " images in "
+                + instanceDir.getAbsolutePath());
+        return rewritten;
+    }
+
+    /**
+     * @return whether the image was rewritten; images that are already small enough are left
+     * alone
+     */
+    private static boolean optimizeImage(File image, int maxPixels, int quality) throws IOException {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(image.getAbsolutePath(), bounds);
+        int longestSide = Math.max(bounds.outWidth, bounds.outHeight);
+        if (longestSide <= 0) {
+            throw new IOException("Unable to decode " + image.getName());
+        }
+        if (longestSide <= maxPixels) {
+            return false;
+        }
+
+        int sampleSize = 1;
+        while (longestSide / (sampleSize * 2) >= maxPixels) {
+            sampleSize *= 2;
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        Bitmap sampled = BitmapFactory.decodeFile(image.getAbsolutePath(), options);
+        if (sampled == null) {
+            throw new IOException("Unable to decode " + image.getName());
+        }
+
+        double scale = (double) maxPixels / Math.max(sampled.getWidth(), sampled.getHeight());
+        Bitmap scaled = sampled;
+        if (scale < 1) {
+            scaled = Bitmap.createScaledBitmap(sampled,
+                    Math.max(1, (int) Math.round(sampled.getWidth() * scale)),
+                    Math.max(1, (int) Math.round(sampled.getHeight() * scale)), true);
+            sampled.recycle();
+        }
+
+        File temp = new File(image.getParentFile(), TEMP_PREFIX + image.getName());
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(temp));
+            try {
+                if (!scaled.compress(Bitmap.CompressFormat.JPEG, quality, out)) {
+                    throw new IOException("Unable to compress " + image.getName());
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            scaled.recycle();
+        }
+
+        copyExif(image, temp);
+
+        if (!temp.renameTo(image)) {
+            temp.delete();
+            throw new IOException("Unable to replace " + image.getName());
+        }
+        return true;
+    }
+
+    private static void copyExif(File from, File to) {
+        try {
+            ExifInterface source = new ExifInterface(from.getAbsolutePath());
+            ExifInterface target = new ExifInterface(to.getAbsolutePath());
+            for (String tag : EXIF_TAGS_TO_KEEP) {
+                String value = source.getAttribute(tag);
+                if (value != null) {
+                    target.setAttribute(tag, value);
+                }
+            }
+            target.saveAttributes();
+        } catch (IOException e) {
+            Log.w(t, "Unable to copy the EXIF tags of " + from.getName(), e);
+        }
+    }
+
+    private static String getMarkerEntry(File image) {
+        return image.getName() + "/" + image.length();
+    }
+
+    private static Set<String> readMarker(File marker) {
+        Set<String> entries = new HashSet<>();
+        if (!marker.exists()) {
+            return entries;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(marker))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                entries.add(line);
+            }
+        } catch (IOException e) {
+            Log.w(t, "Unable to read " + marker.getAbsolutePath(), e);
+        }
+        return entries;
+    }
+
+    private static void writeMarker(File marker, Set<String> entries) {
+        try (Writer writer = new FileWriter(marker)) {
+            for (String entry : entries) {
+                writer.write(entry);
+                writer.write('\n');
+            }
+        } catch (IOException e) {
+            Log.w(t, "Unable to write " + marker.getAbsolutePath(), e);
+        }
+    }
+}
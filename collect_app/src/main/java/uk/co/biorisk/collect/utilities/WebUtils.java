@@ -45,21 +45,22 @@ import com.belladati.httpclientandroidlib.conn.ClientConnectionManager;
 import com.belladati.httpclientandroidlib.impl.auth.BasicScheme;
 import com.belladati.httpclientandroidlib.impl.client.BasicAuthCache;
 import com.belladati.httpclientandroidlib.impl.client.DefaultHttpClient;
+import com.belladati.httpclientandroidlib.impl.conn.PoolingClientConnectionManager;
+import com.belladati.httpclientandroidlib.impl.conn.SchemeRegistryFactory;
 import com.belladati.httpclientandroidlib.params.BasicHttpParams;
 import com.belladati.httpclientandroidlib.params.HttpConnectionParams;
 import com.belladati.httpclientandroidlib.params.HttpParams;
 import com.belladati.httpclientandroidlib.protocol.HttpContext;
 
-import org.kxml2.io.KXmlParser;
-import org.kxml2.kdom.Document;
 import uk.co.biorisk.collect.R;
 import uk.co.biorisk.collect.application.Collect;
 import uk.co.biorisk.collect.preferences.PreferencesActivity;
-import org.xmlpull.v1.XmlPullParser;
 
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.net.URI;
 import java.net.URL;
 import java.util.ArrayList;
@@ -68,6 +69,7 @@ import java.util.GregorianCalendar;
 import java.util.List;
 import java.util.Locale;
 import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.GZIPInputStream;
 
 /**
@@ -87,6 +89,13 @@ public final class WebUtils {
     public static final String ACCEPT_ENCODING_HEADER = "Accept-Encoding";
     public static final String GZIP_CONTENT_ENCODING = "gzip";
     private static final String DATE_HEADER = "Date";
+    private static final String ETAG_HEADER = "ETag";
+    private static final String LAST_MODIFIED_HEADER = "Last-Modified";
+    private static final String IF_NONE_MATCH_HEADER = "If-None-Match";
+    private static final String IF_MODIFIED_SINCE_HEADER = "If-Modified-Since";
+    // submissions can be uploaded several at a time
+    public static final int MAX_CONNECTIONS_PER_ROUTE = 4;
+    private static final int MAX_CONNECTIONS = 10;
     private static ClientConnectionManager httpConnectionManager = null;
 
     public static final List<AuthScope> buildAuthScopes(String host) {
@@ -268,13 +277,15 @@ public final class WebUtils {
         // reuse the connection manager across all clients this ODK Collect
         // creates.
         if (httpConnectionManager == null) {
-            // let Apache stack create a connection manager.
-            httpclient = new DefaultHttpClient(params);
-            httpConnectionManager = httpclient.getConnectionManager();
-        } else {
-            // reuse the connection manager we already got.
-            httpclient = new DefaultHttpClient(httpConnectionManager, params);
+            // pooled, so that clients on different threads can have requests
+            // in flight at the same time.
+            PoolingClientConnectionManager connectionManager =
+                    new PoolingClientConnectionManager(SchemeRegistryFactory.createDefault());
+            connectionManager.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_ROUTE);
+            connectionManager.setMaxTotal(MAX_CONNECTIONS);
+            httpConnectionManager = connectionManager;
         }
+        httpclient = new DefaultHttpClient(httpConnectionManager, params);
 
         return httpclient;
     }
@@ -306,16 +317,20 @@ public final class WebUtils {
     }
 
     /**
-     * Common method for returning a parsed xml document given a url and the
-     * http context and client objects involved in the web connection.
+     * Fetches an xml document and hands it to the reader as it arrives, so that large documents
+     * don't have to be held in memory before the caller can start on them.
+     * <p>
+     * If a cache is given, the document is stored in it with its validators and the next fetch
+     * asks the server whether it has changed. If it hasn't, the reader isn't called and the result
+     * is {@link DocumentFetchResult#notModified}: the caller is expected to use what it made of the
+     * stored document, or to read it again with {@link XmlDocumentCache#read}.
      *
-     * @param urlString
-     * @param localContext
-     * @param httpclient
-     * @return
+     * @return the error if the document couldn't be fetched or the reader refused it; the result
+     * never holds a document
      */
-    public static DocumentFetchResult getXmlDocument(String urlString,
-                                                     HttpContext localContext, HttpClient httpclient) {
+    public static DocumentFetchResult readXmlDocument(String urlString, HttpContext localContext,
+                                                      HttpClient httpclient, XmlDocumentCache cache,
+                                                      XmlDocumentReader reader) {
         URI u = null;
         try {
             URL url = new URL(urlString);
@@ -338,8 +353,29 @@ public final class WebUtils {
 
         // set up request...
         HttpGet req = WebUtils.createOpenRosaHttpGet(u);
+        return readXmlDocument(req, urlString, localContext, httpclient, cache, reader);
+    }
+
+    /**
+     * {@link #readXmlDocument(String, HttpContext, HttpClient, XmlDocumentCache, XmlDocumentReader)}
+     * with the request already set up.
+     */
+    static DocumentFetchResult readXmlDocument(HttpGet req, String urlString,
+                                               HttpContext localContext, HttpClient httpclient,
+                                               XmlDocumentCache cache, XmlDocumentReader reader) {
+        URI u = req.getURI();
         req.addHeader(WebUtils.ACCEPT_ENCODING_HEADER, WebUtils.GZIP_CONTENT_ENCODING);
 
+        XmlDocumentCache.Validators stored = cache == null ? null : cache.getValidators(urlString);
+        if (stored != null) {
+            if (stored.etag != null) {
+                req.addHeader(IF_NONE_MATCH_HEADER, stored.etag);
+            }
+            if (stored.lastModified != null) {
+                req.addHeader(IF_MODIFIED_SINCE_HEADER, stored.lastModified);
+            }
+        }
+
         HttpResponse response = null;
         try {
             response = httpclient.execute(req, localContext);
@@ -347,6 +383,12 @@ public final class WebUtils {
 
             HttpEntity entity = response.getEntity();
 
+            if (statusCode == HttpStatus.SC_NOT_MODIFIED && stored != null) {
+                WebUtils.discardEntityBytes(response);
+                Log.i(t, u.toString() + " has not changed since it was last fetched");
+                return DocumentFetchResult.unchanged(stored.isOpenRosaResponse);
+            }
+
             if (statusCode != HttpStatus.SC_OK) {
                 WebUtils.discardEntityBytes(response);
                 if (statusCode == HttpStatus.SC_UNAUTHORIZED) {
@@ -377,42 +419,73 @@ public final class WebUtils {
                 Log.e(t, error);
                 return new DocumentFetchResult(error, 0);
             }
-            // parse response
-            Document doc = null;
+
+            boolean isOR = false;
+            Header[] fields = response
+                    .getHeaders(WebUtils.OPEN_ROSA_VERSION_HEADER);
+            if (fields != null && fields.length >= 1) {
+                isOR = true;
+                boolean versionMatch = false;
+                boolean first = true;
+                StringBuilder b = new StringBuilder();
+                for (Header h : fields) {
+                    if (WebUtils.OPEN_ROSA_VERSION.equals(h.getValue())) {
+                        versionMatch = true;
+                        break;
+                    }
+                    if (!first) {
+                        b.append("; ");
+                    }
+                    first = false;
+                    b.append(h.getValue());
+                }
+                if (!versionMatch) {
+                    Log.w(t, WebUtils.OPEN_ROSA_VERSION_HEADER
+                            + " unrecognized version(s): " + b.toString());
+                }
+            }
+
+            XmlDocumentCache.Validators validators = null;
+            if (cache != null) {
+                Header etag = response.getFirstHeader(ETAG_HEADER);
+                Header lastModified = response.getFirstHeader(LAST_MODIFIED_HEADER);
+                if (etag != null || lastModified != null) {
+                    validators = new XmlDocumentCache.Validators(
+                            etag == null ? null : etag.getValue(),
+                            lastModified == null ? null : lastModified.getValue(), isOR);
+                } else {
+                    cache.remove(urlString);
+                }
+            }
+
+            // read response as it arrives; a copy is kept if it is to be stored
+            ByteArrayOutputStream body = validators == null ? null : new ByteArrayOutputStream();
+            String readerError;
             try {
                 InputStream is = null;
-                InputStreamReader isr = null;
                 try {
                     is = entity.getContent();
                     Header contentEncoding = entity.getContentEncoding();
                     if (contentEncoding != null && contentEncoding.getValue().equalsIgnoreCase(WebUtils.GZIP_CONTENT_ENCODING)) {
                         is = new GZIPInputStream(is);
                     }
-                    isr = new InputStreamReader(is, "UTF-8");
-                    doc = new Document();
-                    KXmlParser parser = new KXmlParser();
-                    parser.setInput(isr);
-                    parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES,
-                            true);
-                    doc.parse(parser);
-                    isr.close();
-                    isr = null;
-                } finally {
-                    if (isr != null) {
-                        try {
-                            // ensure stream is consumed...
-                            final long count = 1024L;
-                            while (isr.skip(count) == count)
-                                ;
-                        } catch (Exception e) {
-                            // no-op
-                        }
-                        try {
-                            isr.close();
-                        } catch (Exception e) {
-                            // no-op
-                        }
+                    if (body != null) {
+                        is = new CopyingInputStream(is, body);
                     }
+                    readerError = reader.read(XmlDocumentCache.newParser(is), isOR);
+                    if (readerError == null) {
+                        // whatever follows the root element still belongs in the stored copy
+                        byte[] buf = new byte[4096];
+                        while (is.read(buf) != -1)
+                            ;
+                    } else {
+                        // rather than reading the rest of a document that is of no use
+                        req.abort();
+                    }
+                } catch (Exception e) {
+                    req.abort();
+                    throw e;
+                } finally {
                     if (is != null) {
                         try {
                             is.close();
@@ -422,6 +495,9 @@ public final class WebUtils {
                     }
                 }
             } catch (Exception e) {
+                if (cache != null) {
+                    cache.remove(urlString);
+                }
                 e.printStackTrace();
                 String error = "Parsing failed with " + e.getMessage()
                         + "while accessing " + u.toString();
@@ -429,31 +505,17 @@ public final class WebUtils {
                 return new DocumentFetchResult(error, 0);
             }
 
-            boolean isOR = false;
-            Header[] fields = response
-                    .getHeaders(WebUtils.OPEN_ROSA_VERSION_HEADER);
-            if (fields != null && fields.length >= 1) {
-                isOR = true;
-                boolean versionMatch = false;
-                boolean first = true;
-                StringBuilder b = new StringBuilder();
-                for (Header h : fields) {
-                    if (WebUtils.OPEN_ROSA_VERSION.equals(h.getValue())) {
-                        versionMatch = true;
-                        break;
-                    }
-                    if (!first) {
-                        b.append("; ");
-                    }
-                    first = false;
-                    b.append(h.getValue());
-                }
-                if (!versionMatch) {
-                    Log.w(t, WebUtils.OPEN_ROSA_VERSION_HEADER
-                            + " unrecognized version(s): " + b.toString());
+            if (readerError != null) {
+                if (cache != null) {
+                    cache.remove(urlString);
                 }
+                return new DocumentFetchResult(readerError, 0);
             }
-            return new DocumentFetchResult(doc, isOR);
+
+            if (body != null) {
+                cache.put(urlString, body.toByteArray(), validators);
+            }
+            return new DocumentFetchResult(isOR);
         } catch (Exception e) {
             clearHttpConnectionManager();
             e.printStackTrace();
@@ -471,7 +533,7 @@ public final class WebUtils {
         }
     }
 
-    public static void clearHttpConnectionManager() {
+    public static synchronized void clearHttpConnectionManager() {
         // If we get an unexpected exception, the safest thing is to close
         // all connections
         // so that if there is garbage on the connection we ensure it is
@@ -482,4 +544,57 @@ public final class WebUtils {
             httpConnectionManager = null;
         }
     }
+
+    /**
+     * Closes the connections that aren't in use, without disturbing requests that other threads
+     * are making through the same connection manager.
+     */
+    public static synchronized void closeIdleHttpConnections() {
+        if (httpConnectionManager != null) {
+            httpConnectionManager.closeIdleConnections(0, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Copies what is read from a stream, so that a document can be stored as it is parsed.
+     */
+    private static class CopyingInputStream extends FilterInputStream {
+        private final OutputStream mCopy;
+
+        CopyingInputStream(InputStream in, OutputStream copy) {
+            super(in);
+            mCopy = copy;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                mCopy.write(b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int n = super.read(buffer, offset, count);
+            if (n > 0) {
+                mCopy.write(buffer, offset, n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // skipped bytes must be copied too
+            byte[] buf = new byte[(int) Math.min(n, 4096)];
+            int read = read(buf, 0, buf.length);
+            return read < 0 ? 0 : read;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
 }
@@ -0,0 +1,252 @@
+package uk.co.biorisk.collect.utilities;
+
+import android.util.Log;
+
+import org.kxml2.io.KXmlParser;
+import org.odk.collect.android.utilities.IOUtils;
+import org.xmlpull.v1.XmlPullParser;
+
+import uk.co.biorisk.collect.application.Collect;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.Properties;
+
+/**
+ * Keeps the OpenRosa XML documents (form lists and manifests) fetched by
+ * {@link WebUtils#readXmlDocument}, with the ETag and Last-Modified validators they were served
+ * with, so that they are only fetched again when they have changed.
+ * <p>
+ * For every url, the body is stored in "/sdcard/odk/.cache/documents" next to its validators and,
+ * once the caller has walked the document, whatever the caller made of it. When the server says
+ * that a document hasn't changed, the caller can then use that result without parsing anything.
+ */
+public final class XmlDocumentCache {
+
+    private static final String t = "XmlDocumentCache";
+
+    private static final String BODY_EXTENSION = ".xml";
+    private static final String META_EXTENSION = ".meta";
+    private static final String PARSED_EXTENSION = ".parsed";
+
+    private static final String KEY_URL = "url";
+    private static final String KEY_ETAG = "etag";
+    private static final String KEY_LAST_MODIFIED = "lastModified";
+    private static final String KEY_OPEN_ROSA = "openRosa";
+
+    private static XmlDocumentCache singleton = null;
+
+    private final File mDir;
+
+    /**
+     * @param dir the directory to keep the documents in
+     */
+    public XmlDocumentCache(File dir) {
+        mDir = dir;
+    }
+
+    public static synchronized XmlDocumentCache getInstance() {
+        if (singleton == null) {
+            singleton = new XmlDocumentCache(new File(Collect.CACHE_PATH, "documents"));
+        }
+        return singleton;
+    }
+
+    /**
+     * @return the validators of the stored document, or null if there is none
+     */
+    public synchronized Validators getValidators(String url) {
+        File meta = getFile(url, META_EXTENSION);
+        if (!meta.exists() || !getFile(url, BODY_EXTENSION).exists()) {
+            return null;
+        }
+        Properties properties = new Properties();
+        InputStream is = null;
+        try {
+            is = new FileInputStream(meta);
+            properties.load(is);
+        } catch (IOException e) {
+            Log.w(t, "Unable to read " + meta.getAbsolutePath(), e);
+            return null;
+        } finally {
+            if (is != null) {
+                IOUtils.INSTANCE.closeQuietly(is);
+            }
+        }
+        // the file names are hashes of the url, so make sure it is the same url
+        if (!url.equals(properties.getProperty(KEY_URL))) {
+            return null;
+        }
+        String etag = properties.getProperty(KEY_ETAG);
+        String lastModified = properties.getProperty(KEY_LAST_MODIFIED);
+        if (etag == null && lastModified == null) {
+            return null;
+        }
+        return new Validators(etag, lastModified,
+                Boolean.parseBoolean(properties.getProperty(KEY_OPEN_ROSA)));
+    }
+
+    /**
+     * Stores a document that has just been fetched, replacing whatever was stored for the url.
+     */
+    public synchronized void put(String url, byte[] body, Validators validators) {
+        remove(url);
+        if (!mDir.exists() && !mDir.mkdirs()) {
+            Log.w(t, "Unable to create " + mDir.getAbsolutePath());
+            return;
+        }
+
+        Properties properties = new Properties();
+        properties.setProperty(KEY_URL, url);
+        if (validators.etag != null) {
+            properties.setProperty(KEY_ETAG, validators.etag);
+        }
+        if (validators.lastModified != null) {
+            properties.setProperty(KEY_LAST_MODIFIED, validators.lastModified);
+        }
+        properties.setProperty(KEY_OPEN_ROSA, Boolean.toString(validators.isOpenRosaResponse));
+
+        OutputStream os = null;
+        try {
+            os = new FileOutputStream(getFile(url, BODY_EXTENSION));
+            os.write(body);
+            os.close();
+            // written last, so that a body without its validators is never used
+            os = new FileOutputStream(getFile(url, META_EXTENSION));
+            properties.store(os, null);
+            os.close();
+            os = null;
+        } catch (IOException e) {
+            Log.w(t, "Unable to store the document from " + url, e);
+            if (os != null) {
+                IOUtils.INSTANCE.closeQuietly(os);
+            }
+            remove(url);
+        }
+    }
+
+    /**
+     * Reads the stored document again, for when the server says it hasn't changed but nothing
+     * was made of it yet.
+     *
+     * @return the error if there is no stored document or the reader refused it
+     */
+    public synchronized DocumentFetchResult read(String url, XmlDocumentReader reader) {
+        Validators validators = getValidators(url);
+        if (validators == null) {
+            return new DocumentFetchResult("No stored document for " + url, 0);
+        }
+        InputStream is = null;
+        try {
+            is = new BufferedInputStream(new FileInputStream(getFile(url, BODY_EXTENSION)));
+            String error = reader.read(newParser(is), validators.isOpenRosaResponse);
+            if (error != null) {
+                remove(url);
+                return new DocumentFetchResult(error, 0);
+            }
+            return new DocumentFetchResult(validators.isOpenRosaResponse);
+        } catch (Exception e) {
+            Log.w(t, "Unable to parse the stored document from " + url, e);
+            remove(url);
+            return new DocumentFetchResult("Parsing failed with " + e.getMessage()
+                    + " while reading the stored document from " + url, 0);
+        } finally {
+            if (is != null) {
+                IOUtils.INSTANCE.closeQuietly(is);
+            }
+        }
+    }
+
+    /**
+     * @return what the caller made of the stored document, or null if there is nothing
+     */
+    public synchronized Serializable getParsed(String url) {
+        File parsed = getFile(url, PARSED_EXTENSION);
+        if (!parsed.exists() || getValidators(url) == null) {
+            return null;
+        }
+        ObjectInputStream ois = null;
+        try {
+            ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(parsed)));
+            return (Serializable) ois.readObject();
+        } catch (Exception e) {
+            // e.g. written by an older version of the classes
+            Log.w(t, "Unable to read " + parsed.getAbsolutePath(), e);
+            parsed.delete();
+            return null;
+        } finally {
+            if (ois != null) {
+                IOUtils.INSTANCE.closeQuietly(ois);
+            }
+        }
+    }
+
+    /**
+     * Remembers what the caller made of the stored document.
+     */
+    public synchronized void putParsed(String url, Serializable result) {
+        if (getValidators(url) == null) {
+            return;
+        }
+        File parsed = getFile(url, PARSED_EXTENSION);
+        ObjectOutputStream oos = null;
+        try {
+            oos = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(parsed)));
+            oos.writeObject(result);
+            oos.close();
+            oos = null;
+        } catch (IOException e) {
+            Log.w(t, "Unable to write " + parsed.getAbsolutePath(), e);
+            if (oos != null) {
+                IOUtils.INSTANCE.closeQuietly(oos);
+            }
+            parsed.delete();
+        }
+    }
+
+    public synchronized void remove(String url) {
+        getFile(url, META_EXTENSION).delete();
+        getFile(url, BODY_EXTENSION).delete();
+        getFile(url, PARSED_EXTENSION).delete();
+    }
+
+    /**
+     * @return a parser for the document in the stream, with namespace processing as the OpenRosa
+     * documents need
+     */
+    static XmlPullParser newParser(InputStream is) throws Exception {
+        KXmlParser parser = new KXmlParser();
+        parser.setInput(new InputStreamReader(is, "UTF-8"));
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+        return parser;
+    }
+
+    private File getFile(String url, String extension) {
+        return new File(mDir, HashUtils.getMd5Hash(url) + extension);
+    }
+
+    /**
+     * What a document was served with, to ask the server whether it has changed since.
+     */
+    public static final class Validators {
+        public final String etag;
+        public final String lastModified;
+        public final boolean isOpenRosaResponse;
+
+        public Validators(String etag, String lastModified, boolean isOpenRosaResponse) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.isOpenRosaResponse = isOpenRosaResponse;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package uk.co.biorisk.collect.utilities;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import uk.co.biorisk.collect.application.Collect;
+
+import java.io.IOException;
+
+/**
+ * Reads an XML document as it arrives, instead of building the whole tree first, so that large
+ * form lists and manifests are dealt with entry by entry.
+ * <p>
+ * Used with {@link WebUtils#readXmlDocument} and {@link XmlDocumentCache#read}, which hand over a
+ * namespace aware parser that hasn't read anything yet; readers usually start with
+ * {@code parser.nextTag()} to get to the root element.
+ */
+public abstract class XmlDocumentReader {
+
+    /**
+     * @param parser             at the start of the document
+     * @param isOpenRosaResponse whether the server sent an OpenRosa version header
+     * @return an error message if the document isn't what was expected, null otherwise
+     */
+    public abstract String read(XmlPullParser parser, boolean isOpenRosaResponse) throws Exception;
+
+    /**
+     * @return the localized string, as the error messages readers return are made
+     */
+    protected String getString(int resId, Object... formatArgs) {
+        return Collect.getInstance().getString(resId, formatArgs);
+    }
+
+    /**
+     * Moves to the next element directly inside the element the parser was on at the given
+     * depth, skipping anything nested deeper.
+     *
+     * @return false once the enclosing element has ended
+     */
+    protected static boolean nextChildElement(XmlPullParser parser, int depth)
+            throws XmlPullParserException, IOException {
+        while (true) {
+            int event = parser.next();
+            if (event == XmlPullParser.END_DOCUMENT) {
+                return false;
+            }
+            if (event == XmlPullParser.END_TAG && parser.getDepth() == depth) {
+                return false;
+            }
+            if (event == XmlPullParser.START_TAG && parser.getDepth() == depth + 1) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Reads the text of the element the parser is on, leaving it on its end tag.
+     *
+     * @return the trimmed text, or null if there is none
+     */
+    protected static String readText(XmlPullParser parser)
+            throws XmlPullParserException, IOException {
+        int depth = parser.getDepth();
+        StringBuilder b = new StringBuilder();
+        while (true) {
+            int event = parser.next();
+            if (event == XmlPullParser.TEXT && parser.getDepth() == depth) {
+                b.append(parser.getText());
+            } else if (event == XmlPullParser.END_DOCUMENT
+                    || (event == XmlPullParser.END_TAG && parser.getDepth() == depth)) {
+                break;
+            }
+        }
+        String text = b.toString().trim();
+        return text.length() == 0 ? null : text;
+    }
+}
@@ -15,7 +15,6 @@
 package uk.co.biorisk.collect.widgets;
 
 import android.content.Context;
-import android.database.Cursor;
 import android.view.KeyEvent;
 import android.view.inputmethod.InputMethodManager;
 import android.widget.CompoundButton;
@@ -23,22 +22,19 @@ import android.widget.RadioButton;
 import android.widget.RadioGroup;
 import android.widget.TextView;
 import org.javarosa.core.model.FormDef;
-import org.javarosa.core.model.condition.EvaluationContext;
 import org.javarosa.core.model.data.IAnswerData;
 import org.javarosa.core.model.data.StringData;
 import org.javarosa.core.model.instance.TreeElement;
 import org.javarosa.form.api.FormEntryPrompt;
-import org.javarosa.xpath.XPathNodeset;
-import org.javarosa.xpath.XPathParseTool;
-import org.javarosa.xpath.expr.XPathExpression;
-import org.javarosa.xpath.parser.XPathSyntaxException;
 import uk.co.biorisk.collect.R;
 import uk.co.biorisk.collect.application.Collect;
 import uk.co.biorisk.collect.database.ItemsetDbAdapter;
+import uk.co.biorisk.collect.database.ItemsetQueryEngine;
+import uk.co.biorisk.collect.listeners.ItemsetLoadListener;
 
 import java.io.File;
-import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 
 /**
  * The most basic widget that allows for entry of any text.
@@ -55,6 +51,10 @@ public class ItemsetWidget extends QuestionWidget implements
     private String mAnswer = null;
     // Hashmap linking label:value
     private HashMap<String, String> mAnswers;
+    private String mCurrentAnswer;
+    // set while the itemset table is still being loaded
+    private String mPathHash = null;
+    private ItemsetLoadListener mLoadListener = null;
 
     public ItemsetWidget(Context context, FormEntryPrompt prompt, boolean readOnlyOverride) {
         this(context, prompt, readOnlyOverride, true);
@@ -68,7 +68,7 @@ public class ItemsetWidget extends QuestionWidget implements
         mReadOnly = prompt.isReadOnly() || readOnlyOverride;
         mAnswers = new HashMap<>();
 
-        String currentAnswer = prompt.getAnswerText();
+        mCurrentAnswer = prompt.getAnswerText();
 
         // the format of the query should be something like this:
         // query="instance('cities')/root/item[state=/data/state and county=/data/county]"
@@ -77,172 +77,66 @@ public class ItemsetWidget extends QuestionWidget implements
         // itemset widget.
         String nodesetStr = prompt.getQuestion().getAdditionalAttribute(null, "query");
 
-        // parse out the list name, between the ''
-        String list_name = nodesetStr.substring(nodesetStr.indexOf("'") + 1,
-                nodesetStr.lastIndexOf("'"));
+        // the query is only parsed the first time it is seen
+        ItemsetQueryEngine engine = ItemsetQueryEngine.getInstance();
+        ItemsetQueryEngine.Query query = engine.getQuery(nodesetStr);
 
-        // isolate the string between between the [ ] characters
-        String queryString = nodesetStr.substring(nodesetStr.indexOf("[") + 1,
-                nodesetStr.lastIndexOf("]"));
-
-        StringBuilder selection = new StringBuilder();
-        // add the list name as the first argument, which will always be there
-        selection.append("list_name=?");
-
-        // check to see if there are any arguments
-        if (queryString.indexOf("=") != -1) {
-            selection.append(" and ");
-        }
-
-        // can't just split on 'and' or 'or' because they have different
-        // behavior, so loop through and break them off until we don't have any
-        // more
-        // must include the spaces in indexOf so we don't match words like
-        // "land"
-        int andIndex = -1;
-        int orIndex = -1;
-        ArrayList<String> arguments = new ArrayList<>();
-        while ((andIndex = queryString.indexOf(" and ")) != -1
-                || (orIndex = queryString.indexOf(" or ")) != -1) {
-            if (andIndex != -1) {
-                String subString = queryString.substring(0, andIndex);
-                String pair[] = subString.split("=");
-                if (pair.length == 2) {
-                    selection.append(pair[0].trim() + "=? and ");
-                    arguments.add(pair[1].trim());
-                } else {
-                    // parse error
-                }
-                // move string forward to after " and "
-                queryString = queryString.substring(andIndex + 5, queryString.length());
-                andIndex = -1;
-            } else if (orIndex != -1) {
-                String subString = queryString.substring(0, orIndex);
-                String pair[] = subString.split("=");
-                if (pair.length == 2) {
-                    selection.append(pair[0].trim() + "=? or ");
-                    arguments.add(pair[1].trim());
-                } else {
-                    // parse error
-                }
-
-                // move string forward to after " or "
-                queryString = queryString.substring(orIndex + 4, queryString.length());
-                orIndex = -1;
-            }
-        }
-
-        // parse the last segment (or only segment if there are no 'and' or 'or'
-        // clauses
-        String pair[] = queryString.split("=");
-        if (pair.length == 2) {
-            selection.append(pair[0].trim() + "=?");
-            arguments.add(pair[1].trim());
-        }
-        if (pair.length == 1) {
-            // this is probably okay, because then you just list all items in
-            // the list
+        String[] selectionArgs = null; // can't have any null arguments
+        if (query.getInvalidArgument() != null) {
+            TextView error = new TextView(context);
+            error.setText("XPathParser Exception:  \"" + query.getInvalidArgument() + "\"");
+            addAnswerView(error);
         } else {
-            // parse error
-        }
-
-        // +1 is for the list_name
-        String[] selectionArgs = new String[arguments.size() + 1];
-
-        boolean nullArgs = false; // can't have any null arguments
-        selectionArgs[0] = list_name; // first argument is always listname
-
-        // loop through the arguments, evaluate any expressions
-        // and build the query string for the DB
-        for (int i = 0; i < arguments.size(); i++) {
-            XPathExpression xpr = null;
-            try {
-                xpr = XPathParseTool.parseXPath(arguments.get(i));
-            } catch (XPathSyntaxException e) {
-                e.printStackTrace();
-                TextView error = new TextView(context);
-                error.setText("XPathParser Exception:  \"" + arguments.get(i) + "\"");
-                addAnswerView(error);
-                break;
-            }
-
-            if (xpr != null) {
-                FormDef form = Collect.getInstance().getFormController().getFormDef();
-                TreeElement mTreeElement = form.getMainInstance().resolveReference(prompt.getIndex().getReference());
-                EvaluationContext ec = new EvaluationContext(form.getEvaluationContext(),
-                        mTreeElement.getRef());
-                Object value = xpr.eval(form.getMainInstance(), ec);
-
-                if (value == null) {
-                    nullArgs = true;
-                } else {
-                    if (value instanceof XPathNodeset) {
-                        XPathNodeset xpn = (XPathNodeset) value;
-                        value = xpn.getValAt(0);
-                    }
-
-                    selectionArgs[i + 1] = value.toString();
-                }
-            }
+            // evaluate the arguments to build the query for the DB
+            FormDef form = Collect.getInstance().getFormController().getFormDef();
+            TreeElement mTreeElement = form.getMainInstance().resolveReference(prompt.getIndex().getReference());
+            selectionArgs = query.evaluateArguments(form, mTreeElement.getRef());
         }
 
         File itemsetFile = new File(Collect.getInstance().getFormController().getMediaFolder().getAbsolutePath() + "/itemsets.csv");
-        if (nullArgs) {
+        if (selectionArgs == null) {
             // we can't try to query with null values else it blows up
             // so just leave the screen blank
             // TODO: put an error?
         } else if (itemsetFile.exists()) {
-            ItemsetDbAdapter ida = new ItemsetDbAdapter();
-            ida.open();
+            String lang = "";
+            if (Collect.getInstance().getFormController().getLanguages() != null
+                    && Collect.getInstance().getFormController().getLanguages().length > 0) {
+                lang = Collect.getInstance().getFormController().getLanguage();
+            }
 
             // name of the itemset table for this form
-            String pathHash = ItemsetDbAdapter.getMd5FromString(itemsetFile.getAbsolutePath());
-            try {
-                Cursor c = ida.query(pathHash, selection.toString(), selectionArgs);
-                if (c != null) {
-                    c.move(-1);
-                    while (c.moveToNext()) {
-                        String label = "";
-                        String val = "";
-                        // try to get the value associated with the label:lang
-                        // string if that doen't exist, then just use label
-                        String lang = "";
-                        if (Collect.getInstance().getFormController().getLanguages() != null
-                                && Collect.getInstance().getFormController().getLanguages().length > 0) {
-                            lang = Collect.getInstance().getFormController().getLanguage();
-                        }
-
-                        // apparently you only need the double quotes in the
-                        // column name when creating the column with a :
-                        // included
-                        String labelLang = "label" + "::" + lang;
-                        int langCol = c.getColumnIndex(labelLang);
-                        if (langCol == -1) {
-                            label = c.getString(c.getColumnIndex("label"));
-                        } else {
-                            label = c.getString(c.getColumnIndex(labelLang));
-                        }
-
-                        // the actual value is stored in name
-                        val = c.getString(c.getColumnIndex("name"));
-                        mAnswers.put(label, val);
+            final String pathHash = ItemsetDbAdapter.getMd5FromString(itemsetFile.getAbsolutePath());
+            final ItemsetQueryEngine.Query loadQuery = query;
+            final String[] loadArgs = selectionArgs;
+            final String loadLang = lang;
+            final TextView loading = new TextView(context);
+            ItemsetLoadListener listener = new ItemsetLoadListener() {
+                @Override
+                public void itemsetLoadProgress(int rows) {
+                    loading.setText(getContext().getString(
+                            R.string.survey_loading_itemsets_message, rows));
+                }
 
-                        RadioButton rb = new RadioButton(context);
-                        rb.setOnCheckedChangeListener(this);
-                        rb.setText(label);
-                        rb.setTextSize(mAnswerFontsize);
-                        mButtons.addView(rb);
-                        // have to add it to the radiogroup before checking it,
-                        // else it lets two buttons be checked...
-                        if (currentAnswer != null
-                                && val.compareTo(currentAnswer) == 0) {
-                            rb.setChecked(true);
-                        }
-                    }
-                    c.close();
+                @Override
+                public void itemsetLoaded() {
+                    mPathHash = null;
+                    mLoadListener = null;
+                    mButtons.removeView(loading);
+                    addItems(ItemsetQueryEngine.getInstance().getItems(pathHash, loadQuery,
+                            loadArgs, loadLang));
                 }
-            } finally {
-                ida.close();
+            };
+            if (engine.addLoadListener(pathHash, listener)) {
+                // the table is still being loaded, so the choices are added once it is in
+                // rather than holding up the UI thread
+                mPathHash = pathHash;
+                mLoadListener = listener;
+                listener.itemsetLoadProgress(engine.getLoadedRows(pathHash));
+                loading.setTextSize(mAnswerFontsize);
+                mButtons.addView(loading);
+            } else {
+                addItems(engine.getItems(pathHash, query, selectionArgs, lang));
             }
 
             addAnswerView(mButtons);
@@ -254,6 +148,34 @@ public class ItemsetWidget extends QuestionWidget implements
 
     }
 
+    private void addItems(List<ItemsetQueryEngine.Item> items) {
+        for (ItemsetQueryEngine.Item item : items) {
+            mAnswers.put(item.label, item.value);
+
+            RadioButton rb = new RadioButton(getContext());
+            rb.setOnCheckedChangeListener(this);
+            rb.setText(item.label);
+            rb.setTextSize(mAnswerFontsize);
+            mButtons.addView(rb);
+            // have to add it to the radiogroup before checking it,
+            // else it lets two buttons be checked...
+            if (mCurrentAnswer != null
+                    && item.value.compareTo(mCurrentAnswer) == 0) {
+                rb.setChecked(true);
+            }
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        if (mLoadListener != null) {
+            ItemsetQueryEngine.getInstance().removeLoadListener(mPathHash, mLoadListener);
+            mPathHash = null;
+            mLoadListener = null;
+        }
+    }
+
     @Override
     public void clearAnswer() {
         mButtons.clearCheck();
@@ -24,7 +24,7 @@ import android.view.ViewGroup;
 import android.view.inputmethod.InputMethodManager;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemSelectedListener;
-import android.widget.ArrayAdapter;
+import android.widget.BaseAdapter;
 import android.widget.Spinner;
 import android.widget.TextView;
 import org.javarosa.core.model.SelectChoice;
@@ -36,6 +36,7 @@ import org.javarosa.xpath.expr.XPathFuncExpr;
 import uk.co.biorisk.collect.R;
 import uk.co.biorisk.collect.application.Collect;
 import uk.co.biorisk.collect.external.ExternalDataUtil;
+import uk.co.biorisk.collect.external.handler.PagedSelectChoiceList;
 
 import java.util.List;
 
@@ -50,7 +51,6 @@ public class SpinnerWidget extends QuestionWidget {
     private static final int BROWN = 0xFF936931;
     List<SelectChoice> mItems;
     Spinner spinner;
-    String[] choices;
 
 
     public SpinnerWidget(Context context, FormEntryPrompt prompt) {
@@ -65,16 +65,10 @@ public class SpinnerWidget extends QuestionWidget {
         }
 
         spinner = new Spinner(context);
-        choices = new String[mItems.size() + 1];
-        for (int i = 0; i < mItems.size(); i++) {
-            choices[i] = prompt.getSelectChoiceText(mItems.get(i));
-        }
-        choices[mItems.size()] = getContext().getString(R.string.select_one);
 
         // The spinner requires a custom adapter. It is defined below
         SpinnerAdapter adapter =
-                new SpinnerAdapter(getContext(), android.R.layout.simple_spinner_item, choices,
-                        TypedValue.COMPLEX_UNIT_DIP, mQuestionFontsize);
+                new SpinnerAdapter(getContext(), TypedValue.COMPLEX_UNIT_DIP, mQuestionFontsize);
 
         spinner.setAdapter(adapter);
         spinner.setPrompt(prompt.getQuestionText());
@@ -88,7 +82,13 @@ public class SpinnerWidget extends QuestionWidget {
         }
 
         spinner.setSelection(mItems.size());
-        if (s != null) {
+        if (s != null && mItems instanceof PagedSelectChoiceList) {
+            // don't read all the choices just to find the selected one
+            int i = ((PagedSelectChoiceList) mItems).indexOfValue(s);
+            if (i != -1) {
+                spinner.setSelection(i);
+            }
+        } else if (s != null) {
             for (int i = 0; i < mItems.size(); ++i) {
                 String sMatch = mItems.get(i).getValue();
                 if (sMatch.equals(s)) {
@@ -163,24 +163,43 @@ public class SpinnerWidget extends QuestionWidget {
         spinner.cancelLongPress();
     }
 
-    // Defines how to display the select answers
-    private class SpinnerAdapter extends ArrayAdapter<String> {
+    // Defines how to display the select answers. The labels are only looked up for the rows that
+    // are shown, so that large (paged) choice lists aren't read all at once.
+    private class SpinnerAdapter extends BaseAdapter {
         Context context;
-        String[] items = new String[]{};
         int textUnit;
         float textSize;
 
 
-        public SpinnerAdapter(final Context context, final int textViewResourceId,
-                              final String[] objects, int textUnit, float textSize) {
-            super(context, textViewResourceId, objects);
-            this.items = objects;
+        public SpinnerAdapter(final Context context, int textUnit, float textSize) {
             this.context = context;
             this.textUnit = textUnit;
             this.textSize = textSize;
         }
 
 
+        @Override
+        public int getCount() {
+            // the last row is the "select one" / "clear answer" row
+            return mItems.size() + 1;
+        }
+
+
+        @Override
+        public String getItem(int position) {
+            if (position == mItems.size()) {
+                return context.getString(R.string.select_one);
+            }
+            return mPrompt.getSelectChoiceText(mItems.get(position));
+        }
+
+
+        @Override
+        public long getItemId(int position) {
+            return position;
+        }
+
+
         @Override
         // Defines the text view parameters for the drop down list entries
         public View getDropDownView(int position, View convertView, ViewGroup parent) {
@@ -194,7 +213,7 @@ public class SpinnerWidget extends QuestionWidget {
             tv.setTextSize(textUnit, textSize);
             tv.setBackgroundColor(Color.WHITE);
             tv.setPadding(10, 10, 10, 10); // Are these values OK?
-            if (position == items.length - 1) {
+            if (position == getCount() - 1) {
                 tv.setText(parent.getContext().getString(R.string.clear_answer));
                 tv.setTextColor(BROWN);
                 tv.setTypeface(null, Typeface.NORMAL);
@@ -202,7 +221,7 @@ public class SpinnerWidget extends QuestionWidget {
                     tv.setBackgroundColor(Color.LTGRAY);
                 }
             } else {
-                tv.setText(items[position]);
+                tv.setText(getItem(position));
                 tv.setTextColor(Color.BLACK);
                 tv.setTypeface(null, (spinner.getSelectedItemPosition() == position)
                         ? Typeface.BOLD : Typeface.NORMAL);
@@ -219,11 +238,11 @@ public class SpinnerWidget extends QuestionWidget {
             }
 
             TextView tv = (TextView) convertView.findViewById(android.R.id.text1);
-            tv.setText(items[position]);
+            tv.setText(getItem(position));
             tv.setTextSize(textUnit, textSize);
             tv.setTextColor(Color.BLACK);
             tv.setTypeface(null, Typeface.BOLD);
-            if (position == items.length - 1) {
+            if (position == getCount() - 1) {
                 tv.setTextColor(BROWN);
                 tv.setTypeface(null, Typeface.NORMAL);
             }
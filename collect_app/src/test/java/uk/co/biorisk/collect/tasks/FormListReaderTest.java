@@ -0,0 +1,151 @@
+package uk.co.biorisk.collect.tasks;
+
+import org.junit.Test;
+import org.kxml2.io.KXmlParser;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import uk.co.biorisk.collect.R;
+import uk.co.biorisk.collect.logic.FormDetails;
+
+import java.io.StringReader;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Reads OpenRosa and legacy form lists the way they arrive from the server.
+ */
+public class FormListReaderTest {
+
+    private static final String NAMESPACE = "http://openrosa.org/xforms/xformsList";
+
+    @Test
+    public void readsOpenRosaFormList() throws Exception {
+        TestFormListReader reader = new TestFormListReader();
+
+        assertNull(read(reader, formList("<xform><formID>a</formID><name>Form A</name>"
+                + "<version>3</version><majorMinorVersion>1.0</majorMinorVersion>"
+                + "<downloadUrl>http://example.org/a</downloadUrl>"
+                + "<manifestUrl>http://example.org/a/manifest</manifestUrl></xform>"
+                + "<xform><formID>b</formID><name>Form B</name>"
+                + "<majorMinorVersion>1.0</majorMinorVersion>"
+                + "<downloadUrl>http://example.org/b</downloadUrl></xform>"), true));
+
+        assertEquals(2, reader.mFormList.size());
+        FormDetails a = reader.mFormList.get("a");
+        assertEquals("Form A", a.formName);
+        assertEquals("http://example.org/a", a.downloadUrl);
+        assertEquals("http://example.org/a/manifest", a.manifestUrl);
+        assertEquals("3", a.formVersion);
+        FormDetails b = reader.mFormList.get("b");
+        assertNull(b.manifestUrl);
+        // without a version, the major and minor version stands in for it
+        assertEquals("1.0", b.formVersion);
+    }
+
+    @Test
+    public void otherNamespacesAreSkipped() throws Exception {
+        TestFormListReader reader = new TestFormListReader();
+
+        assertNull(read(reader, "<f:xforms xmlns:f=\"" + NAMESPACE + "\" xmlns:x=\"urn:x\">"
+                + "<x:xform><f:formID>ignored</f:formID></x:xform>"
+                + "<f:xform><f:formID>a</f:formID><x:formID>other</x:formID><f:name>Form A</f:name>"
+                + "<x:extension><f:name>nested</f:name></x:extension>"
+                + "<f:downloadUrl>http://example.org/a</f:downloadUrl></f:xform>"
+                + "</f:xforms>", true));
+
+        assertEquals(1, reader.mFormList.size());
+        assertEquals("Form A", reader.mFormList.get("a").formName);
+    }
+
+    @Test
+    public void incompleteEntryIsAnError() throws Exception {
+        TestFormListReader reader = new TestFormListReader();
+
+        String error = read(reader, formList(
+                "<xform><formID>a</formID><name>Form A</name>"
+                        + "<downloadUrl>http://example.org/a</downloadUrl></xform>"
+                        + "<xform><formID>b</formID><name>Form B</name></xform>"), true);
+
+        assertTrue(error, error.startsWith(String.valueOf(R.string.parse_openrosa_formlist_failed)));
+        assertTrue(error, error.contains("entry 1"));
+        // nothing is taken from a list with an error in it
+        assertTrue(reader.mFormList.isEmpty());
+    }
+
+    @Test
+    public void wrongNamespaceIsAnError() throws Exception {
+        TestFormListReader reader = new TestFormListReader();
+
+        String error = read(reader, "<xforms xmlns=\"urn:x\"><xform><formID>a</formID>"
+                + "<name>Form A</name><downloadUrl>http://example.org/a</downloadUrl></xform>"
+                + "</xforms>", true);
+
+        assertTrue(error, error.contains("namespace"));
+        assertTrue(reader.mFormList.isEmpty());
+    }
+
+    @Test
+    public void readsLegacyFormList() throws Exception {
+        TestFormListReader reader = new TestFormListReader();
+
+        assertNull(read(reader, "<forms><formID>a</formID>"
+                + "<form url=\"http://example.org/a\">Form A</form>"
+                + "<form url=\" http://example.org/b \">Form B</form></forms>", false));
+
+        assertEquals(2, reader.mFormList.size());
+        assertEquals("a", reader.mFormList.get("Form A").formID);
+        assertEquals("http://example.org/a", reader.mFormList.get("Form A").downloadUrl);
+        // a form ID only goes with the form after it
+        assertNull(reader.mFormList.get("Form B").formID);
+        assertEquals("http://example.org/b", reader.mFormList.get("Form B").downloadUrl);
+    }
+
+    @Test
+    public void legacyFormWithoutUrlIsAnError() throws Exception {
+        TestFormListReader reader = new TestFormListReader();
+
+        String error = read(reader, "<forms><form url=\"http://example.org/a\">Form A</form>"
+                + "<form url=\" \">Form B</form></forms>", false);
+
+        assertTrue(error, error.startsWith(String.valueOf(R.string.parse_legacy_formlist_failed)));
+        assertTrue(reader.mFormList.isEmpty());
+    }
+
+    @Test
+    public void malformedXmlIsAnError() throws Exception {
+        try {
+            read(new TestFormListReader(), formList("<xform><formID>a</name></xform>"), true);
+            fail("read malformed XML");
+        } catch (XmlPullParserException e) {
+            // expected
+        }
+    }
+
+    private static String read(DownloadFormListTask.FormListReader reader, String xml,
+                               boolean isOpenRosaResponse) throws Exception {
+        KXmlParser parser = new KXmlParser();
+        parser.setInput(new StringReader(xml));
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+        return reader.read(parser, isOpenRosaResponse);
+    }
+
+    private static String formList(String xforms) {
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                + "<xforms xmlns=\"" + NAMESPACE + "\">" + xforms + "</xforms>";
+    }
+
+    /**
+     * Makes its messages of the resource id and arguments.
+     */
+    private static class TestFormListReader extends DownloadFormListTask.FormListReader {
+        @Override
+        protected String getString(int resId, Object... formatArgs) {
+            return resId + " " + Arrays.toString(formatArgs);
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package uk.co.biorisk.collect.tasks;
+
+import org.junit.Test;
+import org.kxml2.io.KXmlParser;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import uk.co.biorisk.collect.R;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Reads manifests the way they arrive from the server.
+ */
+public class ManifestReaderTest {
+
+    private static final String NAMESPACE = "http://openrosa.org/xforms/xformsManifest";
+
+    private final List<String> handedOver = new ArrayList<>();
+
+    @Test
+    public void handsOverEachMediaFile() throws Exception {
+        TestManifestReader reader = new TestManifestReader();
+
+        assertNull(read(reader, manifest(mediaFile("a.jpg", "md5:1", "http://example.org/a")
+                + mediaFile("b.csv", "md5:2", "http://example.org/b")), true));
+
+        assertEquals(Arrays.asList("a.jpg", "b.csv"), handedOver);
+        assertEquals(2, reader.mFiles.size());
+        DownloadFormsTask.MediaFile b = reader.mFiles.get(1);
+        assertEquals("b.csv", b.filename);
+        assertEquals("md5:2", b.hash);
+        assertEquals("http://example.org/b", b.downloadUrl);
+    }
+
+    @Test
+    public void filesBeforeAnIncompleteEntryAreAlreadyHandedOver() throws Exception {
+        String error = read(new TestManifestReader(), manifest(
+                mediaFile("a.jpg", "md5:1", "http://example.org/a")
+                        + "<mediaFile><filename>b.csv</filename>"
+                        + "<downloadUrl>http://example.org/b</downloadUrl></mediaFile>"
+                        + mediaFile("c.jpg", "md5:3", "http://example.org/c")), true);
+
+        assertTrue(error, error.contains(R.string.manifest_tag_error + " [1]"));
+        assertEquals(Arrays.asList("a.jpg"), handedOver);
+    }
+
+    @Test
+    public void fileListedTwiceMakesTheManifestInvalid() throws Exception {
+        String error = read(new TestManifestReader(), manifest(
+                mediaFile("a.jpg", "md5:1", "http://example.org/a")
+                        + mediaFile("b.csv", "md5:2", "http://example.org/b")
+                        + mediaFile("a.jpg", "md5:3", "http://example.org/a2")), true);
+
+        assertTrue(error, error.contains(R.string.manifest_duplicate_error + " [2, a.jpg]"));
+        assertEquals(Arrays.asList("a.jpg", "b.csv"), handedOver);
+    }
+
+    @Test
+    public void otherNamespacesAreSkipped() throws Exception {
+        TestManifestReader reader = new TestManifestReader();
+
+        assertNull(read(reader, "<m:manifest xmlns:m=\"" + NAMESPACE + "\" xmlns:x=\"urn:x\">"
+                + "<x:mediaFile><m:filename>ignored.jpg</m:filename></x:mediaFile>"
+                + "<m:mediaFile><m:filename>a.jpg</m:filename><x:filename>other.jpg</x:filename>"
+                + "<m:hash>md5:1</m:hash><m:downloadUrl>http://example.org/a</m:downloadUrl>"
+                + "<x:extension><m:filename>nested.jpg</m:filename></x:extension>"
+                + "</m:mediaFile></m:manifest>", true));
+
+        assertEquals(Arrays.asList("a.jpg"), handedOver);
+    }
+
+    @Test
+    public void wrongRootIsAnError() throws Exception {
+        String error = read(new TestManifestReader(),
+                "<xforms xmlns=\"" + NAMESPACE + "\"></xforms>", true);
+
+        assertTrue(error, error.contains(R.string.root_element_error + " [xforms]"));
+    }
+
+    @Test
+    public void wrongNamespaceIsAnError() throws Exception {
+        String error = read(new TestManifestReader(),
+                "<manifest xmlns=\"urn:x\">" + mediaFile("a.jpg", "md5:1", "http://example.org/a")
+                        + "</manifest>", true);
+
+        assertTrue(error, error.contains(R.string.root_namespace_error + " [urn:x]"));
+        assertTrue(handedOver.isEmpty());
+    }
+
+    @Test
+    public void replyWithoutOpenRosaVersionIsAnError() throws Exception {
+        String error = read(new TestManifestReader(),
+                manifest(mediaFile("a.jpg", "md5:1", "http://example.org/a")), false);
+
+        assertTrue(error, error.contains(String.valueOf(R.string.manifest_server_error)));
+        assertTrue(handedOver.isEmpty());
+    }
+
+    @Test
+    public void malformedXmlFailsAfterTheFilesBeforeIt() throws Exception {
+        try {
+            read(new TestManifestReader(), "<manifest xmlns=\"" + NAMESPACE + "\">"
+                    + mediaFile("a.jpg", "md5:1", "http://example.org/a")
+                    + "<mediaFile><filename>b.csv</hash></mediaFile></manifest>", true);
+            fail("read malformed XML");
+        } catch (XmlPullParserException e) {
+            // expected
+        }
+        assertEquals(Arrays.asList("a.jpg"), handedOver);
+    }
+
+    private static String read(DownloadFormsTask.ManifestReader reader, String xml,
+                               boolean isOpenRosaResponse) throws Exception {
+        KXmlParser parser = new KXmlParser();
+        parser.setInput(new StringReader(xml));
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+        return reader.read(parser, isOpenRosaResponse);
+    }
+
+    private static String manifest(String mediaFiles) {
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                + "<manifest xmlns=\"" + NAMESPACE + "\">" + mediaFiles + "</manifest>";
+    }
+
+    private static String mediaFile(String filename, String hash, String downloadUrl) {
+        return "<mediaFile><filename>" + filename + "</filename><hash>" + hash + "</hash>"
+                + "<downloadUrl>" + downloadUrl + "</downloadUrl></mediaFile>";
+    }
+
+    /**
+     * Records the files it hands over, and makes its messages of the resource id and arguments.
+     */
+    private class TestManifestReader extends DownloadFormsTask.ManifestReader {
+        TestManifestReader() {
+            super("http://example.org/manifest", new Listener() {
+                @Override
+                public void mediaFileRead(DownloadFormsTask.MediaFile mediaFile) {
+                    handedOver.add(mediaFile.filename);
+                }
+            });
+        }
+
+        @Override
+        protected String getString(int resId, Object... formatArgs) {
+            return resId + " " + Arrays.toString(formatArgs);
+        }
+    }
+}
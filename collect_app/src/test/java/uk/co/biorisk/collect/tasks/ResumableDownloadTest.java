@@ -0,0 +1,302 @@
+package uk.co.biorisk.collect.tasks;
+
+import com.belladati.httpclientandroidlib.HttpResponse;
+import com.belladati.httpclientandroidlib.client.methods.HttpGet;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import uk.co.biorisk.collect.exception.TaskCancelledException;
+import uk.co.biorisk.collect.utilities.WebUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Downloads from a local server that drops the connection part way through the file.
+ */
+public class ResumableDownloadTest {
+
+    private static final int FILE_SIZE = 300 * 1024;
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private HttpServer server;
+    private byte[] content;
+    private File tempFile;
+
+    // what the server does, set by each test
+    private volatile boolean acceptRanges = true;
+    private volatile boolean ignoreRanges = false;
+    // how far into the file each response gets before the connection is dropped, in order
+    private final List<Integer> dropAt = Collections.synchronizedList(new ArrayList<Integer>());
+    // the Range header of each request, or null
+    private final List<String> ranges = Collections.synchronizedList(new ArrayList<String>());
+    // how much of the file is downloaded before the download is cancelled, or -1
+    private volatile long cancelAt = -1;
+
+    @Before
+    public void setUp() throws IOException {
+        content = new byte[FILE_SIZE];
+        new Random(7).nextBytes(content);
+        tempFile = new File(temp.getRoot(), "download.tempDownload");
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/media.bin", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        WebUtils.clearHttpConnectionManager();
+    }
+
+    @Test
+    public void resumesWhereTheConnectionDropped() throws Exception {
+        dropAt.add(100 * 1024);
+        dropAt.add(200 * 1024);
+
+        download(md5(content));
+
+        assertArrayEquals(content, Files.readAllBytes(tempFile.toPath()));
+        assertEquals(Arrays.asList(null, "bytes=" + 100 * 1024 + "-", "bytes=" + 200 * 1024 + "-"),
+                ranges);
+    }
+
+    @Test
+    public void continuesAPartialFileLeftByAnEarlierDownload() throws Exception {
+        write(tempFile, Arrays.copyOf(content, 50 * 1024));
+
+        download(md5(content));
+
+        assertArrayEquals(content, Files.readAllBytes(tempFile.toPath()));
+        assertEquals(Collections.singletonList("bytes=" + 50 * 1024 + "-"), ranges);
+    }
+
+    @Test
+    public void startsOverWhenTheServerDoesNotAcceptRanges() throws Exception {
+        acceptRanges = false;
+        dropAt.add(100 * 1024);
+
+        download(md5(content));
+
+        assertArrayEquals(content, Files.readAllBytes(tempFile.toPath()));
+        assertEquals(Arrays.asList((String) null, null), ranges);
+    }
+
+    @Test
+    public void replacesThePartialFileWhenTheWholeFileIsSentAgain() throws Exception {
+        // the server says it accepts ranges, but answers a Range request with a 200
+        ignoreRanges = true;
+        dropAt.add(100 * 1024);
+
+        download(md5(content));
+
+        assertArrayEquals(content, Files.readAllBytes(tempFile.toPath()));
+        assertEquals(Arrays.asList(null, "bytes=" + 100 * 1024 + "-"), ranges);
+    }
+
+    @Test
+    public void rejectsAFileThatDoesNotMatchTheHash() throws Exception {
+        byte[] other = content.clone();
+        other[0]++;
+
+        try {
+            download(md5(other));
+            fail("downloaded a file with the wrong hash");
+        } catch (Exception e) {
+            assertEquals("hash mismatch", e.getMessage());
+        }
+        assertFalse(tempFile.exists());
+    }
+
+    @Test
+    public void startsOverWhenWhatWasResumedDoesNotMatchTheHash() throws Exception {
+        // left over from another version of the file
+        byte[] stale = Arrays.copyOf(content, 50 * 1024);
+        stale[0]++;
+        write(tempFile, stale);
+
+        download(md5(content));
+
+        assertArrayEquals(content, Files.readAllBytes(tempFile.toPath()));
+        assertEquals(Arrays.asList("bytes=" + 50 * 1024 + "-", null), ranges);
+    }
+
+    @Test
+    public void givesUpAfterFailingTwiceWithoutProgress() throws Exception {
+        dropAt.add(0);
+        dropAt.add(0);
+        dropAt.add(0);
+
+        try {
+            download(null);
+            fail("no failure");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(ResumableDownload.MAX_CONSECUTIVE_FAILURES, ranges.size());
+    }
+
+    @Test
+    public void failureWithoutProgressAfterOneWithProgressIsRetried() throws Exception {
+        dropAt.add(100 * 1024);
+        // nothing more of the file
+        dropAt.add(0);
+
+        download(md5(content));
+
+        assertArrayEquals(content, Files.readAllBytes(tempFile.toPath()));
+        assertEquals(Arrays.asList(null, "bytes=" + 100 * 1024 + "-", "bytes=" + 100 * 1024 + "-"),
+                ranges);
+    }
+
+    @Test
+    public void cancellingKeepsThePartialFile() throws Exception {
+        cancelAt = 100 * 1024;
+        try {
+            download(md5(content));
+            fail("not cancelled");
+        } catch (TaskCancelledException e) {
+            assertNull(e.getFile());
+        }
+
+        byte[] partial = Files.readAllBytes(tempFile.toPath());
+        assertTrue(partial.length >= 100 * 1024 && partial.length < FILE_SIZE);
+        assertArrayEquals(Arrays.copyOf(content, partial.length), partial);
+
+        cancelAt = -1;
+        download(md5(content));
+
+        assertArrayEquals(content, Files.readAllBytes(tempFile.toPath()));
+        assertEquals("bytes=" + partial.length + "-", ranges.get(1));
+    }
+
+    @Test
+    public void knownHashIsNotNeededToResume() throws Exception {
+        dropAt.add(100 * 1024);
+
+        download(null);
+
+        assertArrayEquals(content, Files.readAllBytes(tempFile.toPath()));
+        assertNull(ranges.get(0));
+        assertEquals("bytes=" + 100 * 1024 + "-", ranges.get(1));
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        String range = exchange.getRequestHeaders().getFirst(ResumableDownload.RANGE_HEADER);
+        ranges.add(range);
+        if (acceptRanges) {
+            exchange.getResponseHeaders().add(ResumableDownload.ACCEPT_RANGES_HEADER, "bytes");
+        }
+        exchange.getResponseHeaders().add("Connection", "close");
+
+        int start = 0;
+        if (range != null && acceptRanges && !ignoreRanges) {
+            start = Integer.parseInt(range.substring("bytes=".length(), range.length() - 1));
+            exchange.getResponseHeaders().add(ResumableDownload.CONTENT_RANGE_HEADER,
+                    "bytes " + start + "-" + (FILE_SIZE - 1) + "/" + FILE_SIZE);
+            exchange.sendResponseHeaders(206, FILE_SIZE - start);
+        } else {
+            exchange.sendResponseHeaders(200, FILE_SIZE);
+        }
+
+        int end = FILE_SIZE;
+        synchronized (dropAt) {
+            if (!dropAt.isEmpty()) {
+                end = Math.max(start, dropAt.remove(0));
+            }
+        }
+        OutputStream os = exchange.getResponseBody();
+        try {
+            os.write(content, start, end - start);
+            os.flush();
+        } finally {
+            // closing it short of the length it was sent with drops the connection
+            try {
+                exchange.close();
+            } catch (RuntimeException e) {
+                // what the server makes of a short response
+            }
+        }
+    }
+
+    private void download(String expectedMd5) throws Exception {
+        URI uri = URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/media.bin");
+        new ResumableDownload(tempFile, uri, expectedMd5, new ResumableDownload.Callbacks() {
+            @Override
+            public HttpGet newRequest(URI uri) {
+                return new HttpGet(uri);
+            }
+
+            @Override
+            public HttpResponse execute(HttpGet req) throws IOException {
+                return WebUtils.createHttpClient(WebUtils.CONNECTION_TIMEOUT).execute(req);
+            }
+
+            @Override
+            public void requestFinished(HttpGet req) {
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return cancelAt >= 0 && tempFile.length() >= cancelAt;
+            }
+
+            @Override
+            public Exception fetchFailed(HttpResponse response) {
+                return new Exception("fetch failed: " + response.getStatusLine());
+            }
+
+            @Override
+            public Exception hashMismatch() {
+                return new Exception("hash mismatch");
+            }
+        }).run();
+    }
+
+    private static String md5(byte[] bytes) throws Exception {
+        StringBuilder b = new StringBuilder();
+        for (byte x : MessageDigest.getInstance("MD5").digest(bytes)) {
+            b.append(String.format("%02x", x));
+        }
+        return b.toString();
+    }
+
+    private static void write(File file, byte[] bytes) throws IOException {
+        try (OutputStream os = new FileOutputStream(file)) {
+            os.write(bytes);
+        }
+    }
+}
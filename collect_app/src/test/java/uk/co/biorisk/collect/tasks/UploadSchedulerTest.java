@@ -0,0 +1,309 @@
+package uk.co.biorisk.collect.tasks;
+
+import com.belladati.httpclientandroidlib.HttpResponse;
+import com.belladati.httpclientandroidlib.HttpStatus;
+import com.belladati.httpclientandroidlib.client.HttpClient;
+import com.belladati.httpclientandroidlib.client.methods.HttpHead;
+import com.belladati.httpclientandroidlib.client.methods.HttpPost;
+import com.belladati.httpclientandroidlib.entity.ContentType;
+import com.belladati.httpclientandroidlib.entity.mime.MultipartEntityBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.co.biorisk.collect.utilities.WebUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs uploads against a local server that answers like an OpenRosa submission endpoint.
+ */
+public class UploadSchedulerTest {
+
+    private static final int MAX_UPLOADS = 6;
+    private static final int MAX_UPLOADS_PER_HOST = 3;
+    // long enough for the uploads to overlap
+    private static final long POST_MILLIS = 150;
+
+    private HttpServer server;
+    private final Map<String, Integer> inFlight = new HashMap<>();
+    private final Map<String, Integer> mostInFlight = new HashMap<>();
+    private int mostInFlightOverall = 0;
+    private final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+    // the submission the server asks credentials for, if any
+    private volatile String unauthorized = null;
+    private final AtomicInteger headRequests = new AtomicInteger(0);
+    // the submission urls whose endpoint is known, as the uploader's endpoint cache has them
+    private final Set<String> endpoints = Collections.synchronizedSet(new HashSet<String>());
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/submission", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleSubmission(exchange);
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+        WebUtils.clearHttpConnectionManager();
+    }
+
+    @Test
+    public void uploadsEverythingWithinTheLimits() {
+        List<String> hosts = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            // two names for the same server, which the scheduler takes for two servers
+            hosts.add(i % 2 == 0 ? "localhost" : "127.0.0.1");
+        }
+        final List<Integer> progress = Collections.synchronizedList(new ArrayList<Integer>());
+
+        new UploadScheduler(MAX_UPLOADS, MAX_UPLOADS_PER_HOST).run(hosts,
+                new TestUploads(hosts) {
+                    @Override
+                    public void progress(int current, int count) {
+                        progress.add(current);
+                    }
+                });
+
+        assertEquals(16, received.size());
+        for (int i = 0; i < 16; i++) {
+            assertTrue("submission " + i, received.contains("submission-" + i));
+        }
+        synchronized (inFlight) {
+            assertTrue(mostInFlight.get("localhost") <= MAX_UPLOADS_PER_HOST);
+            assertTrue(mostInFlight.get("127.0.0.1") <= MAX_UPLOADS_PER_HOST);
+            assertTrue(mostInFlightOverall <= MAX_UPLOADS);
+            assertTrue("uploads didn't overlap", mostInFlightOverall > 1);
+        }
+
+        // in order, without repeats, and starting at the first
+        assertEquals(1, (int) progress.get(0));
+        assertTrue(progress.get(progress.size() - 1) <= 16);
+        for (int i = 1; i < progress.size(); i++) {
+            assertTrue(progress.toString(), progress.get(i) > progress.get(i - 1));
+        }
+    }
+
+    @Test
+    public void credentialsRequestStopsNewUploads() {
+        List<String> hosts = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            hosts.add("localhost");
+        }
+        unauthorized = "submission-0";
+        final AtomicInteger refused = new AtomicInteger(0);
+
+        new UploadScheduler(2, 2).run(hosts, new TestUploads(hosts) {
+            @Override
+            public boolean upload(int index) {
+                boolean keepGoing = super.upload(index);
+                if (!keepGoing) {
+                    refused.incrementAndGet();
+                }
+                return keepGoing;
+            }
+        });
+
+        assertEquals(1, refused.get());
+        // only the one already being sent next to it gets through
+        assertTrue(received.toString(), received.size() <= 1);
+    }
+
+    @Test
+    public void credentialsRequestFromACachedEndpointStopsNewUploads() {
+        List<String> hosts = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            hosts.add("localhost");
+        }
+        String url = "http://localhost:" + server.getAddress().getPort() + "/submission";
+        endpoints.add(url);
+        unauthorized = "submission-0";
+        long partBytes = UploadChunkSizer.getInstance().getPartBytes();
+        final AtomicInteger refused = new AtomicInteger(0);
+
+        new UploadScheduler(1, 1).run(hosts, new TestUploads(hosts) {
+            @Override
+            public boolean upload(int index) {
+                boolean keepGoing = super.upload(index);
+                if (!keepGoing) {
+                    refused.incrementAndGet();
+                }
+                return keepGoing;
+            }
+        });
+
+        // the post is the first the uploader hears of it
+        assertEquals(0, headRequests.get());
+        assertEquals(1, refused.get());
+        assertTrue(received.toString(), received.isEmpty());
+        // checked again once there are credentials
+        assertFalse(endpoints.contains(url));
+        // it says nothing about how large the parts can be
+        assertEquals(partBytes, UploadChunkSizer.getInstance().getPartBytes());
+    }
+
+    @Test
+    public void cancellingStopsNewUploads() {
+        List<String> hosts = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            hosts.add("localhost");
+        }
+
+        new UploadScheduler(2, 2).run(hosts, new TestUploads(hosts) {
+            @Override
+            public boolean isCancelled() {
+                return !received.isEmpty();
+            }
+        });
+
+        assertTrue(received.toString(), received.size() < 12);
+    }
+
+    private void handleSubmission(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().add(WebUtils.OPEN_ROSA_VERSION_HEADER,
+                WebUtils.OPEN_ROSA_VERSION);
+        // the server can drop a kept alive connection just as it is reused, which isn't
+        // what is tested here
+        exchange.getResponseHeaders().add("Connection", "close");
+        if (exchange.getRequestMethod().equals("HEAD")) {
+            headRequests.incrementAndGet();
+            exchange.sendResponseHeaders(HttpStatus.SC_NO_CONTENT, -1);
+            exchange.close();
+            return;
+        }
+
+        String host = exchange.getRequestHeaders().getFirst("Host");
+        host = host.substring(0, host.lastIndexOf(':'));
+        String name = readName(exchange.getRequestBody());
+        if (name.equals(unauthorized)) {
+            exchange.sendResponseHeaders(HttpStatus.SC_UNAUTHORIZED, -1);
+            exchange.close();
+            return;
+        }
+
+        synchronized (inFlight) {
+            int count = (inFlight.containsKey(host) ? inFlight.get(host) : 0) + 1;
+            inFlight.put(host, count);
+            if (!mostInFlight.containsKey(host) || mostInFlight.get(host) < count) {
+                mostInFlight.put(host, count);
+            }
+            int overall = 0;
+            for (int n : inFlight.values()) {
+                overall += n;
+            }
+            mostInFlightOverall = Math.max(mostInFlightOverall, overall);
+        }
+        try {
+            Thread.sleep(POST_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (inFlight) {
+            inFlight.put(host, inFlight.get(host) - 1);
+        }
+        received.add(name);
+
+        exchange.sendResponseHeaders(HttpStatus.SC_CREATED, -1);
+        exchange.close();
+    }
+
+    /**
+     * @return the name of the submission in a multipart post, which is all the test sends
+     */
+    private static String readName(InputStream in) throws IOException {
+        StringBuilder b = new StringBuilder();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            b.append(new String(buffer, 0, read, "UTF-8"));
+        }
+        int start = b.indexOf("<name>") + "<name>".length();
+        return b.substring(start, b.indexOf("</name>", start));
+    }
+
+    /**
+     * Sends each submission as the uploader does: a HEAD request unless the endpoint is known
+     * from an earlier one, then the post, whose answer is dealt with by the uploader's own
+     * {@link InstanceUploaderTask#postAnswered}.
+     */
+    private class TestUploads implements UploadScheduler.Uploads {
+        private final List<String> mHosts;
+
+        TestUploads(List<String> hosts) {
+            mHosts = hosts;
+        }
+
+        @Override
+        public boolean upload(int index) {
+            final String url = "http://" + mHosts.get(index) + ":" + server.getAddress().getPort()
+                    + "/submission";
+            HttpClient client = WebUtils.createHttpClient(WebUtils.CONNECTION_TIMEOUT);
+            try {
+                if (!endpoints.contains(url)) {
+                    HttpHead head = new HttpHead(url);
+                    head.setHeader(WebUtils.OPEN_ROSA_VERSION_HEADER, WebUtils.OPEN_ROSA_VERSION);
+                    HttpResponse response = client.execute(head);
+                    WebUtils.discardEntityBytes(response);
+                    assertEquals(HttpStatus.SC_NO_CONTENT, response.getStatusLine().getStatusCode());
+                    endpoints.add(url);
+                }
+
+                HttpPost post = new HttpPost(url);
+                post.setHeader(WebUtils.OPEN_ROSA_VERSION_HEADER, WebUtils.OPEN_ROSA_VERSION);
+                post.setEntity(MultipartEntityBuilder.create()
+                        .addTextBody("xml_submission_file",
+                                "<data><name>submission-" + index + "</name></data>",
+                                ContentType.TEXT_XML)
+                        .build());
+                HttpResponse response = client.execute(post);
+                WebUtils.discardEntityBytes(response);
+                InstanceUploaderTask.PostResult result = InstanceUploaderTask.postAnswered(
+                        response.getStatusLine().getStatusCode(), new Runnable() {
+                            @Override
+                            public void run() {
+                                endpoints.remove(url);
+                            }
+                        }, UploadChunkSizer.getInstance());
+                assertTrue(result != InstanceUploaderTask.PostResult.FAILED);
+                return result != InstanceUploaderTask.PostResult.CREDENTIALS_REQUIRED;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public void progress(int current, int count) {
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package uk.co.biorisk.collect.utilities;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import uk.co.biorisk.collect.logic.FormController.InstanceMetadata;
+import uk.co.biorisk.collect.utilities.EncryptionUtils.EncryptedFormInformation;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EncryptionUtilsTest {
+
+    private static final String[] MEDIA_FILES = {
+            "photo-1.jpg", "photo-2.jpg", "audio.m4a", "video.mp4", "signature.png", "empty.txt"
+    };
+    private static final String SUBMISSION_XML = "submission.xml";
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private KeyPair rsaKeys;
+    private byte[] symmetricKey;
+
+    @BeforeClass
+    public static void addBouncyCastle() {
+        // as on Android, where submissions are encrypted with it
+        Security.addProvider(new BouncyCastleProvider());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance(EncryptionUtils.RSA_ALGORITHM);
+        generator.initialize(2048);
+        rsaKeys = generator.generateKeyPair();
+
+        symmetricKey = new byte[EncryptionUtils.SYMMETRIC_KEY_LENGTH / 8];
+        new Random(1).nextBytes(symmetricKey);
+    }
+
+    @Test
+    public void concurrentEncryptionMatchesSerialEncryption() throws Exception {
+        File serialDir = createInstance("serial");
+        File concurrentDir = createInstance("concurrent");
+
+        EncryptedFormInformation serialInfo = newFormInformation();
+        EncryptedFormInformation concurrentInfo = newFormInformation();
+        byte[] ivSeed = serialInfo.ivSeedArray.clone();
+
+        // a small buffer, so that files are encrypted in several pieces
+        EncryptionUtils.generateEncryptedSubmission(new File(serialDir, "instance.xml"),
+                new File(serialDir, SUBMISSION_XML), serialInfo, 4096, null, 1);
+        EncryptionUtils.generateEncryptedSubmission(new File(concurrentDir, "instance.xml"),
+                new File(concurrentDir, SUBMISSION_XML), concurrentInfo, 4096, null, 4);
+
+        // everything but the RSA encrypted key, which is padded at random, is the same
+        assertEquals(
+                serialInfo.elementSignatureSource.toString()
+                        .replace(serialInfo.base64RsaEncryptedSymmetricKey, ""),
+                concurrentInfo.elementSignatureSource.toString()
+                        .replace(concurrentInfo.base64RsaEncryptedSymmetricKey, ""));
+
+        // the media files in name order, then the submission
+        String[] encryptionOrder = Arrays.copyOf(MEDIA_FILES, MEDIA_FILES.length + 1);
+        Arrays.sort(encryptionOrder, 0, MEDIA_FILES.length);
+        encryptionOrder[MEDIA_FILES.length] = SUBMISSION_XML;
+
+        byte[] iv = ivSeed.clone();
+        for (int i = 0; i < encryptionOrder.length; i++) {
+            // as EncryptedFormInformation.nextIv() does
+            ++iv[i % iv.length];
+
+            String name = encryptionOrder[i];
+            byte[] serial = read(new File(serialDir, name + ".enc"));
+            byte[] concurrent = read(new File(concurrentDir, name + ".enc"));
+            assertArrayEquals(name, serial, concurrent);
+
+            byte[] plain = name.equals(SUBMISSION_XML)
+                    ? submissionXml() : read(new File(serialDir, name));
+            assertArrayEquals(name, plain, decrypt(serial, iv));
+            assertArrayEquals(name, plain, decrypt(concurrent, iv));
+        }
+    }
+
+    @Test
+    public void manifestListsMediaInNameOrder() throws Exception {
+        File instanceDir = createInstance("instance");
+
+        EncryptionUtils.generateEncryptedSubmission(new File(instanceDir, "instance.xml"),
+                new File(instanceDir, SUBMISSION_XML), newFormInformation(), 4096, null, 4);
+
+        String manifest = new String(read(new File(instanceDir, SUBMISSION_XML)), "UTF-8");
+        String[] sorted = MEDIA_FILES.clone();
+        Arrays.sort(sorted);
+        int position = -1;
+        for (String name : sorted) {
+            int next = manifest.indexOf("<file>" + name + ".enc</file>");
+            assertTrue(name + " is not listed in order", next > position);
+            position = next;
+        }
+    }
+
+    private EncryptedFormInformation newFormInformation() throws Exception {
+        return new EncryptedFormInformation("form", "1",
+                new InstanceMetadata("uuid:instance", "Instance"), rsaKeys.getPublic(),
+                new Base64Wrapper(), symmetricKey);
+    }
+
+    private File createInstance(String name) throws IOException {
+        File instanceDir = temp.newFolder(name);
+        write(new File(instanceDir, "instance.xml"), submissionXml());
+        write(new File(instanceDir, SUBMISSION_XML), submissionXml());
+
+        Random random = new Random(42);
+        for (int i = 0; i < MEDIA_FILES.length; i++) {
+            // sizes that aren't multiples of the buffer or the AES block
+            byte[] content = new byte[i * 30011];
+            random.nextBytes(content);
+            write(new File(instanceDir, MEDIA_FILES[i]), content);
+        }
+        return instanceDir;
+    }
+
+    private byte[] decrypt(byte[] encrypted, byte[] iv) throws Exception {
+        Cipher c = Cipher.getInstance(EncryptionUtils.SYMMETRIC_ALGORITHM, "BC");
+        c.init(Cipher.DECRYPT_MODE, new SecretKeySpec(symmetricKey, "AES"),
+                new IvParameterSpec(iv));
+        return c.doFinal(encrypted);
+    }
+
+    private static byte[] submissionXml() throws IOException {
+        return ("<data id=\"form\" version=\"1\"><meta><instanceID>uuid:instance</instanceID>"
+                + "</meta></data>").getBytes("UTF-8");
+    }
+
+    private static byte[] read(File file) throws IOException {
+        return Files.readAllBytes(file.toPath());
+    }
+
+    private static void write(File file, byte[] content) throws IOException {
+        try (OutputStream os = new FileOutputStream(file)) {
+            os.write(content);
+        }
+    }
+}
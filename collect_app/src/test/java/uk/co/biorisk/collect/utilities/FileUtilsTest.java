@@ -0,0 +1,92 @@
+package uk.co.biorisk.collect.utilities;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Moves files into place, by renaming them or, when that isn't possible, by copying them.
+ */
+public class FileUtilsTest {
+
+    private static final byte[] CONTENT = {1, 2, 3, 4, 5};
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void movesByRenaming() throws IOException {
+        File source = write(temp.newFile("source"), CONTENT);
+        File dest = new File(temp.newFolder("dest"), "file");
+
+        assertNull(FileUtils.moveFile(source, dest));
+
+        assertFalse(source.exists());
+        assertArrayEquals(CONTENT, Files.readAllBytes(dest.toPath()));
+    }
+
+    @Test
+    public void replacesTheDestination() throws IOException {
+        File source = write(temp.newFile("source"), CONTENT);
+        File dest = write(temp.newFile("dest"), new byte[]{9});
+
+        assertNull(FileUtils.moveFile(source, dest));
+
+        assertArrayEquals(CONTENT, Files.readAllBytes(dest.toPath()));
+    }
+
+    @Test
+    public void missingSourceIsAnError() throws IOException {
+        File dest = write(temp.newFile("dest"), new byte[]{9});
+
+        assertNotNull(FileUtils.moveFile(new File(temp.getRoot(), "missing"), dest));
+
+        assertArrayEquals(new byte[]{9}, Files.readAllBytes(dest.toPath()));
+    }
+
+    @Test
+    public void copiesIntoPlaceWhenItCannotRename() throws IOException {
+        File source = write(temp.newFile("source"), CONTENT);
+        File destDir = temp.newFolder("dest");
+        File dest = write(new File(destDir, "file"), new byte[]{9});
+
+        assertNull(FileUtils.copyIntoPlace(source, dest));
+
+        assertFalse(source.exists());
+        assertArrayEquals(CONTENT, Files.readAllBytes(dest.toPath()));
+        // the copy is renamed over the destination, so nothing is left next to it
+        assertEquals(1, destDir.listFiles().length);
+    }
+
+    @Test
+    public void failedCopyLeavesTheSource() throws IOException {
+        File source = write(temp.newFile("source"), CONTENT);
+        File dest = new File(new File(temp.getRoot(), "missing"), "file");
+
+        assertNotNull(FileUtils.copyIntoPlace(source, dest));
+
+        assertTrue(source.exists());
+        assertArrayEquals(CONTENT, Files.readAllBytes(source.toPath()));
+        assertFalse(dest.exists());
+    }
+
+    private static File write(File file, byte[] bytes) throws IOException {
+        try (OutputStream os = new FileOutputStream(file)) {
+            os.write(bytes);
+        }
+        return file;
+    }
+}
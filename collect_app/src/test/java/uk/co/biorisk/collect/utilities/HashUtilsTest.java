@@ -0,0 +1,71 @@
+package uk.co.biorisk.collect.utilities;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Compares the streamed md5 hashes with ones worked out in one go.
+ */
+public class HashUtilsTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void knownDigests() throws IOException {
+        assertEquals("d41d8cd98f00b204e9800998ecf8427e", HashUtils.getMd5Hash(write(new byte[0])));
+        assertEquals("900150983cd24fb0d6963f7d28e17f72",
+                HashUtils.getMd5Hash(write("abc".getBytes("UTF-8"))));
+        assertEquals("900150983cd24fb0d6963f7d28e17f72", HashUtils.getMd5Hash("abc"));
+    }
+
+    @Test
+    public void filesAroundTheBufferSize() throws Exception {
+        int size = HashUtils.BUFFER_SIZE;
+        int[] lengths = {1, size - 1, size, size + 1, 2 * size, 3 * size + 7};
+        Random random = new Random(3);
+        for (int length : lengths) {
+            byte[] bytes = new byte[length];
+            random.nextBytes(bytes);
+            assertEquals("length " + length, md5(bytes), HashUtils.getMd5Hash(write(bytes)));
+        }
+    }
+
+    @Test
+    public void nothingIsCarriedOverFromTheLastFile() throws Exception {
+        byte[] large = new byte[HashUtils.BUFFER_SIZE + 100];
+        new Random(5).nextBytes(large);
+        HashUtils.getMd5Hash(write(large));
+
+        byte[] small = {1, 2, 3};
+        assertEquals(md5(small), HashUtils.getMd5Hash(write(small)));
+    }
+
+    @Test
+    public void missingFileHasNoHash() {
+        assertNull(HashUtils.getMd5Hash(new File(temp.getRoot(), "missing")));
+    }
+
+    private File write(byte[] bytes) throws IOException {
+        File file = temp.newFile();
+        try (OutputStream os = new FileOutputStream(file)) {
+            os.write(bytes);
+        }
+        return file;
+    }
+
+    private static String md5(byte[] bytes) throws Exception {
+        return HashUtils.toHex(MessageDigest.getInstance("MD5").digest(bytes));
+    }
+}
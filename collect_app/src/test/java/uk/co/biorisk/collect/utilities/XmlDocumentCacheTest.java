@@ -0,0 +1,256 @@
+package uk.co.biorisk.collect.utilities;
+
+import com.belladati.httpclientandroidlib.client.methods.HttpGet;
+import com.belladati.httpclientandroidlib.protocol.BasicHttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.xmlpull.v1.XmlPullParser;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Fetches a form list from a local server that answers conditional requests.
+ */
+public class XmlDocumentCacheTest {
+
+    private static final String LAST_MODIFIED = "Sat, 17 Oct 2026 10:00:00 GMT";
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private HttpServer server;
+    private String url;
+    private XmlDocumentCache cache;
+
+    // what the server serves, set by each test
+    private volatile String document = formList(3);
+    private volatile String etag = "\"v1\"";
+    private volatile String lastModified = LAST_MODIFIED;
+    // the validators sent with each request, and what the server answered
+    private final List<String> ifNoneMatch = Collections.synchronizedList(new ArrayList<String>());
+    private final List<String> ifModifiedSince = Collections.synchronizedList(new ArrayList<String>());
+    private final List<Integer> statuses = Collections.synchronizedList(new ArrayList<Integer>());
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/formList", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/formList";
+        cache = new XmlDocumentCache(temp.newFolder("documents"));
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        WebUtils.clearHttpConnectionManager();
+    }
+
+    @Test
+    public void storesTheDocumentWithItsValidators() {
+        FormCounter reader = new FormCounter();
+        DocumentFetchResult result = fetch(reader);
+
+        assertNull(result.errorMessage);
+        assertFalse(result.notModified);
+        assertTrue(result.isOpenRosaResponse);
+        assertEquals(3, reader.forms);
+
+        XmlDocumentCache.Validators validators = cache.getValidators(url);
+        assertNotNull(validators);
+        assertEquals(etag, validators.etag);
+        assertEquals(LAST_MODIFIED, validators.lastModified);
+        assertTrue(validators.isOpenRosaResponse);
+        // nothing to ask with the first time
+        assertEquals(Collections.singletonList((String) null), ifNoneMatch);
+    }
+
+    @Test
+    public void unchangedDocumentIsNotReadAgain() {
+        fetch(new FormCounter());
+        cache.putParsed(url, 3);
+
+        FormCounter reader = new FormCounter();
+        DocumentFetchResult result = fetch(reader);
+
+        assertEquals(304, (int) statuses.get(1));
+        assertEquals(etag, ifNoneMatch.get(1));
+        assertEquals(LAST_MODIFIED, ifModifiedSince.get(1));
+        assertNull(result.errorMessage);
+        assertTrue(result.notModified);
+        assertTrue(result.isOpenRosaResponse);
+        assertEquals(304, result.responseCode);
+        // the reader isn't called, what was made of the stored copy is used instead
+        assertFalse(reader.called);
+        assertEquals(3, cache.getParsed(url));
+    }
+
+    @Test
+    public void storedDocumentCanBeReadAgain() {
+        fetch(new FormCounter());
+        fetch(new FormCounter());
+
+        FormCounter reader = new FormCounter();
+        DocumentFetchResult result = cache.read(url, reader);
+
+        assertNull(result.errorMessage);
+        assertTrue(result.isOpenRosaResponse);
+        assertEquals(3, reader.forms);
+    }
+
+    @Test
+    public void changedDocumentIsFetchedAgain() {
+        fetch(new FormCounter());
+        cache.putParsed(url, 3);
+        document = formList(5);
+        etag = "\"v2\"";
+
+        FormCounter reader = new FormCounter();
+        DocumentFetchResult result = fetch(reader);
+
+        assertEquals(200, (int) statuses.get(1));
+        assertFalse(result.notModified);
+        assertEquals(5, reader.forms);
+        assertEquals("\"v2\"", cache.getValidators(url).etag);
+        // what was made of the old one is gone with it
+        assertNull(cache.getParsed(url));
+    }
+
+    @Test
+    public void lastModifiedIsEnoughToRevalidate() {
+        etag = null;
+        fetch(new FormCounter());
+
+        FormCounter reader = new FormCounter();
+        DocumentFetchResult result = fetch(reader);
+
+        assertNull(ifNoneMatch.get(1));
+        assertEquals(LAST_MODIFIED, ifModifiedSince.get(1));
+        assertTrue(result.notModified);
+        assertFalse(reader.called);
+    }
+
+    @Test
+    public void documentWithoutValidatorsIsNotStored() {
+        etag = null;
+        lastModified = null;
+        fetch(new FormCounter());
+
+        FormCounter reader = new FormCounter();
+        DocumentFetchResult result = fetch(reader);
+
+        assertNull(cache.getValidators(url));
+        assertNull(ifNoneMatch.get(1));
+        assertNull(ifModifiedSince.get(1));
+        assertFalse(result.notModified);
+        assertEquals(3, reader.forms);
+    }
+
+    @Test
+    public void refusedDocumentIsNotStored() {
+        DocumentFetchResult result = fetch(new XmlDocumentReader() {
+            @Override
+            public String read(XmlPullParser parser, boolean isOpenRosaResponse) {
+                return "not a form list";
+            }
+        });
+
+        assertEquals("not a form list", result.errorMessage);
+        assertNull(cache.getValidators(url));
+    }
+
+    private DocumentFetchResult fetch(XmlDocumentReader reader) {
+        return WebUtils.readXmlDocument(new HttpGet(url), url, new BasicHttpContext(),
+                WebUtils.createHttpClient(WebUtils.CONNECTION_TIMEOUT), cache, reader);
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        String requestEtag = exchange.getRequestHeaders().getFirst("If-None-Match");
+        String requestDate = exchange.getRequestHeaders().getFirst("If-Modified-Since");
+        ifNoneMatch.add(requestEtag);
+        ifModifiedSince.add(requestDate);
+
+        exchange.getResponseHeaders().add(WebUtils.OPEN_ROSA_VERSION_HEADER,
+                WebUtils.OPEN_ROSA_VERSION);
+        exchange.getResponseHeaders().add("Connection", "close");
+        if (etag != null) {
+            exchange.getResponseHeaders().add("ETag", etag);
+        }
+        if (lastModified != null) {
+            exchange.getResponseHeaders().add("Last-Modified", lastModified);
+        }
+
+        // as servers do, the ETag is what decides if there is one
+        boolean unchanged = requestEtag != null
+                ? requestEtag.equals(etag)
+                : requestDate != null && requestDate.equals(lastModified);
+        if (unchanged) {
+            statuses.add(304);
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+            return;
+        }
+
+        byte[] body = document.getBytes("UTF-8");
+        statuses.add(200);
+        exchange.getResponseHeaders().add("Content-Type", "text/xml; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+    private static String formList(int forms) {
+        StringBuilder b = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                + "<xforms xmlns=\"http://openrosa.org/xforms/xformsList\">");
+        for (int i = 0; i < forms; i++) {
+            b.append("<xform><formID>form").append(i).append("</formID>")
+                    .append("<name>Form ").append(i).append("</name>")
+                    .append("<hash>md5:").append(i).append("</hash>")
+                    .append("<downloadUrl>http://example.org/form").append(i).append("</downloadUrl>")
+                    .append("</xform>");
+        }
+        return b.append("</xforms>").toString();
+    }
+
+    private static class FormCounter extends XmlDocumentReader {
+        boolean called = false;
+        int forms = 0;
+
+        @Override
+        public String read(XmlPullParser parser, boolean isOpenRosaResponse) throws Exception {
+            called = true;
+            parser.nextTag();
+            int depth = parser.getDepth();
+            while (nextChildElement(parser, depth)) {
+                if (parser.getName().equals("xform")) {
+                    forms++;
+                }
+            }
+            return null;
+        }
+    }
+}